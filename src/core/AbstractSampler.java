@@ -1,15 +1,19 @@
 package core;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import main.GlobalConstants;
@@ -19,8 +23,15 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import sampler.unsupervised.LDA;
 import sampler.unsupervised.RecursiveLDA;
+import sampling.likelihood.DirMult;
+import sampling.util.ADLDASweep;
+import sampling.util.AsyncCheckpointer;
+import sampling.util.BinaryState;
+import sampling.util.DeltaState;
+import sampling.util.WordTopicMatrix;
 import util.IOUtils;
 import util.MiscUtils;
+import util.RandomUtils;
 import util.RankingItem;
 
 /**
@@ -44,6 +55,9 @@ public abstract class AbstractSampler implements Serializable {
     public static final String ReportFolder = "report/";
     public static final String AssignmentFileExt = ".assignment";
     public static final String ModelFileExt = ".model";
+    public static final String ZipStateExt = ".zip";
+    public static final String BinaryStateExt = ".bin";
+    public static final String DeltaStateExt = DeltaState.EXTENSION;
     public static final String LikelihoodFile = "likelihoods.txt";
     public static final String HyperparameterFile = "hyperparameters.txt";
     public static final int INIT = -1;
@@ -70,7 +84,7 @@ public abstract class AbstractSampler implements Serializable {
     protected static final long RAND_SEED = 1123581321;
     protected static final double MAX_LOG = Math.log(Double.MAX_VALUE);
     protected static final NumberFormat formatter = new DecimalFormat("###.###");
-    protected static Random rand = new Random(RAND_SEED);
+    protected static Random rand = RandomUtils.getThreadRandom(); // see RandomUtils
     protected static long startTime;
     // sampling configurations
     protected int BURN_IN = 5;          // burn-in
@@ -86,6 +100,8 @@ public abstract class AbstractSampler implements Serializable {
     protected String name;
     protected String basename;
     protected ArrayList<Double> hyperparams; // should have used a HashMap instead of ArrayList
+    protected double[] hyperparamValues; // unboxed copy of hyperparams, see cacheHyperparameters
+    protected transient double[] scratchBuffer; // reused across tokens, see getScratchBuffer
     protected boolean paramOptimized = false;
     protected String prefix = "";// to store description of predefined configurations (e.g., initialization)
     protected InitialState initState;
@@ -100,6 +116,25 @@ public abstract class AbstractSampler implements Serializable {
     protected boolean log = true;
     protected boolean report = false;
     protected boolean isReporting;
+    protected int numThreads = 1; // number of threads for parallel sampling
+    protected int syncInterval = 0; // # documents per thread between merges
+    protected transient ADLDASweep parallelSweep;
+    // storage of the document-topic and topic-word Dirichlet-multinomials
+    protected DirMult.Representation docTopicRep = DirMult.Representation.SPARSE;
+    protected DirMult.Representation topicWordRep = DirMult.Representation.SPARSE;
+    protected boolean wordMajor = false;
+    protected WordTopicMatrix wordTopicMatrix; // non-null when topic-word counts are word-major
+    protected String stateFileExt = ZipStateExt; // format of the states in the report folder
+    protected int asyncCheckpoints = 0; // max # pending background checkpoints, 0 for synchronous
+    protected transient AsyncCheckpointer checkpointer;
+    // snapshot buffers not being written, at most asyncCheckpoints in total
+    private transient LinkedBlockingQueue<AbstractSampler> freeSnapshots;
+    private transient int numSnapshots;
+    protected int deltaCheckpoints = 0; // # delta states between full states, 0 to disable
+    private transient int[][] checkpointZ; // assignments at the last checkpoint
+    private transient int checkpointIter;
+    private transient boolean checkpointDelta;
+    private transient int numDeltaCheckpoints;
     protected BufferedWriter logger;
     protected static CommandLineParser parser;
     protected static Options options;
@@ -120,6 +155,50 @@ public abstract class AbstractSampler implements Serializable {
         addOption("report", "Report interval");
     }
 
+    public static void addParallelOptions() {
+        addOption("threads", "Number of sampling threads");
+        addOption("sync-interval", "Number of documents each thread samples "
+                + "before merging topic counts (default: once per sweep)");
+        addOption("seed", "Random seed");
+    }
+
+    public static void addRepresentationOptions() {
+        addOption("doc-topic-rep", "Storage of document-topic counts "
+                + "(sparse, dense, dense-log)");
+        addOption("topic-word-rep", "Storage of topic-word counts "
+                + "(sparse, dense, dense-log)");
+        options.addOption("word-major", false, "Store topic-word counts word-major");
+    }
+
+    public static void addCheckpointOptions() {
+        options.addOption("binary-state", false, "Output states in the binary format");
+        addOption("async-checkpoints", "Maximum number of states written in "
+                + "the background while sampling continues (default: 0, "
+                + "states are written synchronously)");
+        addOption("delta-checkpoints", "Number of delta states, which only "
+                + "store the changed assignments, written between two full "
+                + "states (default: 0, all states are full)");
+    }
+
+    /**
+     * Parse a representation of Dirichlet-multinomials from its command-line
+     * name.
+     *
+     * @param rep The name (sparse, dense or dense-log)
+     */
+    public static DirMult.Representation getRepresentation(String rep) {
+        switch (rep) {
+            case "sparse":
+                return DirMult.Representation.SPARSE;
+            case "dense":
+                return DirMult.Representation.DENSE;
+            case "dense-log":
+                return DirMult.Representation.DENSE_LOG;
+            default:
+                throw new RuntimeException("Representation " + rep + " not supported");
+        }
+    }
+
     public static void addRunningOptions() {
         options.addOption("v", false, "verbose");
         options.addOption("d", false, "debug");
@@ -188,6 +267,413 @@ public abstract class AbstractSampler implements Serializable {
         return this.REP_INTERVAL;
     }
 
+    /**
+     * Set the number of threads used to sample topic assignments in parallel
+     * (AD-LDA). One thread uses the sequential sampler.
+     *
+     * @param numThreads Number of threads
+     * @param syncInterval Number of documents each thread samples before the
+     * topic counts of all threads are merged. A non-positive value merges once
+     * per sweep.
+     */
+    public void setNumThreads(int numThreads, int syncInterval) {
+        if (numThreads < 1) {
+            throw new RuntimeException("Invalid number of threads " + numThreads);
+        }
+        this.numThreads = numThreads;
+        this.syncInterval = syncInterval;
+        if (this.parallelSweep != null) {
+            this.parallelSweep.shutdown();
+            this.parallelSweep = null;
+        }
+    }
+
+    /**
+     * Return the parallel sweep with the current number of threads, creating
+     * it if needed.
+     *
+     * @param bufferSize Size of the scratch buffer of each thread
+     */
+    protected ADLDASweep getParallelSweep(int bufferSize) {
+        if (this.parallelSweep == null) {
+            this.parallelSweep = new ADLDASweep(numThreads, syncInterval,
+                    bufferSize, RandomUtils.getSeed());
+        }
+        return this.parallelSweep;
+    }
+
+    public int getNumThreads() {
+        return this.numThreads;
+    }
+
+    /**
+     * Set how the counts of document-topic and topic-word distributions are
+     * stored. This must be called before the sampler is initialized.
+     *
+     * @param docTopicRep Representation of document-topic distributions
+     * @param topicWordRep Representation of topic-word distributions
+     */
+    public void setRepresentations(DirMult.Representation docTopicRep,
+            DirMult.Representation topicWordRep) {
+        this.docTopicRep = docTopicRep;
+        this.topicWordRep = topicWordRep;
+    }
+
+    /**
+     * Copy the current hyperparameters into {@link #hyperparamValues} so that
+     * inner sampling loops read primitives instead of unboxing
+     * {@link #hyperparams}. Since hyperparameters can be updated between
+     * sweeps, this should be called at the beginning of each sweep.
+     */
+    protected void cacheHyperparameters() {
+        if (hyperparams == null) {
+            return;
+        }
+        if (hyperparamValues == null || hyperparamValues.length != hyperparams.size()) {
+            hyperparamValues = new double[hyperparams.size()];
+        }
+        for (int ii = 0; ii < hyperparamValues.length; ii++) {
+            hyperparamValues[ii] = hyperparams.get(ii);
+        }
+    }
+
+    /**
+     * Return a scratch buffer with at least a given number of elements. The
+     * buffer is reused by all calls, so the contents are only valid until the
+     * next call and the buffer must not be shared across threads.
+     *
+     * @param size The minimum number of elements
+     */
+    protected double[] getScratchBuffer(int size) {
+        if (scratchBuffer == null || scratchBuffer.length < size) {
+            scratchBuffer = new double[size];
+        }
+        return scratchBuffer;
+    }
+
+    /**
+     * Set whether topic-word counts are stored in a single word-major matrix
+     * shared by all topics. This must be called before the sampler is
+     * initialized.
+     *
+     * @param wordMajor
+     */
+    public void setWordMajor(boolean wordMajor) {
+        this.wordMajor = wordMajor;
+    }
+
+    /**
+     * Move a set of topic-word distributions into a word-major matrix if
+     * word-major storage is enabled. The returned views replace the given
+     * topics; the matrix is kept in {@link #wordTopicMatrix}.
+     *
+     * @param topics The topic-word distributions
+     */
+    protected DirMult[] toWordMajor(DirMult[] topics) {
+        if (!wordMajor) {
+            return topics;
+        }
+        DirMult[] views = WordTopicMatrix.toWordMajor(topics);
+        wordTopicMatrix = WordTopicMatrix.getMatrix(views);
+        return views;
+    }
+
+    /**
+     * Set whether the states in the report folder are output in the binary
+     * format (see {@link BinaryState}) instead of zipped text.
+     *
+     * @param binary
+     */
+    public void setBinaryState(boolean binary) {
+        this.stateFileExt = binary ? BinaryStateExt : ZipStateExt;
+    }
+
+    public String getStateFileExt() {
+        return this.stateFileExt;
+    }
+
+    /**
+     * Return whether a state file is in the binary format, which is decided
+     * by its extension. All other states are zipped text.
+     *
+     * @param filepath The state file
+     */
+    public static boolean isBinaryState(String filepath) {
+        return filepath.endsWith(BinaryStateExt);
+    }
+
+    /**
+     * Return whether a state file is a delta state (see {@link DeltaState}).
+     *
+     * @param filepath The state file
+     */
+    public static boolean isDeltaState(String filepath) {
+        return filepath.endsWith(DeltaStateExt);
+    }
+
+    /**
+     * Return whether a file in the report folder is a (full or delta) state.
+     *
+     * @param filename Name of the file
+     */
+    public static boolean isReportState(String filename) {
+        return filename.endsWith(ZipStateExt)
+                || filename.endsWith(BinaryStateExt)
+                || filename.endsWith(DeltaStateExt);
+    }
+
+    /**
+     * Return the state file of a given iteration in the report folder.
+     *
+     * @param iter The iteration
+     */
+    public File getReportStateFile(int iter) {
+        return new File(getReportFolderPath(), "iter-" + iter + stateFileExt);
+    }
+
+    /**
+     * Set the maximum number of states in the report folder that can be
+     * written in the background while sampling continues. Submitting a state
+     * blocks while this many are pending. Samplers that cannot take a
+     * snapshot of their state (see {@link #createStateSnapshot()}) always
+     * write synchronously.
+     *
+     * @param maxPending Maximum number of pending states, 0 for synchronous
+     * writing
+     */
+    public void setAsyncCheckpoints(int maxPending) {
+        this.asyncCheckpoints = maxPending;
+    }
+
+    /**
+     * Set the number of delta states, which only record the tokens whose
+     * assignments changed, written between two full states in the report
+     * folder. The final state is always full.
+     *
+     * @param numDeltas Number of delta states per full state, 0 to disable
+     */
+    public void setDeltaCheckpoints(int numDeltas) {
+        this.deltaCheckpoints = numDeltas;
+    }
+
+    /**
+     * Create an empty buffer that can hold a copy of the state and output it
+     * using {@link #outputState(File)}, or return null if the sampler does not
+     * support snapshots. Buffers are reused across checkpoints, and at most
+     * as many as the maximum number of pending checkpoints are created.
+     */
+    protected AbstractSampler createStateSnapshot() {
+        return null;
+    }
+
+    /**
+     * Copy the current state into a buffer created by
+     * {@link #createStateSnapshot()}. This runs on the sampling thread, so it
+     * should only copy primitive arrays and leave anything that can be derived
+     * from them to {@link #completeStateSnapshot()}.
+     *
+     * @param snapshot The buffer
+     */
+    protected void copyStateTo(AbstractSampler snapshot) {
+    }
+
+    /**
+     * Called on a buffer filled by {@link #copyStateTo(AbstractSampler)} by the
+     * background writer, before the buffer is output.
+     */
+    protected void completeStateSnapshot() {
+    }
+
+    /**
+     * Return a free snapshot buffer, creating one if fewer than the maximum
+     * number of pending checkpoints exist and waiting for a pending checkpoint
+     * otherwise, or null if the sampler does not support snapshots.
+     */
+    private AbstractSampler takeStateSnapshot() {
+        if (freeSnapshots == null) {
+            freeSnapshots = new LinkedBlockingQueue<AbstractSampler>();
+        }
+        AbstractSampler snapshot = freeSnapshots.poll();
+        if (snapshot != null) {
+            return snapshot;
+        }
+        if (numSnapshots < asyncCheckpoints) {
+            snapshot = createStateSnapshot();
+            if (snapshot != null) {
+                numSnapshots++;
+            }
+            return snapshot;
+        }
+        try {
+            return freeSnapshots.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a checkpoint");
+        }
+    }
+
+    /**
+     * Output the state of a given iteration to the report folder. In async
+     * mode, a snapshot of the state is written by a background thread.
+     *
+     * @param iter The iteration
+     */
+    protected void outputCheckpoint(int iter) {
+        if (deltaCheckpoints > 0 && checkpointZ != null && iter < MAX_ITER
+                && numDeltaCheckpoints < deltaCheckpoints) {
+            outputDeltaCheckpoint(iter);
+            return;
+        }
+        if (deltaCheckpoints > 0) {
+            // the next delta states are relative to this full state
+            int[][] z = getCheckpointAssignments();
+            if (z != null) {
+                checkpointZ = new int[z.length][];
+                for (int dd = 0; dd < z.length; dd++) {
+                    checkpointZ[dd] = z[dd].clone();
+                }
+                checkpointIter = iter;
+                checkpointDelta = false;
+                numDeltaCheckpoints = 0;
+            }
+        }
+
+        final File file = getReportStateFile(iter);
+        if (asyncCheckpoints > 0) {
+            final AbstractSampler snapshot = takeStateSnapshot();
+            if (snapshot != null) {
+                if (checkpointer == null) {
+                    checkpointer = new AsyncCheckpointer(asyncCheckpoints);
+                }
+                copyStateTo(snapshot);
+                final LinkedBlockingQueue<AbstractSampler> free = freeSnapshots;
+                checkpointer.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            snapshot.completeStateSnapshot();
+                            snapshot.outputState(file);
+                        } finally {
+                            free.add(snapshot);
+                        }
+                    }
+                });
+                return;
+            }
+        }
+        outputState(file);
+    }
+
+    /**
+     * Output a delta state containing the assignments that changed since the
+     * previous checkpoint.
+     *
+     * @param iter The iteration
+     */
+    private void outputDeltaCheckpoint(int iter) {
+        File file = new File(getReportFolderPath(), "iter-" + iter + DeltaStateExt);
+        try {
+            DeltaState delta = DeltaState.create(iter, checkpointIter,
+                    checkpointDelta, checkpointZ, getCheckpointAssignments(),
+                    getCheckpointWords());
+            outputDeltaParameters(delta);
+            delta.output(file.getAbsolutePath());
+            if (verbose) {
+                logln("--- Output delta state to " + file + ". # changes: "
+                        + delta.getNumChanges());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while outputing to " + file);
+        }
+        checkpointIter = iter;
+        checkpointDelta = true;
+        numDeltaCheckpoints++;
+    }
+
+    /**
+     * Replay the delta states leading to a given delta state on top of the
+     * already loaded base state (see {@link DeltaState#getBaseState(String)}).
+     *
+     * @param filepath The delta state
+     * @param modelOnly Whether only the model, and not the assignments, is
+     * loaded
+     */
+    protected void applyDeltaStates(String filepath, boolean modelOnly) {
+        try {
+            for (String deltaFile : DeltaState.getDeltaChain(filepath)) {
+                DeltaState delta = DeltaState.input(deltaFile);
+                for (int ii = 0; ii < delta.getNumChanges(); ii++) {
+                    changeAssignment(delta.getDocument(ii), delta.getToken(ii),
+                            delta.getWord(ii), delta.getOldTopic(ii),
+                            delta.getNewTopic(ii), modelOnly);
+                }
+                inputDeltaParameters(delta);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while loading from " + filepath);
+        }
+    }
+
+    /**
+     * Return the current topic assignments of all tokens, or null if the
+     * sampler does not support delta states.
+     */
+    protected int[][] getCheckpointAssignments() {
+        return null;
+    }
+
+    /**
+     * Return the word types of all tokens, aligned with
+     * {@link #getCheckpointAssignments()}.
+     */
+    protected int[][] getCheckpointWords() {
+        return null;
+    }
+
+    /**
+     * Move a token from one topic to another while replaying a delta state.
+     *
+     * @param dd Document index
+     * @param nn Token index
+     * @param vv Word type
+     * @param oldTopic Previous topic
+     * @param newTopic New topic
+     * @param modelOnly Whether only the model is updated
+     */
+    protected void changeAssignment(int dd, int nn, int vv, int oldTopic,
+            int newTopic, boolean modelOnly) {
+        throw new RuntimeException(getClass().getName()
+                + " does not support delta states");
+    }
+
+    /**
+     * Output real-valued parameters that are not determined by the
+     * assignments, such as regression parameters, to a delta state.
+     *
+     * @param delta The delta state
+     */
+    protected void outputDeltaParameters(DeltaState delta) {
+    }
+
+    protected void inputDeltaParameters(DeltaState delta) {
+    }
+
+    /**
+     * Wait until all states submitted by {@link #outputCheckpoint(int)} are
+     * written.
+     */
+    protected void flushCheckpoints() {
+        if (checkpointer != null) {
+            checkpointer.close();
+            checkpointer = null;
+        }
+        // release the snapshot buffers
+        freeSnapshots = null;
+        numSnapshots = 0;
+    }
+
     public void setReportInterval(int repInt) {
         REP_INTERVAL = repInt;
     }
@@ -404,11 +890,11 @@ public abstract class AbstractSampler implements Serializable {
     }
 
     public File getFinalStateFile() {
-        return new File(getReportFolderPath(), "iter-" + MAX_ITER + ".zip");
+        return getReportStateFile(MAX_ITER);
     }
 
     public void inputFinalState() {
-        this.inputState(new File(getReportFolderPath(), "iter-" + MAX_ITER + ".zip"));
+        this.inputState(getReportStateFile(MAX_ITER));
     }
 
     public void outputState(File file) {
@@ -445,6 +931,73 @@ public abstract class AbstractSampler implements Serializable {
         writer.close();
     }
 
+    /**
+     * Writes the content of one entry of a zipped state.
+     */
+    public interface StateEntryWriter {
+
+        public void write(BufferedWriter writer) throws IOException;
+    }
+
+    /**
+     * Output a zipped state whose model and assignment entries are streamed
+     * by callbacks, so that the content of an entry is never held in memory
+     * as a whole.
+     *
+     * @param filepath The output file
+     * @param modelWriter Writer of the model entry, or null
+     * @param assignWriter Writer of the assignment entry, or null
+     */
+    protected void outputZipFile(
+            String filepath,
+            StateEntryWriter modelWriter,
+            StateEntryWriter assignWriter) throws Exception {
+        String filename = IOUtils.removeExtension(IOUtils.getFilename(filepath));
+        ArrayList<StateEntryWriter> writers = new ArrayList<StateEntryWriter>();
+        ArrayList<String> entryFiles = new ArrayList<String>();
+        if (modelWriter != null) {
+            writers.add(modelWriter);
+            entryFiles.add(filename + ModelFileExt);
+        }
+        if (assignWriter != null) {
+            writers.add(assignWriter);
+            entryFiles.add(filename + AssignmentFileExt);
+        }
+        outputZipEntries(filepath, writers, entryFiles);
+    }
+
+    /**
+     * Output a zipped state with an arbitrary set of entries, each of which is
+     * streamed by a callback through a buffered writer into the compressed
+     * stream.
+     *
+     * @param filepath The output file
+     * @param writers Writers of the entries
+     * @param entryFiles Names of the entries
+     */
+    protected void outputZipEntries(String filepath,
+            ArrayList<StateEntryWriter> writers,
+            ArrayList<String> entryFiles) throws Exception {
+        if (writers.size() != entryFiles.size()) {
+            throw new RuntimeException("Mismatch");
+        }
+
+        ZipOutputStream zipStream = new ZipOutputStream(
+                new BufferedOutputStream(new FileOutputStream(filepath), 1 << 16));
+        BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(zipStream, "UTF-8"), 1 << 16);
+        try {
+            for (int ii = 0; ii < writers.size(); ii++) {
+                zipStream.putNextEntry(new ZipEntry(entryFiles.get(ii)));
+                writers.get(ii).write(writer);
+                writer.flush();
+                zipStream.closeEntry();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
     protected void outputZipFile(String filepath,
             ArrayList<String> contentStrs,
             ArrayList<String> entryFiles) throws Exception {
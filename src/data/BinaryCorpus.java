@@ -0,0 +1,138 @@
+package data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import sampling.util.BinaryState;
+
+/**
+ * Binary formatted corpus in compressed sparse row (CSR) layout: the token ids
+ * of all documents are concatenated into a single array, and an offset array
+ * stores where each document starts. Sentences, if any, are stored the same
+ * way, with an additional array of offsets from documents into sentences.
+ *
+ * The file is memory-mapped, so {@link #getDocumentView(int)} and
+ * {@link #getTokenView()} are zero-copy views of the file, while
+ * {@link #getWords()} and {@link #getSentenceWords()} materialize the arrays
+ * with bulk copies and no parsing.
+ *
+ * @author vietan
+ */
+public class BinaryCorpus {
+
+    public static final String WORDS = "words";
+    public static final String SENTENCES = "sentences";
+    public static final String DOC_SENTENCES = "doc-sentences";
+    private final BinaryState.Reader reader;
+    private final int[] docOffsets;
+    private final IntBuffer tokens;
+
+    public BinaryCorpus(File file) throws IOException {
+        this.reader = new BinaryState.Reader(file.getAbsolutePath());
+        this.docOffsets = reader.readInts(WORDS + BinaryState.OFFSETS);
+        this.tokens = reader.getIntBuffer(WORDS);
+    }
+
+    public int getNumDocuments() {
+        return docOffsets.length - 1;
+    }
+
+    public int getNumTokens() {
+        return docOffsets[docOffsets.length - 1];
+    }
+
+    public int getDocumentLength(int dd) {
+        return docOffsets[dd + 1] - docOffsets[dd];
+    }
+
+    /**
+     * Return a read-only view of the token ids of all documents.
+     */
+    public IntBuffer getTokenView() {
+        return tokens.duplicate();
+    }
+
+    /**
+     * Return a read-only view of the token ids of a document.
+     *
+     * @param dd Document index
+     */
+    public IntBuffer getDocumentView(int dd) {
+        IntBuffer view = tokens.duplicate();
+        view.limit(docOffsets[dd + 1]);
+        view.position(docOffsets[dd]);
+        return view.slice();
+    }
+
+    public int[][] getWords() {
+        int[][] words = new int[getNumDocuments()][];
+        IntBuffer view = tokens.duplicate();
+        for (int dd = 0; dd < words.length; dd++) {
+            words[dd] = new int[getDocumentLength(dd)];
+            view.get(words[dd]);
+        }
+        return words;
+    }
+
+    public boolean hasSentences() {
+        return reader.contains(SENTENCES);
+    }
+
+    public int[][][] getSentenceWords() throws IOException {
+        if (!hasSentences()) {
+            return null;
+        }
+        int[] docSentOffsets = reader.readInts(DOC_SENTENCES);
+        int[] sentOffsets = reader.readInts(SENTENCES + BinaryState.OFFSETS);
+        IntBuffer view = reader.getIntBuffer(SENTENCES);
+        int[][][] sentWords = new int[docSentOffsets.length - 1][][];
+        for (int dd = 0; dd < sentWords.length; dd++) {
+            sentWords[dd] = new int[docSentOffsets[dd + 1] - docSentOffsets[dd]][];
+            for (int ss = 0; ss < sentWords[dd].length; ss++) {
+                int sent = docSentOffsets[dd] + ss;
+                sentWords[dd][ss] = new int[sentOffsets[sent + 1] - sentOffsets[sent]];
+                view.get(sentWords[dd][ss]);
+            }
+        }
+        return sentWords;
+    }
+
+    /**
+     * Release the mapped file. Views obtained from this corpus should not be
+     * used afterward.
+     */
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Output a corpus in the binary format.
+     *
+     * @param file Output file
+     * @param words Token ids of all documents
+     * @param sentWords (Optional) Token ids of all sentences of all documents
+     */
+    public static void output(File file, int[][] words, int[][][] sentWords)
+            throws IOException {
+        BinaryState.Writer writer = new BinaryState.Writer(file.getAbsolutePath());
+        writer.writeIntArrays(WORDS, words);
+        if (sentWords != null) {
+            if (sentWords.length != words.length) {
+                throw new RuntimeException("Number of documents mismatched. "
+                        + words.length + " vs. " + sentWords.length);
+            }
+            int[] docSentOffsets = new int[sentWords.length + 1];
+            for (int dd = 0; dd < sentWords.length; dd++) {
+                docSentOffsets[dd + 1] = docSentOffsets[dd] + sentWords[dd].length;
+            }
+            int[][] sents = new int[docSentOffsets[sentWords.length]][];
+            for (int dd = 0; dd < sentWords.length; dd++) {
+                System.arraycopy(sentWords[dd], 0, sents, docSentOffsets[dd],
+                        sentWords[dd].length);
+            }
+            writer.writeInts(DOC_SENTENCES, docSentOffsets);
+            writer.writeIntArrays(SENTENCES, sents);
+        }
+        writer.close();
+    }
+}
@@ -1,16 +1,25 @@
 package data;
 
+import gnu.trove.iterator.TObjectIntIterator;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import main.GlobalConstants;
@@ -55,7 +64,9 @@ public class CorpusProcessor {
     public int minWordLength = 3; // minimum length of a word type 
     public boolean filterStopwords = true; // whether stopwords are filtered
     public boolean lemmatization = false; // whether lemmatization should be performed
+    private int numThreads = 1; // number of threads for tokenizing and counting
     // tools
+    protected TokenizerModel tokenizerModel;
     protected Tokenizer tokenizer;
     protected SentenceDetector sentenceDetector;
     private StopwordRemoval stopwordRemoval;
@@ -85,6 +96,7 @@ public class CorpusProcessor {
                 corp.docTypeCountCutoff,
                 corp.filterStopwords,
                 corp.lemmatization);
+        this.numThreads = corp.numThreads;
     }
 
     public CorpusProcessor(
@@ -165,8 +177,8 @@ public class CorpusProcessor {
 
             // initiate tokenizer
             InputStream tokenizeIn = new FileInputStream(GlobalConstants.TokenizerFilePath);
-            TokenizerModel tokenizeModel = new TokenizerModel(tokenizeIn);
-            this.tokenizer = new TokenizerME(tokenizeModel);
+            this.tokenizerModel = new TokenizerModel(tokenizeIn);
+            this.tokenizer = new TokenizerME(tokenizerModel);
             tokenizeIn.close();
 
             InputStream tokenizeSent = new FileInputStream(GlobalConstants.SentDetectorFilePath);
@@ -228,6 +240,20 @@ public class CorpusProcessor {
         this.lemmatization = stem;
     }
 
+    /**
+     * Set the number of threads used to tokenize and count documents in
+     * {@link #process(java.lang.String[][])}. The results do not depend on the
+     * number of threads.
+     *
+     * @param numThreads Number of threads
+     */
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new RuntimeException("Invalid number of threads " + numThreads);
+        }
+        this.numThreads = numThreads;
+    }
+
     public ArrayList<String> getVocab() {
         return this.vocabulary;
     }
@@ -297,20 +323,33 @@ public class CorpusProcessor {
             if (verbose && d % step == 0) {
                 System.out.println("--- Normalizing tokens d = " + d + " / " + D);
             }
-            normTexts[d] = new String[rawSentences[d].length][];
-            for (int s = 0; s < rawSentences[d].length; s++) {
-                String[] sentTokens = tokenizer.tokenize(rawSentences[d][s].toLowerCase());
-                normTexts[d][s] = new String[sentTokens.length];
-                for (int t = 0; t < sentTokens.length; t++) {
-                    String normToken = normalize(sentTokens[t]);
-                    normTexts[d][s][t] = normToken;
-                }
-            }
+            normTexts[d] = normalizeDocument(rawSentences[d], tokenizer, stemmer);
         }
 
         return normTexts;
     }
 
+    /**
+     * Tokenize and normalize the sentences of a document. Empty strings mark
+     * the tokens that are discarded.
+     *
+     * @param rawDocSents Raw sentences of the document
+     * @param docTokenizer Tokenizer
+     * @param docStemmer Stemmer
+     */
+    private String[][] normalizeDocument(String[] rawDocSents,
+            Tokenizer docTokenizer, Stemmer docStemmer) {
+        String[][] normDoc = new String[rawDocSents.length][];
+        for (int s = 0; s < rawDocSents.length; s++) {
+            String[] sentTokens = docTokenizer.tokenize(rawDocSents[s].toLowerCase());
+            normDoc[s] = new String[sentTokens.length];
+            for (int t = 0; t < sentTokens.length; t++) {
+                normDoc[s][t] = normalize(sentTokens[t], docStemmer);
+            }
+        }
+        return normDoc;
+    }
+
     /**
      * Process a set of documents with an existing vocabulary
      *
@@ -344,68 +383,52 @@ public class CorpusProcessor {
                 System.out.println("--- Normalizing tokens d = " + d + " / " + D);
             }
             for (int s = 0; s < normTexts[d].length; s++) {
-                ArrayList<String> tokens = new ArrayList<String>();
-                for (int i = 0; i < normTexts[d][s].length; i++) {
-                    String curToken = normTexts[d][s][i];
-                    if (curToken.isEmpty()) {
-                        continue;
-                    }
-
-                    // consider a bigram
-                    if (i + 1 < normTexts[d][s].length
-                            && !normTexts[d][s][i + 1].isEmpty()) {
-                        String bigram = getBigramString(normTexts[d][s][i],
-                                normTexts[d][s][i + 1]);
-
-                        // if the bigram is not in the vocab, add the current
-                        // unigram and move on
-                        if (!voc.contains(bigram)) {
-                            if (voc.contains(curToken)) {
-                                tokens.add(curToken);
-                            }
-                            continue;
-                        }
-
-                        // if the bigram is in the vocab, add the bigram
-                        tokens.add(bigram);
-                        i++;
-                    } else {
-                        if (voc.contains(curToken)) {
-                            tokens.add(curToken);
-                        }
-                    }
-                }
-                normTexts[d][s] = tokens.toArray(new String[tokens.size()]);
+                normTexts[d][s] = applyVocabulary(normTexts[d][s], voc);
             }
         }
 
         this.vocabulary = voc;
-        this.numericDocs = new int[D][];
-        this.numericSentences = new int[D][][];
-        for (int d = 0; d < D; d++) { // for each document
-            ArrayList<Integer> numericDoc = new ArrayList<Integer>();
-            this.numericSentences[d] = new int[normTexts[d].length][];
-            for (int s = 0; s < normTexts[d].length; s++) { // for each sentence
-                ArrayList<Integer> numericSent = new ArrayList<Integer>();
-                for (String normText : normTexts[d][s]) {
-                    int numericTerm = Collections.binarySearch(this.vocabulary, normText);
-                    if (numericTerm < 0) { // this term is out-of-vocab
-                        continue;
+        buildNumerics(normTexts);
+    }
+
+    /**
+     * Keep only the unigrams and bigrams of a normalized sentence that are in
+     * a given vocabulary.
+     *
+     * @param normSent Normalized sentence
+     * @param voc The vocabulary
+     */
+    private String[] applyVocabulary(String[] normSent, Collection<String> voc) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < normSent.length; i++) {
+            String curToken = normSent[i];
+            if (curToken.isEmpty()) {
+                continue;
+            }
+
+            // consider a bigram
+            if (i + 1 < normSent.length && !normSent[i + 1].isEmpty()) {
+                String bigram = getBigramString(normSent[i], normSent[i + 1]);
+
+                // if the bigram is not in the vocab, add the current
+                // unigram and move on
+                if (!voc.contains(bigram)) {
+                    if (voc.contains(curToken)) {
+                        tokens.add(curToken);
                     }
-                    numericDoc.add(numericTerm);
-                    numericSent.add(numericTerm);
+                    continue;
                 }
 
-                this.numericSentences[d][s] = new int[numericSent.size()];
-                for (int i = 0; i < numericSent.size(); i++) {
-                    this.numericSentences[d][s][i] = numericSent.get(i);
+                // if the bigram is in the vocab, add the bigram
+                tokens.add(bigram);
+                i++;
+            } else {
+                if (voc.contains(curToken)) {
+                    tokens.add(curToken);
                 }
             }
-            this.numericDocs[d] = new int[numericDoc.size()];
-            for (int i = 0; i < numericDoc.size(); i++) {
-                this.numericDocs[d][i] = numericDoc.get(i);
-            }
         }
+        return tokens.toArray(new String[tokens.size()]);
     }
 
     /**
@@ -440,43 +463,161 @@ public class CorpusProcessor {
         rawSentences = rawSents;
         D = rawSentences.length;
         String[][][] normTexts = new String[D][][];
-        int stepsize = MiscUtils.getRoundStepSize(D, 10);
-        for (int d = 0; d < D; d++) {
-            if (verbose && d % stepsize == 0) {
-                System.out.println("--- Tokenizing doc # " + d + " / " + D);
+        tokenizeAndCount(normTexts);
+
+        Set<String> vocab = selectBigrams();
+
+        // merge bigrams
+        if (verbose) {
+            System.out.println("Merging unigrams to create bigram ...");
+        }
+        HashMap<String, Integer> finalTermFreq = new HashMap<String, Integer>();
+        HashMap<String, Integer> finalDocFreq = new HashMap<String, Integer>();
+        for (String[][] normText : normTexts) {
+            mergeBigrams(normText, vocab, finalTermFreq, finalDocFreq);
+        }
+
+        buildVocabulary(finalTermFreq, finalDocFreq);
+        buildNumerics(normTexts);
+    }
+
+    /**
+     * Receives the numeric representation of each document processed by
+     * {@link #processStream(String, File, boolean, NumericDocumentHandler)}.
+     */
+    public interface NumericDocumentHandler {
+
+        /**
+         * @param docId Document ID
+         * @param numericSents Word indices of each sentence
+         * @param rawSents Raw sentences, or null if they are not kept
+         */
+        public void handle(String docId, int[][] numericSents, String[] rawSents)
+                throws IOException;
+    }
+
+    /**
+     * Process a corpus without loading it into memory. The first pass over
+     * the raw documents only accumulates term, document and bigram
+     * frequencies. The second pass merges bigrams and accumulates the
+     * frequencies used to select the vocabulary, while spilling the merged
+     * tokens of each document to a temporary file. Once the vocabulary is
+     * built, the spilled documents are mapped to word indices and passed to
+     * the handler one at a time. Memory use is bounded by the size of the
+     * count maps rather than by the size of the corpus. If a vocabulary is
+     * already given, documents are handled directly in a single pass.
+     *
+     * The vocabulary and the numeric documents are the same as those of
+     * {@link #process()} on the same documents.
+     *
+     * @param textPath A file of <doc_Id>\t<text> lines or a folder of
+     * <doc_Id>.txt files (see {@link RawTextReader})
+     * @param tempFile Temporary file to which merged tokens are spilled
+     * @param keepRawSentences Whether raw sentences are passed to the handler
+     * @param handler Receives the numeric documents
+     */
+    public void processStream(String textPath, File tempFile,
+            boolean keepRawSentences, NumericDocumentHandler handler) throws IOException {
+        if (vocabulary != null) {
+            if (verbose) {
+                System.out.println("Using exisitng vocabulary ...");
             }
+            Set<String> voc = new HashSet<String>(vocabulary);
+            RawTextReader reader = new RawTextReader(textPath);
+            D = 0;
+            while (reader.next()) {
+                String[] rawDocSents = sentenceDetector.sentDetect(reader.getText());
+                String[][] normDoc = normalizeDocument(rawDocSents, tokenizer, stemmer);
+                for (int s = 0; s < normDoc.length; s++) {
+                    normDoc[s] = applyVocabulary(normDoc[s], voc);
+                }
+                handler.handle(reader.getDocId(), getNumericSentences(normDoc),
+                        keepRawSentences ? rawDocSents : null);
+                D++;
+            }
+            reader.close();
+            return;
+        }
 
-            Set<String> uniqueDocTokens = new HashSet<String>();
-            normTexts[d] = new String[rawSentences[d].length][];
-
-            for (int s = 0; s < rawSentences[d].length; s++) {
-                String[] sentTokens = tokenizer.tokenize(rawSentences[d][s].toLowerCase());
-                normTexts[d][s] = new String[sentTokens.length];
-
-                for (int t = 0; t < sentTokens.length; t++) {
-                    String normToken = normalize(sentTokens[t]);
-                    normTexts[d][s][t] = normToken;
-
-                    if (!normToken.isEmpty()) {
-                        MiscUtils.incrementMap(termFreq, normToken);
-                        uniqueDocTokens.add(normToken);
-
-                        if (t - 1 >= 0 && !normTexts[d][s][t - 1].isEmpty()) {
-                            String preToken = normTexts[d][s][t - 1];
-                            MiscUtils.incrementMap(leftFreq, preToken);
-                            MiscUtils.incrementMap(rightFreq, normToken);
-                            MiscUtils.incrementMap(bigramFreq, getBigramString(preToken, normToken));
-                            totalBigram++;
-                        }
-                    }
+        // first pass: count
+        if (verbose) {
+            System.out.println("Tokenizing and counting ...");
+        }
+        TokenCounter counter = new TokenCounter(tokenizer, stemmer);
+        RawTextReader reader = new RawTextReader(textPath);
+        D = 0;
+        while (reader.next()) {
+            if (verbose && D % 10000 == 0) {
+                System.out.println("--- Tokenizing doc # " + D);
+            }
+            counter.countDocument(sentenceDetector.sentDetect(reader.getText()));
+            D++;
+        }
+        reader.close();
+        addCounts(counter);
+
+        Set<String> vocab = selectBigrams();
+
+        // second pass: merge bigrams and spill merged tokens
+        if (verbose) {
+            System.out.println("Merging unigrams to create bigram ...");
+        }
+        HashMap<String, Integer> finalTermFreq = new HashMap<String, Integer>();
+        HashMap<String, Integer> finalDocFreq = new HashMap<String, Integer>();
+        BufferedWriter spillWriter = IOUtils.getBufferedWriter(tempFile);
+        reader = new RawTextReader(textPath);
+        while (reader.next()) {
+            String[] rawDocSents = sentenceDetector.sentDetect(reader.getText());
+            String[][] normDoc = normalizeDocument(rawDocSents, tokenizer, stemmer);
+            mergeBigrams(normDoc, vocab, finalTermFreq, finalDocFreq);
+
+            spillWriter.write(reader.getDocId() + "\t" + normDoc.length + "\n");
+            for (int s = 0; s < normDoc.length; s++) {
+                StringBuilder str = new StringBuilder();
+                for (String token : normDoc[s]) {
+                    str.append(token).append(" ");
+                }
+                spillWriter.write(str.toString().trim() + "\n");
+                if (keepRawSentences) {
+                    spillWriter.write(rawDocSents[s].replaceAll("[\r\n]", " ") + "\n");
                 }
             }
+        }
+        reader.close();
+        spillWriter.close();
 
-            for (String uniToken : uniqueDocTokens) {
-                MiscUtils.incrementMap(docFreq, uniToken);
+        buildVocabulary(finalTermFreq, finalDocFreq);
+
+        // map spilled tokens to word indices
+        if (verbose) {
+            System.out.println("Building numeric representations ...");
+        }
+        BufferedReader spillReader = IOUtils.getBufferedReader(tempFile);
+        String line;
+        while ((line = spillReader.readLine()) != null) {
+            String docId = line.substring(0, line.lastIndexOf("\t"));
+            int numSents = Integer.parseInt(line.substring(line.lastIndexOf("\t") + 1));
+            String[][] normDoc = new String[numSents][];
+            String[] rawDocSents = keepRawSentences ? new String[numSents] : null;
+            for (int s = 0; s < numSents; s++) {
+                String sentLine = spillReader.readLine();
+                normDoc[s] = sentLine.isEmpty() ? new String[0] : sentLine.split(" ");
+                if (keepRawSentences) {
+                    rawDocSents[s] = spillReader.readLine();
+                }
             }
+            handler.handle(docId, getNumericSentences(normDoc), rawDocSents);
         }
+        spillReader.close();
+        if (!tempFile.delete()) {
+            System.out.println("Cannot delete temporary file " + tempFile);
+        }
+    }
 
+    /**
+     * Select the bigrams whose counts and scores pass the cutoffs.
+     */
+    private Set<String> selectBigrams() {
         // debug
         if (verbose) {
             System.out.println("--- # raw unique unigrams: " + termFreq.size()
@@ -509,59 +650,73 @@ public class CorpusProcessor {
         if (verbose) {
             System.out.println("--- # bigrams after being scored: " + vocab.size());
         }
+        return vocab;
+    }
 
-        // merge bigrams
-        if (verbose) {
-            System.out.println("Merging unigrams to create bigram ...");
-        }
-        HashMap<String, Integer> finalTermFreq = new HashMap<String, Integer>();
-        HashMap<String, Integer> finalDocFreq = new HashMap<String, Integer>();
-
-        for (String[][] normText : normTexts) {
-            Set<String> docUniqueTerms = new HashSet<String>();
-            for (int s = 0; s < normText.length; s++) {
-                ArrayList<String> tokens = new ArrayList<String>();
-                for (int i = 0; i < normText[s].length; i++) {
-                    String curToken = normText[s][i];
-                    if (curToken.isEmpty()) {
-                        continue;
-                    }
-                    if (i + 1 < normText[s].length && !normText[s][i + 1].isEmpty()) {
-                        String bigram = getBigramString(normText[s][i], normText[s][i + 1]);
-                        if (!vocab.contains(bigram)) {
-                            // if the bigram is not in the vocab, add the current
-                            // unigram and move on to the next unigram
-                            if (termFreq.get(curToken) < this.unigramCountCutoff) {
-                                continue;
-                            }
-                            tokens.add(curToken);
-                            vocab.add(curToken);
-                            MiscUtils.incrementMap(finalTermFreq, curToken);
-                            continue;
-                        }
-                        tokens.add(bigram);
-                        MiscUtils.incrementMap(finalTermFreq, bigram);
-                        i++;
-                    } else {
+    /**
+     * Merge the unigrams of a normalized document into the selected bigrams,
+     * drop rare unigrams and update the final term and document frequencies.
+     *
+     * @param normText Normalized document, whose sentences are replaced by the
+     * merged ones
+     * @param vocab Selected bigrams, to which kept unigrams are added
+     * @param finalTermFreq Final term frequencies
+     * @param finalDocFreq Final document frequencies
+     */
+    private void mergeBigrams(String[][] normText, Set<String> vocab,
+            HashMap<String, Integer> finalTermFreq,
+            HashMap<String, Integer> finalDocFreq) {
+        Set<String> docUniqueTerms = new HashSet<String>();
+        for (int s = 0; s < normText.length; s++) {
+            ArrayList<String> tokens = new ArrayList<String>();
+            for (int i = 0; i < normText[s].length; i++) {
+                String curToken = normText[s][i];
+                if (curToken.isEmpty()) {
+                    continue;
+                }
+                if (i + 1 < normText[s].length && !normText[s][i + 1].isEmpty()) {
+                    String bigram = getBigramString(normText[s][i], normText[s][i + 1]);
+                    if (!vocab.contains(bigram)) {
+                        // if the bigram is not in the vocab, add the current
+                        // unigram and move on to the next unigram
                         if (termFreq.get(curToken) < this.unigramCountCutoff) {
                             continue;
                         }
                         tokens.add(curToken);
                         vocab.add(curToken);
                         MiscUtils.incrementMap(finalTermFreq, curToken);
+                        continue;
                     }
+                    tokens.add(bigram);
+                    MiscUtils.incrementMap(finalTermFreq, bigram);
+                    i++;
+                } else {
+                    if (termFreq.get(curToken) < this.unigramCountCutoff) {
+                        continue;
+                    }
+                    tokens.add(curToken);
+                    vocab.add(curToken);
+                    MiscUtils.incrementMap(finalTermFreq, curToken);
                 }
-                normText[s] = tokens.toArray(new String[tokens.size()]);
-                // union
-                docUniqueTerms.addAll(Arrays.asList(normText[s]));
-            }
-            // update document frequencies
-            for (String ut : docUniqueTerms) {
-                MiscUtils.incrementMap(finalDocFreq, ut);
             }
+            normText[s] = tokens.toArray(new String[tokens.size()]);
+            // union
+            docUniqueTerms.addAll(Arrays.asList(normText[s]));
         }
+        // update document frequencies
+        for (String ut : docUniqueTerms) {
+            MiscUtils.incrementMap(finalDocFreq, ut);
+        }
+    }
 
-        // finalize
+    /**
+     * Rank terms by TF-IDF and keep the top ones as the vocabulary.
+     *
+     * @param finalTermFreq Final term frequencies
+     * @param finalDocFreq Final document frequencies
+     */
+    private void buildVocabulary(HashMap<String, Integer> finalTermFreq,
+            HashMap<String, Integer> finalDocFreq) {
         ArrayList<RankingItem<String>> rankVocab = new ArrayList<RankingItem<String>>();
         for (String term : finalTermFreq.keySet()) {
             int rawTf = finalTermFreq.get(term);
@@ -591,32 +746,196 @@ public class CorpusProcessor {
             this.vocabulary.add(rankVocab.get(i).getObject());
         }
         Collections.sort(this.vocabulary);
+    }
 
+    private void buildNumerics(String[][][] normTexts) {
         this.numericDocs = new int[D][];
         this.numericSentences = new int[D][][];
-        for (int d = 0; d < this.numericDocs.length; d++) { // for each document
-            ArrayList<Integer> numericDoc = new ArrayList<Integer>();
-            this.numericSentences[d] = new int[normTexts[d].length][];
-            for (int s = 0; s < normTexts[d].length; s++) { // for each sentence
-                ArrayList<Integer> numericSent = new ArrayList<Integer>();
-                for (String normText : normTexts[d][s]) {
-                    int numericTerm = Collections.binarySearch(this.vocabulary, normText);
-                    if (numericTerm < 0) { // this term is out-of-vocab
-                        continue;
+        for (int d = 0; d < D; d++) { // for each document
+            this.numericSentences[d] = getNumericSentences(normTexts[d]);
+            int numTokens = 0;
+            for (int[] numericSent : numericSentences[d]) {
+                numTokens += numericSent.length;
+            }
+            this.numericDocs[d] = new int[numTokens];
+            int idx = 0;
+            for (int[] numericSent : numericSentences[d]) {
+                System.arraycopy(numericSent, 0, numericDocs[d], idx, numericSent.length);
+                idx += numericSent.length;
+            }
+        }
+    }
+
+    /**
+     * Map the tokens of a document to their indices in the vocabulary,
+     * dropping out-of-vocab terms.
+     *
+     * @param normDoc Tokens of each sentence
+     */
+    private int[][] getNumericSentences(String[][] normDoc) {
+        int[][] numericSents = new int[normDoc.length][];
+        for (int s = 0; s < normDoc.length; s++) { // for each sentence
+            ArrayList<Integer> numericSent = new ArrayList<Integer>();
+            for (String normText : normDoc[s]) {
+                int numericTerm = Collections.binarySearch(this.vocabulary, normText);
+                if (numericTerm < 0) { // this term is out-of-vocab
+                    continue;
+                }
+                numericSent.add(numericTerm);
+            }
+
+            numericSents[s] = new int[numericSent.size()];
+            for (int i = 0; i < numericSent.size(); i++) {
+                numericSents[s][i] = numericSent.get(i);
+            }
+        }
+        return numericSents;
+    }
+
+    /**
+     * Tokenize and normalize all documents, and count unigrams and bigrams.
+     * Documents are sharded into contiguous ranges, one per thread, each of
+     * which is processed with its own tokenizer, stemmer and count maps. The
+     * counts of all shards are merged once at the end.
+     *
+     * @param normTexts Normalized tokens of all documents
+     */
+    private void tokenizeAndCount(final String[][][] normTexts) {
+        int numShards = Math.max(1, Math.min(numThreads, D));
+        final TokenCounter[] counters = new TokenCounter[numShards];
+        ArrayList<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int ii = 0; ii < numShards; ii++) {
+            if (ii == 0) {
+                counters[ii] = new TokenCounter(tokenizer, stemmer);
+            } else {
+                counters[ii] = new TokenCounter(new TokenizerME(tokenizerModel), new Stemmer());
+            }
+            final TokenCounter counter = counters[ii];
+            final int start = (int) ((long) ii * D / numShards);
+            final int end = (int) ((long) (ii + 1) * D / numShards);
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int stepsize = MiscUtils.getRoundStepSize(D, 10);
+                    for (int d = start; d < end; d++) {
+                        if (verbose && d % stepsize == 0) {
+                            System.out.println("--- Tokenizing doc # " + d + " / " + D);
+                        }
+                        normTexts[d] = counter.countDocument(rawSentences[d]);
                     }
-                    numericDoc.add(numericTerm);
-                    numericSent.add(numericTerm);
+                    return end - start;
                 }
+            });
+        }
+
+        if (numShards == 1) {
+            try {
+                tasks.get(0).call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(numShards);
+            try {
+                for (Future<Integer> future : executor.invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while tokenizing documents");
+            } finally {
+                executor.shutdown();
+            }
+        }
 
-                this.numericSentences[d][s] = new int[numericSent.size()];
-                for (int i = 0; i < numericSent.size(); i++) {
-                    this.numericSentences[d][s][i] = numericSent.get(i);
+        for (TokenCounter counter : counters) {
+            addCounts(counter);
+        }
+    }
+
+    private void addCounts(TokenCounter counter) {
+        addCounts(termFreq, counter.termCounts);
+        addCounts(docFreq, counter.docCounts);
+        addCounts(leftFreq, counter.leftCounts);
+        addCounts(rightFreq, counter.rightCounts);
+        addCounts(bigramFreq, counter.bigramCounts);
+        totalBigram += counter.numBigrams;
+    }
+
+    private static void addCounts(HashMap<String, Integer> map,
+            TObjectIntHashMap<String> counts) {
+        TObjectIntIterator<String> iter = counts.iterator();
+        while (iter.hasNext()) {
+            iter.advance();
+            Integer count = map.get(iter.key());
+            if (count == null) {
+                map.put(iter.key(), iter.value());
+            } else {
+                map.put(iter.key(), count + iter.value());
+            }
+        }
+    }
+
+    /**
+     * Tokenizes documents and counts their unigrams and bigrams with its own
+     * tokenizer, stemmer and primitive count maps.
+     */
+    private class TokenCounter {
+
+        private final Tokenizer counterTokenizer;
+        private final Stemmer counterStemmer;
+        private final TObjectIntHashMap<String> termCounts;
+        private final TObjectIntHashMap<String> docCounts;
+        private final TObjectIntHashMap<String> leftCounts;
+        private final TObjectIntHashMap<String> rightCounts;
+        private final TObjectIntHashMap<String> bigramCounts;
+        private int numBigrams;
+
+        TokenCounter(Tokenizer counterTokenizer, Stemmer counterStemmer) {
+            this.counterTokenizer = counterTokenizer;
+            this.counterStemmer = counterStemmer;
+            this.termCounts = new TObjectIntHashMap<String>();
+            this.docCounts = new TObjectIntHashMap<String>();
+            this.leftCounts = new TObjectIntHashMap<String>();
+            this.rightCounts = new TObjectIntHashMap<String>();
+            this.bigramCounts = new TObjectIntHashMap<String>();
+        }
+
+        /**
+         * Tokenize and normalize a document, and count its unigrams and
+         * bigrams.
+         *
+         * @param rawDocSents Raw sentences of the document
+         * @return Normalized tokens of each sentence
+         */
+        String[][] countDocument(String[] rawDocSents) {
+            String[][] normDoc = normalizeDocument(rawDocSents, counterTokenizer,
+                    counterStemmer);
+            Set<String> uniqueDocTokens = new HashSet<String>();
+            for (String[] normSent : normDoc) {
+                for (int t = 0; t < normSent.length; t++) {
+                    String normToken = normSent[t];
+                    if (normToken.isEmpty()) {
+                        continue;
+                    }
+                    termCounts.adjustOrPutValue(normToken, 1, 1);
+                    uniqueDocTokens.add(normToken);
+
+                    if (t - 1 >= 0 && !normSent[t - 1].isEmpty()) {
+                        String preToken = normSent[t - 1];
+                        leftCounts.adjustOrPutValue(preToken, 1, 1);
+                        rightCounts.adjustOrPutValue(normToken, 1, 1);
+                        bigramCounts.adjustOrPutValue(
+                                getBigramString(preToken, normToken), 1, 1);
+                        numBigrams++;
+                    }
                 }
             }
-            this.numericDocs[d] = new int[numericDoc.size()];
-            for (int i = 0; i < numericDoc.size(); i++) {
-                this.numericDocs[d][i] = numericDoc.get(i);
+
+            for (String uniToken : uniqueDocTokens) {
+                docCounts.adjustOrPutValue(uniToken, 1, 1);
             }
+            return normDoc;
         }
     }
 
@@ -749,6 +1068,10 @@ public class CorpusProcessor {
      * @return The normalize token
      */
     public String normalize(String token) {
+        return normalize(token, this.stemmer);
+    }
+
+    private String normalize(String token, Stemmer tokenStemmer) {
         StringBuilder normToken = new StringBuilder();
         token = token.toLowerCase();
         for (int i = 0; i < token.length(); i++) {
@@ -759,7 +1082,7 @@ public class CorpusProcessor {
         }
         String reduced = normToken.toString();
         if (lemmatization) {
-            reduced = this.stemmer.stem(reduced);
+            reduced = tokenStemmer.stem(reduced);
         }
 
         if (reduced.length() < minWordLength
@@ -0,0 +1,99 @@
+package data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import util.IOUtils;
+
+/**
+ * Reads raw documents one at a time, either from a single file where each
+ * line has the format <doc_Id>\t<text>, or from a folder where each file
+ * contains the text of a document and is named <doc_Id>.txt. Documents are
+ * read in the same order and with the same text as
+ * {@link TextDataset#loadTextDataFromFile(String)} and
+ * {@link TextDataset#loadTextDataFromFolder(String)}, but only the current
+ * document is kept in memory.
+ *
+ * @author vietan
+ */
+public class RawTextReader {
+
+    private final File folder;
+    private final String[] filenames;
+    private BufferedReader reader;
+    private int count;
+    private String docId;
+    private String text;
+
+    public RawTextReader(String textPath) throws IOException {
+        File path = new File(textPath);
+        if (path.isFile()) {
+            this.folder = null;
+            this.filenames = null;
+            this.reader = IOUtils.getBufferedReader(path);
+        } else if (path.isDirectory()) {
+            this.folder = path;
+            this.filenames = path.list();
+        } else {
+            throw new RuntimeException(textPath + " is neither a file nor a folder");
+        }
+        this.count = 0;
+    }
+
+    /**
+     * Move to the next document.
+     *
+     * @return false if there are no more documents
+     */
+    public boolean next() throws IOException {
+        if (folder == null) {
+            String line = reader.readLine();
+            if (line == null) {
+                return false;
+            }
+            docId = line.substring(0, line.indexOf("\t"));
+            text = line.substring(line.indexOf("\t") + 1);
+        } else {
+            if (count == filenames.length) {
+                return false;
+            }
+            String filename = filenames[count];
+            // use filename as document id, remove extension .txt if necessary
+            docId = filename;
+            if (filename.endsWith(".txt")) {
+                docId = filename.substring(0, filename.length() - 4);
+            }
+            BufferedReader docReader = IOUtils.getBufferedReader(new File(folder, filename));
+            StringBuilder docText = new StringBuilder();
+            String line;
+            while ((line = docReader.readLine()) != null) {
+                docText.append(line).append("\n");
+            }
+            docReader.close();
+            text = docText.toString();
+        }
+        count++;
+        return true;
+    }
+
+    public String getDocId() {
+        return docId;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Return the number of documents read so far.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+}
@@ -390,6 +390,7 @@ public class ResponseTextDataset extends TextDataset {
         }
         dataset.loadResponses(responseFile); // load response data
         dataset.setHasSentences(cmd.hasOption("sent"));
+        dataset.setBinaryFormat(cmd.hasOption("binary-data"));
         dataset.format(new File(dataset.getDatasetFolderPath(), formatFolder));
     }
 
@@ -3,6 +3,7 @@ package data;
 import core.crossvalidation.CrossValidation;
 import core.crossvalidation.Fold;
 import core.crossvalidation.Instance;
+import gnu.trove.list.array.TIntArrayList;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -13,6 +14,7 @@ import java.util.HashSet;
 import java.util.Set;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
+import sampling.util.BinaryState;
 import sampling.util.SparseCount;
 import util.CLIUtils;
 import util.DataUtils;
@@ -39,6 +41,7 @@ public class TextDataset extends AbstractTokenizeDataset {
     protected double[] tfidfs;
     protected double[] idfs;
     protected boolean sent = false; // output/input sentences
+    protected boolean binary = false; // also output binary formatted data
 
     public TextDataset(String name) {
         super(name);
@@ -65,6 +68,17 @@ public class TextDataset extends AbstractTokenizeDataset {
         this.processedDocIndices = new ArrayList<Integer>();
     }
 
+    /**
+     * Set whether {@link #format(String)} also outputs the formatted data in
+     * the binary format (see {@link BinaryCorpus}), which is then used by
+     * {@link #loadFormattedData(String)}.
+     *
+     * @param binary
+     */
+    public void setBinaryFormat(boolean binary) {
+        this.binary = binary;
+    }
+
     public void setHasSentences(boolean sent) {
         this.sent = sent;
     }
@@ -285,6 +299,153 @@ public class TextDataset extends AbstractTokenizeDataset {
         if (sent) {
             outputSentTextData(outputFolder);
         }
+        if (binary) {
+            outputBinaryData(outputFolder);
+        }
+    }
+
+    /**
+     * Format text data in two passes without loading them into memory (see
+     * {@link CorpusProcessor#processStream}), for corpora that are too large
+     * for {@link #format(String)}. Documents are read from a file or a folder
+     * in the formats of {@link #loadTextDataFromFile(String)} and
+     * {@link #loadTextDataFromFolder(String)}, and the formatted files are the
+     * same as those output by {@link #format(String)}.
+     *
+     * @param textPath The input data file or folder
+     * @param outputFolder The directory of the folder that processed data will
+     * be stored
+     * @throws java.lang.Exception
+     */
+    public void formatStream(String textPath, String outputFolder) throws Exception {
+        if (verbose) {
+            logln("--- Processing data in streaming mode ...");
+        }
+        IOUtils.createFolder(outputFolder);
+
+        File outputFile = new File(outputFolder, formatFilename + numDocDataExt);
+        File infoFile = new File(outputFolder, formatFilename + docInfoExt);
+        File sentFile = new File(outputFolder, formatFilename + numSentDataExt);
+        final BufferedWriter dataWriter = IOUtils.getBufferedWriter(outputFile);
+        final BufferedWriter infoWriter = IOUtils.getBufferedWriter(infoFile);
+        final BufferedWriter sentWriter = sent ? IOUtils.getBufferedWriter(sentFile) : null;
+        final BufferedWriter rawSentWriter = sent ? IOUtils.getBufferedWriter(sentFile + ".raw") : null;
+        corpProc.processStream(textPath,
+                new File(outputFolder, formatFilename + ".tmp"),
+                sent,
+                new CorpusProcessor.NumericDocumentHandler() {
+                    @Override
+                    public void handle(String docId, int[][] numSents, String[] rawSents)
+                    throws IOException {
+                        int numTokens = 0;
+                        for (int[] numSent : numSents) {
+                            numTokens += numSent.length;
+                        }
+                        int[] numDoc = new int[numTokens];
+                        int idx = 0;
+                        for (int[] numSent : numSents) {
+                            System.arraycopy(numSent, 0, numDoc, idx, numSent.length);
+                            idx += numSent.length;
+                        }
+
+                        String docStr = getFormattedDocument(numDoc);
+                        // skip short documents
+                        if (docStr == null) {
+                            return;
+                        }
+                        dataWriter.write(docStr + "\n");
+                        infoWriter.write(docId + "\n");
+                        if (sentWriter != null) {
+                            writeSentences(sentWriter, rawSentWriter, numSents, rawSents);
+                        }
+                    }
+                });
+        dataWriter.close();
+        infoWriter.close();
+        if (sentWriter != null) {
+            sentWriter.close();
+            rawSentWriter.close();
+        }
+
+        outputWordVocab(outputFolder);
+        if (binary) {
+            outputBinaryData(outputFolder);
+        }
+    }
+
+    /**
+     * Convert the text formatted data in a folder into the binary format. The
+     * binary data are read back from the text formatted files so that the
+     * tokens of each document are in the same order in both formats. The
+     * files are read one line at a time and the tokens are appended to the
+     * binary file as they are parsed, so only the offsets of the documents and
+     * sentences are kept in memory. This also works for corpora formatted by
+     * {@link #formatStream(String, String)}.
+     *
+     * @param outputFolder Folder of the formatted data
+     * @throws java.lang.Exception
+     */
+    public void outputBinaryData(String outputFolder) throws Exception {
+        File docFile = new File(outputFolder, formatFilename + numDocDataExt);
+        File sentFile = new File(outputFolder, formatFilename + numSentDataExt);
+        File outputFile = new File(outputFolder, formatFilename + binaryDataExt);
+        if (verbose) {
+            logln("--- Outputing binary data ... " + outputFile);
+        }
+
+        BinaryState.Writer writer = new BinaryState.Writer(outputFile.getAbsolutePath());
+        try {
+            TIntArrayList docOffsets = new TIntArrayList();
+            docOffsets.add(0);
+            int numTokens = 0;
+            writer.beginInts(BinaryCorpus.WORDS);
+            BufferedReader reader = IOUtils.getBufferedReader(docFile);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int[] tokens = parseFormattedDocument(line);
+                for (int token : tokens) {
+                    writer.appendInt(token);
+                }
+                numTokens += tokens.length;
+                docOffsets.add(numTokens);
+            }
+            reader.close();
+            writer.endInts();
+            writer.writeInts(BinaryCorpus.WORDS + BinaryState.OFFSETS, docOffsets.toArray());
+
+            if (sentFile.exists()) {
+                TIntArrayList docSentOffsets = new TIntArrayList();
+                TIntArrayList sentOffsets = new TIntArrayList();
+                docSentOffsets.add(0);
+                sentOffsets.add(0);
+                int numSentTokens = 0;
+                writer.beginInts(BinaryCorpus.SENTENCES);
+                reader = IOUtils.getBufferedReader(sentFile);
+                while ((line = reader.readLine()) != null) {
+                    int[][] sents = parseFormattedSentences(line);
+                    for (int[] sent : sents) {
+                        for (int token : sent) {
+                            writer.appendInt(token);
+                        }
+                        numSentTokens += sent.length;
+                        sentOffsets.add(numSentTokens);
+                    }
+                    docSentOffsets.add(sentOffsets.size() - 1);
+                }
+                reader.close();
+                writer.endInts();
+                if (docSentOffsets.size() != docOffsets.size()) {
+                    throw new RuntimeException("Number of documents mismatched. "
+                            + (docOffsets.size() - 1) + " vs. "
+                            + (docSentOffsets.size() - 1));
+                }
+                writer.writeInts(BinaryCorpus.SENTENCES + BinaryState.OFFSETS,
+                        sentOffsets.toArray());
+                writer.writeInts(BinaryCorpus.DOC_SENTENCES, docSentOffsets.toArray());
+            }
+        } finally {
+            writer.close();
+        }
     }
 
     /**
@@ -318,27 +479,14 @@ public class TextDataset extends AbstractTokenizeDataset {
         int[][] numDocs = corpProc.getNumerics();
         BufferedWriter dataWriter = IOUtils.getBufferedWriter(outputFile);
         for (int d = 0; d < numDocs.length; d++) {
-            HashMap<Integer, Integer> typeCounts = new HashMap<Integer, Integer>();
-            for (int j = 0; j < numDocs[d].length; j++) {
-                Integer count = typeCounts.get(numDocs[d][j]);
-                if (count == null) {
-                    typeCounts.put(numDocs[d][j], 1);
-                } else {
-                    typeCounts.put(numDocs[d][j], count + 1);
-                }
-            }
-
+            String docStr = getFormattedDocument(numDocs[d]);
             // skip short documents
-            if (typeCounts.size() < corpProc.docTypeCountCutoff) {
+            if (docStr == null) {
                 continue;
             }
 
             // write main data
-            dataWriter.write(Integer.toString(typeCounts.size()));
-            for (int type : typeCounts.keySet()) {
-                dataWriter.write(" " + type + ":" + typeCounts.get(type));
-            }
-            dataWriter.write("\n");
+            dataWriter.write(docStr + "\n");
 
             // save the doc id
             this.processedDocIndices.add(d);
@@ -346,6 +494,35 @@ public class TextDataset extends AbstractTokenizeDataset {
         dataWriter.close();
     }
 
+    /**
+     * Return the formatted representation of a document, or null if the
+     * document has fewer word types than the cutoff.
+     *
+     * @param numDoc Word indices of the document
+     */
+    protected String getFormattedDocument(int[] numDoc) {
+        HashMap<Integer, Integer> typeCounts = new HashMap<Integer, Integer>();
+        for (int j = 0; j < numDoc.length; j++) {
+            Integer count = typeCounts.get(numDoc[j]);
+            if (count == null) {
+                typeCounts.put(numDoc[j], 1);
+            } else {
+                typeCounts.put(numDoc[j], count + 1);
+            }
+        }
+
+        if (typeCounts.size() < corpProc.docTypeCountCutoff) {
+            return null;
+        }
+
+        StringBuilder str = new StringBuilder();
+        str.append(typeCounts.size());
+        for (int type : typeCounts.keySet()) {
+            str.append(" ").append(type).append(":").append(typeCounts.get(type));
+        }
+        return str.toString();
+    }
+
     /**
      * Output the formatted data.
      *
@@ -363,43 +540,59 @@ public class TextDataset extends AbstractTokenizeDataset {
         BufferedWriter rawSentWriter = IOUtils.getBufferedWriter(outputFile + ".raw");
         BufferedWriter sentWriter = IOUtils.getBufferedWriter(outputFile);
         for (int d : this.processedDocIndices) {
-            StringBuilder docStr = new StringBuilder();
-            ArrayList<String> docRawSents = new ArrayList<String>();
-
-            for (int s = 0; s < numSents[d].length; s++) {
-                HashMap<Integer, Integer> sentTypeCounts = new HashMap<Integer, Integer>();
-                for (int w = 0; w < numSents[d][s].length; w++) {
-                    Integer count = sentTypeCounts.get(numSents[d][s][w]);
-                    if (count == null) {
-                        sentTypeCounts.put(numSents[d][s][w], 1);
-                    } else {
-                        sentTypeCounts.put(numSents[d][s][w], count + 1);
-                    }
-                }
-
-                if (sentTypeCounts.size() > 0) {
-                    // store numeric sentence
-                    StringBuilder str = new StringBuilder();
-                    for (int type : sentTypeCounts.keySet()) {
-                        str.append(type).append(":").append(sentTypeCounts.get(type)).append(" ");
-                    }
-                    docStr.append(str.toString().trim()).append("\t");
+            writeSentences(sentWriter, rawSentWriter, numSents[d], rawSents[d]);
+        }
+        sentWriter.close();
+        rawSentWriter.close();
+    }
 
-                    // store raw sentence
-                    docRawSents.add(rawSents[d][s]);
+    /**
+     * Write the non-empty sentences of a document.
+     *
+     * @param sentWriter Writer of numeric sentences
+     * @param rawSentWriter Writer of raw sentences
+     * @param numSents Word indices of each sentence
+     * @param rawSents Raw sentences
+     * @throws java.io.IOException
+     */
+    protected void writeSentences(BufferedWriter sentWriter,
+            BufferedWriter rawSentWriter,
+            int[][] numSents,
+            String[] rawSents) throws IOException {
+        StringBuilder docStr = new StringBuilder();
+        ArrayList<String> docRawSents = new ArrayList<String>();
+
+        for (int s = 0; s < numSents.length; s++) {
+            HashMap<Integer, Integer> sentTypeCounts = new HashMap<Integer, Integer>();
+            for (int w = 0; w < numSents[s].length; w++) {
+                Integer count = sentTypeCounts.get(numSents[s][w]);
+                if (count == null) {
+                    sentTypeCounts.put(numSents[s][w], 1);
+                } else {
+                    sentTypeCounts.put(numSents[s][w], count + 1);
                 }
             }
-            // write numeric sentence
-            sentWriter.write(docStr.toString().trim() + "\n");
 
-            // write raw sentence
-            rawSentWriter.write(docRawSents.size() + "\n");
-            for (String docRawSent : docRawSents) {
-                rawSentWriter.write(docRawSent.trim().replaceAll("\n", " ") + "\n");
+            if (sentTypeCounts.size() > 0) {
+                // store numeric sentence
+                StringBuilder str = new StringBuilder();
+                for (int type : sentTypeCounts.keySet()) {
+                    str.append(type).append(":").append(sentTypeCounts.get(type)).append(" ");
+                }
+                docStr.append(str.toString().trim()).append("\t");
+
+                // store raw sentence
+                docRawSents.add(rawSents[s]);
             }
         }
-        sentWriter.close();
-        rawSentWriter.close();
+        // write numeric sentence
+        sentWriter.write(docStr.toString().trim() + "\n");
+
+        // write raw sentence
+        rawSentWriter.write(docRawSents.size() + "\n");
+        for (String docRawSent : docRawSents) {
+            rawSentWriter.write(docRawSent.trim().replaceAll("\n", " ") + "\n");
+        }
     }
 
     protected void outputDocumentInfo(String outputFolder) throws Exception {
@@ -427,12 +620,33 @@ public class TextDataset extends AbstractTokenizeDataset {
         this.loadFormattedData(fFolder.getAbsolutePath());
     }
 
+    /**
+     * Load formatted data from a folder, using the binary formatted data if it
+     * is available and at least as new as the text formatted data. An older
+     * binary file is left over from an earlier formatting of the corpus and is
+     * ignored.
+     *
+     * @param fFolder Folder of the formatted data
+     */
     public void loadFormattedData(String fFolder) {
         if (verbose) {
             logln("--- Loading formatted data from " + fFolder);
         }
+        File binaryFile = new File(fFolder, formatFilename + binaryDataExt);
+        File textFile = new File(fFolder, formatFilename + numDocDataExt);
+        File docWordFile = textFile;
+        if (binaryFile.exists()) {
+            if (!textFile.exists() || binaryFile.lastModified() >= textFile.lastModified()) {
+                docWordFile = binaryFile;
+            } else {
+                logln("--- Ignoring " + binaryFile + " which is older than " + textFile);
+            }
+        }
+        if (verbose) {
+            logln("--- Using word file " + docWordFile);
+        }
         loadFormattedData(new File(fFolder, formatFilename + wordVocabExt),
-                new File(fFolder, formatFilename + numDocDataExt),
+                docWordFile,
                 new File(fFolder, formatFilename + docInfoExt),
                 new File(fFolder, formatFilename + numSentDataExt));
     }
@@ -441,9 +655,11 @@ public class TextDataset extends AbstractTokenizeDataset {
      * Load formatted data.
      *
      * @param wordVocabFile File contains the word vocabulary
-     * @param docWordFile File contains document tokens
+     * @param docWordFile File contains document tokens, either text or binary
+     * formatted
      * @param docInfoFile File contains document info
-     * @param sentFile (Optional) File contains sentences
+     * @param sentFile (Optional) File contains sentences. Sentences stored in
+     * a binary formatted docWordFile take precedence.
      */
     public void loadFormattedData(File wordVocabFile,
             File docWordFile,
@@ -461,11 +677,20 @@ public class TextDataset extends AbstractTokenizeDataset {
 
         try {
             inputWordVocab(wordVocabFile);
-            inputTextData(docWordFile);
+            boolean binaryData = docWordFile.getName().endsWith(binaryDataExt);
+            if (binaryData) {
+                inputBinaryData(docWordFile);
+            } else {
+                inputTextData(docWordFile);
+            }
             if (docInfoFile != null) {
                 inputDocumentInfo(docInfoFile);
             }
-            if (sentFile != null && sentFile.exists()) {
+            if (binaryData && sentWords != null) {
+                if (sentFile != null) {
+                    inputRawSentences(new File(sentFile + ".raw"));
+                }
+            } else if (sentFile != null && sentFile.exists()) {
                 inputSentenceTextData(sentFile);
             }
         } catch (Exception e) {
@@ -509,6 +734,38 @@ public class TextDataset extends AbstractTokenizeDataset {
         }
     }
 
+    /**
+     * Load documents, and sentences if any, from a binary formatted file.
+     *
+     * @param file Binary formatted file
+     * @throws java.lang.Exception
+     */
+    protected void inputBinaryData(File file) throws Exception {
+        if (verbose) {
+            logln("--- Reading binary data from " + file);
+        }
+
+        BinaryCorpus corpus = new BinaryCorpus(file);
+        try {
+            words = corpus.getWords();
+            sentWords = corpus.getSentenceWords();
+        } finally {
+            corpus.close();
+        }
+
+        if (verbose) {
+            logln("--- --- # docs: " + words.length);
+            logln("--- --- # tokens: " + corpus.getNumTokens());
+            if (sentWords != null) {
+                int numSents = 0;
+                for (int[][] sentWord : sentWords) {
+                    numSents += sentWord.length;
+                }
+                logln("--- --- # sents: " + numSents);
+            }
+        }
+    }
+
     protected int[][] inputFormattedTextData(File file) throws Exception {
         if (verbose) {
             logln("--- Reading text data from " + file);
@@ -518,36 +775,45 @@ public class TextDataset extends AbstractTokenizeDataset {
 
         ArrayList<int[]> wordList = new ArrayList<int[]>();
         String line;
-        String[] sline;
         while ((line = reader.readLine()) != null) {
-            sline = line.split(" ");
+            wordList.add(parseFormattedDocument(line));
+        }
+        reader.close();
+        int[][] wds = wordList.toArray(new int[wordList.size()][]);
+        return wds;
+    }
 
-            int numTypes = Integer.parseInt(sline[0]);
-            int[] types = new int[numTypes];
-            int[] counts = new int[numTypes];
+    /**
+     * Parse a line of the formatted document data into the token ids of the
+     * document.
+     *
+     * @param line A line of the formatted document data
+     */
+    protected static int[] parseFormattedDocument(String line) {
+        String[] sline = line.split(" ");
 
-            int numTokens = 0;
-            for (int ii = 0; ii < numTypes; ++ii) {
-                String[] entry = sline[ii + 1].split(":");
-                int count = Integer.parseInt(entry[1]);
-                int id = Integer.parseInt(entry[0]);
-                numTokens += count;
-                types[ii] = id;
-                counts[ii] = count;
-            }
+        int numTypes = Integer.parseInt(sline[0]);
+        int[] types = new int[numTypes];
+        int[] counts = new int[numTypes];
 
-            int[] gibbsString = new int[numTokens];
-            int index = 0;
-            for (int ii = 0; ii < numTypes; ++ii) {
-                for (int jj = 0; jj < counts[ii]; ++jj) {
-                    gibbsString[index++] = types[ii];
-                }
+        int numTokens = 0;
+        for (int ii = 0; ii < numTypes; ++ii) {
+            String[] entry = sline[ii + 1].split(":");
+            int count = Integer.parseInt(entry[1]);
+            int id = Integer.parseInt(entry[0]);
+            numTokens += count;
+            types[ii] = id;
+            counts[ii] = count;
+        }
+
+        int[] gibbsString = new int[numTokens];
+        int index = 0;
+        for (int ii = 0; ii < numTypes; ++ii) {
+            for (int jj = 0; jj < counts[ii]; ++jj) {
+                gibbsString[index++] = types[ii];
             }
-            wordList.add(gibbsString);
         }
-        reader.close();
-        int[][] wds = wordList.toArray(new int[wordList.size()][]);
-        return wds;
+        return gibbsString;
     }
 
     /**
@@ -594,43 +860,7 @@ public class TextDataset extends AbstractTokenizeDataset {
             logln("--- Reading sentence text data from " + file);
         }
 
-        BufferedReader numSentReader = IOUtils.getBufferedReader(file);
-        ArrayList<int[][]> sentWordList = new ArrayList<int[][]>();
-        String line;
-        String[] sline;
-        while ((line = numSentReader.readLine()) != null) {
-            sline = line.split("\t");
-            int numSents = sline.length;
-            int[][] sents = new int[numSents][];
-            for (int s = 0; s < numSents; s++) {
-                String[] sSent = sline[s].split(" ");
-                int numTokens = 0;
-                HashMap<Integer, Integer> typeCounts = new HashMap<Integer, Integer>();
-
-                for (String sSentWord : sSent) {
-                    int type = Integer.parseInt(sSentWord.split(":")[0]);
-                    int count = Integer.parseInt(sSentWord.split(":")[1]);
-                    numTokens += count;
-                    typeCounts.put(type, count);
-                }
-
-                int[] tokens = new int[numTokens];
-                int idx = 0;
-                for (int type : typeCounts.keySet()) {
-                    for (int ii = 0; ii < typeCounts.get(type); ii++) {
-                        tokens[idx++] = type;
-                    }
-                }
-                sents[s] = tokens;
-            }
-            sentWordList.add(sents);
-        }
-        numSentReader.close();
-
-        sentWords = new int[sentWordList.size()][][];
-        for (int i = 0; i < sentWords.length; i++) {
-            sentWords[i] = sentWordList.get(i);
-        }
+        sentWords = inputFormattedSentenceData(file);
 
         if (verbose) {
             logln("--- --- # docs: " + sentWords.length);
@@ -646,12 +876,71 @@ public class TextDataset extends AbstractTokenizeDataset {
             logln("--- --- # tokens: " + numTokens);
         }
 
-        File rawSentFile = new File(file + ".raw");
+        inputRawSentences(new File(file + ".raw"));
+    }
+
+    protected int[][][] inputFormattedSentenceData(File file) throws Exception {
+        BufferedReader numSentReader = IOUtils.getBufferedReader(file);
+        ArrayList<int[][]> sentWordList = new ArrayList<int[][]>();
+        String line;
+        while ((line = numSentReader.readLine()) != null) {
+            sentWordList.add(parseFormattedSentences(line));
+        }
+        numSentReader.close();
+
+        int[][][] sentWds = new int[sentWordList.size()][][];
+        for (int i = 0; i < sentWds.length; i++) {
+            sentWds[i] = sentWordList.get(i);
+        }
+        return sentWds;
+    }
+
+    /**
+     * Parse a line of the formatted sentence data into the token ids of each
+     * sentence of the document.
+     *
+     * @param line A line of the formatted sentence data
+     */
+    protected static int[][] parseFormattedSentences(String line) {
+        String[] sline = line.split("\t");
+        int numSents = sline.length;
+        int[][] sents = new int[numSents][];
+        for (int s = 0; s < numSents; s++) {
+            String[] sSent = sline[s].split(" ");
+            int numTokens = 0;
+            HashMap<Integer, Integer> typeCounts = new HashMap<Integer, Integer>();
+
+            for (String sSentWord : sSent) {
+                int type = Integer.parseInt(sSentWord.split(":")[0]);
+                int count = Integer.parseInt(sSentWord.split(":")[1]);
+                numTokens += count;
+                typeCounts.put(type, count);
+            }
+
+            int[] tokens = new int[numTokens];
+            int idx = 0;
+            for (int type : typeCounts.keySet()) {
+                for (int ii = 0; ii < typeCounts.get(type); ii++) {
+                    tokens[idx++] = type;
+                }
+            }
+            sents[s] = tokens;
+        }
+        return sents;
+    }
+
+    /**
+     * Load the raw text of sentences, if available.
+     *
+     * @param rawSentFile Raw sentence file
+     */
+    protected void inputRawSentences(File rawSentFile) {
         if (rawSentFile.exists()) {
             if (verbose) {
                 logln("--- Reading sentence raw text data from " + rawSentFile);
             }
             try {
+                String line;
                 sentRawWords = new String[sentWords.length][];
                 int count = 0;
                 BufferedReader rawSentReader = IOUtils.getBufferedReader(rawSentFile);
@@ -677,8 +966,6 @@ public class TextDataset extends AbstractTokenizeDataset {
                 e.printStackTrace();
                 System.out.println("Exception while loading raw sentences from "
                         + rawSentFile);
-            } finally {
-                return;
             }
         }
     }
@@ -841,6 +1128,9 @@ public class TextDataset extends AbstractTokenizeDataset {
                 case "cross-validation":
                     crossValidate();
                     break;
+                case "convert-binary":
+                    convertBinary();
+                    break;
                 default:
                     throw new RuntimeException("Run mode " + runMode + " is not supported");
             }
@@ -879,7 +1169,10 @@ public class TextDataset extends AbstractTokenizeDataset {
         addOption("min-df", "Document frequency minimum cutoff");
         addOption("max-df", "Document frequency maximum cutoff");
         addOption("min-doc-length", "Document minimum length");
+        addOption("threads", "Number of threads for tokenizing documents");
         options.addOption("sent", false, "Whether sentences are outputed");
+        options.addOption("binary-data", false, "Whether binary formatted data are also outputed");
+        options.addOption("stream", false, "Whether text data are processed in streaming mode");
         options.addOption("s", false, "Whether stopwords are filtered");
         options.addOption("l", false, "Whether lemmatization is performed");
     }
@@ -910,6 +1203,7 @@ public class TextDataset extends AbstractTokenizeDataset {
                 docTypeCountCutoff,
                 stopwordFilter,
                 lemmatization);
+        corpProc.setNumThreads(CLIUtils.getIntegerArgument(cmd, "threads", 1));
         // If the word vocab file is given, use it. This is usually for the case
         // where training data have been processed and now test data are processed
         // using the word vocab from the training data.
@@ -960,6 +1254,21 @@ public class TextDataset extends AbstractTokenizeDataset {
         return data;
     }
 
+    /**
+     * Convert existing text formatted data into the binary format.
+     */
+    private static void convertBinary() throws Exception {
+        String datasetName = cmd.getOptionValue("dataset");
+        String datasetFolder = cmd.getOptionValue("data-folder");
+        String formatFolder = cmd.getOptionValue("format-folder");
+        String formatFile = CLIUtils.getStringArgument(cmd, "format-file", datasetName);
+
+        TextDataset data = new TextDataset(datasetName, datasetFolder);
+        data.setFormatFilename(formatFile);
+        data.outputBinaryData(new File(data.getDatasetFolderPath(), formatFolder)
+                .getAbsolutePath());
+    }
+
     private static void process() throws Exception {
         String datasetName = CLIUtils.getStringArgument(cmd, "dataset", "amazon-data");
         String datasetFolder = CLIUtils.getStringArgument(cmd, "data-folder", "demo");
@@ -970,6 +1279,13 @@ public class TextDataset extends AbstractTokenizeDataset {
         CorpusProcessor corpProc = createCorpusProcessor();
         TextDataset dataset = new TextDataset(datasetName, datasetFolder, corpProc);
         dataset.setFormatFilename(formatFile);
+        dataset.setHasSentences(cmd.hasOption("sent"));
+        dataset.setBinaryFormat(cmd.hasOption("binary-data"));
+        if (cmd.hasOption("stream")) {
+            dataset.formatStream(textInputData,
+                    new File(dataset.getDatasetFolderPath(), formatFolder).getAbsolutePath());
+            return;
+        }
 
         // load text data
         File textPath = new File(textInputData);
@@ -980,7 +1296,6 @@ public class TextDataset extends AbstractTokenizeDataset {
         } else {
             throw new RuntimeException(textInputData + " is neither a file nor a folder");
         }
-        dataset.setHasSentences(cmd.hasOption("sent"));
         dataset.format(new File(dataset.getDatasetFolderPath(), formatFolder));
     }
 }
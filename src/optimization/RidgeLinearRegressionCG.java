@@ -0,0 +1,467 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import util.MiscUtils;
+import util.SamplerUtils;
+import util.SparseVector;
+
+/**
+ * L2-norm multiple linear regression with a Gaussian prior on each variable,
+ * solved in pure Java. This has the same parameterization as
+ * {@link GurobiMLRL2Norm}, i.e., it minimizes
+ *
+ * sum_d (y_d - x_d . w)^2 / rho + sum_v (w_v - mean_v)^2 / sigma_v
+ *
+ * where rho is the variance of the observations and sigma_v is the variance of
+ * variable v. The minimizer solves the normal equations
+ *
+ * (X'X / rho + diag(1 / sigma)) w = X'y / rho + mean / sigma
+ *
+ * which are solved using conjugate gradient with a Jacobi preconditioner,
+ * starting from the initial weights if given (e.g., the solution of the
+ * previous iteration of a sampler) or from the prior means otherwise. The
+ * design matrix is given as sparse rows and is never made dense. The
+ * matrix-vector products can be computed using multiple threads, each working
+ * on a block of rows.
+ *
+ * @author vietan
+ */
+public class RidgeLinearRegressionCG {
+
+    public static final int DEFAULT_MAX_ITER = 1000;
+    public static final double DEFAULT_TOLERANCE = 1e-8;
+    private SparseVector[] designMatrix;
+    private double[] responseVector;
+    private int numVariables;
+    private double rho; // variance of observations
+    private double sigma; // variance of variables
+    private double mean; // mean of variables
+    private double[] means; // one mean for each variable
+    private double[] sigmas; // one variance for each variable
+    private double[] initialWeights;
+    private int maxIter = DEFAULT_MAX_ITER;
+    private double tolerance = DEFAULT_TOLERANCE;
+    private int numThreads = 1;
+    // results of the last call to solve()
+    private int numIterations;
+    private boolean converged;
+    // design matrix in compressed sparse row format
+    private int[] rowPointers;
+    private int[] columns;
+    private double[] values;
+
+    /**
+     * @param X Sparse rows of the design matrix
+     * @param y Responses
+     * @param K Number of variables
+     * @param rho Variance of the responses
+     * @param mean Prior mean of the variables
+     * @param sigma Prior variance of the variables
+     */
+    public RidgeLinearRegressionCG(SparseVector[] X, double[] y, int K,
+            double rho, double mean, double sigma) {
+        this.designMatrix = X;
+        this.responseVector = y;
+        this.numVariables = K;
+        this.rho = rho;
+        this.sigma = sigma;
+        this.mean = mean;
+    }
+
+    public RidgeLinearRegressionCG(SparseVector[] X, double[] y, int K, double rho) {
+        this(X, y, K, rho, 0.0, 1.0);
+    }
+
+    public RidgeLinearRegressionCG(SparseVector[] X, double[] y, int K) {
+        this(X, y, K, 1.0, 0.0, 1.0);
+    }
+
+    public double getRho() {
+        return rho;
+    }
+
+    public void setRho(double rho) {
+        this.rho = rho;
+    }
+
+    public double getSigma() {
+        return sigma;
+    }
+
+    public void setSigma(double sigma) {
+        this.sigma = sigma;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public void setMean(double mean) {
+        this.mean = mean;
+    }
+
+    public double[] getSigmas() {
+        return sigmas;
+    }
+
+    public void setSigmas(double[] sigmas) {
+        this.sigmas = sigmas;
+    }
+
+    public void setMeans(double[] means) {
+        this.means = means;
+    }
+
+    public double getMean(int v) {
+        if (this.means == null) {
+            return mean;
+        } else {
+            return this.means[v];
+        }
+    }
+
+    public double getSigma(int v) {
+        if (this.sigmas == null) {
+            return this.sigma;
+        } else {
+            return this.sigmas[v];
+        }
+    }
+
+    /**
+     * Set the weights to start from, e.g., the solution of the previous call.
+     * Null starts from the prior means.
+     *
+     * @param w Initial weights
+     */
+    public void setInitialWeights(double[] w) {
+        if (w != null && w.length != numVariables) {
+            throw new RuntimeException("Dimensions mismatch. "
+                    + w.length + " vs. " + numVariables);
+        }
+        this.initialWeights = w;
+    }
+
+    public void setMaxIterations(int maxIter) {
+        this.maxIter = maxIter;
+    }
+
+    /**
+     * Set the tolerance on the norm of the residual, relative to the norm of
+     * the right-hand side of the normal equations.
+     *
+     * @param tolerance The tolerance
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new RuntimeException("Invalid number of threads " + numThreads);
+        }
+        this.numThreads = numThreads;
+    }
+
+    public void setDesignMatrix(SparseVector[] d, int K) {
+        this.designMatrix = d;
+        this.numVariables = K;
+    }
+
+    public void setResponseVector(double[] r) {
+        this.responseVector = r;
+    }
+
+    public int getNumObservations() {
+        return designMatrix.length;
+    }
+
+    public int getNumVariables() {
+        return numVariables;
+    }
+
+    /**
+     * Return the number of conjugate gradient iterations of the last solve.
+     */
+    public int getNumIterations() {
+        return numIterations;
+    }
+
+    /**
+     * Return whether the last solve reached the tolerance.
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+
+    /**
+     * Compute the weights minimizing the objective.
+     */
+    public double[] solve() {
+        int N = getNumObservations();
+        int K = getNumVariables();
+        if (responseVector.length != N) {
+            throw new RuntimeException("Dimensions mismatch. "
+                    + responseVector.length + " vs. " + N);
+        }
+        compress();
+
+        ExecutorService executor = null;
+        if (numThreads > 1 && N > 1) {
+            executor = Executors.newFixedThreadPool(numThreads);
+        }
+        try {
+            // preconditioner and right-hand side
+            double[] diag = new double[K];
+            double[] b = new double[K];
+            for (int v = 0; v < K; v++) {
+                diag[v] = 1.0 / getSigma(v);
+                b[v] = getMean(v) / getSigma(v);
+            }
+            for (int ii = 0; ii < values.length; ii++) {
+                diag[columns[ii]] += values[ii] * values[ii] / rho;
+            }
+            double[] xty = new double[K];
+            multiplyTranspose(executor, responseVector, xty);
+            for (int v = 0; v < K; v++) {
+                b[v] += xty[v] / rho;
+            }
+
+            double[] w = new double[K];
+            for (int v = 0; v < K; v++) {
+                w[v] = initialWeights == null ? getMean(v) : initialWeights[v];
+            }
+
+            double[] buffer = new double[N];
+            double[] q = new double[K];
+            multiply(executor, w, buffer, q);
+            double[] r = new double[K];
+            double[] z = new double[K];
+            double[] p = new double[K];
+            double rz = 0.0;
+            for (int v = 0; v < K; v++) {
+                r[v] = b[v] - q[v];
+                z[v] = r[v] / diag[v];
+                p[v] = z[v];
+                rz += r[v] * z[v];
+            }
+
+            double threshold = tolerance * Math.max(norm(b), Double.MIN_NORMAL);
+            numIterations = 0;
+            converged = norm(r) <= threshold;
+            while (!converged && numIterations < maxIter) {
+                multiply(executor, p, buffer, q);
+                double pq = 0.0;
+                for (int v = 0; v < K; v++) {
+                    pq += p[v] * q[v];
+                }
+                double alpha = rz / pq;
+                double rzNew = 0.0;
+                for (int v = 0; v < K; v++) {
+                    w[v] += alpha * p[v];
+                    r[v] -= alpha * q[v];
+                    z[v] = r[v] / diag[v];
+                    rzNew += r[v] * z[v];
+                }
+                double beta = rzNew / rz;
+                for (int v = 0; v < K; v++) {
+                    p[v] = z[v] + beta * p[v];
+                }
+                rz = rzNew;
+                numIterations++;
+                converged = norm(r) <= threshold;
+            }
+            return w;
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            this.rowPointers = null;
+            this.columns = null;
+            this.values = null;
+        }
+    }
+
+    /**
+     * Store the design matrix in compressed sparse row format.
+     */
+    private void compress() {
+        int N = getNumObservations();
+        rowPointers = new int[N + 1];
+        for (int d = 0; d < N; d++) {
+            rowPointers[d + 1] = rowPointers[d] + designMatrix[d].size();
+        }
+        columns = new int[rowPointers[N]];
+        values = new double[rowPointers[N]];
+        for (int d = 0; d < N; d++) {
+            int ii = rowPointers[d];
+            for (int v : designMatrix[d].getIndices()) {
+                if (v < 0 || v >= numVariables) {
+                    throw new RuntimeException("Index " + v + " out of bound "
+                            + numVariables + " in row " + d);
+                }
+                columns[ii] = v;
+                values[ii] = designMatrix[d].get(v);
+                ii++;
+            }
+        }
+    }
+
+    /**
+     * Compute A x = X'X x / rho + x / sigma.
+     *
+     * @param executor Executor, or null to compute in the current thread
+     * @param x Input vector
+     * @param buffer Buffer to store X x
+     * @param result Output vector
+     */
+    private void multiply(ExecutorService executor, final double[] x,
+            final double[] buffer, double[] result) {
+        final int N = getNumObservations();
+        if (executor == null) {
+            multiplyRows(x, buffer, 0, N);
+        } else {
+            List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+            for (int ss = 0; ss < numThreads; ss++) {
+                final int start = (int) ((long) ss * N / numThreads);
+                final int end = (int) ((long) (ss + 1) * N / numThreads);
+                tasks.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        multiplyRows(x, buffer, start, end);
+                        return end - start;
+                    }
+                });
+            }
+            invokeAll(executor, tasks);
+        }
+        multiplyTranspose(executor, buffer, result);
+        for (int v = 0; v < result.length; v++) {
+            result[v] = result[v] / rho + x[v] / getSigma(v);
+        }
+    }
+
+    private void multiplyRows(double[] x, double[] result, int start, int end) {
+        for (int d = start; d < end; d++) {
+            double val = 0.0;
+            for (int ii = rowPointers[d]; ii < rowPointers[d + 1]; ii++) {
+                val += values[ii] * x[columns[ii]];
+            }
+            result[d] = val;
+        }
+    }
+
+    /**
+     * Compute X' y. With multiple threads, each thread accumulates the product
+     * of a block of rows, and the partial results are added in order.
+     */
+    private void multiplyTranspose(ExecutorService executor, final double[] y,
+            double[] result) {
+        final int N = getNumObservations();
+        final int K = getNumVariables();
+        if (executor == null) {
+            Arrays.fill(result, 0.0);
+            multiplyTransposeRows(y, result, 0, N);
+            return;
+        }
+        final double[][] partials = new double[numThreads][K];
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int ss = 0; ss < numThreads; ss++) {
+            final int shard = ss;
+            final int start = (int) ((long) ss * N / numThreads);
+            final int end = (int) ((long) (ss + 1) * N / numThreads);
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    multiplyTransposeRows(y, partials[shard], start, end);
+                    return end - start;
+                }
+            });
+        }
+        invokeAll(executor, tasks);
+        System.arraycopy(partials[0], 0, result, 0, K);
+        for (int ss = 1; ss < numThreads; ss++) {
+            for (int v = 0; v < K; v++) {
+                result[v] += partials[ss][v];
+            }
+        }
+    }
+
+    private void multiplyTransposeRows(double[] y, double[] result, int start, int end) {
+        for (int d = start; d < end; d++) {
+            double yd = y[d];
+            for (int ii = rowPointers[d]; ii < rowPointers[d + 1]; ii++) {
+                result[columns[ii]] += values[ii] * yd;
+            }
+        }
+    }
+
+    private static void invokeAll(ExecutorService executor, List<Callable<Integer>> tasks) {
+        try {
+            for (Future<Integer> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while computing matrix-vector products");
+        }
+    }
+
+    private static double norm(double[] x) {
+        double sum = 0.0;
+        for (double val : x) {
+            sum += val * val;
+        }
+        return Math.sqrt(sum);
+    }
+
+    public static void main(String[] args) {
+        test();
+    }
+
+    private static void test() {
+        Random rand = new Random(1);
+        double sigma = 1.0;
+        double rho = 100;
+        double mean = 0.0;
+
+        int D = 10000;
+        int V = 10;
+
+        double[] trueParams = new double[V];
+        for (int v = 0; v < V; v++) {
+            trueParams[v] = SamplerUtils.getGaussian(mean, sigma);
+        }
+
+        SparseVector[] designMatrix = new SparseVector[D];
+        for (int d = 0; d < D; d++) {
+            designMatrix[d] = new SparseVector(V);
+            for (int v = 0; v < V; v++) {
+                designMatrix[d].set(v, (double) rand.nextFloat());
+            }
+        }
+
+        // generate response
+        double[] responseVector = new double[D];
+        for (int d = 0; d < D; d++) {
+            responseVector[d] = SamplerUtils.getGaussian(
+                    designMatrix[d].dotProduct(trueParams), rho);
+        }
+
+        RidgeLinearRegressionCG mlr = new RidgeLinearRegressionCG(designMatrix,
+                responseVector, V, rho, mean, sigma);
+        double[] solution = mlr.solve();
+        System.out.println("# iterations:\t" + mlr.getNumIterations()
+                + "\tconverged: " + mlr.isConverged());
+        System.out.println("solution:\t" + MiscUtils.arrayToString(solution));
+        System.out.println("groundtruth:\t" + MiscUtils.arrayToString(trueParams));
+    }
+}
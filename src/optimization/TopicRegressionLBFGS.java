@@ -0,0 +1,424 @@
+package optimization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import sampling.util.TopicDesignMatrix;
+
+/**
+ * Maximum a posteriori estimation of the parameters of a response model whose
+ * covariates are the empirical topic distributions of the documents, e.g., the
+ * regression parameters of sLDA. Two response models are supported: a Gaussian
+ * model for continuous responses and a logistic model for binary labels, both
+ * with an independent Gaussian prior on each parameter.
+ *
+ * This is meant to be called repeatedly during sampling while the topic
+ * assignments change. The design matrix is a {@link TopicDesignMatrix} kept up
+ * to date by the sampler, each optimization starts from the current
+ * parameters, and the L-BFGS memory (the most recent changes of the parameters
+ * and of the gradient) is kept from one optimization to the next since the
+ * objective only changes slightly in between. Pairs without positive curvature
+ * are skipped, and the memory is cleared when the prior changes or when it does
+ * not give a descent direction.
+ *
+ * The value and the gradient of the objective are computed over fixed blocks
+ * of documents, using multiple threads if requested. The partial results are
+ * added in the order of the blocks, so the results do not depend on the number
+ * of threads.
+ *
+ * @author vietan
+ */
+public class TopicRegressionLBFGS {
+
+    public static final int DEFAULT_MEMORY_SIZE = 5;
+    public static final int DEFAULT_MAX_ITER = 100;
+    public static final double DEFAULT_TOLERANCE = 1e-6;
+    public static final int BLOCK_SIZE = 256;
+    private static final double ARMIJO_CONSTANT = 1e-4;
+    private static final int MAX_LINE_SEARCH = 50;
+    private static final double CURVATURE_THRESHOLD = 1e-10;
+    private final TopicDesignMatrix designMatrix;
+    private final double[] responses; // continuous responses
+    private final int[] labels; // binary labels
+    private final int numVariables;
+    private double rho; // variance of the responses
+    private double mean; // prior mean of the parameters
+    private double sigma; // prior variance of the parameters
+    private int maxIter = DEFAULT_MAX_ITER;
+    private double tolerance = DEFAULT_TOLERANCE;
+    private int numThreads = 1;
+    // L-BFGS memory
+    private final double[][] paramDiffs;
+    private final double[][] gradDiffs;
+    private final double[] invCurvatures;
+    private int numPairs;
+    private int newest;
+    // results of the last call to optimize()
+    private int numIterations;
+    private boolean converged;
+    private double value;
+    // partial results of each block of documents
+    private double[] blockValues;
+    private double[][] blockGradients;
+
+    /**
+     * Gaussian response model.
+     *
+     * @param designMatrix Empirical topic distributions of the documents
+     * @param responses Response of each document
+     * @param rho Variance of the responses
+     * @param mean Prior mean of the parameters
+     * @param sigma Prior variance of the parameters
+     */
+    public TopicRegressionLBFGS(TopicDesignMatrix designMatrix,
+            double[] responses, double rho, double mean, double sigma) {
+        this(designMatrix, responses, null, mean, sigma, DEFAULT_MEMORY_SIZE);
+        if (responses.length != designMatrix.getNumRows()) {
+            throw new RuntimeException("Dimensions mismatch. "
+                    + responses.length + " vs. " + designMatrix.getNumRows());
+        }
+        this.rho = rho;
+    }
+
+    /**
+     * Logistic response model.
+     *
+     * @param designMatrix Empirical topic distributions of the documents
+     * @param labels Binary (0 or 1) label of each document
+     * @param mean Prior mean of the parameters
+     * @param sigma Prior variance of the parameters
+     */
+    public TopicRegressionLBFGS(TopicDesignMatrix designMatrix,
+            int[] labels, double mean, double sigma) {
+        this(designMatrix, null, labels, mean, sigma, DEFAULT_MEMORY_SIZE);
+        if (labels.length != designMatrix.getNumRows()) {
+            throw new RuntimeException("Dimensions mismatch. "
+                    + labels.length + " vs. " + designMatrix.getNumRows());
+        }
+    }
+
+    private TopicRegressionLBFGS(TopicDesignMatrix designMatrix,
+            double[] responses, int[] labels, double mean, double sigma,
+            int memorySize) {
+        this.designMatrix = designMatrix;
+        this.responses = responses;
+        this.labels = labels;
+        this.numVariables = designMatrix.getNumColumns();
+        this.mean = mean;
+        this.sigma = sigma;
+        this.paramDiffs = new double[memorySize][numVariables];
+        this.gradDiffs = new double[memorySize][numVariables];
+        this.invCurvatures = new double[memorySize];
+    }
+
+    /**
+     * Set the prior of the parameters. The L-BFGS memory is cleared if the
+     * prior changes.
+     *
+     * @param mean Prior mean of the parameters
+     * @param sigma Prior variance of the parameters
+     */
+    public void setPrior(double mean, double sigma) {
+        if (mean != this.mean || sigma != this.sigma) {
+            clearMemory();
+        }
+        this.mean = mean;
+        this.sigma = sigma;
+    }
+
+    /**
+     * Set the variance of the responses of the Gaussian model. The L-BFGS
+     * memory is cleared if the variance changes.
+     *
+     * @param rho Variance of the responses
+     */
+    public void setRho(double rho) {
+        if (rho != this.rho) {
+            clearMemory();
+        }
+        this.rho = rho;
+    }
+
+    public void setMaxIterations(int maxIter) {
+        this.maxIter = maxIter;
+    }
+
+    /**
+     * Set the tolerance on the norm of the gradient, relative to the norm of
+     * the parameters (or 1 if the parameters are smaller).
+     *
+     * @param tolerance The tolerance
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new RuntimeException("Invalid number of threads " + numThreads);
+        }
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Discard the L-BFGS memory, e.g., after the assignments have been
+     * reloaded.
+     */
+    public void clearMemory() {
+        this.numPairs = 0;
+    }
+
+    /**
+     * Return the number of iterations of the last optimization.
+     */
+    public int getNumIterations() {
+        return numIterations;
+    }
+
+    /**
+     * Return whether the last optimization converged.
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+
+    /**
+     * Return the value of the objective (the negative log posterior, up to a
+     * constant) at the end of the last optimization.
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Optimize the parameters, starting from their current values.
+     *
+     * @param params The parameters, which are updated in place
+     * @return Whether the optimization converged
+     */
+    public boolean optimize(double[] params) {
+        if (params.length != numVariables) {
+            throw new RuntimeException("Dimensions mismatch. "
+                    + params.length + " vs. " + numVariables);
+        }
+        int numBlocks = (designMatrix.getNumRows() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        blockValues = new double[numBlocks];
+        blockGradients = new double[numBlocks][numVariables];
+
+        ExecutorService executor = null;
+        if (numThreads > 1 && numBlocks > 1) {
+            executor = Executors.newFixedThreadPool(numThreads);
+        }
+        try {
+            double[] w = params.clone();
+            double[] g = new double[numVariables];
+            double f = evaluate(executor, w, g);
+            double[] direction = new double[numVariables];
+            double[] newW = new double[numVariables];
+            double[] newG = new double[numVariables];
+
+            numIterations = 0;
+            converged = norm(g) <= tolerance * Math.max(1.0, norm(w));
+            while (!converged && numIterations < maxIter) {
+                computeDirection(g, direction);
+                double slope = dot(g, direction);
+                if (numPairs > 0 && slope >= 0) {
+                    clearMemory();
+                    computeDirection(g, direction);
+                    slope = dot(g, direction);
+                }
+
+                // backtracking line search
+                double step = numPairs > 0 ? 1.0 : Math.min(1.0, 1.0 / norm(g));
+                double newF = Double.POSITIVE_INFINITY;
+                boolean accepted = false;
+                for (int ii = 0; ii < MAX_LINE_SEARCH && !accepted; ii++) {
+                    for (int v = 0; v < numVariables; v++) {
+                        newW[v] = w[v] + step * direction[v];
+                    }
+                    newF = evaluate(executor, newW, newG);
+                    if (newF <= f + ARMIJO_CONSTANT * step * slope) {
+                        accepted = true;
+                    } else {
+                        step /= 2;
+                    }
+                }
+                if (!accepted) { // cannot make progress in this direction
+                    clearMemory();
+                    break;
+                }
+                numIterations++;
+                addPair(w, newW, g, newG);
+
+                double decrease = f - newF;
+                System.arraycopy(newW, 0, w, 0, numVariables);
+                System.arraycopy(newG, 0, g, 0, numVariables);
+                f = newF;
+                converged = norm(g) <= tolerance * Math.max(1.0, norm(w))
+                        || decrease <= tolerance * tolerance * Math.max(1.0, Math.abs(f));
+            }
+            value = f;
+            System.arraycopy(w, 0, params, 0, numVariables);
+            return converged;
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            blockValues = null;
+            blockGradients = null;
+        }
+    }
+
+    /**
+     * Compute the search direction -H g using the two-loop recursion.
+     */
+    private void computeDirection(double[] g, double[] direction) {
+        int memorySize = paramDiffs.length;
+        double[] alphas = new double[memorySize];
+        for (int v = 0; v < numVariables; v++) {
+            direction[v] = -g[v];
+        }
+        for (int ii = 0; ii < numPairs; ii++) {
+            int idx = (newest - ii + memorySize) % memorySize;
+            alphas[idx] = invCurvatures[idx] * dot(paramDiffs[idx], direction);
+            for (int v = 0; v < numVariables; v++) {
+                direction[v] -= alphas[idx] * gradDiffs[idx][v];
+            }
+        }
+        if (numPairs > 0) {
+            double[] y = gradDiffs[newest];
+            double gamma = 1.0 / (invCurvatures[newest] * dot(y, y));
+            for (int v = 0; v < numVariables; v++) {
+                direction[v] *= gamma;
+            }
+        }
+        for (int ii = numPairs - 1; ii >= 0; ii--) {
+            int idx = (newest - ii + memorySize) % memorySize;
+            double beta = invCurvatures[idx] * dot(gradDiffs[idx], direction);
+            for (int v = 0; v < numVariables; v++) {
+                direction[v] += (alphas[idx] - beta) * paramDiffs[idx][v];
+            }
+        }
+    }
+
+    private void addPair(double[] w, double[] newW, double[] g, double[] newG) {
+        double sy = 0.0;
+        double yy = 0.0;
+        for (int v = 0; v < numVariables; v++) {
+            double y = newG[v] - g[v];
+            sy += (newW[v] - w[v]) * y;
+            yy += y * y;
+        }
+        if (yy == 0.0 || sy <= CURVATURE_THRESHOLD * yy) {
+            return;
+        }
+        int idx = (newest + 1) % paramDiffs.length;
+        for (int v = 0; v < numVariables; v++) {
+            paramDiffs[idx][v] = newW[v] - w[v];
+            gradDiffs[idx][v] = newG[v] - g[v];
+        }
+        invCurvatures[idx] = 1.0 / sy;
+        newest = idx;
+        numPairs = Math.min(numPairs + 1, paramDiffs.length);
+    }
+
+    /**
+     * Compute the value and the gradient of the objective.
+     *
+     * @param executor Executor, or null to compute in the current thread
+     * @param w The parameters
+     * @param gradient Array to store the gradient
+     * @return The value
+     */
+    private double evaluate(ExecutorService executor, final double[] w,
+            double[] gradient) {
+        final int numBlocks = blockValues.length;
+        if (executor == null) {
+            evaluateBlocks(w, 0, numBlocks);
+        } else {
+            List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+            for (int ss = 0; ss < numThreads; ss++) {
+                final int start = (int) ((long) ss * numBlocks / numThreads);
+                final int end = (int) ((long) (ss + 1) * numBlocks / numThreads);
+                tasks.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        evaluateBlocks(w, start, end);
+                        return end - start;
+                    }
+                });
+            }
+            try {
+                for (Future<Integer> future : executor.invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while evaluating the objective");
+            }
+        }
+
+        double val = 0.0;
+        for (int v = 0; v < numVariables; v++) {
+            double diff = w[v] - mean;
+            val += diff * diff / (2 * sigma);
+            gradient[v] = diff / sigma;
+        }
+        for (int bb = 0; bb < numBlocks; bb++) {
+            val += blockValues[bb];
+            for (int v = 0; v < numVariables; v++) {
+                gradient[v] += blockGradients[bb][v];
+            }
+        }
+        return val;
+    }
+
+    private void evaluateBlocks(double[] w, int startBlock, int endBlock) {
+        int D = designMatrix.getNumRows();
+        for (int bb = startBlock; bb < endBlock; bb++) {
+            double val = 0.0;
+            double[] grad = blockGradients[bb];
+            Arrays.fill(grad, 0.0);
+            int end = Math.min(D, (bb + 1) * BLOCK_SIZE);
+            for (int d = bb * BLOCK_SIZE; d < end; d++) {
+                double dotprod = designMatrix.dotProduct(d, w);
+                double coeff;
+                if (labels == null) {
+                    double diff = responses[d] - dotprod;
+                    val += diff * diff / (2 * rho);
+                    coeff = -diff / rho;
+                } else {
+                    // log(1 + exp(x.w)) - l * x.w
+                    if (dotprod > 0) {
+                        val += dotprod + Math.log1p(Math.exp(-dotprod));
+                    } else {
+                        val += Math.log1p(Math.exp(dotprod));
+                    }
+                    val -= labels[d] * dotprod;
+                    coeff = 1.0 / (1.0 + Math.exp(-dotprod)) - labels[d];
+                }
+                for (int ii = 0; ii < designMatrix.getRowSize(d); ii++) {
+                    grad[designMatrix.getColumn(d, ii)] += coeff * designMatrix.getValue(d, ii);
+                }
+            }
+            blockValues[bb] = val;
+        }
+    }
+
+    private static double dot(double[] x, double[] y) {
+        double sum = 0.0;
+        for (int ii = 0; ii < x.length; ii++) {
+            sum += x[ii] * y[ii];
+        }
+        return sum;
+    }
+
+    private static double norm(double[] x) {
+        return Math.sqrt(dot(x, x));
+    }
+}
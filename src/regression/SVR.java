@@ -2,14 +2,18 @@ package regression;
 
 import core.crossvalidation.Fold;
 import data.ResponseTextDataset;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.util.ArrayList;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
+import svm.LinearSVM;
 import svm.SVMLight;
 import svm.SVMUtils;
 import util.CLIUtils;
+import util.IOUtils;
 import util.MiscUtils;
+import util.SparseVector;
 
 /**
  *
@@ -22,17 +26,23 @@ public class SVR<D extends ResponseTextDataset> extends AbstractRegressor implem
     // option C in SVM Light: trade-off between training error and margin
     // (default: [avg. x*x]^{-1})
     private double c;
+    // train and test in process with LinearSVM instead of SVM Light
+    private boolean inProcess;
+    private int numThreads;
+    protected LinearSVM linearSVM;
 
     public SVR(String folder) {
         super(folder);
         this.svm = new SVMLight();
         this.c = DEFAULT_C;
+        this.numThreads = 1;
     }
 
     public SVR(String folder, double c) {
         super(folder);
         this.svm = new SVMLight();
         this.c = c;
+        this.numThreads = 1;
     }
 
     @Override
@@ -51,6 +61,118 @@ public class SVR<D extends ResponseTextDataset> extends AbstractRegressor implem
         return svm;
     }
 
+    /**
+     * Train and test with the in-process linear SVR in {@link LinearSVM}
+     * instead of SVM Light, which avoids writing data files and spawning
+     * processes.
+     */
+    public void setInProcess(boolean inProcess) {
+        this.inProcess = inProcess;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public LinearSVM getLinearSVM() {
+        return linearSVM;
+    }
+
+    private String[] getOptions() {
+        String[] opts = {"-z r"};
+        if (this.c != DEFAULT_C) {
+            opts = new String[2];
+            opts[0] = "-z r";
+            opts[1] = "-c " + this.c;
+        }
+        return opts;
+    }
+
+    /**
+     * Return the normalized word counts of documents.
+     */
+    public static SparseVector[] getFeatures(int[][] words, int V) {
+        int D = words.length;
+        SparseVector[] features = new SparseVector[D];
+        for (int d = 0; d < D; d++) {
+            features[d] = new SparseVector(V);
+            for (int n = 0; n < words[d].length; n++) {
+                features[d].change(words[d][n], 1.0);
+            }
+            if (words[d].length > 0) {
+                features[d].divide(words[d].length);
+            }
+        }
+        return features;
+    }
+
+    /**
+     * Return the word counts of documents followed by additional features.
+     */
+    public static SparseVector[] getFeatures(int[][] words, int V,
+            ArrayList<Double>[] addFeatures) {
+        int D = words.length;
+        int F = addFeatures[0].size();
+        SparseVector[] features = new SparseVector[D];
+        for (int d = 0; d < D; d++) {
+            features[d] = new SparseVector(V + F);
+            for (int n = 0; n < words[d].length; n++) {
+                features[d].change(words[d][n], 1.0);
+            }
+            for (int f = 0; f < F; f++) {
+                if (addFeatures[d].get(f) != 0) {
+                    features[d].set(V + f, addFeatures[d].get(f));
+                }
+            }
+        }
+        return features;
+    }
+
+    /**
+     * Train in process and output the learned weights.
+     *
+     * @param features Feature vectors
+     * @param responses Responses
+     * @param modelFile File to store the learned weights
+     */
+    public void train(SparseVector[] features, double[] responses, File modelFile) {
+        this.linearSVM = svm.learn(getOptions(), features, responses);
+        if (!linearSVM.isConverged()) {
+            logln("[WARNING] Reaching max number of iterations "
+                    + linearSVM.getNumIterations() + " in LinearSVM regression");
+        }
+        IOUtils.createFolder(modelFile.getParentFile());
+        this.linearSVM.output(modelFile);
+    }
+
+    /**
+     * Predict in process, loading the learned weights if necessary.
+     *
+     * @param features Feature vectors
+     * @param modelFile File storing the learned weights
+     */
+    public double[] test(SparseVector[] features, File modelFile) {
+        if (this.linearSVM == null) {
+            this.linearSVM = new LinearSVM(LinearSVM.Type.REGRESSION);
+            this.linearSVM.input(modelFile);
+        }
+        return svm.classify(linearSVM, features, numThreads);
+    }
+
+    private void test(SparseVector[] features, File modelFile, File resultFile) {
+        double[] predictions = test(features, modelFile);
+        try {
+            BufferedWriter writer = IOUtils.getBufferedWriter(resultFile);
+            for (double prediction : predictions) {
+                writer.write(prediction + "\n");
+            }
+            writer.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while outputing to " + resultFile);
+        }
+    }
+
     @Override
     public void input(File inputFile) {
     }
@@ -65,6 +187,10 @@ public class SVR<D extends ResponseTextDataset> extends AbstractRegressor implem
             int V,
             File trainFile,
             File modelFile) {
+        if (inProcess) {
+            train(getFeatures(trWords, V), trResponses, modelFile);
+            return;
+        }
         int D = trWords.length;
         double[][] designMatrix = new double[D][V];
         for (int d = 0; d < D; d++) {
@@ -79,14 +205,8 @@ public class SVR<D extends ResponseTextDataset> extends AbstractRegressor implem
         }
         SVMUtils.outputSVMLightFormat(trainFile, designMatrix, trResponses);
 
-        String[] opts = {"-z r"};
-        if (this.c != DEFAULT_C) {
-            opts = new String[2];
-            opts[0] = "-z r";
-            opts[1] = "-c " + this.c;
-        }
         try {
-            svm.learn(opts, trainFile, modelFile);
+            svm.learn(getOptions(), trainFile, modelFile);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while training");
@@ -99,6 +219,10 @@ public class SVR<D extends ResponseTextDataset> extends AbstractRegressor implem
             ArrayList<Double>[] addFeatures,
             File trainFile,
             File modelFile) {
+        if (inProcess) {
+            train(getFeatures(trWords, V, addFeatures), trResponses, modelFile);
+            return;
+        }
         int D = trWords.length;
         int F = addFeatures[0].size();
 
@@ -113,14 +237,8 @@ public class SVR<D extends ResponseTextDataset> extends AbstractRegressor implem
         }
         SVMUtils.outputSVMLightFormat(trainFile, allFeatures, trResponses);
 
-        String[] opts = {"-z r"};
-        if (this.c != DEFAULT_C) {
-            opts = new String[2];
-            opts[0] = "-z r";
-            opts[1] = "-c " + this.c;
-        }
         try {
-            svm.learn(opts, trainFile, modelFile);
+            svm.learn(getOptions(), trainFile, modelFile);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while training");
@@ -152,6 +270,10 @@ public class SVR<D extends ResponseTextDataset> extends AbstractRegressor implem
 
     public void test(int[][] teWords, double[] teResponses, int V,
             File testFile, File modelFile, File resultFile) {
+        if (inProcess) {
+            test(getFeatures(teWords, V), modelFile, resultFile);
+            return;
+        }
         int D = teWords.length;
         double[][] designMatrix = new double[D][V];
         for (int d = 0; d < D; d++) {
@@ -172,6 +294,10 @@ public class SVR<D extends ResponseTextDataset> extends AbstractRegressor implem
     public void test(int[][] teWords, double[] teResponses, int V,
             ArrayList<Double>[] addFeatures,
             File testFile, File modelFile, File resultFile) {
+        if (inProcess) {
+            test(getFeatures(teWords, V, addFeatures), modelFile, resultFile);
+            return;
+        }
         int D = teWords.length;
         int F = addFeatures[0].size();
 
@@ -201,11 +327,16 @@ public class SVR<D extends ResponseTextDataset> extends AbstractRegressor implem
         int V = testData.getWordVocab().size();
         File testFile = new File(getRegressorFolder(), DATA_FILE + Fold.TestExt);
         File modelFile = new File(getRegressorFolder(), MODEL_FILE);
-        File resultFile = new File(getRegressorFolder(), "svm-" + PREDICTION_FILE + Fold.TestExt);
-        test(teWords, teResponses, V, testFile, modelFile, resultFile);
+        double[] predictions;
+        if (inProcess) {
+            predictions = test(getFeatures(teWords, V), modelFile);
+        } else {
+            File resultFile = new File(getRegressorFolder(), "svm-" + PREDICTION_FILE + Fold.TestExt);
+            test(teWords, teResponses, V, testFile, modelFile, resultFile);
+            predictions = svm.getPredictedValues(resultFile);
+        }
 
         File predFile = new File(getRegressorFolder(), PREDICTION_FILE + Fold.TestExt);
-        double[] predictions = svm.getPredictedValues(resultFile);
         outputPredictions(predFile, teDocIds, teResponses, predictions);
 
         File regFile = new File(getRegressorFolder(), RESULT_FILE + Fold.TestExt);
@@ -240,6 +371,9 @@ public class SVR<D extends ResponseTextDataset> extends AbstractRegressor implem
             options.addOption("v", false, "verbose");
             options.addOption("d", false, "debug");
             options.addOption("z", false, "standardize (z-score normalization)");
+            options.addOption("in-process", false, "Train and test with the in-process"
+                    + " linear SVR instead of SVM Light");
+            addOption("threads", "Number of threads for prediction");
             options.addOption("help", false, "Help");
 
             cmd = parser.parse(options, args);
@@ -284,6 +418,8 @@ public class SVR<D extends ResponseTextDataset> extends AbstractRegressor implem
         }
 
         SVR svr = new SVR(outputFolder);
+        svr.setInProcess(cmd.hasOption("in-process"));
+        svr.setNumThreads(CLIUtils.getIntegerArgument(cmd, "threads", 1));
         svr.train(data);
     }
 
@@ -325,6 +461,8 @@ public class SVR<D extends ResponseTextDataset> extends AbstractRegressor implem
             }
 
             SVR svr = new SVR(foldFolder.getAbsolutePath());
+            svr.setInProcess(cmd.hasOption("in-process"));
+            svr.setNumThreads(CLIUtils.getIntegerArgument(cmd, "threads", 1));
             svr.train(trainData);
             svr.test(testData);
         }
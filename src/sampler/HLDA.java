@@ -10,6 +10,7 @@ import java.util.Stack;
 import sampling.likelihood.DirMult;
 import sampling.likelihood.TruncatedStickBreaking;
 import sampling.util.TreeNode;
+import sampling.util.TreeScorer;
 import util.IOUtils;
 import util.MiscUtils;
 import util.RankingItem;
@@ -35,6 +36,7 @@ public class HLDA extends AbstractSampler {
     private HLDANode[] c; // path assignments
     private TruncatedStickBreaking[] doc_level_distr;
     private HLDANode word_hier_root;
+    private HLDAPathScorer pathScorer;
     private double[] uniform;
     private int numChangePath;
     private int numChangeLevel;
@@ -161,6 +163,8 @@ public class HLDA extends AbstractSampler {
         }
         DirMult dmModel = new DirMult(V, betas[0], uniform);
         this.word_hier_root = new HLDANode(iter, 0, 0, dmModel, null);
+        this.pathScorer = new HLDAPathScorer(L, V, betas, gammas);
+        this.pathScorer.register(word_hier_root);
     }
 
     protected void initializeAssignments() {
@@ -189,9 +193,11 @@ public class HLDA extends AbstractSampler {
             HLDANode node = word_hier_root;
             for (int l = 0; l < L - 1; l++) {
                 node.incrementNumCustomers();
+                pathScorer.invalidate(node);
                 node = this.createNode(node); // create a new path for each document
             }
             node.incrementNumCustomers();
+            pathScorer.invalidate(node);
             c[d] = node;
 
             // forward sample levels
@@ -304,7 +310,43 @@ public class HLDA extends AbstractSampler {
         }
 
         // compute log probability of each path which is represented by either
-        // a leaf node (existing path) or an internal node (novel path)
+        // a leaf node (existing path) or an internal node (novel path):
+        // P(c_d | c_{-d}) P(w_m | c, w_{-m}, z)
+        double[] logprobs = pathScorer.computePathLogProbabilities(word_hier_root,
+                words[d], z[d]);
+        if (debug) {
+            validatePathLogProbabilities(d, logprobs);
+        }
+        int sampledIndex = SamplerUtils.logMinRescaleSample(logprobs);
+        HLDANode sampledNode = pathScorer.getCandidate(sampledIndex);
+        HLDANode node = sampledNode;
+
+        if (node.getLevel() < L - 1) // pick an internal node
+        {
+            node = this.getNewLeaf(node);
+        }
+
+        if (curPathNode != null && !sampledNode.equals(curPathNode)) {
+            numChangePath++;
+        }
+
+        // add this document to the new sampled path and add tokens to the 
+        // corresponding multinomials on the path
+        c[d] = node;
+        this.addCustomerToPath(c[d]);
+        for (int n = 0; n < words[d].length; n++) {
+            this.addObservation(words[d][n], z[d][n], c[d]);
+        }
+    }
+
+    /**
+     * Check the log probabilities of all candidate paths computed by the path
+     * scorer against a direct computation.
+     *
+     * @param d The index of the document
+     * @param logprobs The log probabilities computed by the path scorer
+     */
+    private void validatePathLogProbabilities(int d, double[] logprobs) {
         // P(c_d | c_{-d})
         HashMap<HLDANode, Double> nodeLogPriors = new HashMap<HLDANode, Double>();
         computePathLogPrior(nodeLogPriors, word_hier_root, 0.0);
@@ -347,51 +389,17 @@ public class HLDA extends AbstractSampler {
         computePathLogLikelihood(nodeDataLlhs, word_hier_root,
                 docTypeCountPerLevel, dataLlhNewTopic, 0.0);
 
-        if (nodeLogPriors.size() != nodeDataLlhs.size()) {
-            throw new RuntimeException("Numbers of nodes mismatch");
-        }
-
-        // sample path
-        ArrayList<Double> logprobs = new ArrayList<Double>();
-        ArrayList<HLDANode> nodeLists = new ArrayList<HLDANode>();
-        int index = 0;
-        for (HLDANode node : nodeLogPriors.keySet()) {
-            nodeLists.add(node);
-            logprobs.add(nodeLogPriors.get(node) + nodeDataLlhs.get(node));
-
-            // debug
-//            logln("iter = " + iter 
-//                    + ". d = " + d
-//                    + ". index = " + index
-//                    + ". node = " + node.toString()
-//                    + ". logprior = " + MiscUtils.formatDouble(nodeLogPriors.get(node)) // path prior
-//                    + ". datallh = " + MiscUtils.formatDouble(nodeDataLlhs.get(node)) // data likelihood
-//                    + ". total = " + MiscUtils.formatDouble(nodeLogPriors.get(node) // path prior
-//                                        + nodeDataLlhs.get(node) // data likelihood
-//                    )
-//                    );
-            index++;
+        if (nodeLogPriors.size() != logprobs.length) {
+            throw new RuntimeException("Numbers of nodes mismatch. "
+                    + nodeLogPriors.size() + " vs. " + logprobs.length);
         }
-        int sampledIndex = SamplerUtils.logMinRescaleSample(logprobs);
-        HLDANode node = nodeLists.get(sampledIndex);
-
-//        logln("---> samplerIndex = " + sampledIndex + ". node = " + node.toString());
-
-        if (node.getLevel() < L - 1) // pick an internal node
-        {
-            node = this.getNewLeaf(node);
-        }
-
-        if (curPathNode != null && !nodeLists.get(sampledIndex).equals(curPathNode)) {
-            numChangePath++;
-        }
-
-        // add this document to the new sampled path and add tokens to the 
-        // corresponding multinomials on the path
-        c[d] = node;
-        this.addCustomerToPath(c[d]);
-        for (int n = 0; n < words[d].length; n++) {
-            this.addObservation(words[d][n], z[d][n], c[d]);
+        for (int ii = 0; ii < logprobs.length; ii++) {
+            HLDANode node = pathScorer.getCandidate(ii);
+            double expected = nodeLogPriors.get(node) + nodeDataLlhs.get(node);
+            if (Math.abs(expected - logprobs[ii]) > 1e-6 * Math.max(1.0, Math.abs(expected))) {
+                throw new RuntimeException("Path log probabilities mismatch at node "
+                        + node + ". " + expected + " vs. " + logprobs[ii]);
+            }
         }
     }
 
@@ -415,30 +423,36 @@ public class HLDA extends AbstractSampler {
     private void computePathLogLikelihood(
             HashMap<HLDANode, Double> nodeDataLlhs,
             HLDANode curNode,
-            HashMap<Integer, Integer>[] docTokenCountPerLevel,
-            double[] dataLlhNewTopic,
+            final HashMap<Integer, Integer>[] docTokenCountPerLevel,
+            final double[] dataLlhNewTopic,
             double parentDataLlh) {
+        TreeScorer<HLDANode> scorer = new TreeScorer<HLDANode>(
+                new TreeScorer.NodeScorer<HLDANode>() {
+                    @Override
+                    public double getPathValue(HLDANode node, double parentValue) {
+                        // compute the data log likelihood at the current node
+                        return parentValue + getWordObsLogLikelihoodFromNode(node,
+                                docTokenCountPerLevel[node.getLevel()]);
+                    }
 
-        int level = curNode.getLevel();
-
-        // compute the data log likelihood at the current node
-        double nodeDataLlh = getWordObsLogLikelihoodFromNode(curNode, docTokenCountPerLevel[level]);
-
-        // populate to child nodes
-        for (HLDANode child : curNode.getChildren()) {
-            computePathLogLikelihood(nodeDataLlhs, child, docTokenCountPerLevel,
-                    dataLlhNewTopic, parentDataLlh + nodeDataLlh);
-        }
-
-        // store the data llh from the root to this current node
-        double storeDataLlh = parentDataLlh + nodeDataLlh;
-        level++;
-        while (level < L) // if this is an internal node, add llh of new child node
-        {
-            storeDataLlh += dataLlhNewTopic[level++];
-        }
+                    @Override
+                    public boolean isCandidate(HLDANode node) {
+                        return true;
+                    }
 
-        nodeDataLlhs.put(curNode, storeDataLlh);
+                    @Override
+                    public double getScore(HLDANode node, double pathValue) {
+                        // store the data llh from the root to this current node
+                        double storeDataLlh = pathValue;
+                        int level = node.getLevel() + 1;
+                        while (level < L) // if this is an internal node, add llh of new child node
+                        {
+                            storeDataLlh += dataLlhNewTopic[level++];
+                        }
+                        return storeDataLlh;
+                    }
+                });
+        scorer.score(curNode, parentDataLlh, nodeDataLlhs);
     }
 
     /**
@@ -465,7 +479,7 @@ public class HLDA extends AbstractSampler {
     }
 
     /**
-     * Recursively compute the log probability of each path in the tree given
+     * Compute the log probability of each path in the tree given
      * the path assignments. The set of all possible paths corresponds to the
      * union of - the set of existing paths through the tree, each represented
      * by a leaf - the set of possible novel paths, each represented by an
@@ -473,25 +487,42 @@ public class HLDA extends AbstractSampler {
      *
      * @param nodeLogProbs A Hashtable to map each node in the tree (which
      * represents a possible path) with its corresponding log probability
-     * @param curNode The current node in the recursive function
+     * @param curNode The root of the subtree
      * @param parentLogProb The log probability from the parent node that is
      * passed to the child node
      */
     private void computePathLogPrior(
             HashMap<HLDANode, Double> nodeLogProbs,
-            HLDANode curNode,
+            final HLDANode curNode,
             double parentLogProb) {
-        double newWeight = parentLogProb;
-        if (!isLeafNode(curNode)) {
-            double logNorm = Math.log(curNode.getNumCustomers() + gammas[curNode.getLevel()]);
+        TreeScorer<HLDANode> scorer = new TreeScorer<HLDANode>(
+                new TreeScorer.NodeScorer<HLDANode>() {
+                    @Override
+                    public double getPathValue(HLDANode node, double parentValue) {
+                        if (node == curNode) {
+                            return parentValue;
+                        }
+                        HLDANode parent = node.getParent();
+                        double logNorm = Math.log(parent.getNumCustomers() + gammas[parent.getLevel()]);
+                        return parentValue + Math.log(node.getNumCustomers()) - logNorm;
+                    }
 
-            for (HLDANode child : curNode.getChildren()) {
-                double childWeight = parentLogProb + Math.log(child.getNumCustomers()) - logNorm;
-                computePathLogPrior(nodeLogProbs, child, childWeight);
-            }
-            newWeight += Math.log(gammas[curNode.getLevel()]) - logNorm;
-        }
-        nodeLogProbs.put(curNode, newWeight);
+                    @Override
+                    public boolean isCandidate(HLDANode node) {
+                        return true;
+                    }
+
+                    @Override
+                    public double getScore(HLDANode node, double pathValue) {
+                        double newWeight = pathValue;
+                        if (!isLeafNode(node)) {
+                            double logNorm = Math.log(node.getNumCustomers() + gammas[node.getLevel()]);
+                            newWeight += Math.log(gammas[node.getLevel()]) - logNorm;
+                        }
+                        return newWeight;
+                    }
+                });
+        scorer.score(curNode, parentLogProb, nodeLogProbs);
     }
 
     private void sampleLevelAssignments(int d, int n, boolean remove) {
@@ -529,6 +560,7 @@ public class HLDA extends AbstractSampler {
         HLDANode node = leafNode;
         while (node != null) {
             node.incrementNumCustomers();
+            pathScorer.invalidate(node);
             node = node.getParent();
         }
     }
@@ -543,6 +575,7 @@ public class HLDA extends AbstractSampler {
     private void removeObservation(int observation, int level, HLDANode leafNode) {
         HLDANode node = getNode(level, leafNode);
         node.getContent().decrement(observation);
+        pathScorer.invalidate(node);
     }
 
     /**
@@ -555,6 +588,7 @@ public class HLDA extends AbstractSampler {
     private void addObservation(int observation, int level, HLDANode leafNode) {
         HLDANode node = getNode(level, leafNode);
         node.getContent().increment(observation);
+        pathScorer.invalidate(node);
     }
 
     /**
@@ -578,6 +612,9 @@ public class HLDA extends AbstractSampler {
             if (node.isEmpty()) {
                 retNode = node.getParent();
                 node.getParent().removeChild(node.getIndex());
+                pathScorer.release(node);
+            } else {
+                pathScorer.invalidate(node);
             }
             node = node.getParent();
         }
@@ -595,7 +632,9 @@ public class HLDA extends AbstractSampler {
         int level = parent.getLevel() + 1;
         DirMult dmModel = new DirMult(V, betas[level], uniform);
         HLDANode child = new HLDANode(iter, nextChildIndex, level, dmModel, parent);
-        return parent.addChild(nextChildIndex, child);
+        parent.addChild(nextChildIndex, child);
+        pathScorer.register(child);
+        return child;
     }
 
     private boolean isLeafNode(HLDANode node) {
@@ -834,6 +873,7 @@ public class HLDA extends AbstractSampler {
         private final int born;
         int numCustomers;
         HLDANode pseudoChild;
+        private int id; // index in the path scorer
 
         public HLDANode(int iter, int index, int level, DirMult content, HLDANode parent) {
             super(index, level, content, parent);
@@ -846,6 +886,14 @@ public class HLDA extends AbstractSampler {
             return this.born;
         }
 
+        public int getId() {
+            return this.id;
+        }
+
+        public void setId(int id) {
+            this.id = id;
+        }
+
         public int getNumCustomers() {
             return this.numCustomers;
         }
@@ -0,0 +1,281 @@
+package sampler;
+
+import java.util.Arrays;
+import java.util.Stack;
+import sampler.HLDA.HLDANode;
+import sampling.likelihood.DirMult;
+import util.LogGammaCache;
+
+/**
+ * Scores all candidate paths of a document in the nested CRP of
+ * {@link HLDA}. A candidate path is represented by a node of the tree: a leaf
+ * for an existing path, or an internal node for a novel path branching off
+ * from it.
+ *
+ * The tree is flattened into arrays indexed by node ids, which are recycled
+ * when nodes are removed, and the preorder of the nodes is only rebuilt after
+ * nodes are added or removed. Per-node quantities that do not depend on the
+ * document (the log numbers of customers used by the path prior and the log
+ * gamma of the count sum) are cached and recomputed only for the nodes whose
+ * counts changed since the last document. The likelihood of a document at a
+ * node is computed with one log-gamma ratio per word type rather than one log
+ * per token, using buffers reused across documents.
+ *
+ * @author vietan
+ */
+public class HLDAPathScorer {
+
+    private final int L;
+    private final int V;
+    private final double[] betas;
+    private final double[] gammas;
+    // flattened tree, indexed by node id
+    private HLDANode[] nodes;
+    private int[] parentIds;
+    private boolean[] dirty;
+    private double[] logNumCustomers;
+    private double[] logNorms; // log(#customers + gamma) of internal nodes
+    private double[] logGammaCountSums;
+    private double[] reachLogPriors;
+    private double[] pathDataLlhs;
+    private int[] freeIds;
+    private int numFreeIds;
+    private int numIds;
+    // nodes in preorder, rebuilt when the structure of the tree changes
+    private int[] preorder;
+    private int numNodes;
+    private boolean structureChanged;
+    // document buffers
+    private final int[] typeCounts; // indexed by level * V + type
+    private final int[][] levelTypes;
+    private final int[] levelNumTypes;
+    private final int[] levelNumTokens;
+    private final double[] newTopicLlhs;
+    private double[] logProbs;
+
+    public HLDAPathScorer(int L, int V, double[] betas, double[] gammas) {
+        this.L = L;
+        this.V = V;
+        this.betas = betas;
+        this.gammas = gammas;
+
+        int capacity = 64;
+        this.nodes = new HLDANode[capacity];
+        this.parentIds = new int[capacity];
+        this.dirty = new boolean[capacity];
+        this.logNumCustomers = new double[capacity];
+        this.logNorms = new double[capacity];
+        this.logGammaCountSums = new double[capacity];
+        this.reachLogPriors = new double[capacity];
+        this.pathDataLlhs = new double[capacity];
+        this.freeIds = new int[capacity];
+        this.preorder = new int[capacity];
+
+        this.typeCounts = new int[L * V];
+        this.levelTypes = new int[L][16];
+        this.levelNumTypes = new int[L];
+        this.levelNumTokens = new int[L];
+        this.newTopicLlhs = new double[L];
+    }
+
+    /**
+     * Assign an id to a newly created node.
+     */
+    public void register(HLDANode node) {
+        int id;
+        if (numFreeIds > 0) {
+            id = freeIds[--numFreeIds];
+        } else {
+            id = numIds++;
+            if (id == nodes.length) {
+                grow();
+            }
+        }
+        node.setId(id);
+        nodes[id] = node;
+        parentIds[id] = node.isRoot() ? -1 : node.getParent().getId();
+        dirty[id] = true;
+        structureChanged = true;
+    }
+
+    /**
+     * Recycle the id of a node removed from the tree.
+     */
+    public void release(HLDANode node) {
+        int id = node.getId();
+        nodes[id] = null;
+        if (numFreeIds == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, 2 * freeIds.length);
+        }
+        freeIds[numFreeIds++] = id;
+        structureChanged = true;
+    }
+
+    /**
+     * Mark that the number of customers or the word counts of a node changed.
+     */
+    public void invalidate(HLDANode node) {
+        dirty[node.getId()] = true;
+    }
+
+    private void grow() {
+        int capacity = 2 * nodes.length;
+        nodes = Arrays.copyOf(nodes, capacity);
+        parentIds = Arrays.copyOf(parentIds, capacity);
+        dirty = Arrays.copyOf(dirty, capacity);
+        logNumCustomers = Arrays.copyOf(logNumCustomers, capacity);
+        logNorms = Arrays.copyOf(logNorms, capacity);
+        logGammaCountSums = Arrays.copyOf(logGammaCountSums, capacity);
+        reachLogPriors = Arrays.copyOf(reachLogPriors, capacity);
+        pathDataLlhs = Arrays.copyOf(pathDataLlhs, capacity);
+        preorder = Arrays.copyOf(preorder, capacity);
+    }
+
+    private void updatePreorder(HLDANode root) {
+        numNodes = 0;
+        Stack<HLDANode> stack = new Stack<HLDANode>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            HLDANode node = stack.pop();
+            preorder[numNodes++] = node.getId();
+            for (HLDANode child : node.getChildren()) {
+                stack.add(child);
+            }
+        }
+        structureChanged = false;
+    }
+
+    private void update(int id) {
+        HLDANode node = nodes[id];
+        int level = node.getLevel();
+        logNumCustomers[id] = Math.log(node.getNumCustomers());
+        if (level < L - 1) {
+            logNorms[id] = Math.log(node.getNumCustomers() + gammas[level]);
+        }
+        logGammaCountSums[id] = LogGammaCache.logGamma(betas[level],
+                node.getContent().getCountSum());
+        dirty[id] = false;
+    }
+
+    /**
+     * Return the candidate node at a given index of the array returned by
+     * {@link #computePathLogProbabilities(HLDANode, int[], int[])}.
+     */
+    public HLDANode getCandidate(int index) {
+        return nodes[preorder[index]];
+    }
+
+    /**
+     * Compute the unnormalized log probability of each candidate path of a
+     * document, i.e., the log prior of the path under the nested CRP plus the
+     * log likelihood of the tokens given their levels. The document must have
+     * been removed from the tree.
+     *
+     * @param root The root of the tree
+     * @param words The tokens of the document
+     * @param levels The level assignments of the tokens
+     * @return The log probabilities, indexed by candidate (see
+     * {@link #getCandidate(int)}). The array is reused across calls.
+     */
+    public double[] computePathLogProbabilities(HLDANode root, int[] words, int[] levels) {
+        if (structureChanged) {
+            updatePreorder(root);
+        }
+        if (logProbs == null || logProbs.length != numNodes) {
+            logProbs = new double[numNodes];
+        }
+        countDocument(words, levels);
+
+        for (int ii = 0; ii < numNodes; ii++) {
+            int id = preorder[ii];
+            if (dirty[id]) {
+                update(id);
+            }
+        }
+
+        for (int ii = 0; ii < numNodes; ii++) {
+            int id = preorder[ii];
+            HLDANode node = nodes[id];
+            int level = node.getLevel();
+            int parentId = parentIds[id];
+            if (parentId < 0) {
+                reachLogPriors[id] = 0.0;
+                pathDataLlhs[id] = 0.0;
+            } else {
+                reachLogPriors[id] = reachLogPriors[parentId]
+                        + logNumCustomers[id] - logNorms[parentId];
+                pathDataLlhs[id] = pathDataLlhs[parentId];
+            }
+            pathDataLlhs[id] += getNodeLogLikelihood(id, level);
+
+            double logProb = reachLogPriors[id] + pathDataLlhs[id];
+            if (level < L - 1) { // novel path through this internal node
+                logProb += Math.log(gammas[level]) - logNorms[id];
+                for (int l = level + 1; l < L; l++) {
+                    logProb += newTopicLlhs[l];
+                }
+            }
+            logProbs[ii] = logProb;
+        }
+        resetDocument();
+        return logProbs;
+    }
+
+    /**
+     * Count the word types of the document at each level, and compute the log
+     * likelihood of the tokens at each level under a new topic.
+     */
+    private void countDocument(int[] words, int[] levels) {
+        for (int n = 0; n < words.length; n++) {
+            int l = levels[n];
+            if (typeCounts[l * V + words[n]]++ == 0) {
+                if (levelNumTypes[l] == levelTypes[l].length) {
+                    levelTypes[l] = Arrays.copyOf(levelTypes[l], 2 * levelTypes[l].length);
+                }
+                levelTypes[l][levelNumTypes[l]++] = words[n];
+            }
+            levelNumTokens[l]++;
+        }
+        for (int l = 1; l < L; l++) { // skip the root
+            double llh = 0.0;
+            double prior = betas[l] / V;
+            for (int ii = 0; ii < levelNumTypes[l]; ii++) {
+                llh += LogGammaCache.logGammaRatio(prior,
+                        typeCounts[l * V + levelTypes[l][ii]]);
+            }
+            newTopicLlhs[l] = llh - LogGammaCache.logGammaRatio(betas[l], levelNumTokens[l]);
+        }
+    }
+
+    private void resetDocument() {
+        for (int l = 0; l < L; l++) {
+            for (int ii = 0; ii < levelNumTypes[l]; ii++) {
+                typeCounts[l * V + levelTypes[l][ii]] = 0;
+            }
+            levelNumTypes[l] = 0;
+            levelNumTokens[l] = 0;
+        }
+    }
+
+    /**
+     * Log likelihood of the tokens of the document at the level of a node
+     * given the other tokens assigned to the node.
+     */
+    private double getNodeLogLikelihood(int id, int level) {
+        if (levelNumTokens[level] == 0) {
+            return 0.0;
+        }
+        DirMult content = nodes[id].getContent();
+        double llh = 0.0;
+        for (int ii = 0; ii < levelNumTypes[level]; ii++) {
+            int type = levelTypes[level][ii];
+            double prior = betas[level] * content.getCenterElement(type);
+            int count = content.getCount(type);
+            llh += LogGammaCache.logGamma(prior, count + typeCounts[level * V + type])
+                    - LogGammaCache.logGamma(prior, count);
+        }
+        llh -= LogGammaCache.logGamma(betas[level], content.getCountSum() + levelNumTokens[level])
+                - logGammaCountSums[id];
+        return llh;
+    }
+}
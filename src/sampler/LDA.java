@@ -5,6 +5,7 @@ import data.TextDataset;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import org.apache.commons.cli.BasicParser;
@@ -748,24 +749,32 @@ public class LDA extends AbstractSampler {
             logln("--- Outputing current state to " + filepath);
         }
         try {
-            StringBuilder modelStr = new StringBuilder();
-            for (int k = 0; k < K; k++) {
-                modelStr.append(k).append("\n");
-                modelStr.append(DirMult.output(topic_words[k])).append("\n");
-            }
-
-            StringBuilder assignStr = new StringBuilder();
-            for (int d = 0; d < D; d++) {
-                assignStr.append(d).append("\n");
-                assignStr.append(DirMult.output(doc_topics[d])).append("\n");
-                for (int n = 0; n < words[d].length; n++) {
-                    assignStr.append(z[d][n]).append("\t");
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int k = 0; k < K; k++) {
+                        writer.write(k + "\n");
+                        writer.write(DirMult.output(topic_words[k]) + "\n");
+                    }
                 }
-                assignStr.append("\n");
-            }
+            };
+
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int d = 0; d < D; d++) {
+                        writer.write(d + "\n");
+                        writer.write(DirMult.output(doc_topics[d]) + "\n");
+                        for (int n = 0; n < words[d].length; n++) {
+                            writer.write(z[d][n] + "\t");
+                        }
+                        writer.write("\n");
+                    }
+                }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing state to " + filepath);
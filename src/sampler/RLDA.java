@@ -1,5 +1,6 @@
 package sampler;
 
+import core.AbstractSampler;
 import java.util.ArrayList;
 import java.util.Arrays;
 import util.MiscUtils;
@@ -94,6 +95,14 @@ public class RLDA extends LDA {
         }
     }
 
+    /**
+     * Not supported, so checkpoints of this sampler are written synchronously.
+     */
+    @Override
+    protected AbstractSampler createStateSnapshot() {
+        return null;
+    }
+
     @Override
     protected void initializeAssignments() {
         if (verbose) {
@@ -6,6 +6,7 @@ import data.TextDataset;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -336,34 +337,42 @@ public class RecursiveLDA extends AbstractSampler {
         }
 
         try {
-            StringBuilder modelStr = new StringBuilder();
-            Stack<RLDA> stack = new Stack<RLDA>();
-            stack.add(rootLDA);
-            while (!stack.isEmpty()) {
-                RLDA node = stack.pop();
-                for (RLDA child : node.getChildren()) {
-                    stack.add(child);
-                }
-                modelStr.append(node.getPathString()).append("\n");
-                for (int k = 0; k < Ks[node.getLevel()]; k++) {
-                    modelStr.append(DirMult.output(node.topic_words[k])).append("\n");
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    Stack<RLDA> stack = new Stack<RLDA>();
+                    stack.add(rootLDA);
+                    while (!stack.isEmpty()) {
+                        RLDA node = stack.pop();
+                        for (RLDA child : node.getChildren()) {
+                            stack.add(child);
+                        }
+                        writer.write(node.getPathString() + "\n");
+                        for (int k = 0; k < Ks[node.getLevel()]; k++) {
+                            writer.write(DirMult.output(node.topic_words[k]) + "\n");
+                        }
+                    }
                 }
-            }
-
-            StringBuilder assignStr = new StringBuilder();
-            for (int l = 0; l < L; l++) {
-                assignStr.append(l).append("\n");
-                for (int d = 0; d < D; d++) {
-                    assignStr.append(d).append("\n");
-                    for (int n = 0; n < words[d].length; n++) {
-                        assignStr.append(zs[l][d][n]).append("\t");
+            };
+
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int l = 0; l < L; l++) {
+                        writer.write(l + "\n");
+                        for (int d = 0; d < D; d++) {
+                            writer.write(d + "\n");
+                            for (int n = 0; n < words[d].length; n++) {
+                                writer.write(zs[l][d][n] + "\t");
+                            }
+                            writer.write("\n");
+                        }
                     }
-                    assignStr.append("\n");
                 }
-            }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
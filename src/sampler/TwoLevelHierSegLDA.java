@@ -5,6 +5,7 @@ import data.ResponseTextDataset;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
@@ -420,38 +421,46 @@ public class TwoLevelHierSegLDA extends AbstractSampler {
         }
 
         try {
-            StringBuilder modelStr = new StringBuilder();
-            for (int k = 0; k < K; k++) {
-                modelStr.append(k).append("\n");
-                modelStr.append(DirMult.output(first_topic_words[k])).append("\n");
-                for (int l = 0; l < L; l++) {
-                    modelStr.append(l).append("\n");
-                    modelStr.append(DirMult.output(second_topic_words[k][l])).append("\n");
-                }
-            }
-
-            StringBuilder assignStr = new StringBuilder();
-            for (int d = 0; d < D; d++) {
-                assignStr.append(d).append("\n");
-                assignStr.append(DirMult.output(doc_first_topics[d])).append("\n");
-                for (int k = 0; k < K; k++) {
-                    assignStr.append(k).append("\n");
-                    assignStr.append(DirMult.output(doc_second_topics[d][k])).append("\n");
-                }
-
-                for (int n = 0; n < words[d].length; n++) {
-                    assignStr.append(z[d][n]).append("\t");
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int k = 0; k < K; k++) {
+                        writer.write(k + "\n");
+                        writer.write(DirMult.output(first_topic_words[k]) + "\n");
+                        for (int l = 0; l < L; l++) {
+                            writer.write(l + "\n");
+                            writer.write(DirMult.output(second_topic_words[k][l]) + "\n");
+                        }
+                    }
                 }
-                assignStr.append("\n");
-
-                for (int n = 0; n < words[d].length; n++) {
-                    assignStr.append(y[d][n]).append("\t");
+            };
+
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int d = 0; d < D; d++) {
+                        writer.write(d + "\n");
+                        writer.write(DirMult.output(doc_first_topics[d]) + "\n");
+                        for (int k = 0; k < K; k++) {
+                            writer.write(k + "\n");
+                            writer.write(DirMult.output(doc_second_topics[d][k]) + "\n");
+                        }
+
+                        for (int n = 0; n < words[d].length; n++) {
+                            writer.write(z[d][n] + "\t");
+                        }
+                        writer.write("\n");
+
+                        for (int n = 0; n < words[d].length; n++) {
+                            writer.write(y[d][n] + "\t");
+                        }
+                        writer.write("\n");
+                    }
                 }
-                assignStr.append("\n");
-            }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exeption while outputing model to " + filepath);
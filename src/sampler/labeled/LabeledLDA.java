@@ -8,14 +8,20 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
 import sampling.likelihood.DirMult;
+import sampling.util.ADLDASweep;
+import sampling.util.MultiStatePredictor;
 import sampling.util.SparseCount;
+import sampling.util.TopicWordDelta;
 import util.CLIUtils;
 import util.IOUtils;
 import util.MiscUtils;
 import util.PredictionUtils;
+import util.RandomUtils;
 import util.SamplerUtils;
 import util.SparseVector;
 import util.StatUtils;
@@ -226,8 +232,9 @@ import util.evaluation.MimnoTopicCoherence;
 
         labelWords = new DirMult[L];
         for (int ll = 0; ll < L; ll++) {
-            labelWords[ll] = new DirMult(V, hyperparams.get(BETA) * V, 1.0 / V);
+            labelWords[ll] = DirMult.create(topicWordRep, V, hyperparams.get(BETA) * V, 1.0 / V);
         }
+        labelWords = toWordMajor(labelWords);
     }
 
     private void initializeDataStructure() {
@@ -237,7 +244,7 @@ import util.evaluation.MimnoTopicCoherence;
 
         docLabels = new DirMult[D];
         for (int d = 0; d < D; d++) {
-            docLabels[d] = new DirMult(L, hyperparams.get(ALPHA) * L, 1.0 / L);
+            docLabels[d] = DirMult.create(docTopicRep, L, hyperparams.get(ALPHA) * L, 1.0 / L);
         }
 
         z = new int[D][];
@@ -293,7 +300,11 @@ import util.evaluation.MimnoTopicCoherence;
         for (iter = 0; iter < MAX_ITER; iter++) {
             numTokensChange = 0;
 
-            sampleZs(REMOVE, ADD, REMOVE, ADD);
+            if (numThreads > 1) {
+                sampleZsParallel();
+            } else {
+                sampleZs(REMOVE, ADD, REMOVE, ADD);
+            }
 
             if (debug) {
                 validate("iter " + iter);
@@ -306,6 +317,9 @@ import util.evaluation.MimnoTopicCoherence;
                         + "\t tokens changed: " + numTokensChange
                         + " (" + MiscUtils.formatDouble((double) numTokensChange / numTokens) + ")"
                         + "\n" + getCurrentState();
+                if (numThreads > 1) {
+                    str += "\n" + getParallelSweep(L).getThroughputString();
+                }
                 if (iter < BURN_IN) {
                     logln("--- Burning in. " + str + "\n");
                 } else {
@@ -351,7 +365,10 @@ import util.evaluation.MimnoTopicCoherence;
      */
     public void sampleZs(boolean removeFromModel, boolean addToModel,
             boolean removeFromData, boolean addToData) {
-        double totalBeta = V * hyperparams.get(BETA);
+        cacheHyperparameters();
+        double alpha = hyperparamValues[ALPHA];
+        double beta = hyperparamValues[BETA];
+        double totalBeta = V * beta;
         for (int d = 0; d < D; d++) {
             for (int n = 0; n < words[d].length; n++) {
                 if (removeFromModel) {
@@ -363,22 +380,33 @@ import util.evaluation.MimnoTopicCoherence;
 
                 int sampledZ;
                 if (labels != null && labels[d].length > 0) {
-                    double[] probs = new double[labels[d].length];
-                    for (int ii = 0; ii < labels[d].length; ii++) {
+                    int numLabels = labels[d].length;
+                    double[] probs = getScratchBuffer(numLabels);
+                    for (int ii = 0; ii < numLabels; ii++) {
                         int k = labels[d][ii];
-                        probs[ii] = (docLabels[d].getCount(k) + hyperparams.get(ALPHA))
-                                * (labelWords[k].getCount(words[d][n]) + hyperparams.get(BETA))
+                        probs[ii] = (docLabels[d].getCount(k) + alpha)
+                                * (labelWords[k].getCount(words[d][n]) + beta)
                                 / (labelWords[k].getCountSum() + totalBeta);
                     }
-                    sampledZ = labels[d][SamplerUtils.scaleSample(probs)];
+                    sampledZ = labels[d][SamplerUtils.scaleSample(probs, numLabels)];
+                } else if (wordTopicMatrix != null) {
+                    int[] wordCounts = wordTopicMatrix.getWordCounts(words[d][n]);
+                    int[] topicTotals = wordTopicMatrix.getTopicTotals();
+                    double[] probs = getScratchBuffer(L);
+                    for (int ll = 0; ll < L; ll++) {
+                        probs[ll] = (docLabels[d].getCount(ll) + alpha)
+                                * (wordCounts[ll] + beta)
+                                / (topicTotals[ll] + totalBeta);
+                    }
+                    sampledZ = SamplerUtils.scaleSample(probs, L);
                 } else { // for documents without labels and for test documents
-                    double[] probs = new double[L];
+                    double[] probs = getScratchBuffer(L);
                     for (int ll = 0; ll < L; ll++) {
-                        probs[ll] = (docLabels[d].getCount(ll) + hyperparams.get(ALPHA))
-                                * (labelWords[ll].getCount(words[d][n]) + hyperparams.get(BETA))
+                        probs[ll] = (docLabels[d].getCount(ll) + alpha)
+                                * (labelWords[ll].getCount(words[d][n]) + beta)
                                 / (labelWords[ll].getCountSum() + totalBeta);
                     }
-                    sampledZ = SamplerUtils.scaleSample(probs);
+                    sampledZ = SamplerUtils.scaleSample(probs, L);
                 }
 
                 if (sampledZ != z[d][n]) {
@@ -396,6 +424,63 @@ import util.evaluation.MimnoTopicCoherence;
         }
     }
 
+    /**
+     * Sample topic assignments for all tokens with multiple threads using
+     * approximate distributed Gibbs sampling (AD-LDA). Each thread samples a
+     * shard of documents against its own copy of the label-word counts, which
+     * are merged every sync interval.
+     */
+    public void sampleZsParallel() {
+        final double totalBeta = V * hyperparams.get(BETA);
+        final double alpha = hyperparams.get(ALPHA);
+        final double beta = hyperparams.get(BETA);
+        numTokensChange += getParallelSweep(L).sweep(D, labelWords,
+                new ADLDASweep.DocumentSampler() {
+                    @Override
+                    public int getNumTokens(int d) {
+                        return words[d].length;
+                    }
+
+                    @Override
+                    public int sampleDocument(int d, TopicWordDelta delta,
+                            Random random, double[] probs) {
+                        int numChanged = 0;
+                        boolean labeled = labels != null && labels[d].length > 0;
+                        for (int n = 0; n < words[d].length; n++) {
+                            delta.decrement(z[d][n], words[d][n]);
+                            docLabels[d].decrement(z[d][n]);
+
+                            int sampledZ;
+                            if (labeled) {
+                                for (int ii = 0; ii < labels[d].length; ii++) {
+                                    int k = labels[d][ii];
+                                    probs[ii] = (docLabels[d].getCount(k) + alpha)
+                                            * (delta.getCount(k, words[d][n]) + beta)
+                                            / (delta.getCountSum(k) + totalBeta);
+                                }
+                                sampledZ = labels[d][SamplerUtils.scaleSample(probs,
+                                        labels[d].length, random)];
+                            } else {
+                                for (int ll = 0; ll < L; ll++) {
+                                    probs[ll] = (docLabels[d].getCount(ll) + alpha)
+                                            * (delta.getCount(ll, words[d][n]) + beta)
+                                            / (delta.getCountSum(ll) + totalBeta);
+                                }
+                                sampledZ = SamplerUtils.scaleSample(probs, L, random);
+                            }
+
+                            if (sampledZ != z[d][n]) {
+                                numChanged++;
+                            }
+                            z[d][n] = sampledZ;
+                            delta.increment(z[d][n], words[d][n]);
+                            docLabels[d].increment(z[d][n]);
+                        }
+                        return numChanged;
+                    }
+                });
+    }
+
     public double[] predictNewDocument(int[] newDoc) throws Exception {
         // initialize assignments
         DirMult docTopic = new DirMult(L, hyperparams.get(ALPHA) * L, 1.0 / L);
@@ -536,34 +621,40 @@ import util.evaluation.MimnoTopicCoherence;
 
         try {
             // model
-            String modelStr = null;
+            StateEntryWriter modelWriter = null;
             if (outputModel) {
-                StringBuilder modelStrBuilder = new StringBuilder();
-                for (int k = 0; k < L; k++) {
-                    modelStrBuilder.append(k).append("\n");
-                    modelStrBuilder.append(DirMult.output(labelWords[k])).append("\n");
-                }
-                modelStr = modelStrBuilder.toString();
+                modelWriter = new StateEntryWriter() {
+                    @Override
+                    public void write(BufferedWriter writer) throws IOException {
+                        for (int k = 0; k < L; k++) {
+                            writer.write(k + "\n");
+                            writer.write(DirMult.output(labelWords[k]) + "\n");
+                        }
+                    }
+                };
             }
 
             // data
-            String assignStr = null;
+            StateEntryWriter assignWriter = null;
             if (outputData) {
-                StringBuilder assignStrBuilder = new StringBuilder();
-                for (int d = 0; d < D; d++) {
-                    assignStrBuilder.append(d).append("\n");
-                    assignStrBuilder.append(DirMult.output(docLabels[d])).append("\n");
-
-                    for (int n = 0; n < words[d].length; n++) {
-                        assignStrBuilder.append(z[d][n]).append("\t");
+                assignWriter = new StateEntryWriter() {
+                    @Override
+                    public void write(BufferedWriter writer) throws IOException {
+                        for (int d = 0; d < D; d++) {
+                            writer.write(d + "\n");
+                            writer.write(DirMult.output(docLabels[d]) + "\n");
+
+                            for (int n = 0; n < words[d].length; n++) {
+                                writer.write(z[d][n] + "\t");
+                            }
+                            writer.write("\n");
+                        }
                     }
-                    assignStrBuilder.append("\n");
-                }
-                assignStr = assignStrBuilder.toString();
+                };
             }
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr, assignStr);
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing state to "
@@ -633,9 +724,10 @@ import util.evaluation.MimnoTopicCoherence;
                 if (topicIdx != k) {
                     throw new RuntimeException("Indices mismatch when loading model");
                 }
-                labelWords[k] = DirMult.input(reader.readLine());
+                labelWords[k] = DirMult.input(reader.readLine(), topicWordRep);
             }
             reader.close();
+            labelWords = toWordMajor(labelWords);
             validateModel("Loaded from " + zipFilepath);
         } catch (Exception e) {
             e.printStackTrace();
@@ -665,7 +757,7 @@ import util.evaluation.MimnoTopicCoherence;
                 if (docIdx != d) {
                     throw new RuntimeException("Indices mismatch when loading assignments");
                 }
-                docLabels[d] = DirMult.input(reader.readLine());
+                docLabels[d] = DirMult.input(reader.readLine(), docTopicRep);
 
                 String[] sline = reader.readLine().split("\t");
                 for (int n = 0; n < words[d].length; n++) {
@@ -1045,29 +1137,32 @@ import util.evaluation.MimnoTopicCoherence;
 
     public void sampleZ(int d, int i, int n,
             boolean removeFromData, boolean addToData) {
-        double totalBeta = V * hyperparams.get(BETA);
+        double alpha = hyperparamValues[ALPHA];
+        double beta = hyperparamValues[BETA];
+        double totalBeta = V * beta;
         if (removeFromData) {
             docLabels[d].decrement(z[d][i]);
         }
 
         int sampledZ;
         if (labels != null && labels[d].length > 0) {
-            double[] probs = new double[labels[d].length];
-            for (int ii = 0; ii < labels[d].length; ii++) {
+            int numLabels = labels[d].length;
+            double[] probs = getScratchBuffer(numLabels);
+            for (int ii = 0; ii < numLabels; ii++) {
                 int k = labels[d][ii];
-                probs[ii] = (docLabels[d].getCount(k) + hyperparams.get(ALPHA) * labels[d].length / L)
-                        * (labelWords[k].getCount(words[d][n]) + hyperparams.get(BETA))
+                probs[ii] = (docLabels[d].getCount(k) + alpha * numLabels / L)
+                        * (labelWords[k].getCount(words[d][n]) + beta)
                         / (labelWords[k].getCountSum() + totalBeta);
             }
-            sampledZ = labels[d][SamplerUtils.scaleSample(probs)];
+            sampledZ = labels[d][SamplerUtils.scaleSample(probs, numLabels)];
         } else { // for documents without labels and for test documents
-            double[] probs = new double[L];
+            double[] probs = getScratchBuffer(L);
             for (int ll = 0; ll < L; ll++) {
-                probs[ll] = (docLabels[d].getCount(ll) + hyperparams.get(ALPHA))
-                        * (labelWords[ll].getCount(words[d][n]) + hyperparams.get(BETA))
+                probs[ll] = (docLabels[d].getCount(ll) + alpha)
+                        * (labelWords[ll].getCount(words[d][n]) + beta)
                         / (labelWords[ll].getCountSum() + totalBeta);
             }
-            sampledZ = SamplerUtils.scaleSample(probs);
+            sampledZ = SamplerUtils.scaleSample(probs, L);
         }
 
         if (sampledZ != z[d][i]) {
@@ -1133,7 +1228,7 @@ import util.evaluation.MimnoTopicCoherence;
         docLabels = new DirMult[D];
         z = new int[D][];
         for (int d = 0; d < D; d++) {
-            docLabels[d] = new DirMult(L, hyperparams.get(ALPHA) * L, 1.0 / L);
+            docLabels[d] = DirMult.create(docTopicRep, L, hyperparams.get(ALPHA) * L, 1.0 / L);
             z[d] = new int[trainIndices[d].size()];
         }
 
@@ -1148,6 +1243,7 @@ import util.evaluation.MimnoTopicCoherence;
                         + "\n" + getSamplerFolderPath());
             }
 
+            cacheHyperparameters();
             for (int d = 0; d < D; d++) {
                 for (int ii = 0; ii < trainIndices[d].size(); ii++) {
                     int n = trainIndices[d].get(ii);
@@ -1232,6 +1328,26 @@ import util.evaluation.MimnoTopicCoherence;
         // input model
         inputModel(stateFile);
 
+        // sample
+        double[][] predictedScores = sampleNewDocuments(newWords);
+
+        // output result during test time
+        if (verbose) {
+            logln("--- Outputing result to " + outputResultFile);
+        }
+        PredictionUtils.outputSingleModelClassifications(
+                new File(outputResultFile), predictedScores);
+    }
+
+    /**
+     * Perform sampling on test documents using the current model, which is
+     * not changed.
+     *
+     * @param newWords Test documents
+     * @return The predicted score of each label for each test document,
+     * averaged over test samples
+     */
+    protected double[][] sampleNewDocuments(int[][] newWords) {
         // test data
         test(newWords);
 
@@ -1280,17 +1396,55 @@ import util.evaluation.MimnoTopicCoherence;
             }
         }
 
-        // output result during test time
-        if (verbose) {
-            logln("--- Outputing result to " + outputResultFile);
-        }
         for (int dd = 0; dd < D; dd++) {
             for (int ll = 0; ll < L; ll++) {
                 predictedScores[dd][ll] /= count;
             }
         }
-        PredictionUtils.outputSingleModelClassifications(
-                new File(outputResultFile), predictedScores);
+        return predictedScores;
+    }
+
+    /**
+     * Create a sampler with the same configuration as this sampler, which is
+     * used to load a learned model or to sample test documents.
+     */
+    protected LabeledLDA createTestSampler() {
+        LabeledLDA testSampler = new LabeledLDA();
+        testSampler.setVerbose(false);
+        testSampler.setDebug(false);
+        testSampler.setLog(false);
+        testSampler.setReport(false);
+        testSampler.configure(this);
+        testSampler.setTestConfigurations(getBurnIn(), getMaxIters(), getSampleLag());
+        return testSampler;
+    }
+
+    /**
+     * Return a predictor for test documents using the models learned by this
+     * sampler. Test documents are sampled by separate samplers sharing the
+     * label-word distributions of a loaded model, which are not changed during
+     * test time. The prediction for a document is the score of each label.
+     *
+     * @param newWords Test documents
+     */
+    public MultiStatePredictor.Predictor<LabeledLDA> getTestPredictor(final int[][] newWords) {
+        return new MultiStatePredictor.Predictor<LabeledLDA>() {
+            @Override
+            public LabeledLDA loadModel(String stateFile) {
+                LabeledLDA model = createTestSampler();
+                model.inputModel(stateFile);
+                return model;
+            }
+
+            @Override
+            public double[][] predict(LabeledLDA model, int start, int end) {
+                LabeledLDA testSampler = createTestSampler();
+                testSampler.labelWords = model.labelWords;
+                testSampler.wordTopicMatrix = model.wordTopicMatrix;
+                return testSampler.sampleNewDocuments(
+                        Arrays.copyOfRange(newWords, start, end));
+            }
+        };
     }
 
     public static void parallelPerplexity(int[][] newWords,
@@ -1344,7 +1498,19 @@ import util.evaluation.MimnoTopicCoherence;
         }
     }
 
-    public static void parallelTest(int[][] newWords, File iterPredFolder, LabeledLDA sampler) {
+    /**
+     * Run Gibbs sampling on test data using multiple models learned which are
+     * stored in the ReportFolder. The models are loaded once and shared by
+     * parallel tasks, each sampling a chunk of test documents (see
+     * {@link MultiStatePredictor}). The predictions of each model are output to
+     * the given folder and averaged in memory.
+     *
+     * @param newWords Words of new documents
+     * @param iterPredFolder Output folder
+     * @param sampler The configured sampler
+     * @return The predicted label scores averaged over all models
+     */
+    public static double[][] parallelTest(int[][] newWords, File iterPredFolder, LabeledLDA sampler) {
         File reportFolder = new File(sampler.getSamplerFolderPath(), ReportFolder);
         if (!reportFolder.exists()) {
             throw new RuntimeException("Report folder not found. " + reportFolder);
@@ -1352,25 +1518,30 @@ import util.evaluation.MimnoTopicCoherence;
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPredFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<String> stateFiles = new ArrayList<String>();
+            ArrayList<File> partialResultFiles = new ArrayList<File>();
             for (String filename : filenames) {
                 if (!filename.contains("zip")) {
                     continue;
                 }
-
-                File stateFile = new File(reportFolder, filename);
-                File partialResultFile = new File(iterPredFolder,
-                        IOUtils.removeExtension(filename) + ".txt");
-                LabeledLDATestRunner runner = new LabeledLDATestRunner(sampler,
-                        newWords, stateFile.getAbsolutePath(),
-                        partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                stateFiles.add(new File(reportFolder, filename).getAbsolutePath());
+                partialResultFiles.add(new File(iterPredFolder,
+                        IOUtils.removeExtension(filename) + ".txt"));
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
-            runThreads(threads);
-
+            // use all processors unless the number of threads is set
+            int numThreads = sampler.getNumThreads() > 1 ? sampler.getNumThreads()
+                    : Runtime.getRuntime().availableProcessors();
+            MultiStatePredictor<LabeledLDA> predictor = new MultiStatePredictor<LabeledLDA>(
+                    sampler.getTestPredictor(newWords), numThreads);
+            predictor.predict(stateFiles, newWords.length);
+
+            for (int ss = 0; ss < predictor.getNumStates(); ss++) {
+                PredictionUtils.outputSingleModelClassifications(
+                        partialResultFiles.get(ss),
+                        predictor.getPredictions(ss));
+            }
+            return predictor.getAveragePredictions();
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while sampling during parallel test.");
@@ -1410,6 +1581,10 @@ import util.evaluation.MimnoTopicCoherence;
             addOption("beta", "Hyperparameter of the symmetric Dirichlet prior "
                     + "for word distributions");
 
+            // parallel sampling
+            addParallelOptions();
+            addRepresentationOptions();
+
             options.addOption("paramOpt", false, "Whether hyperparameter "
                     + "optimization using slice sampling is performed");
             options.addOption("v", false, "verbose");
@@ -1476,6 +1651,13 @@ import util.evaluation.MimnoTopicCoherence;
         sampler.setDebug(debug);
         sampler.setWordVocab(data.getWordVocab());
         sampler.setLabelVocab(data.getLabelVocab());
+        sampler.setNumThreads(CLIUtils.getIntegerArgument(cmd, "threads", 1),
+                CLIUtils.getIntegerArgument(cmd, "sync-interval", 0));
+        RandomUtils.setSeed(CLIUtils.getIntegerArgument(cmd, "seed", (int) SamplerUtils.RAND_SEED));
+        sampler.setRepresentations(
+                getRepresentation(CLIUtils.getStringArgument(cmd, "doc-topic-rep", "sparse")),
+                getRepresentation(CLIUtils.getStringArgument(cmd, "topic-word-rep", "sparse")));
+        sampler.setWordMajor(cmd.hasOption("word-major"));
 
         sampler.configure(outputFolder,
                 V, K, alpha, beta, initState, paramOpt,
@@ -1540,40 +1722,3 @@ class LabeledLDAPerplexityRunner implements Runnable {
         }
     }
 }
-
-class LabeledLDATestRunner implements Runnable {
-
-    LabeledLDA sampler;
-    int[][] newWords;
-    String stateFile;
-    String outputFile;
-
-    public LabeledLDATestRunner(LabeledLDA sampler,
-            int[][] newWords,
-            String stateFile,
-            String outputFile) {
-        this.sampler = sampler;
-        this.newWords = newWords;
-        this.stateFile = stateFile;
-        this.outputFile = outputFile;
-    }
-
-    @Override
-    public void run() {
-        LabeledLDA testSampler = new LabeledLDA();
-        testSampler.setVerbose(true);
-        testSampler.setDebug(false);
-        testSampler.setLog(false);
-        testSampler.setReport(false);
-        testSampler.configure(sampler);
-        testSampler.setTestConfigurations(sampler.getBurnIn(),
-                sampler.getMaxIters(), sampler.getSampleLag());
-
-        try {
-            testSampler.sampleNewDocuments(stateFile, newWords, outputFile);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException();
-        }
-    }
-}
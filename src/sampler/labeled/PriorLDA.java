@@ -4,8 +4,12 @@ import core.AbstractSampler;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Random;
 import sampling.likelihood.DirMult;
+import sampling.util.ADLDASweep;
+import sampling.util.TopicWordDelta;
 import util.IOUtils;
 import util.MiscUtils;
 import util.SamplerUtils;
@@ -165,8 +169,9 @@ public class PriorLDA extends AbstractSampler {
     protected void initializeModelStructure() {
         this.labelWords = new DirMult[K];
         for (int kk = 0; kk < K; kk++) {
-            this.labelWords[kk] = new DirMult(V, hyperparams.get(BETA) * V, 1.0 / V);
+            this.labelWords[kk] = DirMult.create(topicWordRep, V, hyperparams.get(BETA) * V, 1.0 / V);
         }
+        this.labelWords = toWordMajor(this.labelWords);
     }
 
     protected void initializeDataStructure() {
@@ -176,7 +181,7 @@ public class PriorLDA extends AbstractSampler {
 
         docLabels = new DirMult[D];
         for (int d = 0; d < D; d++) {
-            docLabels[d] = new DirMult(K, hyperparams.get(ALPHA) * K, 1.0 / K);
+            docLabels[d] = DirMult.create(docTopicRep, K, hyperparams.get(ALPHA) * K, 1.0 / K);
         }
 
         z = new int[D][];
@@ -221,13 +226,21 @@ public class PriorLDA extends AbstractSampler {
         for (iter = 0; iter < MAX_ITER; iter++) {
             numTokensChange = 0;
 
-            long eTime = sampleZs(REMOVE, ADD, REMOVE, ADD);
+            long eTime;
+            if (numThreads > 1) {
+                eTime = sampleZsParallel();
+            } else {
+                eTime = sampleZs(REMOVE, ADD, REMOVE, ADD);
+            }
 
             if (debug) {
                 validate("Iter " + iter);
             }
 
             if (verbose && iter % REP_INTERVAL == 0) {
+                if (numThreads > 1) {
+                    logln("--- " + getParallelSweep(K).getThroughputString());
+                }
                 double loglikelihood = this.getLogLikelihood();
                 logLikelihoods.add(loglikelihood);
                 double changeRatio = (double) numTokensChange / numTokens;
@@ -270,7 +283,10 @@ public class PriorLDA extends AbstractSampler {
     protected long sampleZs(boolean removeFromModel, boolean addToModel,
             boolean removeFromData, boolean addToData) {
         long sTime = System.currentTimeMillis();
-        double totalBeta = V * hyperparams.get(BETA);
+        cacheHyperparameters();
+        double alpha = hyperparamValues[ALPHA];
+        double beta = hyperparamValues[BETA];
+        double totalBeta = V * beta;
         for (int d = 0; d < D; d++) {
             for (int n = 0; n < words[d].length; n++) {
                 if (removeFromData) {
@@ -280,13 +296,23 @@ public class PriorLDA extends AbstractSampler {
                     labelWords[z[d][n]].decrement(words[d][n]);
                 }
 
-                double[] probs = new double[K];
-                for (int k = 0; k < K; k++) {
-                    probs[k] = (docLabels[d].getCount(k) + hyperparams.get(ALPHA))
-                            * (labelWords[k].getCount(words[d][n]) + hyperparams.get(BETA))
-                            / (labelWords[k].getCountSum() + totalBeta);
+                double[] probs = getScratchBuffer(K);
+                if (wordTopicMatrix != null) {
+                    int[] wordCounts = wordTopicMatrix.getWordCounts(words[d][n]);
+                    int[] topicTotals = wordTopicMatrix.getTopicTotals();
+                    for (int k = 0; k < K; k++) {
+                        probs[k] = (docLabels[d].getCount(k) + alpha)
+                                * (wordCounts[k] + beta)
+                                / (topicTotals[k] + totalBeta);
+                    }
+                } else {
+                    for (int k = 0; k < K; k++) {
+                        probs[k] = (docLabels[d].getCount(k) + alpha)
+                                * (labelWords[k].getCount(words[d][n]) + beta)
+                                / (labelWords[k].getCountSum() + totalBeta);
+                    }
                 }
-                int sampledZ = SamplerUtils.scaleSample(probs);
+                int sampledZ = SamplerUtils.scaleSample(probs, K);
                 if (sampledZ != z[d][n]) {
                     numTokensChange++;
                 }
@@ -303,6 +329,50 @@ public class PriorLDA extends AbstractSampler {
         return System.currentTimeMillis() - sTime;
     }
 
+    /**
+     * Sample the topic assignments for all tokens with multiple threads using
+     * approximate distributed Gibbs sampling (AD-LDA).
+     *
+     * @return Elapsed time
+     */
+    protected long sampleZsParallel() {
+        long sTime = System.currentTimeMillis();
+        final double totalBeta = V * hyperparams.get(BETA);
+        final double alpha = hyperparams.get(ALPHA);
+        final double beta = hyperparams.get(BETA);
+        numTokensChange += getParallelSweep(K).sweep(D, labelWords,
+                new ADLDASweep.DocumentSampler() {
+                    @Override
+                    public int getNumTokens(int d) {
+                        return words[d].length;
+                    }
+
+                    @Override
+                    public int sampleDocument(int d, TopicWordDelta delta,
+                            Random random, double[] probs) {
+                        int numChanged = 0;
+                        for (int n = 0; n < words[d].length; n++) {
+                            docLabels[d].decrement(z[d][n]);
+                            delta.decrement(z[d][n], words[d][n]);
+                            for (int k = 0; k < K; k++) {
+                                probs[k] = (docLabels[d].getCount(k) + alpha)
+                                        * (delta.getCount(k, words[d][n]) + beta)
+                                        / (delta.getCountSum(k) + totalBeta);
+                            }
+                            int sampledZ = SamplerUtils.scaleSample(probs, K, random);
+                            if (sampledZ != z[d][n]) {
+                                numChanged++;
+                            }
+                            z[d][n] = sampledZ;
+                            docLabels[d].increment(z[d][n]);
+                            delta.increment(z[d][n], words[d][n]);
+                        }
+                        return numChanged;
+                    }
+                });
+        return System.currentTimeMillis() - sTime;
+    }
+
     @Override
     public String getCurrentState() {
         return this.getSamplerFolderPath();
@@ -381,24 +451,32 @@ public class PriorLDA extends AbstractSampler {
             logln("--- Outputing current state to " + filepath);
         }
         try {
-            StringBuilder modelStr = new StringBuilder();
-            for (int k = 0; k < K; k++) {
-                modelStr.append(k).append("\n");
-                modelStr.append(DirMult.output(labelWords[k])).append("\n");
-            }
-
-            StringBuilder assignStr = new StringBuilder();
-            for (int d = 0; d < D; d++) {
-                assignStr.append(d).append("\n");
-                assignStr.append(DirMult.output(docLabels[d])).append("\n");
-                for (int n = 0; n < words[d].length; n++) {
-                    assignStr.append(z[d][n]).append("\t");
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int k = 0; k < K; k++) {
+                        writer.write(k + "\n");
+                        writer.write(DirMult.output(labelWords[k]) + "\n");
+                    }
                 }
-                assignStr.append("\n");
-            }
+            };
+
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int d = 0; d < D; d++) {
+                        writer.write(d + "\n");
+                        writer.write(DirMult.output(docLabels[d]) + "\n");
+                        for (int n = 0; n < words[d].length; n++) {
+                            writer.write(z[d][n] + "\t");
+                        }
+                        writer.write("\n");
+                    }
+                }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing state to " + filepath);
@@ -439,9 +517,10 @@ public class PriorLDA extends AbstractSampler {
                 if (topicIdx != k) {
                     throw new RuntimeException("Indices mismatch when loading model");
                 }
-                labelWords[k] = DirMult.input(reader.readLine());
+                labelWords[k] = DirMult.input(reader.readLine(), topicWordRep);
             }
             reader.close();
+            labelWords = toWordMajor(labelWords);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while inputing model from "
@@ -465,7 +544,7 @@ public class PriorLDA extends AbstractSampler {
                 if (docIdx != d) {
                     throw new RuntimeException("Indices mismatch when loading assignments");
                 }
-                docLabels[d] = DirMult.input(reader.readLine());
+                docLabels[d] = DirMult.input(reader.readLine(), docTopicRep);
 
                 String[] sline = reader.readLine().split("\t");
                 for (int n = 0; n < words[d].length; n++) {
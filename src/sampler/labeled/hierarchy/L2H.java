@@ -1,7 +1,5 @@
 package sampler.labeled.hierarchy;
 
-import cc.mallet.types.Dirichlet;
-import cc.mallet.util.Randoms;
 import core.AbstractSampler;
 import data.LabelTextDataset;
 import java.io.BufferedReader;
@@ -22,6 +20,7 @@ import org.apache.commons.cli.Options;
 import sampler.labeled.LabeledLDA;
 import sampling.likelihood.CascadeDirMult.PathAssumption;
 import sampling.likelihood.DirMult;
+import sampling.util.MultiStatePredictor;
 import sampling.util.SparseCount;
 import sampling.util.TreeNode;
 import taxonomy.AbstractTaxonomyBuilder;
@@ -31,6 +30,7 @@ import util.CLIUtils;
 import util.IOUtils;
 import util.MiscUtils;
 import util.PredictionUtils;
+import util.RandomUtils;
 import util.RankingItem;
 import util.SamplerUtils;
 import util.SparseVector;
@@ -42,7 +42,6 @@ import util.StatUtils;
  */
 public class L2H extends AbstractSampler {
 
-    public static Randoms randoms = new Randoms(1);
     public static final int INSIDE = 0;
     public static final int OUTSIDE = 1;
     // hyperparameter indices
@@ -1271,59 +1270,65 @@ public class L2H extends AbstractSampler {
         }
         try {
             // model
-            String modelStr = null;
+            StateEntryWriter modelWriter = null;
             if (outputModel) {
-                StringBuilder mStr = new StringBuilder();
-                for (int k = 0; k < nodes.length; k++) {
-                    Node node = nodes[k];
-                    mStr.append(k)
-                            .append("\t").append(node.getIndex())
-                            .append("\t").append(node.getLevel())
-                            .append("\n");
-                    for (int v = 0; v < node.topic.length; v++) {
-                        mStr.append(node.topic[v]).append("\t");
-                    }
-                    mStr.append("\n");
-                }
+                modelWriter = new StateEntryWriter() {
+                    @Override
+                    public void write(BufferedWriter writer) throws IOException {
+                        for (int k = 0; k < nodes.length; k++) {
+                            Node node = nodes[k];
+                            writer.write(k
+                                    + "\t" + node.getIndex()
+                                    + "\t" + node.getLevel()
+                                    + "\n");
+                            for (int v = 0; v < node.topic.length; v++) {
+                                writer.write(node.topic[v] + "\t");
+                            }
+                            writer.write("\n");
+                        }
 
-                for (int k = 0; k < nodes.length; k++) {
-                    mStr.append(k);
-                    if (nodes[k].getParent() == null) {
-                        mStr.append("\t-1\n");
-                    } else {
-                        mStr.append("\t").append(nodes[k].getParent().id).append("\n");
-                    }
-                }
+                        for (int k = 0; k < nodes.length; k++) {
+                            writer.write(Integer.toString(k));
+                            if (nodes[k].getParent() == null) {
+                                writer.write("\t-1\n");
+                            } else {
+                                writer.write("\t" + nodes[k].getParent().id + "\n");
+                            }
+                        }
 
-                for (int k = 0; k < nodes.length; k++) {
-                    mStr.append(k).append("\t")
-                            .append(SparseVector.output(inWeights[k])).append("\n");
-                }
-                modelStr = mStr.toString();
+                        for (int k = 0; k < nodes.length; k++) {
+                            writer.write(k + "\t"
+                                    + SparseVector.output(inWeights[k]) + "\n");
+                        }
+                    }
+                };
             }
 
             // data
-            String assignStr = null;
+            StateEntryWriter assignWriter = null;
             if (outputData) {
-                StringBuilder asgnS = new StringBuilder();
-                for (int d = 0; d < D; d++) {
-                    asgnS.append(d).append("\n");
-                    asgnS.append(DirMult.output(docSwitches[d])).append("\n");
-                    asgnS.append(SparseCount.output(docLabelCounts[d])).append("\n");
-                    for (int n = 0; n < words[d].length; n++) {
-                        asgnS.append(z[d][n]).append("\t");
-                    }
-                    asgnS.append("\n");
-                    for (int n = 0; n < words[d].length; n++) {
-                        asgnS.append(x[d][n]).append("\t");
+                assignWriter = new StateEntryWriter() {
+                    @Override
+                    public void write(BufferedWriter writer) throws IOException {
+                        for (int d = 0; d < D; d++) {
+                            writer.write(d + "\n");
+                            writer.write(DirMult.output(docSwitches[d]) + "\n");
+                            writer.write(SparseCount.output(docLabelCounts[d]) + "\n");
+                            for (int n = 0; n < words[d].length; n++) {
+                                writer.write(z[d][n] + "\t");
+                            }
+                            writer.write("\n");
+                            for (int n = 0; n < words[d].length; n++) {
+                                writer.write(x[d][n] + "\t");
+                            }
+                            writer.write("\n");
+                        }
                     }
-                    asgnS.append("\n");
-                }
-                assignStr = asgnS.toString();
+                };
             }
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr, assignStr);
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing state to "
@@ -1609,7 +1614,10 @@ public class L2H extends AbstractSampler {
 
     // ******************* Start prediction ************************************
     /**
-     * Sample test documents in parallel.
+     * Sample test documents in parallel. The models stored in the ReportFolder
+     * are loaded once and shared by parallel tasks, each sampling a chunk of
+     * test documents (see {@link MultiStatePredictor}). The predictions of each
+     * model are output to the given folder and averaged in memory.
      *
      * @param newWords Test document
      * @param iterPredFolder Folder to store predictions using different models
@@ -1617,8 +1625,9 @@ public class L2H extends AbstractSampler {
      * @param initPredictions Initial predictions from TF-IDF
      * @param topK The number of nearest neighbors to be initially included in
      * the candidate set
+     * @return The predicted label scores averaged over all models
      */
-    public static void parallelTest(int[][] newWords, File iterPredFolder, L2H sampler,
+    public static double[][] parallelTest(int[][] newWords, File iterPredFolder, L2H sampler,
             double[][] initPredictions, int topK) {
         File reportFolder = new File(sampler.getSamplerFolderPath(), ReportFolder);
         if (!reportFolder.exists()) {
@@ -1627,25 +1636,33 @@ public class L2H extends AbstractSampler {
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPredFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<String> stateFiles = new ArrayList<String>();
+            ArrayList<File> partialResultFiles = new ArrayList<File>();
             for (String filename : filenames) {
                 if (!filename.contains("zip")) {
                     continue;
                 }
 
                 // folder contains multiple samples during test using a learned model
-                File stateFile = new File(reportFolder, filename);
-                File partialResultFile = new File(iterPredFolder,
-                        IOUtils.removeExtension(filename) + ".txt");
-
-                L2HTestRunner runner = new L2HTestRunner(sampler,
-                        newWords, stateFile.getAbsolutePath(),
-                        partialResultFile.getAbsolutePath(),
-                        initPredictions, topK);
-                Thread thread = new Thread(runner);
-                threads.add(thread);
-            }
-            runThreads(threads); // run MAX_NUM_PARALLEL_THREADS threads at a time
+                stateFiles.add(new File(reportFolder, filename).getAbsolutePath());
+                partialResultFiles.add(new File(iterPredFolder,
+                        IOUtils.removeExtension(filename) + ".txt"));
+            }
+
+            // use all processors unless the number of threads is set
+            int numThreads = sampler.getNumThreads() > 1 ? sampler.getNumThreads()
+                    : Runtime.getRuntime().availableProcessors();
+            MultiStatePredictor<L2H> predictor = new MultiStatePredictor<L2H>(
+                    sampler.getTestPredictor(newWords, initPredictions, topK),
+                    numThreads);
+            predictor.predict(stateFiles, newWords.length);
+
+            for (int ss = 0; ss < predictor.getNumStates(); ss++) {
+                PredictionUtils.outputSingleModelClassifications(
+                        partialResultFiles.get(ss),
+                        predictor.getPredictions(ss));
+            }
+            return predictor.getAveragePredictions();
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while sampling during parallel test.");
@@ -1677,6 +1694,31 @@ public class L2H extends AbstractSampler {
         // input model
         inputModel(stateFile);
 
+        // sample
+        double[][] predictedScores = sampleNewDocuments(newWords, initPredictions, topK);
+
+        // output result during test time
+        if (verbose) {
+            logln("--- Outputing result to " + outputResultFile);
+        }
+        PredictionUtils.outputSingleModelClassifications(new File(outputResultFile),
+                predictedScores);
+    }
+
+    /**
+     * Perform sampling on test documents using the current model, which is
+     * not changed.
+     *
+     * @param newWords Test documents
+     * @param initPredictions Initial predictions of the test documents
+     * @param topK The number of nearest neighbors to be initially included in
+     * the candidate set
+     * @return The predicted score of each label (excluding the root) for each
+     * test document, averaged over test samples
+     */
+    protected double[][] sampleNewDocuments(int[][] newWords,
+            double[][] initPredictions,
+            int topK) {
         // test data
         this.words = newWords;
         this.labels = null;
@@ -1714,9 +1756,8 @@ public class L2H extends AbstractSampler {
         double[][] predictedScores = new double[D][L - 1]; // exclude root
         int count = 0;
         for (iter = 0; iter < testMaxIter; iter++) {
-            if (iter % testSampleLag == 0) {
+            if (verbose && iter % testSampleLag == 0) {
                 logln("--- --- iter " + iter + "/" + testMaxIter
-                        + " @ thread " + Thread.currentThread().getId()
                         + "\t" + getSamplerFolderPath());
             }
             if (iter == 0) {
@@ -1736,17 +1777,60 @@ public class L2H extends AbstractSampler {
             }
         }
 
-        // output result during test time
-        if (verbose) {
-            logln("--- Outputing result to " + outputResultFile);
-        }
         for (int dd = 0; dd < D; dd++) {
             for (int ll = 0; ll < L - 1; ll++) {
                 predictedScores[dd][ll] /= count;
             }
         }
-        PredictionUtils.outputSingleModelClassifications(new File(outputResultFile),
-                predictedScores);
+        return predictedScores;
+    }
+
+    /**
+     * Create a sampler with the same configuration as this sampler, which is
+     * used to load a learned model or to sample test documents.
+     */
+    protected L2H createTestSampler() {
+        L2H testSampler = new L2H();
+        testSampler.setVerbose(false);
+        testSampler.setDebug(false);
+        testSampler.setLog(false);
+        testSampler.setReport(false);
+        testSampler.configure(this);
+        testSampler.setTestConfigurations(getBurnIn(), getMaxIters(), getSampleLag());
+        return testSampler;
+    }
+
+    /**
+     * Return a predictor for test documents using the models learned by this
+     * sampler. Test documents are sampled by separate samplers sharing the
+     * label tree of a loaded model, whose topics are only read during test
+     * time. The prediction for a document is the score of each label.
+     *
+     * @param newWords Test documents
+     * @param initPredictions Initial predictions of the test documents
+     * @param topK The number of nearest neighbors to be initially included in
+     * the candidate set
+     */
+    public MultiStatePredictor.Predictor<L2H> getTestPredictor(final int[][] newWords,
+            final double[][] initPredictions, final int topK) {
+        return new MultiStatePredictor.Predictor<L2H>() {
+            @Override
+            public L2H loadModel(String stateFile) {
+                L2H model = createTestSampler();
+                model.inputModel(stateFile);
+                return model;
+            }
+
+            @Override
+            public double[][] predict(L2H model, int start, int end) {
+                L2H testSampler = createTestSampler();
+                testSampler.nodes = model.nodes;
+                testSampler.root = model.root;
+                return testSampler.sampleNewDocuments(
+                        Arrays.copyOfRange(newWords, start, end),
+                        Arrays.copyOfRange(initPredictions, start, end), topK);
+            }
+        };
     }
 
     /**
@@ -1917,8 +2001,7 @@ public class L2H extends AbstractSampler {
                 meanVector[obs] += this.pseudoCounts.getCount(obs);
             }
 
-            Dirichlet dir = new Dirichlet(meanVector);
-            double[] ts = dir.nextDistribution();
+            double[] ts = RandomUtils.nextDirichlet(RandomUtils.get(), meanVector);
 
             if (debug) {
                 for (int v = 0; v < V; v++) {
@@ -2136,47 +2219,3 @@ public class L2H extends AbstractSampler {
         sampler.outputGlobalTree(new File(samplerFolder, TopWordFile), numTopWords);
     }
 }
-
-class L2HTestRunner implements Runnable {
-
-    L2H sampler;
-    int[][] newWords;
-    String stateFile;
-    String outputFile;
-    double[][] initPredidctions;
-    int topK;
-
-    public L2HTestRunner(L2H sampler,
-            int[][] newWords,
-            String stateFile,
-            String outputFile,
-            double[][] initPreds,
-            int topK) {
-        this.sampler = sampler;
-        this.newWords = newWords;
-        this.stateFile = stateFile;
-        this.outputFile = outputFile;
-        this.initPredidctions = initPreds;
-        this.topK = topK;
-    }
-
-    @Override
-    public void run() {
-        L2H testSampler = new L2H();
-        testSampler.setVerbose(true);
-        testSampler.setDebug(false);
-        testSampler.setLog(false);
-        testSampler.setReport(false);
-        testSampler.configure(sampler);
-        testSampler.setTestConfigurations(sampler.getBurnIn(),
-                sampler.getMaxIters(), sampler.getSampleLag());
-
-        try {
-            testSampler.sampleNewDocuments(stateFile, newWords, outputFile,
-                    initPredidctions, topK);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException();
-        }
-    }
-}
@@ -1,6 +1,5 @@
 package sampler.supervised.classification;
 
-import cc.mallet.optimize.LimitedMemoryBFGS;
 import core.AbstractSampler;
 import data.LabelTextDataset;
 import java.io.BufferedReader;
@@ -14,18 +13,21 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
-import optimization.RidgeLogisticRegressionLBFGS;
+import optimization.TopicRegressionLBFGS;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
 import sampler.LDA;
 import sampling.likelihood.DirMult;
+import sampling.util.BinaryState;
+import sampling.util.DeltaState;
+import sampling.util.SnapshotBuffers;
+import sampling.util.TopicDesignMatrix;
 import util.CLIUtils;
 import util.IOUtils;
 import util.MiscUtils;
 import util.PredictionUtils;
 import util.RankingItem;
 import util.SamplerUtils;
-import util.SparseVector;
 import util.StatUtils;
 import util.evaluation.ClassificationEvaluation;
 import util.evaluation.Measurement;
@@ -57,6 +59,8 @@ public class BinarySLDA extends AbstractSampler {
     protected DirMult[] topicWords;
     protected double[] lambdas; // label regression parameters
     private double[] docLabelDotProds;
+    private TopicDesignMatrix topicDesignMatrix; // updated with docTopics
+    private TopicRegressionLBFGS lambdaOptimizer;
     private Set<Integer> positives;
 
     public BinarySLDA() {
@@ -81,6 +85,10 @@ public class BinarySLDA extends AbstractSampler {
                 sampler.MAX_ITER,
                 sampler.LAG,
                 sampler.REP_INTERVAL);
+        this.wordMajor = sampler.wordMajor;
+        this.stateFileExt = sampler.stateFileExt;
+        this.asyncCheckpoints = sampler.asyncCheckpoints;
+        this.deltaCheckpoints = sampler.deltaCheckpoints;
     }
 
     public void configure(
@@ -259,11 +267,12 @@ public class BinarySLDA extends AbstractSampler {
         topicWords = new DirMult[K];
         for (int k = 0; k < K; k++) {
             if (topics != null) { // seeded prior
-                topicWords[k] = new DirMult(V, hyperparams.get(BETA) * V, topics[k]);
+                topicWords[k] = DirMult.create(topicWordRep, V, hyperparams.get(BETA) * V, topics[k]);
             } else { // uninformed prior
-                topicWords[k] = new DirMult(V, hyperparams.get(BETA) * V, 1.0 / V);
+                topicWords[k] = DirMult.create(topicWordRep, V, hyperparams.get(BETA) * V, 1.0 / V);
             }
         }
+        topicWords = toWordMajor(topicWords);
 
         lambdas = new double[K];
         for (int k = 0; k < K; k++) {
@@ -274,8 +283,9 @@ public class BinarySLDA extends AbstractSampler {
     private void initializeModelStructure() {
         topicWords = new DirMult[K];
         for (int k = 0; k < K; k++) {
-            topicWords[k] = new DirMult(V, hyperparams.get(BETA) * V, 1.0 / V);
+            topicWords[k] = DirMult.create(topicWordRep, V, hyperparams.get(BETA) * V, 1.0 / V);
         }
+        topicWords = toWordMajor(topicWords);
 
         lambdas = new double[K];
         for (int k = 0; k < K; k++) {
@@ -291,9 +301,16 @@ public class BinarySLDA extends AbstractSampler {
 
         docTopics = new DirMult[D];
         for (int ii = 0; ii < D; ii++) {
-            docTopics[ii] = new DirMult(K, hyperparams.get(ALPHA) * K, 1.0 / K);
+            docTopics[ii] = DirMult.create(docTopicRep, K, hyperparams.get(ALPHA) * K, 1.0 / K);
         }
 
+        int[] docLengths = new int[D];
+        for (int ii = 0; ii < D; ii++) {
+            docLengths[ii] = z[ii].length;
+        }
+        topicDesignMatrix = new TopicDesignMatrix(K, docLengths);
+        lambdaOptimizer = null;
+
         docLabelDotProds = new double[D];
     }
 
@@ -316,6 +333,7 @@ public class BinarySLDA extends AbstractSampler {
             for (int nn = 0; nn < words[ii].length; nn++) {
                 z[ii][nn] = rand.nextInt(K);
                 docTopics[ii].increment(z[ii][nn]);
+                topicDesignMatrix.increment(ii, z[ii][nn]);
                 topicWords[z[ii][nn]].increment(words[dd][nn]);
             }
         }
@@ -367,6 +385,7 @@ public class BinarySLDA extends AbstractSampler {
             for (int n = 0; n < words[ii].length; n++) {
                 z[ii][n] = ldaZ[ii][n];
                 docTopics[ii].increment(z[ii][n]);
+                topicDesignMatrix.increment(ii, z[ii][n]);
                 topicWords[z[ii][n]].increment(words[dd][n]);
             }
         }
@@ -451,12 +470,13 @@ public class BinarySLDA extends AbstractSampler {
 
             // store model
             if (report && iter >= BURN_IN && iter % LAG == 0) {
-                outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
+                outputCheckpoint(iter);
             }
         }
 
         if (report) { // output the final model
-            outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
+            outputCheckpoint(iter);
+            flushCheckpoints();
         }
 
         float ellapsedSeconds = (System.currentTimeMillis() - startTime) / (1000);
@@ -491,7 +511,10 @@ public class BinarySLDA extends AbstractSampler {
             boolean removeFromData, boolean addToData,
             boolean observe) {
         long sTime = System.currentTimeMillis();
-        double totalBeta = V * hyperparams.get(BETA);
+        cacheHyperparameters();
+        double alpha = hyperparamValues[ALPHA];
+        double beta = hyperparamValues[BETA];
+        double totalBeta = V * beta;
         for (int ii = 0; ii < D; ii++) {
             int dd = docIndices.get(ii);
             for (int nn = 0; nn < words[dd].length; nn++) {
@@ -500,21 +523,37 @@ public class BinarySLDA extends AbstractSampler {
                 }
                 if (removeFromData) {
                     docTopics[ii].decrement(z[ii][nn]);
+                    topicDesignMatrix.decrement(ii, z[ii][nn]);
                     docLabelDotProds[ii] -= lambdas[z[ii][nn]] / words[dd].length;
                 }
 
-                double[] logprobs = new double[K];
+                int[] wordCounts = null;
+                int[] topicTotals = null;
+                if (wordTopicMatrix != null) {
+                    wordCounts = wordTopicMatrix.getWordCounts(words[dd][nn]);
+                    topicTotals = wordTopicMatrix.getTopicTotals();
+                }
+
+                double[] logprobs = getScratchBuffer(K);
                 for (int k = 0; k < K; k++) {
-                    logprobs[k] = Math.log(docTopics[ii].getCount(k) + hyperparams.get(ALPHA))
-                            + Math.log((topicWords[k].getCount(words[dd][nn]) + hyperparams.get(BETA))
-                                    / (topicWords[k].getCountSum() + totalBeta));
+                    int count;
+                    int countSum;
+                    if (wordCounts != null) {
+                        count = wordCounts[k];
+                        countSum = topicTotals[k];
+                    } else {
+                        count = topicWords[k].getCount(words[dd][nn]);
+                        countSum = topicWords[k].getCountSum();
+                    }
+                    logprobs[k] = Math.log(docTopics[ii].getCount(k) + alpha)
+                            + Math.log((count + beta) / (countSum + totalBeta));
                     if (observe) {
                         double dotProd = docLabelDotProds[ii]
                                 + lambdas[z[ii][nn]] / words[dd].length;
                         logprobs[k] += getLabelLogLikelihood(labels[ii], dotProd);
                     }
                 }
-                int sampledZ = SamplerUtils.logMaxRescaleSample(logprobs);
+                int sampledZ = SamplerUtils.logMaxRescaleSample(logprobs, K);
 
                 if (z[ii][nn] != sampledZ) {
                     numTokensChanged++; // for debugging
@@ -527,6 +566,7 @@ public class BinarySLDA extends AbstractSampler {
                 }
                 if (addToData) {
                     docTopics[ii].increment(z[ii][nn]);
+                    topicDesignMatrix.increment(ii, z[ii][nn]);
                     docLabelDotProds[ii] += lambdas[z[ii][nn]] / words[dd].length;
                 }
             }
@@ -548,38 +588,26 @@ public class BinarySLDA extends AbstractSampler {
             }
         }
 
-        SparseVector[] designMatrix = new SparseVector[D];
-        for (int ii = 0; ii < D; ii++) {
-            designMatrix[ii] = new SparseVector(K);
-            for (int k : docTopics[ii].getSparseCounts().getIndices()) {
-                double val = (double) docTopics[ii].getCount(k) / z[ii].length;
-                designMatrix[ii].change(k, val);
-            }
-        }
-
-        RidgeLogisticRegressionLBFGS optimizable = new RidgeLogisticRegressionLBFGS(
-                labels, lambdas, designMatrix, mean, sigma);
-        LimitedMemoryBFGS optimizer = new LimitedMemoryBFGS(optimizable);
-        boolean converged = false;
-        try {
-            converged = optimizer.optimize();
-        } catch (Exception ex) {
-            ex.printStackTrace();
+        // warm-start from the current lambdas, keeping the L-BFGS memory of
+        // the previous update
+        if (lambdaOptimizer == null) {
+            lambdaOptimizer = new TopicRegressionLBFGS(topicDesignMatrix,
+                    labels, mean, sigma);
+        } else {
+            lambdaOptimizer.setPrior(mean, sigma);
         }
+        lambdaOptimizer.setNumThreads(getNumThreads());
+        boolean converged = lambdaOptimizer.optimize(lambdas);
 
         if (isReporting()) {
-            logln("--- converged? " + converged);
-        }
-
-        // update regression parameters
-        for (int k = 0; k < K; k++) {
-            lambdas[k] = optimizable.getParameter(k);
+            logln("--- converged? " + converged
+                    + ". # iterations: " + lambdaOptimizer.getNumIterations());
         }
 
         // update current predictions
         this.docLabelDotProds = new double[D];
         for (int ii = 0; ii < D; ii++) {
-            docLabelDotProds[ii] = designMatrix[ii].dotProduct(lambdas);
+            docLabelDotProds[ii] = topicDesignMatrix.dotProduct(ii, lambdas);
         }
 
         return System.currentTimeMillis() - sTime;
@@ -686,41 +714,91 @@ public class BinarySLDA extends AbstractSampler {
     public void validate(String msg) {
         for (int d = 0; d < D; d++) {
             docTopics[d].validate(msg);
+            topicDesignMatrix.validate(d, docTopics[d].getCounts(), msg);
         }
         for (int k = 0; k < K; k++) {
             topicWords[k].validate(msg);
         }
     }
 
+    /**
+     * Create a buffer for the label regression parameters, counts and
+     * assignments. The document-topic counts are recounted from the
+     * assignments by the background writer.
+     */
+    @Override
+    protected AbstractSampler createStateSnapshot() {
+        if (getClass() != BinarySLDA.class) {
+            return null;
+        }
+        BinarySLDA snapshot = new BinarySLDA();
+        snapshot.setVerbose(false);
+        snapshot.K = K;
+        snapshot.V = V;
+        snapshot.D = D;
+        snapshot.words = words;
+        snapshot.lambdas = new double[K];
+        snapshot.topicWords = SnapshotBuffers.createTopicWords(topicWords);
+        snapshot.docTopics = SnapshotBuffers.createDirMults(docTopics, docTopicRep);
+        snapshot.z = SnapshotBuffers.createAssignments(z);
+        return snapshot;
+    }
+
+    @Override
+    protected void copyStateTo(AbstractSampler snapshot) {
+        BinarySLDA buffer = (BinarySLDA) snapshot;
+        System.arraycopy(lambdas, 0, buffer.lambdas, 0, K);
+        SnapshotBuffers.copyTopicWords(topicWords, buffer.topicWords);
+        SnapshotBuffers.copyConcentrations(docTopics, buffer.docTopics);
+        SnapshotBuffers.copyAssignments(z, buffer.z);
+    }
+
+    @Override
+    protected void completeStateSnapshot() {
+        SnapshotBuffers.countAssignments(docTopics, z);
+    }
+
     @Override
     public void outputState(String filepath) {
         if (verbose) {
             logln("--- Outputing current state to " + filepath);
         }
+        if (isBinaryState(filepath)) {
+            outputBinaryState(filepath);
+            return;
+        }
 
         try {
             // model
-            StringBuilder modelStr = new StringBuilder();
-            for (int k = 0; k < K; k++) {
-                modelStr.append(k).append("\n");
-                modelStr.append(lambdas[k]).append("\n");
-                modelStr.append(DirMult.output(topicWords[k])).append("\n");
-            }
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int k = 0; k < K; k++) {
+                        writer.write(k + "\n");
+                        writer.write(lambdas[k] + "\n");
+                        writer.write(DirMult.output(topicWords[k]) + "\n");
+                    }
+                }
+            };
 
             // assignments
-            StringBuilder assignStr = new StringBuilder();
-            for (int d = 0; d < D; d++) {
-                assignStr.append(d).append("\n");
-                assignStr.append(DirMult.output(docTopics[d])).append("\n");
-
-                for (int n = 0; n < words[d].length; n++) {
-                    assignStr.append(z[d][n]).append("\t");
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int d = 0; d < D; d++) {
+                        writer.write(d + "\n");
+                        writer.write(DirMult.output(docTopics[d]) + "\n");
+
+                        for (int n = 0; n < words[d].length; n++) {
+                            writer.write(z[d][n] + "\t");
+                        }
+                        writer.write("\n");
+                    }
                 }
-                assignStr.append("\n");
-            }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
@@ -734,9 +812,16 @@ public class BinarySLDA extends AbstractSampler {
         }
 
         try {
-            inputModel(filepath);
+            if (isDeltaState(filepath)) {
+                inputState(DeltaState.getBaseState(filepath));
+                applyDeltaStates(filepath, false);
+            } else if (isBinaryState(filepath)) {
+                inputBinaryState(filepath);
+            } else {
+                inputModel(filepath);
 
-            inputAssignments(filepath);
+                inputAssignments(filepath);
+            }
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
@@ -745,10 +830,100 @@ public class BinarySLDA extends AbstractSampler {
         validate("Done reading state from " + filepath);
     }
 
+    @Override
+    protected int[][] getCheckpointAssignments() {
+        return z;
+    }
+
+    @Override
+    protected int[][] getCheckpointWords() {
+        return words;
+    }
+
+    @Override
+    protected void changeAssignment(int dd, int nn, int vv, int oldTopic,
+            int newTopic, boolean modelOnly) {
+        topicWords[oldTopic].decrement(vv);
+        topicWords[newTopic].increment(vv);
+        if (!modelOnly) {
+            docTopics[dd].decrement(oldTopic);
+            docTopics[dd].increment(newTopic);
+            topicDesignMatrix.decrement(dd, oldTopic);
+            topicDesignMatrix.increment(dd, newTopic);
+            z[dd][nn] = newTopic;
+        }
+    }
+
+    @Override
+    protected void outputDeltaParameters(DeltaState delta) {
+        delta.setParameters("lambdas", lambdas);
+    }
+
+    @Override
+    protected void inputDeltaParameters(DeltaState delta) {
+        lambdas = delta.getParameters("lambdas");
+    }
+
+    /**
+     * Output the current state, including the regression parameters, in the
+     * binary format.
+     *
+     * @param filepath The output file
+     */
+    private void outputBinaryState(String filepath) {
+        try {
+            BinaryState.Writer writer = new BinaryState.Writer(filepath);
+            writer.writeInts("dims", new int[]{K, V, D});
+            writer.writeDoubles("lambdas", lambdas);
+            BinaryState.writeDirMults(writer, "topic-words", topicWords);
+            BinaryState.writeDirMults(writer, "doc-topics", docTopics);
+            writer.writeIntArrays("z", z);
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while outputing to " + filepath);
+        }
+    }
+
+    private void inputBinaryState(String filepath) throws IOException {
+        BinaryState.Reader reader = new BinaryState.Reader(filepath);
+        try {
+            int[] dims = reader.readInts("dims");
+            if (dims[0] != K || dims[1] != V) {
+                throw new RuntimeException("Dimensions mismatched. K = " + dims[0]
+                        + " vs. " + K + ". V = " + dims[1] + " vs. " + V);
+            }
+            this.initializeModelStructure();
+            lambdas = reader.readDoubles("lambdas");
+            topicWords = toWordMajor(BinaryState.readDirMults(reader,
+                    "topic-words", topicWordRep));
+
+            this.initializeDataStructure();
+            docTopics = BinaryState.readDirMults(reader, "doc-topics", docTopicRep);
+            for (int ii = 0; ii < D; ii++) {
+                topicDesignMatrix.setRow(ii, docTopics[ii].getSparseCounts());
+            }
+            reader.readIntArrays("z", z);
+        } finally {
+            reader.close();
+        }
+    }
+
     private void inputModel(String zipFilepath) {
         if (verbose) {
             logln("--- --- Loading model from " + zipFilepath);
         }
+        if (isDeltaState(zipFilepath)) {
+            try {
+                inputModel(DeltaState.getBaseState(zipFilepath));
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while inputing model from "
+                        + zipFilepath);
+            }
+            applyDeltaStates(zipFilepath, true);
+            return;
+        }
 
         try {
             // initialize
@@ -762,9 +937,10 @@ public class BinarySLDA extends AbstractSampler {
                     throw new RuntimeException("Indices mismatch when loading model");
                 }
                 lambdas[k] = Double.parseDouble(reader.readLine());
-                topicWords[k] = DirMult.input(reader.readLine());
+                topicWords[k] = DirMult.input(reader.readLine(), topicWordRep);
             }
             reader.close();
+            topicWords = toWordMajor(topicWords);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while inputing model from "
@@ -788,7 +964,8 @@ public class BinarySLDA extends AbstractSampler {
                 if (docIdx != d) {
                     throw new RuntimeException("Indices mismatch when loading assignments");
                 }
-                docTopics[d] = DirMult.input(reader.readLine());
+                docTopics[d] = DirMult.input(reader.readLine(), docTopicRep);
+                topicDesignMatrix.setRow(d, docTopics[d].getSparseCounts());
 
                 String[] sline = reader.readLine().split("\t");
                 for (int n = 0; n < words[d].length; n++) {
@@ -855,7 +1032,7 @@ public class BinarySLDA extends AbstractSampler {
         try {
             IOUtils.createFolder(iterPredFolder);
             for (String filename : filenames) {
-                if (!filename.contains("zip")) {
+                if (!isReportState(filename)) {
                     continue;
                 }
 
@@ -953,10 +1130,7 @@ public class BinarySLDA extends AbstractSampler {
                 // update current dot products
                 this.docLabelDotProds = new double[D];
                 for (int d = 0; d < D; d++) {
-                    double[] empDist = docTopics[d].getEmpiricalDistribution();
-                    for (int k = 0; k < K; k++) {
-                        this.docLabelDotProds[d] += lambdas[k] * empDist[k];
-                    }
+                    this.docLabelDotProds[d] = topicDesignMatrix.dotProduct(d, lambdas);
                 }
 
                 // compute prediction values
@@ -1049,6 +1223,8 @@ public class BinarySLDA extends AbstractSampler {
 
         // configurations
         addOption("init", "Initialization");
+        options.addOption("word-major", false, "Store topic-word counts word-major");
+        addCheckpointOptions();
 
         options.addOption("v", false, "verbose");
         options.addOption("d", false, "debug");
@@ -1106,6 +1282,10 @@ public class BinarySLDA extends AbstractSampler {
         sampler.setLog(true);
         sampler.setReport(true);
         sampler.setWordVocab(data.getWordVocab());
+        sampler.setWordMajor(cmd.hasOption("word-major"));
+        sampler.setBinaryState(cmd.hasOption("binary-state"));
+        sampler.setAsyncCheckpoints(CLIUtils.getIntegerArgument(cmd, "async-checkpoints", 0));
+        sampler.setDeltaCheckpoints(CLIUtils.getIntegerArgument(cmd, "delta-checkpoints", 0));
 
         sampler.configure(outputFolder, V, K,
                 alpha, beta, mu, sigma,
@@ -6,6 +6,7 @@ import core.AbstractSampler;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import sampler.LDA;
 import sampling.likelihood.DirMult;
@@ -815,34 +816,42 @@ public class SLDA extends AbstractSampler {
 
         try {
             // model
-            StringBuilder modelStr = new StringBuilder();
-            for (int k = 0; k < K; k++) {
-                modelStr.append(k).append("\n");
-                modelStr.append(DirMult.output(topicWords[k])).append("\n");
-            }
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int k = 0; k < K; k++) {
+                        writer.write(k + "\n");
+                        writer.write(DirMult.output(topicWords[k]) + "\n");
+                    }
 
-            for (int l = 0; l < L; l++) {
-                modelStr.append(l).append("\n");
-                for (int k = 0; k < K; k++) {
-                    modelStr.append(v[l][k]).append("\t");
+                    for (int l = 0; l < L; l++) {
+                        writer.write(l + "\n");
+                        for (int k = 0; k < K; k++) {
+                            writer.write(v[l][k] + "\t");
+                        }
+                        writer.write("\n");
+                    }
                 }
-                modelStr.append("\n");
-            }
+            };
 
             // assignments
-            StringBuilder assignStr = new StringBuilder();
-            for (int d = 0; d < D; d++) {
-                assignStr.append(d).append("\n");
-                assignStr.append(DirMult.output(docTopics[d])).append("\n");
-
-                for (int n = 0; n < words[d].length; n++) {
-                    assignStr.append(z[d][n]).append("\t");
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int d = 0; d < D; d++) {
+                        writer.write(d + "\n");
+                        writer.write(DirMult.output(docTopics[d]) + "\n");
+
+                        for (int n = 0; n < words[d].length; n++) {
+                            writer.write(z[d][n] + "\t");
+                        }
+                        writer.write("\n");
+                    }
                 }
-                assignStr.append("\n");
-            }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing to " + filepath);
@@ -1,12 +1,12 @@
 package sampler.supervised.regression;
 
 import cc.mallet.optimize.LimitedMemoryBFGS;
-import cc.mallet.types.Dirichlet;
 import core.AbstractSampler;
 import data.ResponseTextDataset;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -25,6 +25,7 @@ import sampling.util.SparseCount;
 import util.CLIUtils;
 import util.IOUtils;
 import util.MiscUtils;
+import util.RandomUtils;
 import util.RankingItem;
 import util.SamplerUtils;
 import util.SparseVector;
@@ -611,8 +612,7 @@ public class SHDP extends AbstractSampler {
         indices.add(NEW_COMPONENT_INDEX);
         dirPrior[idx] = hyperparams.get(ALPHA_GLOBAL);
 
-        Dirichlet dir = new Dirichlet(dirPrior);
-        double[] wts = dir.nextDistribution();
+        double[] wts = RandomUtils.nextDirichlet(RandomUtils.get(), dirPrior);
         this.globalWeights = new SparseVector();
         for (int ii = 0; ii < wts.length; ii++) {
             this.globalWeights.set(indices.get(ii), wts[ii]);
@@ -723,28 +723,36 @@ public class SHDP extends AbstractSampler {
         }
         try {
             // model
-            StringBuilder modelStr = new StringBuilder();
-            for (int k : topicWords.getSortedIndices()) {
-                Topic topic = topicWords.getComponent(k);
-                modelStr.append(k).append("\n");
-                modelStr.append(globalWeights.get(k)).append("\n");
-                modelStr.append(topic.born).append("\n");
-                modelStr.append(topic.param).append("\n");
-                modelStr.append(DirMult.output(topic.phi)).append("\n");
-            }
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int k : topicWords.getSortedIndices()) {
+                        Topic topic = topicWords.getComponent(k);
+                        writer.write(k + "\n");
+                        writer.write(globalWeights.get(k) + "\n");
+                        writer.write(topic.born + "\n");
+                        writer.write(topic.param + "\n");
+                        writer.write(DirMult.output(topic.phi) + "\n");
+                    }
+                }
+            };
 
             // assignments
-            StringBuilder assignStr = new StringBuilder();
-            for (int ii = 0; ii < D; ii++) {
-                assignStr.append(ii).append("\n");
-                for (int n = 0; n < z[ii].length; n++) {
-                    assignStr.append(z[ii][n]).append("\t");
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int ii = 0; ii < D; ii++) {
+                        writer.write(ii + "\n");
+                        for (int n = 0; n < z[ii].length; n++) {
+                            writer.write(z[ii][n] + "\t");
+                        }
+                        writer.write("\n");
+                    }
                 }
-                assignStr.append("\n");
-            }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing to " + filepath);
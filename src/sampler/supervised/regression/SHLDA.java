@@ -1,12 +1,12 @@
 package sampler.supervised.regression;
 
-import cc.mallet.util.Randoms;
 import core.AbstractExperiment;
 import core.AbstractSampler;
 import data.ResponseTextDataset;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -14,7 +14,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.Stack;
-import optimization.GurobiMLRL2Norm;
+import optimization.RidgeLinearRegressionCG;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
 import regression.Regressor;
@@ -26,12 +26,15 @@ import sampling.util.FullTable;
 import sampling.util.Restaurant;
 import sampling.util.SparseCount;
 import sampling.util.TopicTreeNode;
+import sampling.util.TreeScorer;
 import util.CLIUtils;
 import util.IOUtils;
 import util.MiscUtils;
 import util.PredictionUtils;
+import util.RandomUtils;
 import util.RankingItem;
 import util.SamplerUtils;
+import util.SparseVector;
 import util.StatUtils;
 import util.evaluation.Measurement;
 import util.evaluation.MimnoTopicCoherence;
@@ -44,7 +47,6 @@ import util.evaluation.RegressionEvaluation;
 public class SHLDA extends AbstractSampler
         implements Regressor<ResponseTextDataset> {
 
-    public static Randoms randoms = new Randoms(1123581321);
     public static final String LEXICAL_REG_OVERTIME = "lexical-weights-overtime.txt";
     private static final STable NULL_TABLE = null;
     public static final int STAY = 0;
@@ -85,7 +87,7 @@ public class SHLDA extends AbstractSampler
     private STable[][] c; // path assigned to sentences
     private int[][][] z; // level assigned to tokens
     private double[] lexParams;
-    private double[][] lexDesignMatrix;
+    private SparseVector[] lexDesignMatrix;
     // state structure
     private SNode globalTreeRoot; // tree
     private Restaurant<STable, Integer, SNode>[] localRestaurants; // franchise
@@ -565,17 +567,16 @@ public class SHLDA extends AbstractSampler
         }
 
         // partial design matrix
-        this.lexDesignMatrix = new double[D][V];
+        this.lexDesignMatrix = new SparseVector[D];
         for (int d = 0; d < D; d++) {
+            lexDesignMatrix[d] = new SparseVector(V);
             for (int s = 0; s < words[d].length; s++) {
                 for (int n = 0; n < words[d][s].length; n++) {
                     int w = words[d][s][n];
-                    lexDesignMatrix[d][w]++;
+                    lexDesignMatrix[d].change(w, 1.0);
                 }
             }
-            for (int v = 0; v < V; v++) {
-                lexDesignMatrix[d][v] /= docWords[d].length;
-            }
+            lexDesignMatrix[d].scale(1.0 / docWords[d].length);
         }
         this.docValues = new double[D];
     }
@@ -1808,27 +1809,46 @@ public class SHLDA extends AbstractSampler
      */
     void computePathResponseLogLikelihood(
             HashMap<SNode, Double> nodeResLogProbs,
-            double curAuthorVal, double denom,
-            double authorResponse,
-            HashMap<SNode, int[]> proposedZs) {
-        for (SNode pathNode : proposedZs.keySet()) {
-            SNode[] path = getPathFromNode(pathNode);
+            final double curAuthorVal, final double denom,
+            final double authorResponse,
+            final HashMap<SNode, int[]> proposedZs) {
+        TreeScorer<SNode> scorer = new TreeScorer<SNode>(
+                new TreeScorer.NodeScorer<SNode>() {
+                    @Override
+                    public double getPathValue(SNode node, double parentValue) {
+                        return 0.0;
+                    }
 
-            int[] ppZs = proposedZs.get(pathNode);
-            int[] levelCounts = new int[L];
-            for (int ii = 0; ii < ppZs.length; ii++) {
-                levelCounts[ppZs[ii]]++;
-            }
+                    @Override
+                    public boolean isCandidate(SNode node) {
+                        return proposedZs.containsKey(node);
+                    }
 
-            double addReg = 0.0;
-            int level;
-            for (level = 0; level < path.length; level++) {
-                addReg += path[level].getRegressionParameter() * levelCounts[level] / denom;
-            }
-            double authorMean = curAuthorVal + addReg;
-            double resLlh = StatUtils.logNormalProbability(
-                    authorResponse, authorMean, sqrtRho);
-            nodeResLogProbs.put(pathNode, resLlh);
+                    @Override
+                    public double getScore(SNode pathNode, double pathValue) {
+                        SNode[] path = getPathFromNode(pathNode);
+
+                        int[] ppZs = proposedZs.get(pathNode);
+                        int[] levelCounts = new int[L];
+                        for (int ii = 0; ii < ppZs.length; ii++) {
+                            levelCounts[ppZs[ii]]++;
+                        }
+
+                        double addReg = 0.0;
+                        int level;
+                        for (level = 0; level < path.length; level++) {
+                            addReg += path[level].getRegressionParameter() * levelCounts[level] / denom;
+                        }
+                        double authorMean = curAuthorVal + addReg;
+                        return StatUtils.logNormalProbability(
+                                authorResponse, authorMean, sqrtRho);
+                    }
+                });
+        int numScores = nodeResLogProbs.size();
+        scorer.score(globalTreeRoot, 0.0, nodeResLogProbs);
+        if (nodeResLogProbs.size() - numScores != proposedZs.size()) {
+            throw new RuntimeException("Some proposed paths are not in the tree. "
+                    + (nodeResLogProbs.size() - numScores) + " vs. " + proposedZs.size());
         }
     }
 
@@ -1878,31 +1898,45 @@ public class SHLDA extends AbstractSampler
     }
 
     /**
-     * Recursively compute the log probability of each path in the global tree
+     * Compute the log probability of each path in the global tree
      *
      * @param nodeLogProbs HashMap to store the results
-     * @param curNode Current node in the recursive call
+     * @param curNode The root of the subtree
      * @param parentLogProb The log probability passed from the parent node
      */
     void computePathLogPrior(
             HashMap<SNode, Double> nodeLogProbs,
-            SNode curNode,
+            final SNode curNode,
             double parentLogProb,
-            boolean extend) {
-        double newWeight = parentLogProb;
-        if (!isLeafNode(curNode)) {
-            double logNorm = Math.log(curNode.getNumTables() + gammas[curNode.getLevel()]);
-            newWeight += logGammas[curNode.getLevel()] - logNorm;
+            final boolean extend) {
+        TreeScorer<SNode> scorer = new TreeScorer<SNode>(
+                new TreeScorer.NodeScorer<SNode>() {
+                    @Override
+                    public double getPathValue(SNode node, double parentValue) {
+                        if (node == curNode) {
+                            return parentValue;
+                        }
+                        SNode parent = node.getParent();
+                        double logNorm = Math.log(parent.getNumTables() + gammas[parent.getLevel()]);
+                        return parentValue + Math.log(node.getNumTables()) - logNorm;
+                    }
 
-            for (SNode child : curNode.getChildren()) {
-                double childWeight = parentLogProb + Math.log(child.getNumTables()) - logNorm;
-                computePathLogPrior(nodeLogProbs, child, childWeight, extend);
-            }
-        }
-        if (!extend && !isLeafNode(curNode)) {
-            return;
-        }
-        nodeLogProbs.put(curNode, newWeight);
+                    @Override
+                    public boolean isCandidate(SNode node) {
+                        return extend || isLeafNode(node);
+                    }
+
+                    @Override
+                    public double getScore(SNode node, double pathValue) {
+                        double newWeight = pathValue;
+                        if (!isLeafNode(node)) {
+                            double logNorm = Math.log(node.getNumTables() + gammas[node.getLevel()]);
+                            newWeight += logGammas[node.getLevel()] - logNorm;
+                        }
+                        return newWeight;
+                    }
+                });
+        scorer.score(curNode, parentLogProb, nodeLogProbs);
     }
 
     /**
@@ -1910,43 +1944,48 @@ public class SHLDA extends AbstractSampler
      * the tree
      *
      * @param nodeDataLlhs HashMap to store the result
-     * @param curNode The current node in recursive calls
+     * @param curNode The root of the subtree
      * @param tokenCountPerLevel Token counts per level
      * @param parentDataLlh The value passed from the parent node
      */
     void computePathWordLogLikelihood(
             HashMap<SNode, Double> nodeDataLlhs,
             SNode curNode,
-            SparseCount[] tokenCountPerLevel,
+            final SparseCount[] tokenCountPerLevel,
             double parentDataLlh,
-            boolean extend) {
-
-        int level = curNode.getLevel();
-        double nodeDataLlh = curNode.getLogProbability(tokenCountPerLevel[level]);
+            final boolean extend) {
+        TreeScorer<SNode> scorer = new TreeScorer<SNode>(
+                new TreeScorer.NodeScorer<SNode>() {
+                    @Override
+                    public double getPathValue(SNode node, double parentValue) {
+                        return parentValue + node.getLogProbability(
+                                tokenCountPerLevel[node.getLevel()]);
+                    }
 
-        // populate to child nodes
-        for (SNode child : curNode.getChildren()) {
-            computePathWordLogLikelihood(nodeDataLlhs, child, tokenCountPerLevel,
-                    parentDataLlh + nodeDataLlh, extend);
-        }
+                    @Override
+                    public boolean isCandidate(SNode node) {
+                        return extend || isLeafNode(node);
+                    }
 
-        if (!extend && !isLeafNode(curNode)) {
-            return;
-        }
-        // store the data llh from the root to this current node
-        double storeDataLlh = parentDataLlh + nodeDataLlh;
-        level++;
-        while (level < L) { // if this is an internal node, add llh of new child node
-            DirMult dirMult;
-            if (curNode.getTopic() == null) {
-                dirMult = new DirMult(V, betas[level] * V, 1.0 / V);
-            } else {
-                dirMult = new DirMult(V, betas[level] * V, curNode.getTopic());
-            }
-            storeDataLlh += dirMult.getLogLikelihood(tokenCountPerLevel[level].getObservations());
-            level++;
-        }
-        nodeDataLlhs.put(curNode, storeDataLlh);
+                    @Override
+                    public double getScore(SNode node, double pathValue) {
+                        // store the data llh from the root to this current node
+                        double storeDataLlh = pathValue;
+                        int level = node.getLevel() + 1;
+                        while (level < L) { // if this is an internal node, add llh of new child node
+                            DirMult dirMult;
+                            if (node.getTopic() == null) {
+                                dirMult = new DirMult(V, betas[level] * V, 1.0 / V);
+                            } else {
+                                dirMult = new DirMult(V, betas[level] * V, node.getTopic());
+                            }
+                            storeDataLlh += dirMult.getLogLikelihood(tokenCountPerLevel[level].getObservations());
+                            level++;
+                        }
+                        return storeDataLlh;
+                    }
+                });
+        scorer.score(curNode, parentDataLlh, nodeDataLlhs);
     }
 
     /**
@@ -2058,9 +2097,10 @@ public class SHLDA extends AbstractSampler
             paramMeans[V + i] = mus[node.getLevel()];
         }
 
-        double[][] designMatrix = new double[D][V + numNodes];
+        SparseVector[] designMatrix = new SparseVector[D];
         for (int d = 0; d < D; d++) {
-            System.arraycopy(lexDesignMatrix[d], 0, designMatrix[d], 0, V);
+            designMatrix[d] = new SparseVector(lexDesignMatrix[d]);
+            designMatrix[d].setDimension(V + numNodes);
             double[] docTopicDist = new double[numNodes];
             for (int s = 0; s < words[d].length; s++) {
                 if (!isValidSentence(d, s)) {
@@ -2074,15 +2114,31 @@ public class SHLDA extends AbstractSampler
                 }
             }
             for (int ii = 0; ii < numNodes; ii++) {
-                designMatrix[d][ii + V] += docTopicDist[ii] / docWords[d].length;
+                if (docTopicDist[ii] != 0) {
+                    designMatrix[d].set(ii + V, docTopicDist[ii] / docWords[d].length);
+                }
             }
         }
 
-        GurobiMLRL2Norm mlr = new GurobiMLRL2Norm(designMatrix, responses);
+        // warm start from the current parameters
+        double[] curWeights = new double[V + numNodes];
+        System.arraycopy(lexParams, 0, curWeights, 0, V);
+        for (int i = 0; i < numNodes; i++) {
+            curWeights[i + V] = flattenTree.get(i).getRegressionParameter();
+        }
+
+        RidgeLinearRegressionCG mlr = new RidgeLinearRegressionCG(designMatrix,
+                responses, V + numNodes);
         mlr.setSigmas(paramSigmas);
         mlr.setMeans(paramMeans);
         mlr.setRho(hyperparams.get(RHO));
+        mlr.setInitialWeights(curWeights);
+        mlr.setNumThreads(getNumThreads());
         double[] weights = mlr.solve();
+        if (verbose) {
+            logln("--- --- # CG iterations: " + mlr.getNumIterations()
+                    + ". converged? " + mlr.isConverged());
+        }
         System.arraycopy(weights, 0, lexParams, 0, V);
         for (int i = 0; i < numNodes; i++) {
             flattenTree.get(i).setRegressionParameter(weights[i + V]);
@@ -2382,70 +2438,68 @@ public class SHLDA extends AbstractSampler
 
         try {
             // model
-            StringBuilder modelStr = new StringBuilder();
-            for (int v = 0; v < V; v++) {
-                modelStr.append(lexParams[v]).append("\t");
-            }
-            modelStr.append("\n");
-
-            Stack<SNode> stack = new Stack<SNode>();
-            stack.add(globalTreeRoot);
-            while (!stack.isEmpty()) {
-                SNode node = stack.pop();
-                modelStr.append(node.getPathString()).append("\n");
-                modelStr.append(node.getIterationCreated()).append("\n");
-                modelStr.append(node.getNumTables()).append("\n");
-                modelStr.append(node.getRegressionParameter()).append("\n");
-                modelStr.append(DirMult.output(node.getContent())).append("\n");
-                modelStr.append(DirMult.outputDistribution(node.getContent().
-                        getSamplingDistribution())).append("\n");
-
-                for (SNode child : node.getChildren()) {
-                    stack.add(child);
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int v = 0; v < V; v++) {
+                        writer.write(lexParams[v] + "\t");
+                    }
+                    writer.write("\n");
+
+                    Stack<SNode> stack = new Stack<SNode>();
+                    stack.add(globalTreeRoot);
+                    while (!stack.isEmpty()) {
+                        SNode node = stack.pop();
+                        writer.write(node.getPathString() + "\n");
+                        writer.write(node.getIterationCreated() + "\n");
+                        writer.write(node.getNumTables() + "\n");
+                        writer.write(node.getRegressionParameter() + "\n");
+                        writer.write(DirMult.output(node.getContent()) + "\n");
+                        writer.write(DirMult.outputDistribution(node.getContent().getSamplingDistribution()) + "\n");
+
+                        for (SNode child : node.getChildren()) {
+                            stack.add(child);
+                        }
+                    }
                 }
-            }
+            };
 
             // assignments
-            StringBuilder assignStr = new StringBuilder();
-            for (int d = 0; d < D; d++) {
-                assignStr.append(d)
-                        .append("\t").append(localRestaurants[d].getNumTables())
-                        .append("\n");
-                assignStr.append(DirMult.output(docLevelDist[d])).append("\n");
-                for (STable table : localRestaurants[d].getTables()) {
-                    assignStr.append(table.getIndex()).append("\n");
-                    assignStr.append(table.getIterationCreated()).append("\n");
-                    assignStr.append(table.getContent().getPathString()).append("\n");
-                }
-            }
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int d = 0; d < D; d++) {
+                        writer.write(d + "\t" + localRestaurants[d].getNumTables() + "\n");
+                        writer.write(DirMult.output(docLevelDist[d]) + "\n");
+                        for (STable table : localRestaurants[d].getTables()) {
+                            writer.write(table.getIndex() + "\n");
+                            writer.write(table.getIterationCreated() + "\n");
+                            writer.write(table.getContent().getPathString() + "\n");
+                        }
+                    }
 
-            for (int d = 0; d < D; d++) {
-                for (int s = 0; s < words[d].length; s++) {
-                    if (isValidSentence(d, s)) {
-                        assignStr.append(d)
-                                .append(":").append(s)
-                                .append("\t").append(c[d][s].getIndex())
-                                .append("\n");
+                    for (int d = 0; d < D; d++) {
+                        for (int s = 0; s < words[d].length; s++) {
+                            if (isValidSentence(d, s)) {
+                                writer.write(d + ":" + s + "\t" + c[d][s].getIndex() + "\n");
+                            }
+                        }
                     }
-                }
-            }
 
-            for (int d = 0; d < D; d++) {
-                for (int s = 0; s < words[d].length; s++) {
-                    if (isValidSentence(d, s)) {
-                        for (int n = 0; n < words[d][s].length; n++) {
-                            assignStr.append(d)
-                                    .append(":").append(s)
-                                    .append(":").append(n)
-                                    .append("\t").append(z[d][s][n])
-                                    .append("\n");
+                    for (int d = 0; d < D; d++) {
+                        for (int s = 0; s < words[d].length; s++) {
+                            if (isValidSentence(d, s)) {
+                                for (int n = 0; n < words[d][s].length; n++) {
+                                    writer.write(d + ":" + s + ":" + n + "\t" + z[d][s][n] + "\n");
+                                }
+                            }
                         }
                     }
                 }
-            }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing to " + filepath);
@@ -3494,7 +3548,7 @@ public class SHLDA extends AbstractSampler
             double[] ts = new double[V];
             double sum = 0.0;
             for (int v = 0; v < V; v++) {
-                ts[v] = randoms.nextGamma(meanVector[v], 1);
+                ts[v] = RandomUtils.nextGamma(meanVector[v], 1);
                 if (ts[v] <= 0) {
                     ts[v] = 0.001;
                 }
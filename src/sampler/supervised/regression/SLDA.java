@@ -18,6 +18,9 @@ import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
 import sampler.unsupervised.LDA;
 import sampling.likelihood.DirMult;
+import sampling.util.BinaryState;
+import sampling.util.DeltaState;
+import sampling.util.SnapshotBuffers;
 import util.CLIUtils;
 import util.IOUtils;
 import util.MiscUtils;
@@ -56,6 +59,7 @@ public class SLDA extends AbstractSampler {
     protected DirMult[] docTopics;
     protected DirMult[] topicWords;
     protected double[] regParams;
+    protected boolean symmetricPriors = true;
     // optimization
     protected double[] docRegressMeans;
     protected SparseVector[] designMatrix;
@@ -85,6 +89,10 @@ public class SLDA extends AbstractSampler {
                 sampler.MAX_ITER,
                 sampler.LAG,
                 sampler.REP_INTERVAL);
+        this.wordMajor = sampler.wordMajor;
+        this.stateFileExt = sampler.stateFileExt;
+        this.asyncCheckpoints = sampler.asyncCheckpoints;
+        this.deltaCheckpoints = sampler.deltaCheckpoints;
     }
 
     public void configure(
@@ -372,14 +380,16 @@ public class SLDA extends AbstractSampler {
             throw new MismatchRuntimeException(topics.length, K);
         }
 
+        symmetricPriors = topics == null;
         topicWords = new DirMult[K];
         for (int k = 0; k < K; k++) {
             if (topics != null) { // seeded prior
-                topicWords[k] = new DirMult(V, hyperparams.get(BETA) * V, topics[k]);
+                topicWords[k] = DirMult.create(topicWordRep, V, hyperparams.get(BETA) * V, topics[k]);
             } else { // uninformed prior
-                topicWords[k] = new DirMult(V, hyperparams.get(BETA) * V, 1.0 / V);
+                topicWords[k] = DirMult.create(topicWordRep, V, hyperparams.get(BETA) * V, 1.0 / V);
             }
         }
+        topicWords = toWordMajor(topicWords);
 
         regParams = new double[K];
         for (int k = 0; k < K; k++) {
@@ -395,7 +405,7 @@ public class SLDA extends AbstractSampler {
 
         docTopics = new DirMult[D];
         for (int ii = 0; ii < D; ii++) {
-            docTopics[ii] = new DirMult(K, hyperparams.get(ALPHA) * K, 1.0 / K);
+            docTopics[ii] = DirMult.create(docTopicRep, K, hyperparams.get(ALPHA) * K, 1.0 / K);
         }
 
         docRegressMeans = new double[D];
@@ -560,12 +570,13 @@ public class SLDA extends AbstractSampler {
 
             // store model
             if (report && iter > BURN_IN && iter % LAG == 0) {
-                outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
+                outputCheckpoint(iter);
             }
         }
 
         if (report) { // output the final model
-            outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
+            outputCheckpoint(iter);
+            flushCheckpoints();
         }
 
         float ellapsedSeconds = (System.currentTimeMillis() - startTime) / (1000);
@@ -589,6 +600,11 @@ public class SLDA extends AbstractSampler {
     protected void sampleZs(boolean removeFromModel, boolean addToModel,
             boolean removeFromData, boolean addToData,
             boolean observe) {
+        cacheHyperparameters();
+        double alpha = hyperparamValues[ALPHA];
+        double beta = hyperparamValues[BETA];
+        double totalBeta = beta * V;
+        boolean flatCounts = wordTopicMatrix != null && symmetricPriors;
         for (int dd = 0; dd < D; dd++) {
             for (int nn = 0; nn < words[dd].length; nn++) {
                 if (removeFromModel) {
@@ -599,17 +615,32 @@ public class SLDA extends AbstractSampler {
                     docRegressMeans[dd] -= regParams[z[dd][nn]] / words[dd].length;
                 }
 
-                double[] logprobs = new double[K];
+                // with symmetric priors, read the counts of this word in all
+                // topics from a single row
+                int[] wordCounts = null;
+                int[] topicTotals = null;
+                if (flatCounts) {
+                    wordCounts = wordTopicMatrix.getWordCounts(words[dd][nn]);
+                    topicTotals = wordTopicMatrix.getTopicTotals();
+                }
+
+                double[] logprobs = getScratchBuffer(K);
                 for (int k = 0; k < K; k++) {
-                    logprobs[k] = Math.log(docTopics[dd].getCount(k) + hyperparams.get(ALPHA))
-                            + Math.log(topicWords[k].getProbability(words[dd][nn]));
+                    double wordProb;
+                    if (flatCounts) {
+                        wordProb = (wordCounts[k] + beta) / (topicTotals[k] + totalBeta);
+                    } else {
+                        wordProb = topicWords[k].getProbability(words[dd][nn]);
+                    }
+                    logprobs[k] = Math.log(docTopics[dd].getCount(k) + alpha)
+                            + Math.log(wordProb);
                     if (observe) {
                         double mean = docRegressMeans[dd] + regParams[k] / words[dd].length;
                         logprobs[k] += StatUtils.logNormalProbability(responses[dd], mean, sqrtRho);
                     }
                 }
 
-                int sampledZ = SamplerUtils.logMaxRescaleSample(logprobs);
+                int sampledZ = SamplerUtils.logMaxRescaleSample(logprobs, K);
 
                 if (z[dd][nn] != sampledZ) {
                     numTokensChanged++; // for debugging
@@ -763,35 +794,83 @@ public class SLDA extends AbstractSampler {
         }
     }
 
+    /**
+     * Create a buffer for the regression parameters, counts and assignments.
+     * The document-topic counts are recounted from the assignments by the
+     * background writer.
+     */
+    @Override
+    protected AbstractSampler createStateSnapshot() {
+        if (getClass() != SLDA.class) {
+            return null;
+        }
+        SLDA snapshot = new SLDA();
+        snapshot.setVerbose(false);
+        snapshot.K = K;
+        snapshot.V = V;
+        snapshot.D = D;
+        snapshot.regParams = new double[K];
+        snapshot.topicWords = SnapshotBuffers.createTopicWords(topicWords);
+        snapshot.docTopics = SnapshotBuffers.createDirMults(docTopics, docTopicRep);
+        snapshot.z = SnapshotBuffers.createAssignments(z);
+        return snapshot;
+    }
+
+    @Override
+    protected void copyStateTo(AbstractSampler snapshot) {
+        SLDA buffer = (SLDA) snapshot;
+        System.arraycopy(regParams, 0, buffer.regParams, 0, K);
+        SnapshotBuffers.copyTopicWords(topicWords, buffer.topicWords);
+        SnapshotBuffers.copyConcentrations(docTopics, buffer.docTopics);
+        SnapshotBuffers.copyAssignments(z, buffer.z);
+    }
+
+    @Override
+    protected void completeStateSnapshot() {
+        SnapshotBuffers.countAssignments(docTopics, z);
+    }
+
     @Override
     public void outputState(String filepath) {
         if (verbose) {
             logln("--- Outputing current state to " + filepath);
         }
+        if (isBinaryState(filepath)) {
+            outputBinaryState(filepath);
+            return;
+        }
 
         try {
             // model
-            StringBuilder modelStr = new StringBuilder();
-            for (int k = 0; k < K; k++) {
-                modelStr.append(k).append("\n");
-                modelStr.append(regParams[k]).append("\n");
-                modelStr.append(DirMult.output(topicWords[k])).append("\n");
-            }
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int k = 0; k < K; k++) {
+                        writer.write(k + "\n");
+                        writer.write(regParams[k] + "\n");
+                        writer.write(DirMult.output(topicWords[k]) + "\n");
+                    }
+                }
+            };
 
             // assignments
-            StringBuilder assignStr = new StringBuilder();
-            for (int dd = 0; dd < D; dd++) {
-                assignStr.append(dd).append("\n");
-                assignStr.append(DirMult.output(docTopics[dd])).append("\n");
-
-                for (int n = 0; n < z[dd].length; n++) {
-                    assignStr.append(z[dd][n]).append("\t");
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int dd = 0; dd < D; dd++) {
+                        writer.write(dd + "\n");
+                        writer.write(DirMult.output(docTopics[dd]) + "\n");
+
+                        for (int n = 0; n < z[dd].length; n++) {
+                            writer.write(z[dd][n] + "\t");
+                        }
+                        writer.write("\n");
+                    }
                 }
-                assignStr.append("\n");
-            }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing to " + filepath);
@@ -805,9 +884,16 @@ public class SLDA extends AbstractSampler {
         }
 
         try {
-            inputModel(filepath);
+            if (isDeltaState(filepath)) {
+                inputState(DeltaState.getBaseState(filepath));
+                applyDeltaStates(filepath, false);
+            } else if (isBinaryState(filepath)) {
+                inputBinaryState(filepath);
+            } else {
+                inputModel(filepath);
 
-            inputAssignments(filepath);
+                inputAssignments(filepath);
+            }
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while loading from " + filepath);
@@ -816,10 +902,107 @@ public class SLDA extends AbstractSampler {
         validate("Done reading state from " + filepath);
     }
 
+    @Override
+    protected int[][] getCheckpointAssignments() {
+        return z;
+    }
+
+    @Override
+    protected int[][] getCheckpointWords() {
+        return words;
+    }
+
+    @Override
+    protected void changeAssignment(int dd, int nn, int vv, int oldTopic,
+            int newTopic, boolean modelOnly) {
+        topicWords[oldTopic].decrement(vv);
+        topicWords[newTopic].increment(vv);
+        if (!modelOnly) {
+            docTopics[dd].decrement(oldTopic);
+            docTopics[dd].increment(newTopic);
+            z[dd][nn] = newTopic;
+        }
+    }
+
+    @Override
+    protected void outputDeltaParameters(DeltaState delta) {
+        delta.setParameters("regParams", regParams);
+    }
+
+    @Override
+    protected void inputDeltaParameters(DeltaState delta) {
+        regParams = delta.getParameters("regParams");
+    }
+
+    /**
+     * Output the current state, including the regression parameters, in the
+     * binary format.
+     *
+     * @param filepath The output file
+     */
+    private void outputBinaryState(String filepath) {
+        try {
+            BinaryState.Writer writer = new BinaryState.Writer(filepath);
+            writer.writeInts("dims", new int[]{K, V, D});
+            writer.writeDoubles("regParams", regParams);
+            BinaryState.writeDirMults(writer, "topic-words", topicWords);
+            BinaryState.writeDirMults(writer, "doc-topics", docTopics);
+            writer.writeIntArrays("z", z);
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while outputing to " + filepath);
+        }
+    }
+
+    /**
+     * Set whether the topic-word priors are symmetric from the loaded topics,
+     * which keep the priors of a seeded run.
+     */
+    protected void updateSymmetricPriors() {
+        symmetricPriors = true;
+        for (DirMult topicWord : topicWords) {
+            symmetricPriors &= topicWord.hasSymmetricPrior(hyperparams.get(BETA) * V);
+        }
+    }
+
+    private void inputBinaryState(String filepath) throws IOException {
+        BinaryState.Reader reader = new BinaryState.Reader(filepath);
+        try {
+            int[] dims = reader.readInts("dims");
+            if (dims[0] != K || dims[1] != V) {
+                throw new RuntimeException("Dimensions mismatched. K = " + dims[0]
+                        + " vs. " + K + ". V = " + dims[1] + " vs. " + V);
+            }
+            this.initializeModelStructure(null);
+            regParams = reader.readDoubles("regParams");
+            topicWords = toWordMajor(BinaryState.readDirMults(reader,
+                    "topic-words", topicWordRep));
+            updateSymmetricPriors();
+
+            this.initializeDataStructure();
+            docTopics = BinaryState.readDirMults(reader, "doc-topics", docTopicRep);
+            reader.readIntArrays("z", z);
+        } finally {
+            reader.close();
+        }
+    }
+
     protected void inputModel(String zipFilepath) {
         if (verbose) {
             logln("--- --- Loading model from " + zipFilepath);
         }
+        if (isDeltaState(zipFilepath)) {
+            try {
+                inputModel(DeltaState.getBaseState(zipFilepath));
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while inputing model from "
+                        + zipFilepath);
+            }
+            applyDeltaStates(zipFilepath, true);
+            return;
+        }
 
         try {
             // initialize
@@ -833,9 +1016,11 @@ public class SLDA extends AbstractSampler {
                     throw new RuntimeException("Indices mismatch when loading model");
                 }
                 regParams[k] = Double.parseDouble(reader.readLine());
-                topicWords[k] = DirMult.input(reader.readLine());
+                topicWords[k] = DirMult.input(reader.readLine(), topicWordRep);
             }
             reader.close();
+            topicWords = toWordMajor(topicWords);
+            updateSymmetricPriors();
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while inputing model from "
@@ -859,7 +1044,7 @@ public class SLDA extends AbstractSampler {
                 if (docIdx != d) {
                     throw new RuntimeException("Indices mismatch when loading assignments");
                 }
-                docTopics[d] = DirMult.input(reader.readLine());
+                docTopics[d] = DirMult.input(reader.readLine(), docTopicRep);
 
                 String[] sline = reader.readLine().split("\t");
                 for (int n = 0; n < z[d].length; n++) {
@@ -943,7 +1128,7 @@ public class SLDA extends AbstractSampler {
             IOUtils.createFolder(iterPredFolder);
             ArrayList<Thread> threads = new ArrayList<Thread>();
             for (String filename : filenames) { // all learned models
-                if (!filename.contains("zip")) {
+                if (!isReportState(filename)) {
                     continue;
                 }
 
@@ -1039,6 +1224,8 @@ public class SLDA extends AbstractSampler {
 
         // configurations
         addOption("init", "Initialization");
+        options.addOption("word-major", false, "Store topic-word counts word-major");
+        addCheckpointOptions();
 
         options.addOption("v", false, "verbose");
         options.addOption("d", false, "debug");
@@ -1098,6 +1285,10 @@ public class SLDA extends AbstractSampler {
         sampler.setLog(true);
         sampler.setReport(true);
         sampler.setWordVocab(data.getWordVocab());
+        sampler.setWordMajor(cmd.hasOption("word-major"));
+        sampler.setBinaryState(cmd.hasOption("binary-state"));
+        sampler.setAsyncCheckpoints(CLIUtils.getIntegerArgument(cmd, "async-checkpoints", 0));
+        sampler.setDeltaCheckpoints(CLIUtils.getIntegerArgument(cmd, "delta-checkpoints", 0));
 
         sampler.configure(outputFolder, V, K,
                 alpha, beta, rho, mu, sigma,
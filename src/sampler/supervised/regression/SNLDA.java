@@ -26,6 +26,7 @@ import sampler.unsupervised.RecursiveLDA;
 import sampling.likelihood.DirMult;
 import sampling.util.SparseCount;
 import sampling.util.TreeNode;
+import sampling.util.TreeScorer;
 import util.CLIUtils;
 import util.IOUtils;
 import util.MiscUtils;
@@ -73,6 +74,9 @@ public class SNLDA extends AbstractSampler {
     private double[] docMeans;
     private boolean isBinary;
     private Set<Integer> positives;
+    private TokenPathScorer tokenPathScorer;
+    private TreeScorer<Node> tokenTreeScorer;
+    private final ArrayList<Node> proposalNodes = new ArrayList<Node>(2);
 
     public SNLDA() {
         this.basename = "SNLDA";
@@ -844,11 +848,9 @@ public class SNLDA extends AbstractSampler {
                     accept = true;
                     numTokensAccepted++;
                 } else {
-                    double[] curLogprobs = getLogProbabilities(dd, nn, z[dd][nn], observed);
-                    double[] newLogprobs = getLogProbabilities(dd, nn, sampledNode, observed);
-                    double ratio = Math.min(1.0,
-                            Math.exp(newLogprobs[ACTUAL_INDEX] - curLogprobs[ACTUAL_INDEX]
-                                    + curLogprobs[PROPOSAL_INDEX] - newLogprobs[PROPOSAL_INDEX]));
+                    double[] logprobs = getLogProbabilities(dd, nn, z[dd][nn],
+                            sampledNode, observed);
+                    double ratio = Math.min(1.0, Math.exp(logprobs[1] - logprobs[0]));
                     if (rand.nextDouble() < ratio) {
                         accept = true;
                         numTokensAccepted++;
@@ -911,31 +913,70 @@ public class SNLDA extends AbstractSampler {
     }
 
     /**
-     * Compute both the proposal log probabilities and the actual log
-     * probabilities of assigning a token to a node.
+     * Compute, for the current and the proposed node of a token, the actual
+     * log probability minus the proposal log probability of assigning the
+     * token to the node. The Metropolis-Hastings acceptance ratio is the
+     * exponential of their difference. Both are accumulated along the paths
+     * from the root by a {@link TreeScorer}, so the transitions on the common
+     * part of the two paths are computed once.
      *
      * @param dd Document index
      * @param nn Token index
+     * @param curNode The current node
+     * @param newNode The proposed node
      * @param observed
-     * @param node The node to be assigned to
+     * @return The values of the current node and of the proposed node
      */
-    private double[] getLogProbabilities(int dd, int nn, Node node, boolean observed) {
-        double[] logprobs = getTransLogProbabilities(dd, nn, node, node);
-        logprobs[ACTUAL_INDEX] = Math.log(node.getPhi(words[dd][nn]));
-        if (observed) {
-            logprobs[ACTUAL_INDEX] += getResponseLogLikelihood(dd, node);
-        }
-        Node source = node.getParent();
-        Node target = node;
-        while (source != null) {
-            double[] lps = getTransLogProbabilities(dd, nn, source, target);
-            logprobs[PROPOSAL_INDEX] += lps[PROPOSAL_INDEX];
-            logprobs[ACTUAL_INDEX] += lps[ACTUAL_INDEX];
-
-            source = source.getParent();
-            target = target.getParent();
-        }
-        return logprobs;
+    private double[] getLogProbabilities(int dd, int nn, Node curNode, Node newNode,
+            boolean observed) {
+        if (tokenTreeScorer == null) {
+            tokenPathScorer = new TokenPathScorer();
+            tokenTreeScorer = new TreeScorer<Node>(tokenPathScorer);
+        }
+        tokenPathScorer.dd = dd;
+        tokenPathScorer.nn = nn;
+        tokenPathScorer.observed = observed;
+        proposalNodes.clear();
+        proposalNodes.add(curNode);
+        proposalNodes.add(newNode);
+        return tokenTreeScorer.scorePaths(root, 0.0, proposalNodes);
+    }
+
+    /**
+     * Scores a node for a token by the actual log probability minus the
+     * proposal log probability of reaching the node from the root and staying
+     * there.
+     */
+    private class TokenPathScorer implements TreeScorer.NodeScorer<Node> {
+
+        int dd;
+        int nn;
+        boolean observed;
+
+        @Override
+        public double getPathValue(Node node, double parentValue) {
+            if (node.isRoot()) {
+                return parentValue;
+            }
+            double[] lps = getTransLogProbabilities(dd, nn, node.getParent(), node);
+            return parentValue + lps[ACTUAL_INDEX] - lps[PROPOSAL_INDEX];
+        }
+
+        @Override
+        public boolean isCandidate(Node node) {
+            return true;
+        }
+
+        @Override
+        public double getScore(Node node, double pathValue) {
+            double[] lps = getTransLogProbabilities(dd, nn, node, node);
+            double score = pathValue - lps[PROPOSAL_INDEX]
+                    + Math.log(node.getPhi(words[dd][nn]));
+            if (observed) {
+                score += getResponseLogLikelihood(dd, node);
+            }
+            return score;
+        }
     }
 
     /**
@@ -1153,49 +1194,48 @@ public class SNLDA extends AbstractSampler {
             logln("--- Outputing current state to " + filepath);
         }
 
-        // model string
-        StringBuilder modelStr = new StringBuilder();
-        Stack<Node> stack = new Stack<>();
-        stack.add(root);
-        while (!stack.isEmpty()) {
-            Node node = stack.pop();
-            modelStr.append(Integer.toString(node.born)).append("\n");
-            modelStr.append(node.getPathString()).append("\n");
-            modelStr.append(node.eta).append("\n");
-            modelStr.append(node.pi).append("\n");
-            modelStr.append(SparseCount.output(node.tokenCounts)).append("\n");
-            modelStr.append(SparseCount.output(node.subtreeTokenCounts)).append("\n");
-            if (node.theta != null) {
-                modelStr.append(MiscUtils.arrayToString(node.theta));
-            }
-            modelStr.append("\n");
-            modelStr.append(DirMult.output(node.getContent())).append("\n");
-            for (Node child : node.getChildren()) {
-                stack.add(child);
+        // model
+        StateEntryWriter modelWriter = new StateEntryWriter() {
+            @Override
+            public void write(BufferedWriter writer) throws IOException {
+                Stack<Node> stack = new Stack<>();
+                stack.add(root);
+                while (!stack.isEmpty()) {
+                    Node node = stack.pop();
+                    writer.write(Integer.toString(node.born) + "\n");
+                    writer.write(node.getPathString() + "\n");
+                    writer.write(node.eta + "\n");
+                    writer.write(node.pi + "\n");
+                    writer.write(SparseCount.output(node.tokenCounts) + "\n");
+                    writer.write(SparseCount.output(node.subtreeTokenCounts) + "\n");
+                    if (node.theta != null) {
+                        writer.write(MiscUtils.arrayToString(node.theta));
+                    }
+                    writer.write("\n");
+                    writer.write(DirMult.output(node.getContent()) + "\n");
+                    for (Node child : node.getChildren()) {
+                        stack.add(child);
+                    }
+                }
             }
-        }
-
-        // assignment string
-        StringBuilder assignStr = new StringBuilder();
-        for (int dd = 0; dd < z.length; dd++) {
-            for (int nn = 0; nn < z[dd].length; nn++) {
-                assignStr.append(dd)
-                        .append("\t").append(nn)
-                        .append("\t").append(z[dd][nn].getPathString()).append("\n");
+        };
+
+        // assignments
+        StateEntryWriter assignWriter = new StateEntryWriter() {
+            @Override
+            public void write(BufferedWriter writer) throws IOException {
+                for (int dd = 0; dd < z.length; dd++) {
+                    for (int nn = 0; nn < z[dd].length; nn++) {
+                        writer.write(dd
+                                + "\t" + nn
+                                + "\t" + z[dd][nn].getPathString() + "\n");
+                    }
+                }
             }
-        }
-
-        try { // output to a compressed file
-            ArrayList<String> contentStrs = new ArrayList<>();
-            contentStrs.add(modelStr.toString());
-            contentStrs.add(assignStr.toString());
-
-            String filename = IOUtils.removeExtension(IOUtils.getFilename(filepath));
-            ArrayList<String> entryFiles = new ArrayList<>();
-            entryFiles.add(filename + ModelFileExt);
-            entryFiles.add(filename + AssignmentFileExt);
+        };
 
-            this.outputZipFile(filepath, contentStrs, entryFiles);
+        try { // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing to " + filepath);
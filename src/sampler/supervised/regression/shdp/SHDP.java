@@ -1,11 +1,11 @@
 package sampler.supervised.regression.shdp;
 
-import cc.mallet.types.Dirichlet;
 import core.AbstractSampler;
 import data.ResponseTextDataset;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -20,6 +20,7 @@ import sampling.util.SparseCount;
 import util.IOUtils;
 import util.MiscUtils;
 import util.PredictionUtils;
+import util.RandomUtils;
 import util.RankingItem;
 import util.SamplerUtils;
 import util.SparseVector;
@@ -614,8 +615,7 @@ public class SHDP extends AbstractSampler implements Regressor<ResponseTextDatas
         indices.add(NEW_COMPONENT_INDEX);
         dirPrior[idx] = hyperparams.get(ALPHA_GLOBAL);
 
-        Dirichlet dir = new Dirichlet(dirPrior);
-        double[] wts = dir.nextDistribution();
+        double[] wts = RandomUtils.nextDirichlet(RandomUtils.get(), dirPrior);
         this.sbpWeights = new SparseVector();
         for (int ii = 0; ii < wts.length; ii++) {
             this.sbpWeights.set(indices.get(ii), wts[ii]);
@@ -768,27 +768,35 @@ public class SHDP extends AbstractSampler implements Regressor<ResponseTextDatas
         }
         try {
             // model
-            StringBuilder modelStr = new StringBuilder();
-            for (int k : topicWords.getSortedIndices()) {
-                modelStr.append(k).append("\n");
-                Topic component = topicWords.getComponent(k);
-                modelStr.append(sbpWeights.get(k)).append("\n");
-                modelStr.append(component.regParam).append("\n");
-                modelStr.append(DirMult.output(component.topic)).append("\n");
-            }
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int k : topicWords.getSortedIndices()) {
+                        writer.write(k + "\n");
+                        Topic component = topicWords.getComponent(k);
+                        writer.write(sbpWeights.get(k) + "\n");
+                        writer.write(component.regParam + "\n");
+                        writer.write(DirMult.output(component.topic) + "\n");
+                    }
+                }
+            };
 
             // assignments
-            StringBuilder assignStr = new StringBuilder();
-            for (int d = 0; d < D; d++) {
-                assignStr.append(d).append("\n");
-                for (int n = 0; n < words[d].length; n++) {
-                    assignStr.append(z[d][n]).append("\t");
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int d = 0; d < D; d++) {
+                        writer.write(d + "\n");
+                        for (int n = 0; n < words[d].length; n++) {
+                            writer.write(z[d][n] + "\t");
+                        }
+                        writer.write("\n");
+                    }
                 }
-                assignStr.append("\n");
-            }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing to " + filepath);
@@ -6,9 +6,10 @@ import data.ResponseTextDataset;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import optimization.GurobiMLRL2Norm;
+import optimization.RidgeLinearRegressionCG;
 import regression.Regressor;
 import sampler.LDA;
 import sampling.likelihood.DirMult;
@@ -18,6 +19,7 @@ import util.IOUtils;
 import util.MiscUtils;
 import util.PredictionUtils;
 import util.SamplerUtils;
+import util.SparseVector;
 import util.StatUtils;
 import util.evaluation.Measurement;
 import util.evaluation.MimnoTopicCoherence;
@@ -824,7 +826,7 @@ public class SHDP_CRF extends AbstractSampler implements Regressor<ResponseTextD
     }
 
     /**
-     * Optimize the regression parameters using L-BFGS
+     * Optimize the regression parameters, starting from their current values
      */
     private void optimize() {
         int numDishes = globalRestaurant.getNumTables();
@@ -833,7 +835,7 @@ public class SHDP_CRF extends AbstractSampler implements Regressor<ResponseTextD
             dishes.add(dish);
         }
 
-        double[][] designMatrix = new double[D][numDishes];
+        SparseVector[] designMatrix = new SparseVector[D];
         for (int d = 0; d < D; d++) {
             int[] dishCount = new int[numDishes];
             for (SHDPTable table : localRestaurants[d].getTables()) {
@@ -841,15 +843,26 @@ public class SHDP_CRF extends AbstractSampler implements Regressor<ResponseTextD
                 dishCount[dishIdx] += table.getNumCustomers();
             }
 
+            designMatrix[d] = new SparseVector(numDishes);
             for (int i = 0; i < dishes.size(); i++) {
-                designMatrix[d][i] = (double) dishCount[i] / words[d].length;
+                if (dishCount[i] > 0) {
+                    designMatrix[d].set(i, (double) dishCount[i] / words[d].length);
+                }
             }
         }
 
-        GurobiMLRL2Norm mlr = new GurobiMLRL2Norm(designMatrix, responses);
+        double[] curParams = new double[numDishes];
+        for (int ii = 0; ii < dishes.size(); ii++) {
+            curParams[ii] = dishes.get(ii).getRegressionParameter();
+        }
+
+        RidgeLinearRegressionCG mlr = new RidgeLinearRegressionCG(designMatrix,
+                responses, numDishes);
         mlr.setRho(hyperparams.get(RHO));
         mlr.setMean(hyperparams.get(MU));
         mlr.setSigma(hyperparams.get(SIGMA));
+        mlr.setInitialWeights(curParams);
+        mlr.setNumThreads(getNumThreads());
         double[] newParams = mlr.solve();
         for (int ii = 0; ii < dishes.size(); ii++) {
             dishes.get(ii).setRegressionParameter(newParams[ii]);
@@ -1108,45 +1121,49 @@ public class SHDP_CRF extends AbstractSampler implements Regressor<ResponseTextD
 
         try {
             // model
-            StringBuilder modelStr = new StringBuilder();
-            modelStr.append(globalRestaurant.getNumTables()).append("\n");
-            for (SHDPDish dish : globalRestaurant.getTables()) {
-                modelStr.append(dish.getIndex()).append("\n");
-                modelStr.append(dish.getIterationCreated()).append("\n");
-                modelStr.append(dish.getNumCustomers()).append("\n");
-                modelStr.append(dish.getRegressionParameter()).append("\n");
-                modelStr.append(DirMult.output(dish.getContent())).append("\n");
-            }
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    writer.write(globalRestaurant.getNumTables() + "\n");
+                    for (SHDPDish dish : globalRestaurant.getTables()) {
+                        writer.write(dish.getIndex() + "\n");
+                        writer.write(dish.getIterationCreated() + "\n");
+                        writer.write(dish.getNumCustomers() + "\n");
+                        writer.write(dish.getRegressionParameter() + "\n");
+                        writer.write(DirMult.output(dish.getContent()) + "\n");
+                    }
+                }
+            };
 
             // assignments
-            StringBuilder assignStr = new StringBuilder();
-            for (int d = 0; d < D; d++) {
-                assignStr.append(d)
-                        .append("\t").append(localRestaurants[d].getNumTables())
-                        .append("\n");
-                for (SHDPTable table : localRestaurants[d].getTables()) {
-                    assignStr.append(table.getIndex()).append("\n");
-                    assignStr.append(table.getIterationCreated()).append("\n");
-                    assignStr.append(table.getContent().getIndex()).append("\n");
-
-                    assignStr.append(Integer.toString(table.getNumCustomers()));
-                    for (int n : table.getCustomers()) {
-                        assignStr.append("\t").append(n);
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int d = 0; d < D; d++) {
+                        writer.write(d + "\t" + localRestaurants[d].getNumTables() + "\n");
+                        for (SHDPTable table : localRestaurants[d].getTables()) {
+                            writer.write(table.getIndex() + "\n");
+                            writer.write(table.getIterationCreated() + "\n");
+                            writer.write(table.getContent().getIndex() + "\n");
+
+                            writer.write(Integer.toString(table.getNumCustomers()));
+                            for (int n : table.getCustomers()) {
+                                writer.write("\t" + n);
+                            }
+                            writer.write("\n");
+                        }
                     }
-                    assignStr.append("\n");
-                }
-            }
 
-            for (int d = 0; d < D; d++) {
-                for (int n = 0; n < words[d].length; n++) {
-                    assignStr.append(d).append(":").append(n)
-                            .append("\t").append(z[d][n].getIndex())
-                            .append("\n");
+                    for (int d = 0; d < D; d++) {
+                        for (int n = 0; n < words[d].length; n++) {
+                            writer.write(d + ":" + n + "\t" + z[d][n].getIndex() + "\n");
+                        }
+                    }
                 }
-            }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
@@ -3,14 +3,17 @@ package sampler.supervised.regression.slda;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import optimization.GurobiMLRL2Norm;
+import optimization.RidgeLinearRegressionCG;
 import sampling.likelihood.DirMult;
+import sampling.util.DeltaState;
 import util.IOUtils;
 import util.MiscUtils;
 import util.RankingItem;
 import util.SamplerUtils;
+import util.SparseVector;
 import util.StatUtils;
 
 /**
@@ -19,6 +22,10 @@ import util.StatUtils;
  */
 public class LexicalSLDA extends SLDA {
 
+    // sparse rows of the design matrix: the first K columns are the empirical
+    // topic distributions and the last V columns are the word frequencies
+    protected SparseVector[] sparseDesignMatrix;
+
     public void configure(LexicalSLDA sampler) {
         this.configure(sampler.folder,
                 sampler.V,
@@ -66,11 +73,12 @@ public class LexicalSLDA extends SLDA {
     @Override
     protected void initializeDataStructure() {
         super.initializeDataStructure();
-        designMatrix = new double[D][K + V];
+        sparseDesignMatrix = new SparseVector[D];
         for (int d = 0; d < D; d++) {
+            sparseDesignMatrix[d] = new SparseVector(K + V);
             double denom = 1.0 / words[d].length;
             for (int n = 0; n < words[d].length; n++) {
-                designMatrix[d][K + words[d][n]] += denom;
+                sparseDesignMatrix[d].change(K + words[d][n], denom);
             }
         }
     }
@@ -162,12 +170,13 @@ public class LexicalSLDA extends SLDA {
 
             // store model
             if (report && iter > BURN_IN && iter % LAG == 0) {
-                outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
+                outputCheckpoint(iter);
             }
         }
 
         if (report) { // output the final model
-            outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
+            outputCheckpoint(iter);
+            flushCheckpoints();
         }
 
         float ellapsedSeconds = (System.currentTimeMillis() - startTime) / (1000);
@@ -188,6 +197,7 @@ public class LexicalSLDA extends SLDA {
         }
         if (removeFromData) {
             docTopics[d].decrement(z[d][n]);
+            topicDesignMatrix.decrement(d, z[d][n]);
             docRegressMeans[d] -= regParams[z[d][n]] * K / (words[d].length * V);
         }
 
@@ -214,6 +224,7 @@ public class LexicalSLDA extends SLDA {
         }
         if (addToData) {
             docTopics[d].increment(z[d][n]);
+            topicDesignMatrix.increment(d, z[d][n]);
             docRegressMeans[d] += regParams[z[d][n]] * K / (words[d].length * V);
         }
     }
@@ -223,11 +234,16 @@ public class LexicalSLDA extends SLDA {
         for (int d = 0; d < D; d++) {
             double[] empDist = docTopics[d].getEmpiricalDistribution();
             for (int k = 0; k < K; k++) {
-                designMatrix[d][k] = empDist[k] * K / V;
+                if (empDist[k] != 0) {
+                    sparseDesignMatrix[d].set(k, empDist[k] * K / V);
+                } else {
+                    sparseDesignMatrix[d].remove(k);
+                }
             }
         }
 
-        GurobiMLRL2Norm mlr = new GurobiMLRL2Norm(designMatrix, responses);
+        RidgeLinearRegressionCG mlr = new RidgeLinearRegressionCG(sparseDesignMatrix,
+                responses, K + V);
         mlr.setRho(hyperparams.get(RHO));
         double[] means = new double[V + K];
         double[] sigmas = new double[V + K];
@@ -237,6 +253,8 @@ public class LexicalSLDA extends SLDA {
         }
         mlr.setMeans(means);
         mlr.setSigmas(sigmas);
+        mlr.setInitialWeights(regParams); // warm start
+        mlr.setNumThreads(getNumThreads());
         double[] params = mlr.solve();
         System.arraycopy(params, 0, regParams, 0, V + K);
 
@@ -248,9 +266,7 @@ public class LexicalSLDA extends SLDA {
     protected void updatePredictionValues() {
         this.docRegressMeans = new double[D];
         for (int d = 0; d < D; d++) {
-            for (int ii = 0; ii < K + V; ii++) {
-                docRegressMeans[d] += regParams[ii] * designMatrix[d][ii];
-            }
+            docRegressMeans[d] = sparseDesignMatrix[d].dotProduct(regParams);
         }
     }
 
@@ -339,30 +355,38 @@ public class LexicalSLDA extends SLDA {
 
         try {
             // model
-            StringBuilder modelStr = new StringBuilder();
-            for (int k = 0; k < K; k++) {
-                modelStr.append(k).append("\n");
-                modelStr.append(DirMult.output(topicWords[k])).append("\n");
-            }
-            for (int ii = 0; ii < V + K; ii++) {
-                modelStr.append(ii).append("\n");
-                modelStr.append(regParams[ii]).append("\n");
-            }
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int k = 0; k < K; k++) {
+                        writer.write(k + "\n");
+                        writer.write(DirMult.output(topicWords[k]) + "\n");
+                    }
+                    for (int ii = 0; ii < V + K; ii++) {
+                        writer.write(ii + "\n");
+                        writer.write(regParams[ii] + "\n");
+                    }
+                }
+            };
 
             // assignments
-            StringBuilder assignStr = new StringBuilder();
-            for (int d = 0; d < D; d++) {
-                assignStr.append(d).append("\n");
-                assignStr.append(DirMult.output(docTopics[d])).append("\n");
-
-                for (int n = 0; n < words[d].length; n++) {
-                    assignStr.append(z[d][n]).append("\t");
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int d = 0; d < D; d++) {
+                        writer.write(d + "\n");
+                        writer.write(DirMult.output(docTopics[d]) + "\n");
+
+                        for (int n = 0; n < words[d].length; n++) {
+                            writer.write(z[d][n] + "\t");
+                        }
+                        writer.write("\n");
+                    }
                 }
-                assignStr.append("\n");
-            }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing to " + filepath);
@@ -374,6 +398,17 @@ public class LexicalSLDA extends SLDA {
         if (verbose) {
             logln("--- --- Loading model from " + zipFilepath);
         }
+        if (isDeltaState(zipFilepath)) {
+            try {
+                inputModel(DeltaState.getBaseState(zipFilepath));
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while inputing model from "
+                        + zipFilepath);
+            }
+            applyDeltaStates(zipFilepath, true);
+            return;
+        }
 
         try {
             // initialize
@@ -436,76 +471,29 @@ public class LexicalSLDA extends SLDA {
         }
     }
 
-    public static void parallelTest(int[][] newWords, File iterPredFolder, LexicalSLDA sampler) {
-        // debug
-        System.out.println("Parallel test in LexicalSLDA");
-
-        File reportFolder = new File(sampler.getSamplerFolderPath(), ReportFolder);
-        if (!reportFolder.exists()) {
-            throw new RuntimeException("Report folder not found. " + reportFolder);
-        }
-        String[] filenames = reportFolder.list();
-        try {
-            IOUtils.createFolder(iterPredFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
-            for (int i = 0; i < filenames.length; i++) {
-                String filename = filenames[i];
-                if (!filename.contains("zip")) {
-                    continue;
-                }
-
-                File stateFile = new File(reportFolder, filename);
-                File partialResultFile = new File(iterPredFolder,
-                        IOUtils.removeExtension(filename) + ".txt");
-                LexicalSLDATestRunner runner = new LexicalSLDATestRunner(
-                        sampler, newWords,
-                        stateFile.getAbsolutePath(),
-                        partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
-            }
-
-            runThreads(threads);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException("Exception while sampling during parallel test.");
-        }
-    }
-}
-
-class LexicalSLDATestRunner implements Runnable {
-
-    LexicalSLDA sampler;
-    int[][] newWords;
-    String stateFile;
-    String outputFile;
-
-    public LexicalSLDATestRunner(LexicalSLDA sampler,
-            int[][] newWords,
-            String stateFile,
-            String outputFile) {
-        this.sampler = sampler;
-        this.newWords = newWords;
-        this.stateFile = stateFile;
-        this.outputFile = outputFile;
-    }
-
     @Override
-    public void run() {
+    protected SLDA createTestSampler() {
         LexicalSLDA testSampler = new LexicalSLDA();
-        testSampler.setVerbose(true);
+        testSampler.setVerbose(false);
         testSampler.setDebug(false);
         testSampler.setLog(false);
         testSampler.setReport(false);
-        testSampler.configure(sampler);
-        testSampler.setTestConfigurations(sampler.getBurnIn(),
-                sampler.getMaxIters(), sampler.getSampleLag());
+        testSampler.configure(this);
+        testSampler.setTestConfigurations(getBurnIn(), getMaxIters(), getSampleLag());
+        return testSampler;
+    }
 
-        try {
-            testSampler.sampleNewDocuments(stateFile, newWords, outputFile);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException();
-        }
+    /**
+     * Run Gibbs sampling on test data using multiple models learned which are
+     * stored in the ReportFolder (see
+     * {@link SLDA#parallelTest(int[][], java.io.File, SLDA)}).
+     *
+     * @param newWords Words of new documents
+     * @param iterPredFolder Output folder
+     * @param sampler The configured sampler
+     * @return The predicted responses averaged over all models
+     */
+    public static double[] parallelTest(int[][] newWords, File iterPredFolder, LexicalSLDA sampler) {
+        return SLDA.parallelTest(newWords, iterPredFolder, sampler);
     }
-}
\ No newline at end of file
+}
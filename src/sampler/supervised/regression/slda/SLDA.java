@@ -1,21 +1,25 @@
 package sampler.supervised.regression.slda;
 
-import cc.mallet.optimize.LimitedMemoryBFGS;
 import core.AbstractExperiment;
 import core.AbstractSampler;
 import data.ResponseTextDataset;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import optimization.GurobiMLRL2Norm;
+import optimization.TopicRegressionLBFGS;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
 import regression.Regressor;
 import sampler.LDA;
-import sampler.supervised.objective.GaussianIndLinearRegObjective;
 import sampling.likelihood.DirMult;
+import sampling.util.DeltaState;
+import sampling.util.MultiStatePredictor;
+import sampling.util.TopicDesignMatrix;
 import util.CLIUtils;
 import util.IOUtils;
 import util.MiscUtils;
@@ -52,6 +56,8 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
     // optimization
     protected double[] docRegressMeans;
     protected double[][] designMatrix;
+    protected TopicDesignMatrix topicDesignMatrix; // updated with docTopics
+    private TopicRegressionLBFGS regressionOptimizer;
     // topical regression
     protected double[] regParams;
     // internal
@@ -261,6 +267,13 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
             docTopics[d] = new DirMult(K, hyperparams.get(ALPHA) * K, 1.0 / K);
         }
 
+        int[] docLengths = new int[D];
+        for (int d = 0; d < D; d++) {
+            docLengths[d] = words[d].length;
+        }
+        topicDesignMatrix = new TopicDesignMatrix(K, docLengths);
+        regressionOptimizer = null;
+
         docRegressMeans = new double[D];
     }
 
@@ -282,6 +295,7 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
             for (int n = 0; n < words[d].length; n++) {
                 z[d][n] = rand.nextInt(K);
                 docTopics[d].increment(z[d][n]);
+                topicDesignMatrix.increment(d, z[d][n]);
                 topicWords[z[d][n]].increment(words[d][n]);
             }
         }
@@ -331,6 +345,7 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
             for (int n = 0; n < words[d].length; n++) {
                 z[d][n] = ldaZ[d][n];
                 docTopics[d].increment(z[d][n]);
+                topicDesignMatrix.increment(d, z[d][n]);
                 topicWords[z[d][n]].increment(words[d][n]);
             }
         }
@@ -422,12 +437,13 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
 
             // store model
             if (report && iter > BURN_IN && iter % LAG == 0) {
-                outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
+                outputCheckpoint(iter);
             }
         }
 
         if (report) { // output the final model
-            outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
+            outputCheckpoint(iter);
+            flushCheckpoints();
         }
 
         float ellapsedSeconds = (System.currentTimeMillis() - startTime) / (1000);
@@ -460,6 +476,7 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
                 }
                 if (removeFromData) {
                     docTopics[d].decrement(z[d][n]);
+                    topicDesignMatrix.decrement(d, z[d][n]);
                     docRegressMeans[d] -= regParams[z[d][n]] / words[d].length;
                 }
 
@@ -487,6 +504,7 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
                 }
                 if (addToData) {
                     docTopics[d].increment(z[d][n]);
+                    topicDesignMatrix.increment(d, z[d][n]);
                     docRegressMeans[d] += regParams[z[d][n]] / words[d].length;
                 }
             }
@@ -513,6 +531,7 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
         }
         if (removeFromData) {
             docTopics[d].decrement(z[d][n]);
+            topicDesignMatrix.decrement(d, z[d][n]);
             docRegressMeans[d] -= regParams[z[d][n]] / words[d].length;
         }
 
@@ -539,6 +558,7 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
         }
         if (addToData) {
             docTopics[d].increment(z[d][n]);
+            topicDesignMatrix.increment(d, z[d][n]);
             docRegressMeans[d] += regParams[z[d][n]] / words[d].length;
         }
     }
@@ -553,39 +573,27 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
         }
     }
 
+    /**
+     * Optimize the regression parameters using L-BFGS, starting from their
+     * current values and reusing the L-BFGS memory of the previous update.
+     */
     private void optimizeTopicRegressionParametersLBFGS() {
-        designMatrix = new double[D][K];
-        for (int d = 0; d < D; d++) {
-            designMatrix[d] = docTopics[d].getEmpiricalDistribution();
-        }
-
-        GaussianIndLinearRegObjective optimizable = new GaussianIndLinearRegObjective(
-                regParams, designMatrix, responses,
-                hyperparams.get(RHO),
-                hyperparams.get(MU),
-                hyperparams.get(SIGMA));
-
-        LimitedMemoryBFGS optimizer = new LimitedMemoryBFGS(optimizable);
-        boolean converged = false;
-        try {
-            converged = optimizer.optimize();
-        } catch (Exception ex) {
-            // This exception may be thrown if L-BFGS
-            //  cannot step in the current direction.
-            // This condition does not necessarily mean that
-            //  the optimizer has failed, but it doesn't want
-            //  to claim to have succeeded... 
-            // do nothing
-            ex.printStackTrace();
+        if (regressionOptimizer == null) {
+            regressionOptimizer = new TopicRegressionLBFGS(topicDesignMatrix,
+                    responses,
+                    hyperparams.get(RHO),
+                    hyperparams.get(MU),
+                    hyperparams.get(SIGMA));
+        } else {
+            regressionOptimizer.setRho(hyperparams.get(RHO));
+            regressionOptimizer.setPrior(hyperparams.get(MU), hyperparams.get(SIGMA));
         }
+        regressionOptimizer.setNumThreads(getNumThreads());
+        boolean converged = regressionOptimizer.optimize(regParams);
 
         if (verbose) {
-            logln("--- converged? " + converged);
-        }
-
-        // update regression parameters
-        for (int kk = 0; kk < K; kk++) {
-            regParams[kk] = optimizable.getParameter(kk);
+            logln("--- converged? " + converged
+                    + ". # iterations: " + regressionOptimizer.getNumIterations());
         }
 
         // update current predictions
@@ -614,8 +622,7 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
     protected void updatePredictionValues() {
         this.docRegressMeans = new double[D];
         for (int d = 0; d < D; d++) {
-            double[] empDist = docTopics[d].getEmpiricalDistribution();
-            this.docRegressMeans[d] = StatUtils.dotProduct(regParams, empDist);
+            this.docRegressMeans[d] = topicDesignMatrix.dotProduct(d, regParams);
         }
     }
 
@@ -715,6 +722,7 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
     public void validate(String msg) {
         for (int d = 0; d < D; d++) {
             docTopics[d].validate(msg);
+            topicDesignMatrix.validate(d, docTopics[d].getCounts(), msg);
         }
         for (int k = 0; k < K; k++) {
             topicWords[k].validate(msg);
@@ -731,6 +739,40 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
         this.inputModel(samplerFile.getAbsolutePath());
     }
 
+    @Override
+    protected int[][] getCheckpointAssignments() {
+        return z;
+    }
+
+    @Override
+    protected int[][] getCheckpointWords() {
+        return words;
+    }
+
+    @Override
+    protected void changeAssignment(int dd, int nn, int vv, int oldTopic,
+            int newTopic, boolean modelOnly) {
+        topicWords[oldTopic].decrement(vv);
+        topicWords[newTopic].increment(vv);
+        if (!modelOnly) {
+            docTopics[dd].decrement(oldTopic);
+            docTopics[dd].increment(newTopic);
+            topicDesignMatrix.decrement(dd, oldTopic);
+            topicDesignMatrix.increment(dd, newTopic);
+            z[dd][nn] = newTopic;
+        }
+    }
+
+    @Override
+    protected void outputDeltaParameters(DeltaState delta) {
+        delta.setParameters("regParams", regParams);
+    }
+
+    @Override
+    protected void inputDeltaParameters(DeltaState delta) {
+        regParams = delta.getParameters("regParams");
+    }
+
     @Override
     public void outputState(String filepath) {
         if (verbose) {
@@ -739,27 +781,35 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
 
         try {
             // model
-            StringBuilder modelStr = new StringBuilder();
-            for (int k = 0; k < K; k++) {
-                modelStr.append(k).append("\n");
-                modelStr.append(regParams[k]).append("\n");
-                modelStr.append(DirMult.output(topicWords[k])).append("\n");
-            }
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int k = 0; k < K; k++) {
+                        writer.write(k + "\n");
+                        writer.write(regParams[k] + "\n");
+                        writer.write(DirMult.output(topicWords[k]) + "\n");
+                    }
+                }
+            };
 
             // assignments
-            StringBuilder assignStr = new StringBuilder();
-            for (int d = 0; d < D; d++) {
-                assignStr.append(d).append("\n");
-                assignStr.append(DirMult.output(docTopics[d])).append("\n");
-
-                for (int n = 0; n < words[d].length; n++) {
-                    assignStr.append(z[d][n]).append("\t");
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int d = 0; d < D; d++) {
+                        writer.write(d + "\n");
+                        writer.write(DirMult.output(docTopics[d]) + "\n");
+
+                        for (int n = 0; n < words[d].length; n++) {
+                            writer.write(z[d][n] + "\t");
+                        }
+                        writer.write("\n");
+                    }
                 }
-                assignStr.append("\n");
-            }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing to " + filepath);
@@ -773,9 +823,14 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
         }
 
         try {
-            inputModel(filepath);
+            if (isDeltaState(filepath)) {
+                inputState(DeltaState.getBaseState(filepath));
+                applyDeltaStates(filepath, false);
+            } else {
+                inputModel(filepath);
 
-            inputAssignments(filepath);
+                inputAssignments(filepath);
+            }
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
@@ -788,6 +843,17 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
         if (verbose) {
             logln("--- --- Loading model from " + zipFilepath);
         }
+        if (isDeltaState(zipFilepath)) {
+            try {
+                inputModel(DeltaState.getBaseState(zipFilepath));
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while inputing model from "
+                        + zipFilepath);
+            }
+            applyDeltaStates(zipFilepath, true);
+            return;
+        }
 
         try {
             // initialize
@@ -828,6 +894,7 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
                     throw new RuntimeException("Indices mismatch when loading assignments");
                 }
                 docTopics[d] = DirMult.input(reader.readLine());
+                topicDesignMatrix.setRow(d, docTopics[d].getSparseCounts());
 
                 String[] sline = reader.readLine().split("\t");
                 for (int n = 0; n < words[d].length; n++) {
@@ -932,7 +999,7 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
             IOUtils.createFolder(iterPredFolder);
             for (int i = 0; i < filenames.length; i++) {
                 String filename = filenames[i];
-                if (!filename.contains("zip")) {
+                if (!isReportState(filename)) {
                     continue;
                 }
 
@@ -972,6 +1039,27 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
         // input model
         inputModel(stateFile);
 
+        // sample
+        ArrayList<double[]> predResponsesList = sampleNewDocuments(newWords);
+
+        // output result during test time
+        if (verbose) {
+            logln("--- Outputing result to " + outputResultFile);
+        }
+        PredictionUtils.outputSingleModelRegressions(
+                new File(outputResultFile),
+                predResponsesList);
+    }
+
+    /**
+     * Perform sampling on test documents using the current model, which is
+     * not changed.
+     *
+     * @param newWords Test documents
+     * @return The predicted responses of the test documents at each test
+     * sample
+     */
+    protected ArrayList<double[]> sampleNewDocuments(int[][] newWords) {
         words = newWords;
         responses = null; // for evaluation
         D = words.length;
@@ -1051,14 +1139,58 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
             logln("\t--- docTopics: " + docTopics.length + ". " + docTopicCount);
             logln("\t--- topicWords: " + topicWords.length + ". " + topicWordCount);
         }
+        return predResponsesList;
+    }
 
-        // output result during test time
-        if (verbose) {
-            logln("--- Outputing result to " + outputResultFile);
-        }
-        PredictionUtils.outputSingleModelRegressions(
-                new File(outputResultFile),
-                predResponsesList);
+    /**
+     * Create a sampler with the same configuration as this sampler, which is
+     * used to load a learned model or to sample test documents.
+     */
+    protected SLDA createTestSampler() {
+        SLDA testSampler = new SLDA();
+        testSampler.setVerbose(false);
+        testSampler.setDebug(false);
+        testSampler.setLog(false);
+        testSampler.setReport(false);
+        testSampler.configure(this);
+        testSampler.setTestConfigurations(getBurnIn(), getMaxIters(), getSampleLag());
+        return testSampler;
+    }
+
+    /**
+     * Return a predictor for test documents using the models learned by this
+     * sampler. Test documents are sampled by separate samplers sharing the
+     * topics and the regression parameters of a loaded model, which are not
+     * changed during test time. The prediction for a document consists of its
+     * predicted responses at each test sample.
+     *
+     * @param newWords Test documents
+     */
+    public MultiStatePredictor.Predictor<SLDA> getTestPredictor(final int[][] newWords) {
+        return new MultiStatePredictor.Predictor<SLDA>() {
+            @Override
+            public SLDA loadModel(String stateFile) {
+                SLDA model = createTestSampler();
+                model.inputModel(stateFile);
+                return model;
+            }
+
+            @Override
+            public double[][] predict(SLDA model, int start, int end) {
+                SLDA testSampler = createTestSampler();
+                testSampler.topicWords = model.topicWords;
+                testSampler.regParams = model.regParams;
+                ArrayList<double[]> predResponsesList = testSampler.sampleNewDocuments(
+                        Arrays.copyOfRange(newWords, start, end));
+                double[][] preds = new double[end - start][predResponsesList.size()];
+                for (int ii = 0; ii < predResponsesList.size(); ii++) {
+                    for (int d = 0; d < end - start; d++) {
+                        preds[d][ii] = predResponsesList.get(ii)[d];
+                    }
+                }
+                return preds;
+            }
+        };
     }
     // End prediction ----------------------------------------------------------
 
@@ -1077,13 +1209,17 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
 
     /**
      * Run Gibbs sampling on test data using multiple models learned which are
-     * stored in the ReportFolder. The runs on multiple models are parallel.
+     * stored in the ReportFolder. The models are loaded once and shared by
+     * parallel tasks, each sampling a chunk of test documents (see
+     * {@link MultiStatePredictor}). The predictions of each model are output to
+     * the given folder and averaged in memory.
      *
      * @param newWords Words of new documents
      * @param iterPredFolder Output folder
      * @param sampler The configured sampler
+     * @return The predicted responses averaged over all models
      */
-    public static void parallelTest(int[][] newWords, File iterPredFolder, SLDA sampler) {
+    public static double[] parallelTest(int[][] newWords, File iterPredFolder, SLDA sampler) {
         File reportFolder = new File(sampler.getSamplerFolderPath(), ReportFolder);
         if (!reportFolder.exists()) {
             throw new RuntimeException("Report folder not found. " + reportFolder);
@@ -1091,26 +1227,36 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPredFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
-            for (int i = 0; i < filenames.length; i++) {
-                String filename = filenames[i];
-                if (!filename.contains("zip")) {
+            ArrayList<String> stateFiles = new ArrayList<String>();
+            ArrayList<File> partialResultFiles = new ArrayList<File>();
+            for (String filename : filenames) {
+                if (!isReportState(filename)) {
                     continue;
                 }
-
-                File stateFile = new File(reportFolder, filename);
-                File partialResultFile = new File(iterPredFolder,
-                        IOUtils.removeExtension(filename) + ".txt");
-                SLDATestRunner runner = new SLDATestRunner(sampler,
-                        newWords, stateFile.getAbsolutePath(),
-                        partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                stateFiles.add(new File(reportFolder, filename).getAbsolutePath());
+                partialResultFiles.add(new File(iterPredFolder,
+                        IOUtils.removeExtension(filename) + ".txt"));
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
-            runThreads(threads);
+            // use all processors unless the number of threads is set
+            int numThreads = sampler.getNumThreads() > 1 ? sampler.getNumThreads()
+                    : Runtime.getRuntime().availableProcessors();
+            MultiStatePredictor<SLDA> predictor = new MultiStatePredictor<SLDA>(
+                    sampler.getTestPredictor(newWords), numThreads);
+            predictor.predict(stateFiles, newWords.length);
+
+            for (int ss = 0; ss < predictor.getNumStates(); ss++) {
+                PredictionUtils.outputSingleModelRegressions(
+                        partialResultFiles.get(ss),
+                        predictor.getPredictions(ss));
+            }
 
+            double[][] avgPreds = predictor.getAveragePredictions();
+            double[] predResponses = new double[newWords.length];
+            for (int d = 0; d < newWords.length; d++) {
+                predResponses[d] = StatUtils.mean(avgPreds[d]);
+            }
+            return predResponses;
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while sampling during parallel test.");
@@ -1134,6 +1280,8 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
         addOption("format-file", "Format file");
 
         addSamplingOptions();
+        addOption("delta-checkpoints", "Number of delta states written "
+                + "between two full states (default: 0)");
 
         addOption("alpha", "alpha");
         addOption("beta", "beta");
@@ -1232,6 +1380,7 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
         sampler.setReport(true);
         sampler.setWordVocab(data.getWordVocab());
         sampler.setOptimizerType(optType);
+        sampler.setDeltaCheckpoints(CLIUtils.getIntegerArgument(cmd, "delta-checkpoints", 0));
 
         sampler.configure(resultFolder,
                 data.getWordVocab().size(), K,
@@ -1258,9 +1407,10 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
             IOUtils.createFolder(evaluationFolder);
 
             // test in parallel
-            SLDA.parallelTest(data.getWords(), predictionFolder, sampler);
+            double[] predictions = SLDA.parallelTest(data.getWords(),
+                    predictionFolder, sampler);
 
-            double[] predictions = PredictionUtils.evaluateRegression(
+            PredictionUtils.evaluateRegression(
                     predictionFolder, evaluationFolder, data.getDocIds(),
                     data.getResponses());
 
@@ -1275,40 +1425,3 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
         }
     }
 }
-
-class SLDATestRunner implements Runnable {
-
-    SLDA sampler;
-    int[][] newWords;
-    String stateFile;
-    String outputFile;
-
-    public SLDATestRunner(SLDA sampler,
-            int[][] newWords,
-            String stateFile,
-            String outputFile) {
-        this.sampler = sampler;
-        this.newWords = newWords;
-        this.stateFile = stateFile;
-        this.outputFile = outputFile;
-    }
-
-    @Override
-    public void run() {
-        SLDA testSampler = new SLDA();
-        testSampler.setVerbose(true);
-        testSampler.setDebug(false);
-        testSampler.setLog(false);
-        testSampler.setReport(false);
-        testSampler.configure(sampler);
-        testSampler.setTestConfigurations(sampler.getBurnIn(),
-                sampler.getMaxIters(), sampler.getSampleLag());
-
-        try {
-            testSampler.sampleNewDocuments(stateFile, newWords, outputFile);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException();
-        }
-    }
-}
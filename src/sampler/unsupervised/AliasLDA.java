@@ -0,0 +1,453 @@
+package sampler.unsupervised;
+
+import core.AbstractSampler;
+import data.TextDataset;
+import java.io.File;
+import java.util.Arrays;
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.Options;
+import sampling.util.AliasTable;
+import util.CLIUtils;
+import util.IOUtils;
+import util.MiscUtils;
+
+/**
+ * Implementation of LDA using the alias-table Metropolis-Hastings sampler of
+ * LightLDA (Yuan et al., WWW 2015) and AliasLDA (Li et al., KDD 2014).
+ *
+ * For each token, word proposals and document proposals are alternated and
+ * accepted using the Metropolis-Hastings ratio against the exact collapsed
+ * Gibbs conditional. The word proposal
+ *
+ * q_w(k) ~ (n_kw + beta) / (n_k + V * beta)
+ *
+ * is decomposed into a sparse part n_kw / (n_k + V * beta), stored as one alias
+ * table per word over the topics having non-zero count, and a dense part beta /
+ * (n_k + V * beta) shared by all words. Alias tables are rebuilt lazily once
+ * they have been drawn from as many times as they have entries, so that each
+ * token costs O(1) amortized. The document proposal q_d(k) ~ n_dk + alpha is
+ * sampled in O(1) by picking a random token of the document.
+ *
+ * @author vietan
+ */
+public class AliasLDA extends LDA {
+
+    private static final long serialVersionUID = 1123581321L;
+
+    public static final int DEFAULT_NUM_MH_STEPS = 2;
+    protected int numMHSteps = DEFAULT_NUM_MH_STEPS;
+    // dense part of the word proposal
+    private AliasTable denseTable;
+    private double[] denseWeights;
+    private int denseNumDraws;
+    // sparse part of the word proposal
+    private AliasTable[] wordTables;
+    private int[][] wordTableTopics; // [V][]: sorted topics of each word table
+    private int[] wordNumDraws;
+    private double[] weightBuffer;
+    private int[] topicBuffer;
+
+    public AliasLDA() {
+        this.basename = "AliasLDA";
+    }
+
+    public AliasLDA(String basename) {
+        this.basename = basename;
+    }
+
+    public void configure(
+            String folder,
+            int V, int K,
+            double alpha,
+            double beta,
+            InitialState initState,
+            boolean paramOpt,
+            int burnin, int maxiter, int samplelag, int repInt,
+            int numMHSteps) {
+        this.numMHSteps = numMHSteps;
+        super.configure(folder, V, K, alpha, beta, initState, paramOpt,
+                burnin, maxiter, samplelag, repInt);
+        if (verbose && folder != null) {
+            logln("--- # MH steps:\t" + numMHSteps);
+        }
+    }
+
+    /**
+     * Checkpoints of this sampler are written synchronously, since the LDA
+     * snapshot would not be an AliasLDA.
+     */
+    @Override
+    protected AbstractSampler createStateSnapshot() {
+        return null;
+    }
+
+    @Override
+    protected void setName() {
+        super.setName();
+        this.name += "_mh-" + numMHSteps;
+    }
+
+    /**
+     * Sample the topic assignments for all tokens. When the counts of the
+     * current assignments are both removed and added back, the alias-table
+     * Metropolis-Hastings sampler is used. Otherwise (e.g., during
+     * initialization) this falls back to the Gibbs sampler of LDA.
+     */
+    @Override
+    protected long sampleZs(boolean removeFromModel, boolean addToModel,
+            boolean removeFromData, boolean addToData) {
+        if (!(removeFromModel && addToModel && removeFromData && addToData)
+                || !symmetricPriors) {
+            return super.sampleZs(removeFromModel, addToModel,
+                    removeFromData, addToData);
+        }
+        long sTime = System.currentTimeMillis();
+        initializeAliasTables();
+        for (int dd = 0; dd < D; dd++) {
+            for (int nn = 0; nn < z[dd].length; nn++) {
+                sampleZMH(dd, nn);
+            }
+        }
+        return System.currentTimeMillis() - sTime;
+    }
+
+    /**
+     * Sample the topic assignment of a token by alternating word and document
+     * proposals.
+     *
+     * @param dd The document index
+     * @param nn The token index
+     */
+    protected void sampleZMH(int dd, int nn) {
+        double alpha = hyperparams.get(ALPHA);
+        double beta = hyperparams.get(BETA);
+        double betaSum = beta * V;
+        int ww = words[dd][nn];
+        int oldZ = z[dd][nn];
+
+        docTopics[dd].decrement(oldZ);
+        topicWords[oldZ].decrement(ww);
+        removeWordTopic(ww, oldZ);
+
+        int docLength = z[dd].length;
+        double docProposalSum = docLength + K * alpha;
+        int curZ = oldZ;
+        double curProb = getConditional(dd, ww, curZ, alpha, beta, betaSum);
+        for (int step = 0; step < numMHSteps; step++) {
+            // word proposal
+            int newZ = sampleWordProposal(ww);
+            if (newZ != curZ) {
+                double newProb = getConditional(dd, ww, newZ, alpha, beta, betaSum);
+                double ratio = newProb * getWordProposalWeight(ww, curZ)
+                        / (curProb * getWordProposalWeight(ww, newZ));
+                if (ratio >= 1 || rand.nextDouble() < ratio) {
+                    curZ = newZ;
+                    curProb = newProb;
+                }
+            }
+
+            // document proposal: n_dk includes the token being sampled at its
+            // old assignment since topics are drawn from z[dd]
+            double u = rand.nextDouble() * docProposalSum;
+            if (u < docLength) {
+                newZ = z[dd][(int) u];
+            } else {
+                newZ = rand.nextInt(K);
+            }
+            if (newZ != curZ) {
+                double newProb = getConditional(dd, ww, newZ, alpha, beta, betaSum);
+                double curProposal = docTopics[dd].getCount(curZ)
+                        + (curZ == oldZ ? 1 : 0) + alpha;
+                double newProposal = docTopics[dd].getCount(newZ)
+                        + (newZ == oldZ ? 1 : 0) + alpha;
+                double ratio = newProb * curProposal / (curProb * newProposal);
+                if (ratio >= 1 || rand.nextDouble() < ratio) {
+                    curZ = newZ;
+                    curProb = newProb;
+                }
+            }
+        }
+
+        if (curZ != oldZ) {
+            numTokensChanged++;
+        }
+        z[dd][nn] = curZ;
+
+        docTopics[dd].increment(curZ);
+        topicWords[curZ].increment(ww);
+        addWordTopic(ww, curZ);
+    }
+
+    /**
+     * Unnormalized collapsed Gibbs conditional of assigning a token of word ww
+     * in document dd to topic kk, given all other assignments.
+     */
+    private double getConditional(int dd, int ww, int kk,
+            double alpha, double beta, double betaSum) {
+        return (docTopics[dd].getCount(kk) + alpha)
+                * (topicWords[kk].getCount(ww) + beta)
+                / (topicWords[kk].getCountSum() + betaSum);
+    }
+
+    /**
+     * Sample a topic from the (possibly stale) word proposal, rebuilding the
+     * alias tables that have gone stale.
+     *
+     * @param ww The word type
+     */
+    private int sampleWordProposal(int ww) {
+        if (wordTables[ww] == null || wordNumDraws[ww] >= Math.max(1, wordTables[ww].size())) {
+            buildWordTable(ww);
+        }
+        if (denseNumDraws >= K) {
+            buildDenseTable();
+        }
+        AliasTable wordTable = wordTables[ww];
+        double u = rand.nextDouble() * (wordTable.getSum() + denseTable.getSum());
+        if (u < wordTable.getSum()) {
+            wordNumDraws[ww]++;
+            return wordTableTopics[ww][wordTable.sample(rand)];
+        } else {
+            denseNumDraws++;
+            return denseTable.sample(rand);
+        }
+    }
+
+    /**
+     * Return the unnormalized weight of a topic under the word proposal that
+     * is currently stored in the alias tables.
+     *
+     * @param ww The word type
+     * @param kk The topic
+     */
+    private double getWordProposalWeight(int ww, int kk) {
+        double weight = denseWeights[kk];
+        int pos = Arrays.binarySearch(wordTableTopics[ww], 0, wordTables[ww].size(), kk);
+        if (pos >= 0) {
+            weight += wordTables[ww].getWeight(pos);
+        }
+        return weight;
+    }
+
+    private void initializeAliasTables() {
+        initializeWordTopicLists();
+        if (wordTables == null || wordTables.length != V) {
+            wordTables = new AliasTable[V];
+            wordTableTopics = new int[V][];
+            wordNumDraws = new int[V];
+            denseTable = new AliasTable(K);
+            denseWeights = new double[K];
+            weightBuffer = new double[K];
+            topicBuffer = new int[K];
+        }
+        // force the tables to be rebuilt from the current counts
+        for (int vv = 0; vv < V; vv++) {
+            if (wordTables[vv] != null) {
+                wordNumDraws[vv] = Integer.MAX_VALUE;
+            }
+        }
+        buildDenseTable();
+    }
+
+    private void buildDenseTable() {
+        double beta = hyperparams.get(BETA);
+        double betaSum = beta * V;
+        for (int k = 0; k < K; k++) {
+            denseWeights[k] = beta / (topicWords[k].getCountSum() + betaSum);
+        }
+        denseTable.build(denseWeights, K);
+        denseNumDraws = 0;
+    }
+
+    private void buildWordTable(int ww) {
+        double betaSum = hyperparams.get(BETA) * V;
+        int numTopics = wordNumTopics[ww];
+        System.arraycopy(wordTopicIndices[ww], 0, topicBuffer, 0, numTopics);
+        Arrays.sort(topicBuffer, 0, numTopics);
+        if (wordTableTopics[ww] == null || wordTableTopics[ww].length < numTopics) {
+            wordTableTopics[ww] = new int[numTopics];
+        }
+        for (int ii = 0; ii < numTopics; ii++) {
+            int kk = topicBuffer[ii];
+            wordTableTopics[ww][ii] = kk;
+            weightBuffer[ii] = topicWords[kk].getCount(ww)
+                    / (topicWords[kk].getCountSum() + betaSum);
+        }
+        if (wordTables[ww] == null) {
+            wordTables[ww] = new AliasTable(Math.max(1, numTopics));
+        }
+        wordTables[ww].build(weightBuffer, numTopics);
+        wordNumDraws[ww] = 0;
+    }
+
+    /**
+     * Run the Gibbs sampler of LDA and this sampler on the same data with the
+     * same configuration, and report the log likelihoods of both over
+     * iterations. This is used to check that the Metropolis-Hastings sampler
+     * converges to the same log likelihood as the Gibbs sampler.
+     *
+     * @return The relative difference between the final log likelihoods
+     */
+    public static double checkAgainstGibbs(int[][] docWords, int V, int K,
+            double alpha, double beta, int maxIters, int numMHSteps,
+            int repInterval) {
+        LDA gibbs = new LDA();
+        gibbs.setVerbose(false);
+        gibbs.setLog(false);
+        gibbs.configure(null, V, K, alpha, beta, InitialState.RANDOM, false,
+                maxIters, maxIters, maxIters, maxIters);
+        gibbs.train(docWords, null);
+        gibbs.initialize();
+
+        AliasLDA mh = new AliasLDA();
+        mh.setVerbose(false);
+        mh.setLog(false);
+        mh.configure(null, V, K, alpha, beta, InitialState.RANDOM, false,
+                maxIters, maxIters, maxIters, maxIters, numMHSteps);
+        mh.train(docWords, null);
+        mh.initialize();
+
+        double gibbsLlh = gibbs.getLogLikelihood();
+        double mhLlh = mh.getLogLikelihood();
+        for (int ii = 0; ii < maxIters; ii++) {
+            long gibbsTime = gibbs.sampleZs(REMOVE, ADD, REMOVE, ADD);
+            long mhTime = mh.sampleZs(REMOVE, ADD, REMOVE, ADD);
+            gibbsLlh = gibbs.getLogLikelihood();
+            mhLlh = mh.getLogLikelihood();
+            if (ii % repInterval == 0 || ii == maxIters - 1) {
+                System.out.println("Iter " + ii
+                        + "\tGibbs llh = " + MiscUtils.formatDouble(gibbsLlh)
+                        + " (" + gibbsTime + " ms)"
+                        + "\tMH llh = " + MiscUtils.formatDouble(mhLlh)
+                        + " (" + mhTime + " ms)");
+            }
+        }
+        double relDiff = Math.abs(gibbsLlh - mhLlh) / Math.abs(gibbsLlh);
+        System.out.println("Relative difference in final llh: "
+                + MiscUtils.formatDouble(relDiff));
+        return relDiff;
+    }
+
+    public static String getHelpString() {
+        return "java -cp 'dist/segan.jar' " + AliasLDA.class.getName() + " -help";
+    }
+
+    public static String getExampleCmd() {
+        return "java -cp \"dist/segan.jar:lib/*\" sampler.unsupervised.AliasLDA "
+                + "--dataset amazon-data "
+                + "--word-voc-file demo/amazon-data/format-unsupervised/amazon-data.wvoc "
+                + "--word-file demo/amazon-data/format-unsupervised/amazon-data.dat "
+                + "--info-file demo/amazon-data/format-unsupervised/amazon-data.docinfo "
+                + "--output-folder demo/amazon-data/model-unsupervised "
+                + "--burnIn 100 "
+                + "--maxIter 250 "
+                + "--sampleLag 30 "
+                + "--report 5 "
+                + "--K 25 "
+                + "--alpha 0.1 "
+                + "--beta 0.1 "
+                + "--mh-steps 2 "
+                + "-v";
+    }
+
+    private static void addOpitions() throws Exception {
+        parser = new BasicParser();
+        options = new Options();
+
+        // data input
+        addOption("dataset", "Dataset");
+        addOption("word-voc-file", "Word vocabulary file");
+        addOption("word-file", "Document word file");
+        addOption("info-file", "Document info file");
+
+        // data output
+        addOption("output-folder", "Output folder");
+
+        // sampling
+        addSamplingOptions();
+
+        // parameters
+        addOption("alpha", "Alpha");
+        addOption("beta", "Beta");
+        addOption("K", "Number of topics");
+        addOption("num-top-words", "Number of top words per topic");
+        addOption("mh-steps", "Number of Metropolis-Hastings steps per token");
+
+        options.addOption("check", false, "Check convergence against the Gibbs sampler");
+        options.addOption("v", false, "verbose");
+        options.addOption("d", false, "debug");
+        options.addOption("help", false, "Help");
+        options.addOption("example", false, "Example command");
+    }
+
+    private static void runModel() throws Exception {
+        int numTopWords = CLIUtils.getIntegerArgument(cmd, "num-top-words", 20);
+        int burnIn = CLIUtils.getIntegerArgument(cmd, "burnIn", 500);
+        int maxIters = CLIUtils.getIntegerArgument(cmd, "maxIter", 1000);
+        int sampleLag = CLIUtils.getIntegerArgument(cmd, "sampleLag", 50);
+        int repInterval = CLIUtils.getIntegerArgument(cmd, "report", 25);
+        int numMHSteps = CLIUtils.getIntegerArgument(cmd, "mh-steps", DEFAULT_NUM_MH_STEPS);
+
+        double alpha = CLIUtils.getDoubleArgument(cmd, "alpha", 0.1);
+        double beta = CLIUtils.getDoubleArgument(cmd, "beta", 0.1);
+        int K = CLIUtils.getIntegerArgument(cmd, "K", 50);
+
+        String datasetName = cmd.getOptionValue("dataset");
+        String wordVocFile = cmd.getOptionValue("word-voc-file");
+        String docWordFile = cmd.getOptionValue("word-file");
+        String docInfoFile = cmd.getOptionValue("info-file");
+        String outputFolder = cmd.getOptionValue("output-folder");
+
+        TextDataset data = new TextDataset(datasetName);
+        data.loadFormattedData(new File(wordVocFile),
+                new File(docWordFile),
+                new File(docInfoFile),
+                null);
+        int V = data.getWordVocab().size();
+
+        if (cmd.hasOption("check")) {
+            checkAgainstGibbs(data.getWords(), V, K, alpha, beta, maxIters,
+                    numMHSteps, repInterval);
+            return;
+        }
+
+        AliasLDA sampler = new AliasLDA();
+        sampler.setVerbose(cmd.hasOption("v"));
+        sampler.setDebug(cmd.hasOption("d"));
+        sampler.setLog(true);
+        sampler.setReport(true);
+        sampler.setWordVocab(data.getWordVocab());
+
+        sampler.configure(outputFolder, V, K,
+                alpha, beta,
+                InitialState.RANDOM, false,
+                burnIn, maxIters, sampleLag, repInterval, numMHSteps);
+        File samplerFolder = new File(sampler.getSamplerFolderPath());
+        IOUtils.createFolder(samplerFolder);
+
+        sampler.train(data.getWords(), null);
+        sampler.initialize();
+        sampler.iterate();
+        sampler.outputTopicTopWords(new File(samplerFolder, TopWordFile), numTopWords);
+    }
+
+    public static void main(String[] args) {
+        try {
+            addOpitions();
+
+            cmd = parser.parse(options, args);
+            if (cmd.hasOption("help")) {
+                CLIUtils.printHelp(getHelpString(), options);
+                return;
+            } else if (cmd.hasOption("example")) {
+                System.out.println(getExampleCmd());
+                return;
+            }
+
+            runModel();
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException();
+        }
+    }
+}
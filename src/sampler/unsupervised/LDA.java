@@ -9,13 +9,21 @@ import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Random;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
 import sampling.likelihood.DirMult;
+import sampling.util.ADLDASweep;
+import sampling.util.BinaryState;
+import sampling.util.DeltaState;
+import sampling.util.SnapshotBuffers;
+import sampling.util.TopicWordDelta;
 import util.CLIUtils;
 import util.IOUtils;
 import util.MiscUtils;
+import util.RandomUtils;
 import util.SamplerUtils;
 
 /**
@@ -39,6 +47,12 @@ public class LDA extends AbstractSampler {
     protected DirMult[] docTopics;
     protected DirMult[] topicWords;
     protected int[][] z;
+    // sparse sampling
+    protected boolean sparseSampling = false;
+    protected boolean symmetricPriors = true;
+    protected int[][] wordTopicIndices; // [V][]: topics with non-zero count of each word
+    protected int[][] wordTopicCounts; // [V][]: counts aligned with wordTopicIndices
+    protected int[] wordNumTopics; // [V]: number of non-zero topics of each word
 
     public LDA() {
         this.basename = "LDA";
@@ -56,10 +70,30 @@ public class LDA extends AbstractSampler {
             InitialState initState,
             boolean paramOpt,
             int burnin, int maxiter, int samplelag, int repInt) {
+        this.configure(folder, V, K, alpha, beta, initState, paramOpt,
+                burnin, maxiter, samplelag, repInt, false);
+    }
+
+    /**
+     * Configure the sampler.
+     *
+     * @param sparseSampling Whether to use the bucketed SparseLDA sampler
+     * instead of evaluating all K topics for every token
+     */
+    public void configure(
+            String folder,
+            int V, int K,
+            double alpha,
+            double beta,
+            InitialState initState,
+            boolean paramOpt,
+            int burnin, int maxiter, int samplelag, int repInt,
+            boolean sparseSampling) {
         if (verbose) {
             logln("Configuring ...");
         }
         this.folder = folder;
+        this.sparseSampling = sparseSampling;
 
         this.K = K;
         this.V = V;
@@ -92,6 +126,7 @@ public class LDA extends AbstractSampler {
             logln("--- sample lag:\t" + LAG);
             logln("--- paramopt:\t" + paramOptimized);
             logln("--- initialize:\t" + initState);
+            logln("--- sparse:\t" + sparseSampling);
         }
     }
 
@@ -221,14 +256,16 @@ public class LDA extends AbstractSampler {
                     + ". # prior topics = " + topics.length);
         }
 
+        symmetricPriors = topics == null;
         topicWords = new DirMult[K];
         for (int k = 0; k < K; k++) {
             if (topics != null) {
-                topicWords[k] = new DirMult(V, hyperparams.get(BETA) * V, topics[k]);
+                topicWords[k] = DirMult.create(topicWordRep, V, hyperparams.get(BETA) * V, topics[k]);
             } else {
-                topicWords[k] = new DirMult(V, hyperparams.get(BETA) * V, 1.0 / V);
+                topicWords[k] = DirMult.create(topicWordRep, V, hyperparams.get(BETA) * V, 1.0 / V);
             }
         }
+        topicWords = toWordMajor(topicWords);
     }
 
     protected void initializeDataStructure(double[][] docTopicPrior) {
@@ -242,12 +279,15 @@ public class LDA extends AbstractSampler {
                     + ". # prior documents = " + docTopicPrior.length);
         }
 
+        if (docTopicPrior != null) {
+            symmetricPriors = false;
+        }
         docTopics = new DirMult[D];
         for (int d = 0; d < D; d++) {
             if (docTopicPrior != null) {
-                docTopics[d] = new DirMult(K, hyperparams.get(ALPHA) * K, docTopicPrior[d]);
+                docTopics[d] = DirMult.create(docTopicRep, K, hyperparams.get(ALPHA) * K, docTopicPrior[d]);
             } else {
-                docTopics[d] = new DirMult(K, hyperparams.get(ALPHA) * K, 1.0 / K);
+                docTopics[d] = DirMult.create(docTopicRep, K, hyperparams.get(ALPHA) * K, 1.0 / K);
             }
         }
 
@@ -307,7 +347,14 @@ public class LDA extends AbstractSampler {
             }
 
             // sample topic assignments
-            long topicTime = sampleZs(REMOVE, ADD, REMOVE, ADD);
+            long topicTime;
+            if (numThreads > 1) {
+                topicTime = sampleZsParallel();
+            } else if (sparseSampling && symmetricPriors) {
+                topicTime = sampleZsSparse();
+            } else {
+                topicTime = sampleZs(REMOVE, ADD, REMOVE, ADD);
+            }
 
             // parameter optimization by slice sampling
             if (paramOptimized && iter % LAG == 0 && iter >= BURN_IN) {
@@ -339,16 +386,17 @@ public class LDA extends AbstractSampler {
 
             // store model
             if (report && iter > BURN_IN && iter % LAG == 0) {
-                outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
+                outputCheckpoint(iter);
                 outputTopicTopWords(new File(reportFolderPath,
                         "topwords-" + iter + ".txt"), 20);
             }
         }
 
         if (report) { // output the final model
-            outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
+            outputCheckpoint(iter);
             outputTopicTopWords(new File(reportFolderPath,
                     "topwords-" + iter + ".txt"), 20);
+            flushCheckpoints();
         }
 
         float ellapsedSeconds = (System.currentTimeMillis() - startTime) / (1000);
@@ -371,6 +419,7 @@ public class LDA extends AbstractSampler {
     protected long sampleZs(boolean removeFromModel, boolean addToModel,
             boolean removeFromData, boolean addToData) {
         long sTime = System.currentTimeMillis();
+        cacheHyperparameters();
         for (int dd = 0; dd < D; dd++) {
             for (int nn = 0; nn < z[dd].length; nn++) {
                 sampleZ(dd, nn, removeFromModel, addToModel,
@@ -400,13 +449,28 @@ public class LDA extends AbstractSampler {
             topicWords[z[dd][nn]].decrement(words[dd][nn]);
         }
 
-        double[] probs = new double[K];
-        for (int k = 0; k < K; k++) {
-            probs[k] = (docTopics[dd].getCount(k)
-                    + hyperparams.get(ALPHA) * K * docTopics[dd].getCenterElement(k))
-                    * topicWords[k].getProbability(words[dd][nn]);
+        double[] probs = getScratchBuffer(K);
+        if (wordTopicMatrix != null && symmetricPriors) {
+            // read the counts of this word in all topics from a single row
+            int[] wordCounts = wordTopicMatrix.getWordCounts(words[dd][nn]);
+            int[] topicTotals = wordTopicMatrix.getTopicTotals();
+            double alpha = hyperparamValues[ALPHA];
+            double beta = hyperparamValues[BETA];
+            double totalBeta = beta * V;
+            for (int k = 0; k < K; k++) {
+                probs[k] = (docTopics[dd].getCount(k) + alpha)
+                        * (wordCounts[k] + beta)
+                        / (topicTotals[k] + totalBeta);
+            }
+        } else {
+            double alphaSum = hyperparamValues[ALPHA] * K;
+            for (int k = 0; k < K; k++) {
+                probs[k] = (docTopics[dd].getCount(k)
+                        + alphaSum * docTopics[dd].getCenterElement(k))
+                        * topicWords[k].getProbability(words[dd][nn]);
+            }
         }
-        int sampledZ = SamplerUtils.scaleSample(probs);
+        int sampledZ = SamplerUtils.scaleSample(probs, K);
         if (sampledZ != z[dd][nn]) {
             numTokensChanged++;
         }
@@ -420,6 +484,275 @@ public class LDA extends AbstractSampler {
         }
     }
 
+    /**
+     * Sample the topic assignments for all tokens with multiple threads using
+     * approximate distributed Gibbs sampling (AD-LDA). Each thread samples a
+     * shard of documents against its own copy of the topic-word counts, which
+     * are merged every sync interval.
+     *
+     * @return Elapsed time
+     */
+    protected long sampleZsParallel() {
+        long sTime = System.currentTimeMillis();
+        ADLDASweep sweep = getParallelSweep(K);
+        cacheHyperparameters();
+        numTokensChanged += sweep.sweep(D, topicWords, new ADLDASweep.DocumentSampler() {
+            @Override
+            public int getNumTokens(int dd) {
+                return z[dd].length;
+            }
+
+            @Override
+            public int sampleDocument(int dd, TopicWordDelta delta, Random random,
+                    double[] probs) {
+                int numChanged = 0;
+                double alphaSum = hyperparamValues[ALPHA] * K;
+                for (int nn = 0; nn < z[dd].length; nn++) {
+                    docTopics[dd].decrement(z[dd][nn]);
+                    delta.decrement(z[dd][nn], words[dd][nn]);
+                    for (int k = 0; k < K; k++) {
+                        probs[k] = (docTopics[dd].getCount(k)
+                                + alphaSum * docTopics[dd].getCenterElement(k))
+                                * delta.getProbability(k, words[dd][nn]);
+                    }
+                    int sampledZ = SamplerUtils.scaleSample(probs, K, random);
+                    if (sampledZ != z[dd][nn]) {
+                        numChanged++;
+                    }
+                    z[dd][nn] = sampledZ;
+                    docTopics[dd].increment(z[dd][nn]);
+                    delta.increment(z[dd][nn], words[dd][nn]);
+                }
+                return numChanged;
+            }
+        });
+        if (isReporting) {
+            logln("--- --- " + sweep.getThroughputString());
+        }
+        return System.currentTimeMillis() - sTime;
+    }
+
+    /**
+     * Sample the topic assignments for all tokens using the bucketed
+     * decomposition of SparseLDA (Yao, Mimno and McCallum, KDD 2009). The
+     * unnormalized conditional of each token
+     *
+     * (n_dk + alpha)(n_kw + beta) / (n_k + V * beta)
+     *
+     * is split into a smoothing-only bucket (alpha * beta / (n_k + V * beta)),
+     * a document-topic bucket (n_dk * beta / (n_k + V * beta)) and a
+     * topic-word bucket ((n_dk + alpha) * n_kw / (n_k + V * beta)). The first
+     * two masses are maintained incrementally and the last one only visits
+     * topics having non-zero count for the current word, so the cost per token
+     * depends on the number of non-zero topics rather than on K. This samples
+     * from exactly the same conditional as {@link #sampleZ} but requires
+     * symmetric Dirichlet priors.
+     *
+     * @return Elapsed time
+     */
+    protected long sampleZsSparse() {
+        long sTime = System.currentTimeMillis();
+        double alpha = hyperparams.get(ALPHA);
+        double beta = hyperparams.get(BETA);
+        double betaSum = beta * V;
+
+        initializeWordTopicLists();
+
+        // topic coefficients (n_dk + alpha) / (n_k + V * beta) of the current
+        // document, which are alpha / (n_k + V * beta) for topics not in it
+        double[] coeffs = new double[K];
+        double smoothingMass = 0.0;
+        for (int k = 0; k < K; k++) {
+            double denom = topicWords[k].getCountSum() + betaSum;
+            smoothingMass += alpha * beta / denom;
+            coeffs[k] = alpha / denom;
+        }
+
+        int[] docCounts = new int[K];
+        int[] docNonZeros = new int[K];
+        int[] docPositions = new int[K];
+        Arrays.fill(docPositions, -1);
+        double[] topicWordMasses = new double[K];
+
+        for (int dd = 0; dd < D; dd++) {
+            int numDocNonZeros = 0;
+            double docTopicMass = 0.0;
+            for (int k : docTopics[dd].getUniqueObservations()) {
+                int count = docTopics[dd].getCount(k);
+                double denom = topicWords[k].getCountSum() + betaSum;
+                docCounts[k] = count;
+                docPositions[k] = numDocNonZeros;
+                docNonZeros[numDocNonZeros++] = k;
+                docTopicMass += count * beta / denom;
+                coeffs[k] = (count + alpha) / denom;
+            }
+
+            for (int nn = 0; nn < z[dd].length; nn++) {
+                int ww = words[dd][nn];
+                int curZ = z[dd][nn];
+
+                // remove the current assignment
+                double denom = topicWords[curZ].getCountSum() + betaSum;
+                smoothingMass -= alpha * beta / denom;
+                docTopicMass -= docCounts[curZ] * beta / denom;
+                docTopics[dd].decrement(curZ);
+                topicWords[curZ].decrement(ww);
+                removeWordTopic(ww, curZ);
+                docCounts[curZ]--;
+                if (docCounts[curZ] == 0) {
+                    int pos = docPositions[curZ];
+                    int last = docNonZeros[--numDocNonZeros];
+                    docNonZeros[pos] = last;
+                    docPositions[last] = pos;
+                    docPositions[curZ] = -1;
+                }
+                denom--;
+                smoothingMass += alpha * beta / denom;
+                docTopicMass += docCounts[curZ] * beta / denom;
+                coeffs[curZ] = (docCounts[curZ] + alpha) / denom;
+
+                // topic-word bucket
+                int[] topicIndices = wordTopicIndices[ww];
+                int[] topicCounts = wordTopicCounts[ww];
+                int numTopics = wordNumTopics[ww];
+                double topicWordMass = 0.0;
+                for (int ii = 0; ii < numTopics; ii++) {
+                    topicWordMasses[ii] = coeffs[topicIndices[ii]] * topicCounts[ii];
+                    topicWordMass += topicWordMasses[ii];
+                }
+
+                int sampledZ = -1;
+                double u = rand.nextDouble() * (smoothingMass + docTopicMass + topicWordMass);
+                if (u < topicWordMass) {
+                    for (int ii = 0; ii < numTopics; ii++) {
+                        sampledZ = topicIndices[ii];
+                        u -= topicWordMasses[ii];
+                        if (u <= 0) {
+                            break;
+                        }
+                    }
+                } else {
+                    u -= topicWordMass;
+                    if (u < docTopicMass) {
+                        for (int ii = 0; ii < numDocNonZeros; ii++) {
+                            sampledZ = docNonZeros[ii];
+                            u -= docCounts[sampledZ] * beta
+                                    / (topicWords[sampledZ].getCountSum() + betaSum);
+                            if (u <= 0) {
+                                break;
+                            }
+                        }
+                    } else {
+                        u -= docTopicMass;
+                        for (int k = 0; k < K; k++) {
+                            sampledZ = k;
+                            u -= alpha * beta / (topicWords[k].getCountSum() + betaSum);
+                            if (u <= 0) {
+                                break;
+                            }
+                        }
+                    }
+                }
+
+                if (sampledZ != curZ) {
+                    numTokensChanged++;
+                }
+                z[dd][nn] = sampledZ;
+
+                // add the new assignment
+                denom = topicWords[sampledZ].getCountSum() + betaSum;
+                smoothingMass -= alpha * beta / denom;
+                docTopicMass -= docCounts[sampledZ] * beta / denom;
+                docTopics[dd].increment(sampledZ);
+                topicWords[sampledZ].increment(ww);
+                addWordTopic(ww, sampledZ);
+                if (docCounts[sampledZ] == 0) {
+                    docPositions[sampledZ] = numDocNonZeros;
+                    docNonZeros[numDocNonZeros++] = sampledZ;
+                }
+                docCounts[sampledZ]++;
+                denom++;
+                smoothingMass += alpha * beta / denom;
+                docTopicMass += docCounts[sampledZ] * beta / denom;
+                coeffs[sampledZ] = (docCounts[sampledZ] + alpha) / denom;
+            }
+
+            // reset the document-specific coefficients
+            for (int ii = 0; ii < numDocNonZeros; ii++) {
+                int k = docNonZeros[ii];
+                coeffs[k] = alpha / (topicWords[k].getCountSum() + betaSum);
+                docCounts[k] = 0;
+                docPositions[k] = -1;
+            }
+        }
+        return System.currentTimeMillis() - sTime;
+    }
+
+    /**
+     * Build the word-major lists of non-zero topics from the current topic
+     * word counts. The underlying arrays are kept across sweeps.
+     */
+    protected void initializeWordTopicLists() {
+        if (wordTopicIndices == null || wordTopicIndices.length != V) {
+            wordTopicIndices = new int[V][];
+            wordTopicCounts = new int[V][];
+            wordNumTopics = new int[V];
+            for (int vv = 0; vv < V; vv++) {
+                wordTopicIndices[vv] = new int[4];
+                wordTopicCounts[vv] = new int[4];
+            }
+        } else {
+            Arrays.fill(wordNumTopics, 0);
+        }
+        for (int k = 0; k < K; k++) {
+            for (int vv : topicWords[k].getUniqueObservations()) {
+                int count = topicWords[k].getCount(vv);
+                int pos = wordNumTopics[vv]++;
+                ensureWordTopicCapacity(vv, pos + 1);
+                wordTopicIndices[vv][pos] = k;
+                wordTopicCounts[vv][pos] = count;
+            }
+        }
+    }
+
+    private void ensureWordTopicCapacity(int vv, int capacity) {
+        if (wordTopicIndices[vv].length < capacity) {
+            int newLength = Math.min(K, Math.max(capacity, 2 * wordTopicIndices[vv].length));
+            wordTopicIndices[vv] = Arrays.copyOf(wordTopicIndices[vv], newLength);
+            wordTopicCounts[vv] = Arrays.copyOf(wordTopicCounts[vv], newLength);
+        }
+    }
+
+    protected void addWordTopic(int vv, int k) {
+        int[] topicIndices = wordTopicIndices[vv];
+        for (int ii = 0; ii < wordNumTopics[vv]; ii++) {
+            if (topicIndices[ii] == k) {
+                wordTopicCounts[vv][ii]++;
+                return;
+            }
+        }
+        int pos = wordNumTopics[vv]++;
+        ensureWordTopicCapacity(vv, pos + 1);
+        wordTopicIndices[vv][pos] = k;
+        wordTopicCounts[vv][pos] = 1;
+    }
+
+    protected void removeWordTopic(int vv, int k) {
+        int[] topicIndices = wordTopicIndices[vv];
+        int[] topicCounts = wordTopicCounts[vv];
+        for (int ii = 0; ii < wordNumTopics[vv]; ii++) {
+            if (topicIndices[ii] == k) {
+                if (--topicCounts[ii] == 0) {
+                    int last = --wordNumTopics[vv];
+                    topicIndices[ii] = topicIndices[last];
+                    topicCounts[ii] = topicCounts[last];
+                }
+                return;
+            }
+        }
+        throw new RuntimeException("Removing topic " + k + " not found for word " + vv);
+    }
+
     @Override
     public String getCurrentState() {
         return this.getSamplerFolderPath();
@@ -522,30 +855,74 @@ public class LDA extends AbstractSampler {
 	IOUtils.output2DArray(my_file, postTops);
     }
 
+    /**
+     * Create a buffer for the counts and assignments that the background
+     * writer can output while sampling goes on. The document-topic counts are
+     * recounted from the assignments by the writer. Subclasses with their own
+     * state format should override this to return null.
+     */
+    @Override
+    protected AbstractSampler createStateSnapshot() {
+        LDA snapshot = new LDA(basename);
+        snapshot.setVerbose(false);
+        snapshot.K = K;
+        snapshot.V = V;
+        snapshot.D = D;
+        snapshot.topicWords = SnapshotBuffers.createTopicWords(topicWords);
+        snapshot.docTopics = SnapshotBuffers.createDirMults(docTopics, docTopicRep);
+        snapshot.z = SnapshotBuffers.createAssignments(z);
+        return snapshot;
+    }
+
+    @Override
+    protected void copyStateTo(AbstractSampler snapshot) {
+        LDA buffer = (LDA) snapshot;
+        SnapshotBuffers.copyTopicWords(topicWords, buffer.topicWords);
+        SnapshotBuffers.copyConcentrations(docTopics, buffer.docTopics);
+        SnapshotBuffers.copyAssignments(z, buffer.z);
+    }
+
+    @Override
+    protected void completeStateSnapshot() {
+        SnapshotBuffers.countAssignments(docTopics, z);
+    }
+
     @Override
     public void outputState(String filepath) {
         if (verbose) {
             logln("--- Outputing current state to " + filepath);
         }
+        if (isBinaryState(filepath)) {
+            outputBinaryState(filepath);
+            return;
+        }
         try {
-            StringBuilder modelStr = new StringBuilder();
-            for (int k = 0; k < K; k++) {
-                modelStr.append(k).append("\n");
-                modelStr.append(DirMult.output(topicWords[k])).append("\n");
-            }
-
-            StringBuilder assignStr = new StringBuilder();
-            for (int d = 0; d < D; d++) {
-                assignStr.append(d).append("\n");
-                assignStr.append(DirMult.output(docTopics[d])).append("\n");
-                for (int n = 0; n < z[d].length; n++) {
-                    assignStr.append(z[d][n]).append("\t");
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int k = 0; k < K; k++) {
+                        writer.write(k + "\n");
+                        writer.write(DirMult.output(topicWords[k]) + "\n");
+                    }
                 }
-                assignStr.append("\n");
-            }
+            };
+
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int d = 0; d < D; d++) {
+                        writer.write(d + "\n");
+                        writer.write(DirMult.output(docTopics[d]) + "\n");
+                        for (int n = 0; n < z[d].length; n++) {
+                            writer.write(z[d][n] + "\t");
+                        }
+                        writer.write("\n");
+                    }
+                }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing to " + filepath);
@@ -559,9 +936,16 @@ public class LDA extends AbstractSampler {
         }
 
         try {
-            inputModel(filepath);
+            if (isDeltaState(filepath)) {
+                inputState(DeltaState.getBaseState(filepath));
+                applyDeltaStates(filepath, false);
+            } else if (isBinaryState(filepath)) {
+                inputBinaryState(filepath);
+            } else {
+                inputModel(filepath);
 
-            inputAssignments(filepath);
+                inputAssignments(filepath);
+            }
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while loading from " + filepath);
@@ -570,6 +954,87 @@ public class LDA extends AbstractSampler {
         validate("Done reading state from " + filepath);
     }
 
+    @Override
+    protected int[][] getCheckpointAssignments() {
+        return z;
+    }
+
+    @Override
+    protected int[][] getCheckpointWords() {
+        return words;
+    }
+
+    @Override
+    protected void changeAssignment(int dd, int nn, int vv, int oldTopic,
+            int newTopic, boolean modelOnly) {
+        topicWords[oldTopic].decrement(vv);
+        topicWords[newTopic].increment(vv);
+        if (!modelOnly) {
+            docTopics[dd].decrement(oldTopic);
+            docTopics[dd].increment(newTopic);
+            z[dd][nn] = newTopic;
+        }
+    }
+
+    /**
+     * Output the current state in the binary format. The topic-word and
+     * document-topic counts are stored as sparse count tables and the topic
+     * assignments as packed int arrays.
+     *
+     * @param filepath The output file
+     */
+    private void outputBinaryState(String filepath) {
+        try {
+            BinaryState.Writer writer = new BinaryState.Writer(filepath);
+            writer.writeInts("dims", new int[]{K, V, D});
+            BinaryState.writeDirMults(writer, "topic-words", topicWords);
+            BinaryState.writeDirMults(writer, "doc-topics", docTopics);
+            writer.writeIntArrays("z", z);
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while outputing to " + filepath);
+        }
+    }
+
+    /**
+     * Set whether the priors are symmetric from the loaded distributions,
+     * which keep the priors of a seeded or prior-topic run. Only with
+     * symmetric priors can the counts be read from the word-topic matrix.
+     */
+    protected void updateSymmetricPriors() {
+        symmetricPriors = true;
+        for (DirMult topicWord : topicWords) {
+            symmetricPriors &= topicWord.hasSymmetricPrior(hyperparams.get(BETA) * V);
+        }
+        if (docTopics != null) {
+            for (DirMult docTopic : docTopics) {
+                symmetricPriors &= docTopic.hasSymmetricPrior(hyperparams.get(ALPHA) * K);
+            }
+        }
+    }
+
+    private void inputBinaryState(String filepath) throws IOException {
+        BinaryState.Reader reader = new BinaryState.Reader(filepath);
+        try {
+            int[] dims = reader.readInts("dims");
+            if (dims[0] != K || dims[1] != V) {
+                throw new RuntimeException("Dimensions mismatched. K = " + dims[0]
+                        + " vs. " + K + ". V = " + dims[1] + " vs. " + V);
+            }
+            this.initializeModelStructure(null);
+            topicWords = toWordMajor(BinaryState.readDirMults(reader,
+                    "topic-words", topicWordRep));
+
+            this.initializeDataStructure(null);
+            docTopics = BinaryState.readDirMults(reader, "doc-topics", docTopicRep);
+            reader.readIntArrays("z", z);
+            updateSymmetricPriors();
+        } finally {
+            reader.close();
+        }
+    }
+
     private void inputModel(String zipFilepath) {
         if (verbose) {
             logln("--- --- Loading model from " + zipFilepath);
@@ -587,9 +1052,11 @@ public class LDA extends AbstractSampler {
                 if (topicIdx != k) {
                     throw new RuntimeException("Indices mismatch when loading model");
                 }
-                topicWords[k] = DirMult.input(reader.readLine());
+                topicWords[k] = DirMult.input(reader.readLine(), topicWordRep);
             }
             reader.close();
+            topicWords = toWordMajor(topicWords);
+            updateSymmetricPriors();
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while inputing model from "
@@ -614,7 +1081,7 @@ public class LDA extends AbstractSampler {
                 if (docIdx != d) {
                     throw new RuntimeException("Indices mismatch when loading assignments");
                 }
-                docTopics[d] = DirMult.input(reader.readLine());
+                docTopics[d] = DirMult.input(reader.readLine(), docTopicRep);
 
                 String[] sline = reader.readLine().split("\t");
                 for (int n = 0; n < z[d].length; n++) {
@@ -622,6 +1089,7 @@ public class LDA extends AbstractSampler {
                 }
             }
             reader.close();
+            updateSymmetricPriors();
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while inputing assignments from "
@@ -677,6 +1145,10 @@ public class LDA extends AbstractSampler {
 
         // configurations
         addOption("init", "Initialization");
+        options.addOption("sparse", false, "Use SparseLDA bucketed sampling");
+        addParallelOptions();
+        addRepresentationOptions();
+        addCheckpointOptions();
 
         options.addOption("v", false, "verbose");
         options.addOption("d", false, "debug");
@@ -692,6 +1164,13 @@ public class LDA extends AbstractSampler {
         int sampleLag = CLIUtils.getIntegerArgument(cmd, "sampleLag", 50);
         int repInterval = CLIUtils.getIntegerArgument(cmd, "report", 25);
         boolean paramOpt = cmd.hasOption("paramOpt");
+        boolean sparse = cmd.hasOption("sparse");
+        boolean wordMajor = cmd.hasOption("word-major");
+        boolean binaryState = cmd.hasOption("binary-state");
+        int asyncCheckpoints = CLIUtils.getIntegerArgument(cmd, "async-checkpoints", 0);
+        int deltaCheckpoints = CLIUtils.getIntegerArgument(cmd, "delta-checkpoints", 0);
+        int numThreads = CLIUtils.getIntegerArgument(cmd, "threads", 1);
+        int syncInterval = CLIUtils.getIntegerArgument(cmd, "sync-interval", 0);
         String init = CLIUtils.getStringArgument(cmd, "init", "random");
         InitialState initState;
         switch (init) {
@@ -732,11 +1211,20 @@ public class LDA extends AbstractSampler {
         sampler.setLog(true);
         sampler.setReport(true);
         sampler.setWordVocab(data.getWordVocab());
+        sampler.setNumThreads(numThreads, syncInterval);
+        RandomUtils.setSeed(CLIUtils.getIntegerArgument(cmd, "seed", (int) SamplerUtils.RAND_SEED));
+        sampler.setRepresentations(
+                getRepresentation(CLIUtils.getStringArgument(cmd, "doc-topic-rep", "sparse")),
+                getRepresentation(CLIUtils.getStringArgument(cmd, "topic-word-rep", "sparse")));
+        sampler.setWordMajor(wordMajor);
+        sampler.setBinaryState(binaryState);
+        sampler.setAsyncCheckpoints(asyncCheckpoints);
+        sampler.setDeltaCheckpoints(deltaCheckpoints);
 
         sampler.configure(outputFolder, V, K,
                 alpha, beta,
                 initState, paramOpt,
-                burnIn, maxIters, sampleLag, repInterval);
+                burnIn, maxIters, sampleLag, repInterval, sparse);
         File samplerFolder = new File(sampler.getSamplerFolderPath());
         IOUtils.createFolder(samplerFolder);
 
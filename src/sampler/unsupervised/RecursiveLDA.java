@@ -6,6 +6,7 @@ import data.TextDataset;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -380,34 +381,42 @@ public class RecursiveLDA extends AbstractSampler {
         }
 
         try {
-            StringBuilder modelStr = new StringBuilder();
-            Stack<RLDA> stack = new Stack<RLDA>();
-            stack.add(rootLDA);
-            while (!stack.isEmpty()) {
-                RLDA node = stack.pop();
-                stack.addAll(Arrays.asList(node.getChildren()));
-                modelStr.append(node.getPathString()).append("\t")
-                        .append(node.topicWords.length).append("\t")
-                        .append(node.numChildren).append("\n");
-                for (DirMult topicWord : node.topicWords) {
-                    modelStr.append(DirMult.output(topicWord)).append("\n");
+            StateEntryWriter modelWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    Stack<RLDA> stack = new Stack<RLDA>();
+                    stack.add(rootLDA);
+                    while (!stack.isEmpty()) {
+                        RLDA node = stack.pop();
+                        stack.addAll(Arrays.asList(node.getChildren()));
+                        writer.write(node.getPathString() + "\t"
+                                + node.topicWords.length + "\t"
+                                + node.numChildren + "\n");
+                        for (DirMult topicWord : node.topicWords) {
+                            writer.write(DirMult.output(topicWord) + "\n");
+                        }
+                    }
                 }
-            }
-
-            StringBuilder assignStr = new StringBuilder();
-            for (int l = 0; l < L; l++) {
-                assignStr.append(l).append("\n");
-                for (int d = 0; d < D; d++) {
-                    assignStr.append(d).append("\n");
-                    for (int n = 0; n < words[d].length; n++) {
-                        assignStr.append(zs[l][d][n]).append("\t");
+            };
+
+            StateEntryWriter assignWriter = new StateEntryWriter() {
+                @Override
+                public void write(BufferedWriter writer) throws IOException {
+                    for (int l = 0; l < L; l++) {
+                        writer.write(l + "\n");
+                        for (int d = 0; d < D; d++) {
+                            writer.write(d + "\n");
+                            for (int n = 0; n < words[d].length; n++) {
+                                writer.write(zs[l][d][n] + "\t");
+                            }
+                            writer.write("\n");
+                        }
                     }
-                    assignStr.append("\n");
                 }
-            }
+            };
 
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            // stream to a compressed file
+            this.outputZipFile(filepath, modelWriter, assignWriter);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing state to " + filepath);
@@ -596,6 +605,15 @@ public class RecursiveLDA extends AbstractSampler {
             }
         }
 
+        /**
+         * Not supported: a node is output as part of the whole tree by
+         * {@link RecursiveLDA#outputState(String)}.
+         */
+        @Override
+        protected AbstractSampler createStateSnapshot() {
+            return null;
+        }
+
         public int getIndex() {
             return this.index;
         }
@@ -678,6 +696,7 @@ public class RecursiveLDA extends AbstractSampler {
 
             for (iter = 0; iter < MAX_ITER; iter++) {
                 numTokensChanged = 0;
+                cacheHyperparameters();
 
                 for (int d = 0; d < D; d++) {
                     for (int n = 0; n < words[d].length; n++) {
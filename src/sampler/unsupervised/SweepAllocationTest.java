@@ -0,0 +1,157 @@
+package sampler.unsupervised;
+
+import core.AbstractSampler.InitialState;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import sampling.likelihood.DirMult;
+import util.RandomUtils;
+
+/**
+ * Checks that a Gibbs sweep of {@link LDA} on a steady-state model reuses its
+ * buffers and does not allocate per token, for each representation of the
+ * counts. Allocations are counted with the per-thread allocation counter of
+ * the JVM when it is available; the reuse of the scratch buffer is always
+ * checked.
+ *
+ * With dense counts, a sweep must not allocate at all. Sparse count tables
+ * still grow, rarely, when a document reaches a new number of distinct topics,
+ * so with sparse counts a sweep must allocate less than one byte per token,
+ * whereas a buffer allocated per token would take 8 bytes per topic.
+ *
+ * Usage: java sampler.unsupervised.SweepAllocationTest [numSweeps]
+ *
+ * @author vietan
+ */
+public class SweepAllocationTest {
+
+    private static final int D = 500;
+    private static final int V = 1000;
+    private static final int K = 50;
+    private static final int NUM_WARMUP_SWEEPS = 10;
+    private static final com.sun.management.ThreadMXBean ALLOCATION_COUNTER
+            = getAllocationCounter();
+
+    public static void main(String[] args) {
+        int numSweeps = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        boolean passed = true;
+        passed &= testSweep(false, DirMult.Representation.SPARSE, numSweeps);
+        passed &= testSweep(false, DirMult.Representation.DENSE, numSweeps);
+        passed &= testSweep(true, DirMult.Representation.SPARSE, numSweeps);
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Warm up a sampler, then run sweeps and check that they neither replace
+     * the scratch buffer nor allocate more than the class comment allows.
+     */
+    private static boolean testSweep(boolean wordMajor,
+            DirMult.Representation rep, int numSweeps) {
+        String name = "word-major = " + wordMajor + ". rep = " + rep;
+        ProbedLDA sampler = createSampler(wordMajor, rep);
+        for (int ii = 0; ii < NUM_WARMUP_SWEEPS; ii++) {
+            sampler.sweep();
+        }
+
+        long maxBytes = rep == DirMult.Representation.SPARSE
+                ? (long) numSweeps * sampler.getNumTokens() - 1 : 0;
+        double[] buffer = sampler.getBuffer();
+        long allocated = getAllocatedBytes();
+        for (int ii = 0; ii < numSweeps; ii++) {
+            sampler.sweep();
+        }
+        allocated = getAllocatedBytes() - allocated;
+
+        boolean passed = true;
+        if (buffer == null || sampler.getBuffer() != buffer) {
+            System.out.println("FAILED " + name + ". The scratch buffer was replaced.");
+            passed = false;
+        }
+        if (allocated > maxBytes) {
+            System.out.println("FAILED " + name + ". " + numSweeps + " sweeps allocated "
+                    + allocated + " bytes.");
+            passed = false;
+        }
+        if (passed) {
+            System.out.println("PASSED " + name + ". " + numSweeps + " sweeps allocated "
+                    + (allocated < 0 ? "? (not supported by this JVM)" : allocated)
+                    + " bytes.");
+        }
+        return passed;
+    }
+
+    private static ProbedLDA createSampler(boolean wordMajor, DirMult.Representation rep) {
+        Random random = new Random(1);
+        int[][] words = new int[D][];
+        for (int dd = 0; dd < D; dd++) {
+            words[dd] = new int[50 + random.nextInt(100)];
+            for (int nn = 0; nn < words[dd].length; nn++) {
+                words[dd][nn] = random.nextInt(V);
+            }
+        }
+        RandomUtils.setSeed(1);
+        ProbedLDA sampler = new ProbedLDA();
+        sampler.setVerbose(false);
+        sampler.setReport(false);
+        sampler.setWordMajor(wordMajor);
+        sampler.setRepresentations(rep, rep);
+        sampler.configure(null, V, K, 0.1, 0.1, InitialState.RANDOM, false,
+                0, NUM_WARMUP_SWEEPS, 1, 1);
+        sampler.train(words, null);
+        sampler.initialize();
+        return sampler;
+    }
+
+    /**
+     * Return the allocation counter of the JVM, or null if it is not
+     * available.
+     */
+    private static com.sun.management.ThreadMXBean getAllocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+        if (!counter.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        counter.setThreadAllocatedMemoryEnabled(true);
+        return counter;
+    }
+
+    /**
+     * Return the number of bytes allocated so far by the current thread, or -1
+     * if this is not supported. This does not allocate itself.
+     */
+    private static long getAllocatedBytes() {
+        if (ALLOCATION_COUNTER == null) {
+            return -1;
+        }
+        return ALLOCATION_COUNTER.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * An LDA sampler that exposes its scratch buffer.
+     */
+    private static class ProbedLDA extends LDA {
+
+        private static final long serialVersionUID = 1123581321L;
+
+        void sweep() {
+            sampleZs(REMOVE, ADD, REMOVE, ADD);
+        }
+
+        double[] getBuffer() {
+            return scratchBuffer;
+        }
+
+        long getNumTokens() {
+            long numTokens = 0;
+            for (int[] doc : words) {
+                numTokens += doc.length;
+            }
+            return numTokens;
+        }
+    }
+}
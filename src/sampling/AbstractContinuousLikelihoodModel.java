@@ -1,6 +1,7 @@
 package sampling;
 
 import java.util.Random;
+import util.RandomUtils;
 
 /**
  *
@@ -9,7 +10,7 @@ import java.util.Random;
 public abstract class AbstractContinuousLikelihoodModel {
 
     public static final int RANDOM_SEED = 1123581321;
-    protected static Random rand = new Random(RANDOM_SEED);
+    protected static Random rand = RandomUtils.getThreadRandom();
 
     public abstract double sampleFromPrior();
 
@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.Random;
 import java.util.Set;
 import sampling.util.SparseCount;
+import util.RandomUtils;
 
 /**
  * An abstract likelihood model of generating countable finite observations.
@@ -22,7 +23,7 @@ public abstract class AbstractDiscreteFiniteLikelihoodModel
     public static final int RANDOM_SEED = 1123581321;
     // this is currently used for likelihood models that does not have/use
     // conjugate prior and we need to sample from the prior
-    protected static Random rand = new Random(RANDOM_SEED);
+    protected static Random rand = RandomUtils.getThreadRandom();
     // observations
     protected int dimension;
     protected SparseCount observations;
@@ -76,7 +77,7 @@ public abstract class AbstractDiscreteFiniteLikelihoodModel
 
     public int[] getCounts() {
         int[] counts = new int[this.dimension];
-        for (int obs : this.observations.getIndices()) {
+        for (int obs : this.observations.getIndexArray()) {
             counts[obs] = this.observations.getCount(obs);
         }
         return counts;
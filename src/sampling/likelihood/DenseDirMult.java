@@ -0,0 +1,240 @@
+package sampling.likelihood;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import sampling.util.SparseCount;
+
+/**
+ * A Dirichlet-multinomial whose counts are stored in a dense int array, which
+ * is suitable for small dimensions such as document-topic distributions.
+ *
+ * The normalizer 1 / (countSum + concentration) and the pseudo-counts
+ * concentration * center are cached so that {@link #getProbability(int)} is a
+ * single array lookup and multiplication. Optionally, the log numerators
+ * log(count + pseudo-count) and the log denominator are also cached, so that
+ * {@link #getLogLikelihood(int)} needs no logarithm. All caches are updated
+ * incrementally on increment and decrement.
+ *
+ * @author vietan
+ */
+public class DenseDirMult extends DirMult {
+
+    private static final long serialVersionUID = 1123581321L;
+    private int[] counts;
+    private int countSum;
+    private final boolean cacheLogs;
+    private double[] pseudoCounts;
+    private double invDenominator;
+    private double[] logNumerators;
+    private double logDenominator;
+
+    public DenseDirMult(int dim, double concentration, double centerElement,
+            boolean cacheLogs) {
+        super(dim, concentration, centerElement);
+        this.cacheLogs = cacheLogs;
+        this.counts = new int[dim];
+        this.updatePriors();
+    }
+
+    public DenseDirMult(int dim, double concentration, double[] centerVector,
+            boolean cacheLogs) {
+        super(dim, concentration, centerVector);
+        this.cacheLogs = cacheLogs;
+        this.counts = new int[dim];
+        this.updatePriors();
+    }
+
+    public boolean isLogCached() {
+        return this.cacheLogs;
+    }
+
+    /**
+     * Recompute all cached values after the prior has changed.
+     */
+    private void updatePriors() {
+        if (pseudoCounts == null) {
+            pseudoCounts = new double[dimension];
+        }
+        double conc = getConcentration();
+        for (int ii = 0; ii < dimension; ii++) {
+            pseudoCounts[ii] = conc * getCenterElement(ii);
+        }
+        if (cacheLogs) {
+            if (logNumerators == null) {
+                logNumerators = new double[dimension];
+            }
+            for (int ii = 0; ii < dimension; ii++) {
+                logNumerators[ii] = Math.log(counts[ii] + pseudoCounts[ii]);
+            }
+        }
+        updateDenominator();
+    }
+
+    private void updateDenominator() {
+        double denom = countSum + getConcentration();
+        invDenominator = 1.0 / denom;
+        if (cacheLogs) {
+            logDenominator = Math.log(denom);
+        }
+    }
+
+    private void updateCount(int observation, int count) {
+        countSum += count - counts[observation];
+        counts[observation] = count;
+        if (cacheLogs) {
+            logNumerators[observation] = Math.log(count + pseudoCounts[observation]);
+        }
+        updateDenominator();
+    }
+
+    @Override
+    public void setConcentration(double conc) {
+        super.setConcentration(conc);
+        updatePriors();
+    }
+
+    @Override
+    public void setHyperparameters(double[] p) {
+        super.setHyperparameters(p);
+        updatePriors();
+    }
+
+    @Override
+    public void getCenterVector(double[] ce) {
+        super.getCenterVector(ce);
+        updatePriors();
+    }
+
+    @Override
+    public double getProbability(int w) {
+        return (counts[w] + pseudoCounts[w]) * invDenominator;
+    }
+
+    @Override
+    public double getLogLikelihood(int observation) {
+        if (cacheLogs) {
+            return logNumerators[observation] - logDenominator;
+        }
+        return Math.log(getProbability(observation));
+    }
+
+    @Override
+    public double[] getDistribution() {
+        double[] distr = new double[dimension];
+        for (int k = 0; k < dimension; k++) {
+            distr[k] = (counts[k] + pseudoCounts[k]) * invDenominator;
+        }
+        return distr;
+    }
+
+    @Override
+    public int getCount(int observation) {
+        return counts[observation];
+    }
+
+    @Override
+    public int getCountSum() {
+        return countSum;
+    }
+
+    @Override
+    public int[] getCounts() {
+        return counts.clone();
+    }
+
+    @Override
+    public void setCounts(int[] c) {
+        Arrays.fill(counts, 0);
+        System.arraycopy(c, 0, counts, 0, c.length);
+        countSum = 0;
+        for (int count : counts) {
+            countSum += count;
+        }
+        updatePriors();
+    }
+
+    @Override
+    public void changeCount(int observation, int delta) {
+        int count = counts[observation] + delta;
+        if (count < 0) {
+            throw new RuntimeException("Setting a negative count. " + count);
+        }
+        updateCount(observation, count);
+    }
+
+    @Override
+    public void increment(int observation) {
+        updateCount(observation, counts[observation] + 1);
+    }
+
+    @Override
+    public void decrement(int observation) {
+        if (counts[observation] == 0) {
+            throw new RuntimeException("Removing observation that does not exist " + observation);
+        }
+        updateCount(observation, counts[observation] - 1);
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(counts, 0);
+        countSum = 0;
+        updatePriors();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return countSum == 0;
+    }
+
+    /**
+     * Return a sparse copy of the counts.
+     */
+    @Override
+    public SparseCount getSparseCounts() {
+        SparseCount sc = new SparseCount();
+        for (int ii = 0; ii < dimension; ii++) {
+            if (counts[ii] > 0) {
+                sc.setCount(ii, counts[ii]);
+            }
+        }
+        return sc;
+    }
+
+    @Override
+    public HashMap<Integer, Integer> getObservations() {
+        return getSparseCounts().getObservations();
+    }
+
+    @Override
+    public Set<Integer> getUniqueObservations() {
+        return getSparseCounts().getIndices();
+    }
+
+    @Override
+    public void validate(String msg) {
+        int total = 0;
+        for (int ii = 0; ii < dimension; ii++) {
+            if (counts[ii] < 0) {
+                throw new RuntimeException(msg + ". Negative count for observation " + ii);
+            }
+            total += counts[ii];
+        }
+        if (total != countSum) {
+            throw new RuntimeException(msg + ". Total counts mismatched. "
+                    + total + " vs. " + countSum);
+        }
+    }
+
+    @Override
+    public DenseDirMult clone() {
+        DenseDirMult newMult = (DenseDirMult) super.clone();
+        newMult.counts = this.counts.clone();
+        newMult.pseudoCounts = this.pseudoCounts.clone();
+        if (cacheLogs) {
+            newMult.logNumerators = this.logNumerators.clone();
+        }
+        return newMult;
+    }
+}
@@ -17,6 +17,18 @@ import weka.core.SerializedObject;
 public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Serializable {
 
     private static final long serialVersionUID = 1123581321L;
+
+    /**
+     * How the counts of a Dirichlet-multinomial are stored. SPARSE is the
+     * default and suits large dimensions (e.g., topic-word distributions).
+     * DENSE stores counts in an int array with a cached normalizer, which
+     * suits small dimensions (e.g., document-topic distributions). DENSE_LOG
+     * additionally caches log-probabilities.
+     */
+    public static enum Representation {
+
+        SPARSE, DENSE, DENSE_LOG
+    }
     private double concentration; // concentration parameter
     private double[] center; // the mean vector for asymmetric distribution
     private double centerElement; // an element in the mean vector for symmetric distribution
@@ -48,6 +60,38 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
         }
     }
 
+    /**
+     * Create a Dirichlet-multinomial with a symmetric prior using a given
+     * representation.
+     */
+    public static DirMult create(Representation rep, int dim,
+            double concentration, double centerElement) {
+        switch (rep) {
+            case DENSE:
+                return new DenseDirMult(dim, concentration, centerElement, false);
+            case DENSE_LOG:
+                return new DenseDirMult(dim, concentration, centerElement, true);
+            default:
+                return new DirMult(dim, concentration, centerElement);
+        }
+    }
+
+    /**
+     * Create a Dirichlet-multinomial with an asymmetric prior using a given
+     * representation.
+     */
+    public static DirMult create(Representation rep, int dim,
+            double concentration, double[] centerVector) {
+        switch (rep) {
+            case DENSE:
+                return new DenseDirMult(dim, concentration, centerVector, false);
+            case DENSE_LOG:
+                return new DenseDirMult(dim, concentration, centerVector, true);
+            default:
+                return new DirMult(dim, concentration, centerVector);
+        }
+    }
+
     public void setSamplingDistribution(double[] dist) {
         this.distribution = dist;
     }
@@ -96,6 +140,25 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
         return this.center[index];
     }
 
+    /**
+     * Return true if this distribution has the symmetric prior with a given
+     * concentration, i.e., every element of its mean vector is 1 / dimension.
+     *
+     * @param conc The concentration of the symmetric prior
+     */
+    public boolean hasSymmetricPrior(double conc) {
+        if (concentration != conc) {
+            return false;
+        }
+        double element = 1.0 / dimension;
+        for (int ii = 0; ii < dimension; ii++) {
+            if (getCenterElement(ii) != element) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public String getModelName() {
         return "Dirichlet-Multinomial";
@@ -288,6 +351,10 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
     }
 
     public static DirMult input(String str) {
+        return input(str, Representation.SPARSE);
+    }
+
+    public static DirMult input(String str, Representation rep) {
         String[] sline = str.split("\t");
         int dim = Integer.parseInt(sline[0]);
         double concentration = Double.parseDouble(sline[1]);
@@ -296,7 +363,7 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
         for (int v = 0; v < dim; v++) {
             mean[v] = Double.parseDouble(sline[idx++]);
         }
-        DirMult model = new DirMult(dim, concentration, mean);
+        DirMult model = create(rep, dim, concentration, mean);
         for (int v = 0; v < dim; v++) {
             model.changeCount(v, Integer.parseInt(sline[idx++]));
         }
@@ -0,0 +1,153 @@
+package sampling.likelihood;
+
+import java.util.HashMap;
+import java.util.Set;
+import sampling.util.SparseCount;
+import sampling.util.WordTopicMatrix;
+
+/**
+ * A topic of a {@link WordTopicMatrix} seen as a Dirichlet-multinomial. The
+ * prior is kept in the view while all counts are read from and written to the
+ * shared matrix.
+ *
+ * @author vietan
+ */
+public class TopicWordView extends DirMult {
+
+    private static final long serialVersionUID = 1123581321L;
+    private final WordTopicMatrix matrix;
+    private final int topic;
+
+    public TopicWordView(WordTopicMatrix matrix, int topic,
+            double concentration, double centerElement) {
+        super(matrix.getNumWords(), concentration, centerElement);
+        this.matrix = matrix;
+        this.topic = topic;
+    }
+
+    public TopicWordView(WordTopicMatrix matrix, int topic,
+            double concentration, double[] centerVector) {
+        super(matrix.getNumWords(), concentration, centerVector);
+        this.matrix = matrix;
+        this.topic = topic;
+    }
+
+    public WordTopicMatrix getMatrix() {
+        return this.matrix;
+    }
+
+    public int getTopic() {
+        return this.topic;
+    }
+
+    @Override
+    public int getCount(int observation) {
+        return matrix.getCount(topic, observation);
+    }
+
+    @Override
+    public int getCountSum() {
+        return matrix.getCountSum(topic);
+    }
+
+    @Override
+    public int[] getCounts() {
+        int[] counts = new int[dimension];
+        for (int vv = 0; vv < dimension; vv++) {
+            counts[vv] = matrix.getCount(topic, vv);
+        }
+        return counts;
+    }
+
+    @Override
+    public void setCounts(int[] c) {
+        matrix.clear(topic);
+        for (int vv = 0; vv < c.length; vv++) {
+            if (c[vv] != 0) {
+                matrix.changeCount(topic, vv, c[vv]);
+            }
+        }
+    }
+
+    @Override
+    public void changeCount(int observation, int delta) {
+        matrix.changeCount(topic, observation, delta);
+    }
+
+    @Override
+    public void increment(int observation) {
+        matrix.increment(topic, observation);
+    }
+
+    @Override
+    public void decrement(int observation) {
+        matrix.decrement(topic, observation);
+    }
+
+    @Override
+    public void clear() {
+        matrix.clear(topic);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return matrix.getCountSum(topic) == 0;
+    }
+
+    /**
+     * Return a sparse copy of the counts.
+     */
+    @Override
+    public SparseCount getSparseCounts() {
+        SparseCount sc = new SparseCount();
+        for (int vv = 0; vv < dimension; vv++) {
+            int count = matrix.getCount(topic, vv);
+            if (count > 0) {
+                sc.setCount(vv, count);
+            }
+        }
+        return sc;
+    }
+
+    @Override
+    public HashMap<Integer, Integer> getObservations() {
+        return getSparseCounts().getObservations();
+    }
+
+    @Override
+    public Set<Integer> getUniqueObservations() {
+        return getSparseCounts().getIndices();
+    }
+
+    @Override
+    public void validate(String msg) {
+        int total = 0;
+        for (int vv = 0; vv < dimension; vv++) {
+            int count = matrix.getCount(topic, vv);
+            if (count < 0) {
+                throw new RuntimeException(msg + ". Negative count for observation " + vv);
+            }
+            total += count;
+        }
+        if (total != matrix.getCountSum(topic)) {
+            throw new RuntimeException(msg + ". Total counts mismatched. "
+                    + total + " vs. " + matrix.getCountSum(topic));
+        }
+    }
+
+    /**
+     * Return a standalone sparse copy of this topic, which no longer shares
+     * counts with the matrix.
+     */
+    @Override
+    public DirMult clone() {
+        DirMult newMult;
+        if (isShortRepresented()) {
+            newMult = new DirMult(dimension, getConcentration(), getCenterElement(0));
+        } else {
+            newMult = new DirMult(dimension, getConcentration(), getCenterVector().clone());
+        }
+        newMult.setCounts(getCounts());
+        return newMult;
+    }
+}
@@ -0,0 +1,209 @@
+package sampling.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import sampling.likelihood.DirMult;
+import util.RandomUtils;
+
+/**
+ * Multi-threaded approximate distributed Gibbs sweep (AD-LDA, Newman et al.,
+ * JMLR 2009) over documents. Documents are split into contiguous shards, one
+ * per worker thread. Each worker samples its documents against the shared
+ * topic-word counts plus its own {@link TopicWordDelta}, and all deltas are
+ * merged into the shared counts every sync interval.
+ *
+ * Each worker has its own numbered random stream (see {@link RandomUtils})
+ * derived from the given seed, which is bound to whichever pool thread runs the
+ * worker, and merges are deterministic, so a sweep is reproducible for a fixed
+ * seed and number of threads.
+ *
+ * @author vietan
+ */
+public class ADLDASweep {
+
+    /**
+     * Sampler of the assignments of all tokens in a single document.
+     */
+    public interface DocumentSampler {
+
+        /**
+         * Return the number of tokens in a document.
+         *
+         * @param dd The document index
+         */
+        int getNumTokens(int dd);
+
+        /**
+         * Sample all tokens in a document. Only the document's own statistics
+         * and the given delta may be modified.
+         *
+         * @param dd The document index
+         * @param delta The worker's topic-word counts
+         * @param random The worker's random number generator
+         * @param buffer The worker's scratch buffer
+         * @return Number of tokens whose assignments changed
+         */
+        int sampleDocument(int dd, TopicWordDelta delta, Random random, double[] buffer);
+    }
+    private final int numThreads;
+    private final int syncInterval;
+    private final Random[] randoms;
+    private final double[][] buffers;
+    private final long[] workerTokens;
+    private final long[] workerTimes;
+    private final ExecutorService executor;
+
+    /**
+     * @param numThreads Number of worker threads
+     * @param syncInterval Number of documents each worker samples between two
+     * merges. A non-positive value merges once per sweep.
+     * @param bufferSize Size of each worker's scratch buffer
+     * @param seed Seed of the workers' random number generators
+     */
+    public ADLDASweep(int numThreads, int syncInterval, int bufferSize, long seed) {
+        this.numThreads = numThreads;
+        this.syncInterval = syncInterval;
+        this.randoms = new Random[numThreads];
+        this.buffers = new double[numThreads][bufferSize];
+        for (int ii = 0; ii < numThreads; ii++) {
+            this.randoms[ii] = RandomUtils.createStream(seed, ii);
+        }
+        this.workerTokens = new long[numThreads];
+        this.workerTimes = new long[numThreads];
+        this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "adlda-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getNumThreads() {
+        return this.numThreads;
+    }
+
+    /**
+     * Sample all documents once.
+     *
+     * @param D Number of documents
+     * @param topicWords Shared topic-word counts
+     * @param sampler Document sampler
+     * @return Number of tokens whose assignments changed
+     */
+    public int sweep(int D, DirMult[] topicWords, final DocumentSampler sampler) {
+        final int[] shardStarts = new int[numThreads + 1];
+        int maxShardSize = 0;
+        for (int ii = 0; ii <= numThreads; ii++) {
+            shardStarts[ii] = (int) ((long) ii * D / numThreads);
+            if (ii > 0) {
+                maxShardSize = Math.max(maxShardSize, shardStarts[ii] - shardStarts[ii - 1]);
+            }
+        }
+        final int interval = syncInterval > 0 ? syncInterval : Math.max(1, maxShardSize);
+        final TopicWordDelta[] deltas = new TopicWordDelta[numThreads];
+        for (int ii = 0; ii < numThreads; ii++) {
+            deltas[ii] = new TopicWordDelta(topicWords);
+            workerTokens[ii] = 0;
+            workerTimes[ii] = 0;
+        }
+
+        int numChanged = 0;
+        for (int phaseStart = 0; phaseStart < maxShardSize; phaseStart += interval) {
+            // sample
+            List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+            for (int ii = 0; ii < numThreads; ii++) {
+                final int worker = ii;
+                final int start = shardStarts[ii] + phaseStart;
+                final int end = Math.min(shardStarts[ii + 1], start + interval);
+                tasks.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        RandomUtils.setThreadRandom(randoms[worker]);
+                        long sTime = System.nanoTime();
+                        int changed = 0;
+                        for (int dd = start; dd < end; dd++) {
+                            changed += sampler.sampleDocument(dd, deltas[worker],
+                                    randoms[worker], buffers[worker]);
+                            workerTokens[worker] += sampler.getNumTokens(dd);
+                        }
+                        workerTimes[worker] += System.nanoTime() - sTime;
+                        return changed;
+                    }
+                });
+            }
+            for (int changed : invokeAll(tasks)) {
+                numChanged += changed;
+            }
+
+            // merge, in parallel over topics
+            final int K = topicWords.length;
+            tasks = new ArrayList<Callable<Integer>>();
+            for (int ii = 0; ii < numThreads; ii++) {
+                final int start = (int) ((long) ii * K / numThreads);
+                final int end = (int) ((long) (ii + 1) * K / numThreads);
+                tasks.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        for (TopicWordDelta delta : deltas) {
+                            delta.merge(start, end);
+                        }
+                        return 0;
+                    }
+                });
+            }
+            invokeAll(tasks);
+        }
+        return numChanged;
+    }
+
+    private List<Integer> invokeAll(List<Callable<Integer>> tasks) {
+        List<Integer> results = new ArrayList<Integer>();
+        try {
+            for (Future<Integer> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while running parallel sweep");
+        }
+        return results;
+    }
+
+    /**
+     * Return the number of tokens sampled per second by each worker during the
+     * last sweep.
+     */
+    public double[] getThroughputs() {
+        double[] throughputs = new double[numThreads];
+        for (int ii = 0; ii < numThreads; ii++) {
+            if (workerTimes[ii] > 0) {
+                throughputs[ii] = workerTokens[ii] * 1E9 / workerTimes[ii];
+            }
+        }
+        return throughputs;
+    }
+
+    public String getThroughputString() {
+        StringBuilder str = new StringBuilder();
+        str.append("Throughput (tokens/sec):");
+        double[] throughputs = getThroughputs();
+        for (int ii = 0; ii < numThreads; ii++) {
+            str.append(" [").append(ii).append("] ")
+                    .append((long) throughputs[ii]);
+        }
+        return str.toString();
+    }
+
+    public void shutdown() {
+        this.executor.shutdown();
+    }
+}
@@ -0,0 +1,123 @@
+package sampling.util;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * Implementation of Walker's alias method (using Vose's construction) to
+ * sample from a fixed discrete distribution in O(1) time after an O(n)
+ * construction. The unnormalized weights used to build the table are kept so
+ * that the probability of each outcome can be looked up, e.g., for computing
+ * Metropolis-Hastings acceptance ratios with stale tables.
+ *
+ * @author vietan
+ */
+public class AliasTable implements Serializable {
+
+    private static final long serialVersionUID = 1123581321L;
+    private double[] weights;
+    private double[] probs;
+    private int[] aliases;
+    private int[] smalls;
+    private int[] larges;
+    private int size;
+    private double sum;
+
+    public AliasTable(int capacity) {
+        this.allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        this.weights = new double[capacity];
+        this.probs = new double[capacity];
+        this.aliases = new int[capacity];
+        this.smalls = new int[capacity];
+        this.larges = new int[capacity];
+    }
+
+    /**
+     * Build the table from the first n elements of a weight vector.
+     *
+     * @param w Unnormalized non-negative weights
+     * @param n Number of outcomes
+     */
+    public void build(double[] w, int n) {
+        if (n > weights.length) {
+            this.allocate(n);
+        }
+        this.size = n;
+        this.sum = 0.0;
+        for (int ii = 0; ii < n; ii++) {
+            weights[ii] = w[ii];
+            sum += w[ii];
+        }
+        if (n == 0) {
+            return;
+        }
+
+        int numSmalls = 0;
+        int numLarges = 0;
+        for (int ii = 0; ii < n; ii++) {
+            probs[ii] = weights[ii] * n / sum;
+            if (probs[ii] < 1.0) {
+                smalls[numSmalls++] = ii;
+            } else {
+                larges[numLarges++] = ii;
+            }
+        }
+        while (numSmalls > 0 && numLarges > 0) {
+            int small = smalls[--numSmalls];
+            int large = larges[--numLarges];
+            aliases[small] = large;
+            probs[large] = probs[large] + probs[small] - 1.0;
+            if (probs[large] < 1.0) {
+                smalls[numSmalls++] = large;
+            } else {
+                larges[numLarges++] = large;
+            }
+        }
+        // remaining entries are 1 up to numerical error
+        while (numLarges > 0) {
+            probs[larges[--numLarges]] = 1.0;
+        }
+        while (numSmalls > 0) {
+            probs[smalls[--numSmalls]] = 1.0;
+        }
+    }
+
+    /**
+     * Sample an outcome index in [0, size).
+     *
+     * @param rand Random number generator
+     * @return The sampled index
+     */
+    public int sample(Random rand) {
+        int idx = rand.nextInt(size);
+        if (rand.nextDouble() < probs[idx]) {
+            return idx;
+        }
+        return aliases[idx];
+    }
+
+    /**
+     * Return the unnormalized weight of an outcome at the time the table was
+     * built.
+     *
+     * @param idx The outcome index
+     */
+    public double getWeight(int idx) {
+        return this.weights[idx];
+    }
+
+    public double getSum() {
+        return this.sum;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+}
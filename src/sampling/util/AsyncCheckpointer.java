@@ -0,0 +1,129 @@
+package sampling.util;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes sampler checkpoints on a background thread so that sampling can go
+ * on while a snapshot of the state is compressed and written to disk.
+ *
+ * At most a fixed number of checkpoints can be pending at any time. When the
+ * writer falls behind, e.g., because of a slow disk, {@link #submit(Runnable)}
+ * blocks until a pending checkpoint is done, so the snapshots waiting in
+ * memory stay bounded. {@link #flush()} waits for all pending checkpoints and
+ * is also run by a shutdown hook, so that checkpoints are not lost when the
+ * JVM exits. An exception thrown by a checkpoint is rethrown by the next call
+ * to {@link #submit(Runnable)} or {@link #flush()}.
+ *
+ * @author vietan
+ */
+public class AsyncCheckpointer {
+
+    private final int maxPending;
+    private final Semaphore pending;
+    private final ThreadPoolExecutor executor;
+    private final Thread shutdownHook;
+    private volatile Throwable failure;
+
+    /**
+     * @param maxPending Maximum number of checkpoints that are submitted but
+     * not yet written
+     */
+    public AsyncCheckpointer(int maxPending) {
+        if (maxPending < 1) {
+            throw new RuntimeException("Invalid number of pending checkpoints: "
+                    + maxPending);
+        }
+        this.maxPending = maxPending;
+        this.pending = new Semaphore(maxPending);
+        this.executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        // non-daemon so that the JVM waits for pending writes
+                        Thread thread = new Thread(r, "checkpoint-writer");
+                        thread.setDaemon(false);
+                        return thread;
+                    }
+                });
+        // the writer thread exits when idle so that it never keeps the JVM alive
+        this.executor.allowCoreThreadTimeOut(true);
+        this.shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                awaitPending();
+            }
+        }, "checkpoint-flush");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Submit a checkpoint, blocking while the maximum number of checkpoints
+     * are pending.
+     *
+     * @param checkpoint Writes a snapshot of the state
+     */
+    public void submit(final Runnable checkpoint) {
+        checkFailure();
+        pending.acquireUninterruptibly();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkpoint.run();
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                        failure = t;
+                    } finally {
+                        pending.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            pending.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait until all submitted checkpoints are written.
+     */
+    public void flush() {
+        awaitPending();
+        checkFailure();
+    }
+
+    /**
+     * Wait for all submitted checkpoints and stop the writer thread.
+     */
+    public void close() {
+        try {
+            flush();
+        } finally {
+            executor.shutdown();
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // the JVM is already shutting down
+            }
+        }
+    }
+
+    private void awaitPending() {
+        pending.acquireUninterruptibly(maxPending);
+        pending.release(maxPending);
+    }
+
+    private void checkFailure() {
+        Throwable t = failure;
+        if (t != null) {
+            failure = null;
+            throw new RuntimeException("Exception while writing checkpoint", t);
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package sampling.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import sampling.likelihood.DirMult;
+
+/**
+ * Binary sampler state made of named sections of packed little-endian int or
+ * double arrays. Unlike the zipped text states, nothing is converted to or
+ * from strings: sections are streamed to disk through a small direct buffer
+ * and read back by memory-mapping the file.
+ *
+ * Layout. A fixed-size header (magic, version, number of sections, offset of
+ * the section table) is followed by the section payloads, each aligned to 8
+ * bytes, and finally by the section table, which stores the name, type,
+ * offset and number of elements of each section. A ragged array, such as the
+ * topic assignments of all documents, is stored as a section of concatenated
+ * rows plus a section named name + {@link #OFFSETS} with the start of each
+ * row.
+ *
+ * @author vietan
+ */
+public class BinaryState {
+
+    public static final int MAGIC = 0x53474E53; // "SNGS"
+    public static final int VERSION = 1;
+    public static final String OFFSETS = ".offsets";
+    private static final int HEADER_SIZE = 24;
+    private static final byte INT_TYPE = 1;
+    private static final byte DOUBLE_TYPE = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static class Section {
+
+        final byte type;
+        final long offset;
+        final int length;
+
+        Section(byte type, long offset, int length) {
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Writes sections sequentially to a file.
+     */
+    public static class Writer {
+
+        private final String filepath;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final HashMap<String, Section> sections;
+        private final ArrayList<String> names;
+        private long position;
+        private String openSection; // section being appended to, if any
+        private long openLength;
+
+        public Writer(String filepath) throws IOException {
+            this.filepath = filepath;
+            File parent = new File(filepath).getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            this.file = new RandomAccessFile(filepath, "rw");
+            this.file.setLength(0);
+            this.channel = file.getChannel();
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            this.sections = new HashMap<String, Section>();
+            this.names = new ArrayList<String>();
+            // header is written on close
+            this.position = HEADER_SIZE;
+            this.channel.position(HEADER_SIZE);
+        }
+
+        private void begin(String name, byte type, int length) throws IOException {
+            if (openSection != null) {
+                throw new RuntimeException("Section " + openSection
+                        + " has not been ended in " + filepath);
+            }
+            if (sections.containsKey(name)) {
+                throw new RuntimeException("Section " + name + " already exists in "
+                        + filepath);
+            }
+            // align to 8 bytes
+            while (position % 8 != 0) {
+                putByte((byte) 0);
+            }
+            sections.put(name, new Section(type, position, length));
+            names.add(name);
+        }
+
+        private void ensure(int numBytes) throws IOException {
+            if (buffer.remaining() < numBytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void putByte(byte b) throws IOException {
+            ensure(1);
+            buffer.put(b);
+            position++;
+        }
+
+        private void putInt(int v) throws IOException {
+            ensure(4);
+            buffer.putInt(v);
+            position += 4;
+        }
+
+        private void putLong(long v) throws IOException {
+            ensure(8);
+            buffer.putLong(v);
+            position += 8;
+        }
+
+        private void putDouble(double v) throws IOException {
+            ensure(8);
+            buffer.putDouble(v);
+            position += 8;
+        }
+
+        public void writeInts(String name, int[] values) throws IOException {
+            writeInts(name, values, values.length);
+        }
+
+        public void writeInts(String name, int[] values, int length) throws IOException {
+            begin(name, INT_TYPE, length);
+            for (int ii = 0; ii < length; ii++) {
+                putInt(values[ii]);
+            }
+        }
+
+        public void writeDoubles(String name, double[] values) throws IOException {
+            begin(name, DOUBLE_TYPE, values.length);
+            for (double v : values) {
+                putDouble(v);
+            }
+        }
+
+        /**
+         * Write a ragged array of ints.
+         *
+         * @param name Name of the section
+         * @param values The rows
+         */
+        public void writeIntArrays(String name, int[][] values) throws IOException {
+            long total = 0;
+            int[] offsets = new int[values.length + 1];
+            for (int ii = 0; ii < values.length; ii++) {
+                total += values[ii].length;
+                if (total > Integer.MAX_VALUE) {
+                    throw new RuntimeException("Section " + name + " is too large");
+                }
+                offsets[ii + 1] = (int) total;
+            }
+            writeInts(name + OFFSETS, offsets);
+            begin(name, INT_TYPE, (int) total);
+            for (int[] row : values) {
+                for (int v : row) {
+                    putInt(v);
+                }
+            }
+        }
+
+        /**
+         * Start a section of ints whose length is not known in advance, such as
+         * the tokens of a corpus that is read as a stream. Values are added by
+         * {@link #appendInt(int)} until {@link #endInts()} is called, and no
+         * other section can be written in between.
+         *
+         * @param name Name of the section
+         */
+        public void beginInts(String name) throws IOException {
+            begin(name, INT_TYPE, 0);
+            openSection = name;
+            openLength = 0;
+        }
+
+        public void appendInt(int v) throws IOException {
+            if (openSection == null) {
+                throw new RuntimeException("No section has been begun in " + filepath);
+            }
+            if (++openLength > Integer.MAX_VALUE) {
+                throw new RuntimeException("Section " + openSection + " is too large");
+            }
+            putInt(v);
+        }
+
+        public void endInts() {
+            if (openSection == null) {
+                throw new RuntimeException("No section has been begun in " + filepath);
+            }
+            Section section = sections.get(openSection);
+            sections.put(openSection, new Section(section.type, section.offset,
+                    (int) openLength));
+            openSection = null;
+        }
+
+        /**
+         * Write the section table and the header, and close the file.
+         */
+        public void close() throws IOException {
+            try {
+                if (openSection != null) {
+                    endInts();
+                }
+                while (position % 8 != 0) {
+                    putByte((byte) 0);
+                }
+                long tableOffset = position;
+                for (String name : names) {
+                    Section section = sections.get(name);
+                    byte[] bytes = name.getBytes(UTF8);
+                    putInt(bytes.length);
+                    for (byte b : bytes) {
+                        putByte(b);
+                    }
+                    putByte(section.type);
+                    putLong(section.offset);
+                    putInt(section.length);
+                }
+                flush();
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(names.size());
+                header.putInt(0); // reserved
+                header.putLong(tableOffset);
+                header.flip();
+                channel.position(0);
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+            } finally {
+                channel.close();
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Reads sections of a file by memory-mapping them.
+     */
+    public static class Reader {
+
+        private final String filepath;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final HashMap<String, Section> sections;
+        private final int version;
+
+        public Reader(String filepath) throws IOException {
+            this.filepath = filepath;
+            this.file = new RandomAccessFile(filepath, "r");
+            this.channel = file.getChannel();
+            this.sections = new HashMap<String, Section>();
+
+            MappedByteBuffer header = map(0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                close();
+                throw new RuntimeException(filepath + " is not a binary state file");
+            }
+            this.version = header.getInt();
+            if (version > VERSION) {
+                close();
+                throw new RuntimeException("Unsupported binary state version "
+                        + version + " in " + filepath);
+            }
+            int numSections = header.getInt();
+            header.getInt(); // reserved
+            long tableOffset = header.getLong();
+
+            ByteBuffer table = map(tableOffset, channel.size() - tableOffset);
+            for (int ii = 0; ii < numSections; ii++) {
+                byte[] bytes = new byte[table.getInt()];
+                table.get(bytes);
+                byte type = table.get();
+                long offset = table.getLong();
+                int length = table.getInt();
+                sections.put(new String(bytes, UTF8), new Section(type, offset, length));
+            }
+        }
+
+        private MappedByteBuffer map(long offset, long size) throws IOException {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+
+        private Section getSection(String name, byte type) {
+            Section section = sections.get(name);
+            if (section == null) {
+                throw new RuntimeException("Section " + name + " not found in " + filepath);
+            }
+            if (section.type != type) {
+                throw new RuntimeException("Section " + name + " has a different type");
+            }
+            return section;
+        }
+
+        public int getVersion() {
+            return this.version;
+        }
+
+        public boolean contains(String name) {
+            return sections.containsKey(name);
+        }
+
+        /**
+         * Return a read-only view of an int section, which is backed by the
+         * mapped file.
+         *
+         * @param name Name of the section
+         */
+        public IntBuffer getIntBuffer(String name) throws IOException {
+            Section section = getSection(name, INT_TYPE);
+            return map(section.offset, 4L * section.length).asIntBuffer();
+        }
+
+        public DoubleBuffer getDoubleBuffer(String name) throws IOException {
+            Section section = getSection(name, DOUBLE_TYPE);
+            return map(section.offset, 8L * section.length).asDoubleBuffer();
+        }
+
+        public int[] readInts(String name) throws IOException {
+            IntBuffer ib = getIntBuffer(name);
+            int[] values = new int[ib.remaining()];
+            ib.get(values);
+            return values;
+        }
+
+        public double[] readDoubles(String name) throws IOException {
+            DoubleBuffer db = getDoubleBuffer(name);
+            double[] values = new double[db.remaining()];
+            db.get(values);
+            return values;
+        }
+
+        public int[][] readIntArrays(String name) throws IOException {
+            int[] offsets = readInts(name + OFFSETS);
+            int[][] values = new int[offsets.length - 1][];
+            IntBuffer ib = getIntBuffer(name);
+            for (int ii = 0; ii < values.length; ii++) {
+                values[ii] = new int[offsets[ii + 1] - offsets[ii]];
+                ib.get(values[ii]);
+            }
+            return values;
+        }
+
+        /**
+         * Read a ragged array of ints into existing rows, whose lengths must
+         * match the stored ones.
+         *
+         * @param name Name of the section
+         * @param values The rows to fill
+         */
+        public void readIntArrays(String name, int[][] values) throws IOException {
+            int[] offsets = readInts(name + OFFSETS);
+            if (offsets.length - 1 != values.length) {
+                throw new RuntimeException("Number of rows mismatched in section "
+                        + name + ". " + (offsets.length - 1) + " vs. " + values.length);
+            }
+            IntBuffer ib = getIntBuffer(name);
+            for (int ii = 0; ii < values.length; ii++) {
+                if (offsets[ii + 1] - offsets[ii] != values[ii].length) {
+                    throw new RuntimeException("Length of row " + ii
+                            + " mismatched in section " + name);
+                }
+                ib.get(values[ii]);
+            }
+        }
+
+        public void close() throws IOException {
+            channel.close();
+            file.close();
+        }
+    }
+
+    /**
+     * Write a set of Dirichlet-multinomials, storing their priors and their
+     * non-zero counts as interleaved (observation, count) pairs.
+     *
+     * @param writer The writer
+     * @param name Name of the set
+     * @param models The Dirichlet-multinomials, which all have the same
+     * dimension
+     */
+    public static void writeDirMults(Writer writer, String name,
+            DirMult[] models) throws IOException {
+        int dim = models.length == 0 ? 0 : models[0].getDimension();
+        boolean shortRep = true;
+        double[] concentrations = new double[models.length];
+        for (int ii = 0; ii < models.length; ii++) {
+            concentrations[ii] = models[ii].getConcentration();
+            shortRep &= models[ii].isShortRepresented();
+        }
+        writer.writeInts(name + ".info", new int[]{models.length, dim, shortRep ? 1 : 0});
+        writer.writeDoubles(name + ".concentration", concentrations);
+        if (shortRep) {
+            double[] centers = new double[models.length];
+            for (int ii = 0; ii < models.length; ii++) {
+                centers[ii] = models[ii].getCenterElement(0);
+            }
+            writer.writeDoubles(name + ".center", centers);
+        } else {
+            double[] centers = new double[models.length * dim];
+            for (int ii = 0; ii < models.length; ii++) {
+                for (int vv = 0; vv < dim; vv++) {
+                    centers[ii * dim + vv] = models[ii].getCenterElement(vv);
+                }
+            }
+            writer.writeDoubles(name + ".center", centers);
+        }
+
+        int[][] counts = new int[models.length][];
+        for (int ii = 0; ii < models.length; ii++) {
+            SparseCount sc = models[ii].getSparseCounts();
+            int[] indices = sc.getIndexArray();
+            counts[ii] = new int[2 * indices.length];
+            for (int jj = 0; jj < indices.length; jj++) {
+                counts[ii][2 * jj] = indices[jj];
+                counts[ii][2 * jj + 1] = sc.getCount(indices[jj]);
+            }
+        }
+        writer.writeIntArrays(name + ".counts", counts);
+    }
+
+    /**
+     * Read a set of Dirichlet-multinomials written by
+     * {@link #writeDirMults(Writer, String, DirMult[])}.
+     *
+     * @param reader The reader
+     * @param name Name of the set
+     * @param rep The representation of the loaded Dirichlet-multinomials
+     */
+    public static DirMult[] readDirMults(Reader reader, String name,
+            DirMult.Representation rep) throws IOException {
+        int[] info = reader.readInts(name + ".info");
+        int num = info[0];
+        int dim = info[1];
+        boolean shortRep = info[2] == 1;
+        double[] concentrations = reader.readDoubles(name + ".concentration");
+        DoubleBuffer centers = reader.getDoubleBuffer(name + ".center");
+        int[] offsets = reader.readInts(name + ".counts" + OFFSETS);
+        IntBuffer counts = reader.getIntBuffer(name + ".counts");
+
+        DirMult[] models = new DirMult[num];
+        for (int ii = 0; ii < num; ii++) {
+            if (shortRep) {
+                models[ii] = DirMult.create(rep, dim, concentrations[ii], centers.get(ii));
+            } else {
+                double[] center = new double[dim];
+                centers.position(ii * dim);
+                centers.get(center);
+                models[ii] = DirMult.create(rep, dim, concentrations[ii], center);
+            }
+            counts.position(offsets[ii]);
+            for (int jj = offsets[ii]; jj < offsets[ii + 1]; jj += 2) {
+                models[ii].changeCount(counts.get(), counts.get());
+            }
+        }
+        return models;
+    }
+}
@@ -0,0 +1,305 @@
+package sampling.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Incremental sampler state which only records the tokens whose topic
+ * assignments changed since the previous checkpoint, as (document, token,
+ * word, old topic, new topic) tuples, plus named real-valued parameters that
+ * are not determined by the assignments (e.g., regression parameters).
+ * Storing the word types and old topics allows the topic-word counts of a
+ * model to be updated without the training data.
+ *
+ * The state of iteration N is reconstructed by loading the full base state
+ * and replaying all deltas up to N in order (see
+ * {@link #getDeltaChain(String)}). Tuples are sorted by document and token
+ * and stored gzipped as variable-length gaps, so a delta costs a few bytes
+ * per changed token.
+ *
+ * @author vietan
+ */
+public class DeltaState {
+
+    public static final String EXTENSION = ".delta";
+    public static final String[] BASE_EXTENSIONS = {".bin", ".zip"};
+    public static final int MAGIC = 0x53474E44; // "SNGD"
+    public static final int VERSION = 1;
+
+    private final int iter;
+    private final int prevIter;
+    private final boolean prevDelta;
+    private final int numChanges;
+    private final int[] docs;
+    private final int[] tokens;
+    private final int[] words;
+    private final int[] oldTopics;
+    private final int[] newTopics;
+    private final LinkedHashMap<String, double[]> parameters;
+
+    private DeltaState(int iter, int prevIter, boolean prevDelta, int numChanges) {
+        this.iter = iter;
+        this.prevIter = prevIter;
+        this.prevDelta = prevDelta;
+        this.numChanges = numChanges;
+        this.docs = new int[numChanges];
+        this.tokens = new int[numChanges];
+        this.words = new int[numChanges];
+        this.oldTopics = new int[numChanges];
+        this.newTopics = new int[numChanges];
+        this.parameters = new LinkedHashMap<String, double[]>();
+    }
+
+    /**
+     * Create the delta between the assignments at the previous checkpoint and
+     * the current ones, and update the previous assignments to the current
+     * ones.
+     *
+     * @param iter The current iteration
+     * @param prevIter The iteration of the previous checkpoint
+     * @param prevDelta Whether the previous checkpoint is a delta
+     * @param prevZ Assignments at the previous checkpoint, which are updated
+     * @param z Current assignments
+     * @param words Word types of all tokens
+     */
+    public static DeltaState create(int iter, int prevIter, boolean prevDelta,
+            int[][] prevZ, int[][] z, int[][] words) {
+        int numChanges = 0;
+        for (int dd = 0; dd < z.length; dd++) {
+            for (int nn = 0; nn < z[dd].length; nn++) {
+                if (z[dd][nn] != prevZ[dd][nn]) {
+                    numChanges++;
+                }
+            }
+        }
+        DeltaState delta = new DeltaState(iter, prevIter, prevDelta, numChanges);
+        int idx = 0;
+        for (int dd = 0; dd < z.length; dd++) {
+            for (int nn = 0; nn < z[dd].length; nn++) {
+                if (z[dd][nn] != prevZ[dd][nn]) {
+                    delta.docs[idx] = dd;
+                    delta.tokens[idx] = nn;
+                    delta.words[idx] = words[dd][nn];
+                    delta.oldTopics[idx] = prevZ[dd][nn];
+                    delta.newTopics[idx] = z[dd][nn];
+                    prevZ[dd][nn] = z[dd][nn];
+                    idx++;
+                }
+            }
+        }
+        return delta;
+    }
+
+    public int getIteration() {
+        return this.iter;
+    }
+
+    public int getNumChanges() {
+        return this.numChanges;
+    }
+
+    public int getDocument(int ii) {
+        return this.docs[ii];
+    }
+
+    public int getToken(int ii) {
+        return this.tokens[ii];
+    }
+
+    public int getWord(int ii) {
+        return this.words[ii];
+    }
+
+    public int getOldTopic(int ii) {
+        return this.oldTopics[ii];
+    }
+
+    public int getNewTopic(int ii) {
+        return this.newTopics[ii];
+    }
+
+    public void setParameters(String name, double[] values) {
+        this.parameters.put(name, values);
+    }
+
+    public double[] getParameters(String name) {
+        double[] values = this.parameters.get(name);
+        if (values == null) {
+            throw new RuntimeException("Parameters " + name + " not found");
+        }
+        return values;
+    }
+
+    public void output(String filepath) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(filepath), 1 << 16)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(iter);
+            out.writeInt(prevIter);
+            out.writeBoolean(prevDelta);
+            out.writeInt(numChanges);
+            int prevDoc = 0;
+            int prevToken = 0;
+            for (int ii = 0; ii < numChanges; ii++) {
+                writeVarInt(out, docs[ii] - prevDoc);
+                if (docs[ii] != prevDoc) {
+                    prevToken = 0;
+                }
+                writeVarInt(out, tokens[ii] - prevToken);
+                writeVarInt(out, words[ii]);
+                writeVarInt(out, oldTopics[ii]);
+                writeVarInt(out, newTopics[ii]);
+                prevDoc = docs[ii];
+                prevToken = tokens[ii];
+            }
+            out.writeInt(parameters.size());
+            for (String name : parameters.keySet()) {
+                double[] values = parameters.get(name);
+                out.writeUTF(name);
+                out.writeInt(values.length);
+                for (double value : values) {
+                    out.writeDouble(value);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static DeltaState input(String filepath) throws IOException {
+        return input(filepath, false);
+    }
+
+    private static DeltaState input(String filepath, boolean headerOnly) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(filepath), 1 << 16)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new RuntimeException(filepath + " is not a delta state file");
+            }
+            int version = in.readInt();
+            if (version > VERSION) {
+                throw new RuntimeException("Unsupported delta state version "
+                        + version + " in " + filepath);
+            }
+            int iter = in.readInt();
+            int prevIter = in.readInt();
+            boolean prevDelta = in.readBoolean();
+            int numChanges = in.readInt();
+            DeltaState delta = new DeltaState(iter, prevIter, prevDelta,
+                    headerOnly ? 0 : numChanges);
+            if (headerOnly) {
+                return delta;
+            }
+            int prevDoc = 0;
+            int prevToken = 0;
+            for (int ii = 0; ii < numChanges; ii++) {
+                delta.docs[ii] = prevDoc + readVarInt(in);
+                if (delta.docs[ii] != prevDoc) {
+                    prevToken = 0;
+                }
+                delta.tokens[ii] = prevToken + readVarInt(in);
+                delta.words[ii] = readVarInt(in);
+                delta.oldTopics[ii] = readVarInt(in);
+                delta.newTopics[ii] = readVarInt(in);
+                prevDoc = delta.docs[ii];
+                prevToken = delta.tokens[ii];
+            }
+            int numParameters = in.readInt();
+            for (int pp = 0; pp < numParameters; pp++) {
+                String name = in.readUTF();
+                double[] values = new double[in.readInt()];
+                for (int ii = 0; ii < values.length; ii++) {
+                    values[ii] = in.readDouble();
+                }
+                delta.parameters.put(name, values);
+            }
+            return delta;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static File getStateFile(File folder, int iter, boolean delta) {
+        if (delta) {
+            return new File(folder, "iter-" + iter + EXTENSION);
+        }
+        for (String ext : BASE_EXTENSIONS) {
+            File file = new File(folder, "iter-" + iter + ext);
+            if (file.exists()) {
+                return file;
+            }
+        }
+        throw new RuntimeException("Base state of iteration " + iter
+                + " not found in " + folder);
+    }
+
+    /**
+     * Return the delta states that have to be replayed on top of the base
+     * state to reconstruct a given delta state, oldest first and ending with
+     * the given one.
+     *
+     * @param filepath The delta state
+     */
+    public static ArrayList<String> getDeltaChain(String filepath) throws IOException {
+        File folder = new File(filepath).getAbsoluteFile().getParentFile();
+        ArrayList<String> chain = new ArrayList<String>();
+        String cur = filepath;
+        while (true) {
+            chain.add(cur);
+            DeltaState header = input(cur, true);
+            if (!header.prevDelta) {
+                break;
+            }
+            cur = getStateFile(folder, header.prevIter, true).getAbsolutePath();
+        }
+        Collections.reverse(chain);
+        return chain;
+    }
+
+    /**
+     * Return the full state on which a delta state is based.
+     *
+     * @param filepath The delta state
+     */
+    public static String getBaseState(String filepath) throws IOException {
+        File folder = new File(filepath).getAbsoluteFile().getParentFile();
+        ArrayList<String> chain = getDeltaChain(filepath);
+        DeltaState header = input(chain.get(0), true);
+        return getStateFile(folder, header.prevIter, false).getAbsolutePath();
+    }
+}
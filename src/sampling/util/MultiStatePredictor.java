@@ -0,0 +1,216 @@
+package sampling.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import util.RandomUtils;
+
+/**
+ * Make predictions for test documents using multiple states of a model (e.g.,
+ * the states stored in the report folder during training). This requires the
+ * test documents to be independent given the model, i.e., sampling at test
+ * time only updates the document-specific variables.
+ *
+ * Each state is loaded once into a model which is shared, read-only, by all
+ * tasks using it. A task makes the predictions for a chunk of consecutive
+ * documents using a single model, and all tasks run on a fixed pool of
+ * threads. The states are processed in batches of at most
+ * {@link #setMaxNumLoadedStates(int)} states, so the number of models held in
+ * memory at the same time does not grow with the number of threads; the
+ * chunks of the models of a batch are spread over all threads. Each task
+ * draws from its own random number stream, numbered by the state and the
+ * chunk (see {@link RandomUtils}), so the predictions do not depend on the
+ * number of threads. The predictions are kept in memory.
+ *
+ * @author vietan
+ * @param <M> Type of the loaded models
+ */
+public class MultiStatePredictor<M> {
+
+    public static final int DEFAULT_CHUNK_SIZE = 100;
+    public static final int DEFAULT_MAX_NUM_LOADED_STATES = 2;
+    private final Predictor<M> predictor;
+    private final int numThreads;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int maxNumLoadedStates = DEFAULT_MAX_NUM_LOADED_STATES;
+    private ArrayList<String> stateFiles;
+    private double[][][] predictions; // [state][document][]
+
+    /**
+     * @param predictor Predictor
+     * @param numThreads Number of threads
+     */
+    public MultiStatePredictor(Predictor<M> predictor, int numThreads) {
+        if (numThreads < 1) {
+            throw new RuntimeException("Invalid number of threads " + numThreads);
+        }
+        this.predictor = predictor;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Set the maximum number of documents predicted by a single task.
+     *
+     * @param chunkSize The chunk size
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new RuntimeException("Invalid chunk size " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Set the maximum number of states loaded in memory at the same time,
+     * independently of the number of threads.
+     *
+     * @param maxNumLoadedStates The maximum number of loaded states
+     */
+    public void setMaxNumLoadedStates(int maxNumLoadedStates) {
+        if (maxNumLoadedStates < 1) {
+            throw new RuntimeException("Invalid number of loaded states "
+                    + maxNumLoadedStates);
+        }
+        this.maxNumLoadedStates = maxNumLoadedStates;
+    }
+
+    /**
+     * Make predictions for all documents using each of the given states.
+     *
+     * @param stateFiles The state files
+     * @param numDocs Number of test documents
+     */
+    public void predict(ArrayList<String> stateFiles, final int numDocs) {
+        this.stateFiles = new ArrayList<String>(stateFiles);
+        final int numStates = stateFiles.size();
+        final int numChunks = (numDocs + chunkSize - 1) / chunkSize;
+        this.predictions = new double[numStates][numDocs][];
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (int batchStart = 0; batchStart < numStates; batchStart += maxNumLoadedStates) {
+                int batchEnd = Math.min(numStates, batchStart + maxNumLoadedStates);
+
+                // load the states of this batch
+                List<Callable<M>> loadTasks = new ArrayList<Callable<M>>();
+                for (int ss = batchStart; ss < batchEnd; ss++) {
+                    final String stateFile = stateFiles.get(ss);
+                    loadTasks.add(new Callable<M>() {
+                        @Override
+                        public M call() {
+                            return predictor.loadModel(stateFile);
+                        }
+                    });
+                }
+                ArrayList<M> models = new ArrayList<M>();
+                for (Future<M> future : executor.invokeAll(loadTasks)) {
+                    models.add(future.get());
+                }
+
+                // predict with all models of this batch
+                List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+                for (int ss = batchStart; ss < batchEnd; ss++) {
+                    final int state = ss;
+                    final M model = models.get(ss - batchStart);
+                    for (int cc = 0; cc < numChunks; cc++) {
+                        final int stream = ss * numChunks + cc;
+                        final int start = cc * chunkSize;
+                        final int end = Math.min(numDocs, start + chunkSize);
+                        tasks.add(new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                RandomUtils.setThreadRandom(RandomUtils.createStream(stream));
+                                double[][] preds = predictor.predict(model, start, end);
+                                if (preds.length != end - start) {
+                                    throw new RuntimeException("Number of predictions mismatch. "
+                                            + preds.length + " vs. " + (end - start));
+                                }
+                                System.arraycopy(preds, 0, predictions[state], start, end - start);
+                                return end - start;
+                            }
+                        });
+                    }
+                }
+                for (Future<Integer> future : executor.invokeAll(tasks)) {
+                    future.get();
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while predicting using multiple states");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public int getNumStates() {
+        return stateFiles.size();
+    }
+
+    public String getStateFile(int ss) {
+        return stateFiles.get(ss);
+    }
+
+    /**
+     * Return the predictions made using a state, one row for each document.
+     *
+     * @param ss Index of the state
+     */
+    public double[][] getPredictions(int ss) {
+        return predictions[ss];
+    }
+
+    /**
+     * Return the predictions averaged over all states, element-wise.
+     */
+    public double[][] getAveragePredictions() {
+        int numDocs = predictions.length == 0 ? 0 : predictions[0].length;
+        double[][] avgPreds = new double[numDocs][];
+        for (int dd = 0; dd < numDocs; dd++) {
+            avgPreds[dd] = new double[predictions[0][dd].length];
+            for (double[][] statePreds : predictions) {
+                if (statePreds[dd].length != avgPreds[dd].length) {
+                    throw new RuntimeException("Number of predictions mismatch. "
+                            + statePreds[dd].length + " vs. " + avgPreds[dd].length);
+                }
+                for (int ii = 0; ii < avgPreds[dd].length; ii++) {
+                    avgPreds[dd][ii] += statePreds[dd][ii];
+                }
+            }
+            for (int ii = 0; ii < avgPreds[dd].length; ii++) {
+                avgPreds[dd][ii] /= predictions.length;
+            }
+        }
+        return avgPreds;
+    }
+
+    /**
+     * Load the states and make predictions.
+     *
+     * @param <M> Type of the loaded models
+     */
+    public interface Predictor<M> {
+
+        /**
+         * Load a state. The model is used concurrently by multiple tasks and
+         * must not be modified by them.
+         *
+         * @param stateFile The state file
+         */
+        public M loadModel(String stateFile);
+
+        /**
+         * Make predictions for a chunk of test documents.
+         *
+         * @param model The model loaded from a state
+         * @param start Index of the first document (inclusive)
+         * @param end Index of the last document (exclusive)
+         * @return The predictions for each document in the chunk
+         */
+        public double[][] predict(M model, int start, int end);
+    }
+}
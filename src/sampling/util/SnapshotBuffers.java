@@ -0,0 +1,144 @@
+package sampling.util;
+
+import sampling.likelihood.DirMult;
+import sampling.likelihood.TopicWordView;
+
+/**
+ * Buffers that hold a copy of the counts and assignments of a topic model so
+ * that a background writer can output it while sampling goes on. A buffer is
+ * allocated once and then refilled at every checkpoint: the sampling thread
+ * only copies the topic assignments and the word-topic count matrix with
+ * array copies, and the document-topic counts, which are determined by the
+ * assignments, are recounted by the writer (see
+ * {@link #countAssignments(DirMult[], int[][])}).
+ *
+ * @author vietan
+ */
+public class SnapshotBuffers {
+
+    /**
+     * Create views over a new word-major matrix with the same priors as a set
+     * of topics. The prior vectors are shared, not copied.
+     *
+     * @param topics The topics
+     */
+    public static DirMult[] createTopicWords(DirMult[] topics) {
+        int numTopics = topics.length;
+        int vocabSize = numTopics == 0 ? 0 : topics[0].getDimension();
+        WordTopicMatrix matrix = new WordTopicMatrix(vocabSize, numTopics);
+        DirMult[] views = new DirMult[numTopics];
+        for (int kk = 0; kk < numTopics; kk++) {
+            DirMult topic = topics[kk];
+            if (topic.isShortRepresented()) {
+                views[kk] = new TopicWordView(matrix, kk, topic.getConcentration(),
+                        topic.getCenterElement(0));
+            } else {
+                views[kk] = new TopicWordView(matrix, kk, topic.getConcentration(),
+                        topic.getCenterVector());
+            }
+        }
+        return views;
+    }
+
+    /**
+     * Copy the counts of a set of topics into a buffer created by
+     * {@link #createTopicWords(DirMult[])}.
+     *
+     * @param topics The topics
+     * @param buffer The buffer
+     */
+    public static void copyTopicWords(DirMult[] topics, DirMult[] buffer) {
+        WordTopicMatrix target = WordTopicMatrix.getMatrix(buffer);
+        WordTopicMatrix source = WordTopicMatrix.getMatrix(topics);
+        if (source != null) {
+            target.copyFrom(source);
+        } else {
+            target.clear();
+            for (int kk = 0; kk < topics.length; kk++) {
+                for (int vv : topics[kk].getSparseCounts().getIndexArray()) {
+                    target.changeCount(kk, vv, topics[kk].getCount(vv));
+                }
+            }
+        }
+        copyConcentrations(topics, buffer);
+    }
+
+    /**
+     * Create empty Dirichlet-multinomials with the same priors as a given set.
+     * The prior vectors are shared, not copied.
+     *
+     * @param models The models
+     * @param rep The representation of the new models
+     */
+    public static DirMult[] createDirMults(DirMult[] models, DirMult.Representation rep) {
+        DirMult[] buffer = new DirMult[models.length];
+        for (int ii = 0; ii < models.length; ii++) {
+            DirMult model = models[ii];
+            if (model.isShortRepresented()) {
+                buffer[ii] = DirMult.create(rep, model.getDimension(),
+                        model.getConcentration(), model.getCenterElement(0));
+            } else {
+                buffer[ii] = DirMult.create(rep, model.getDimension(),
+                        model.getConcentration(), model.getCenterVector());
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Copy the concentration parameters of a set of models, which can be
+     * changed by hyperparameter updates.
+     *
+     * @param models The models
+     * @param buffer Models with the same dimensions
+     */
+    public static void copyConcentrations(DirMult[] models, DirMult[] buffer) {
+        for (int ii = 0; ii < models.length; ii++) {
+            if (buffer[ii].getConcentration() != models[ii].getConcentration()) {
+                buffer[ii].setConcentration(models[ii].getConcentration());
+            }
+        }
+    }
+
+    /**
+     * Create an array with the same shape as a set of assignments.
+     *
+     * @param z The assignments
+     */
+    public static int[][] createAssignments(int[][] z) {
+        int[][] buffer = new int[z.length][];
+        for (int dd = 0; dd < z.length; dd++) {
+            buffer[dd] = new int[z[dd].length];
+        }
+        return buffer;
+    }
+
+    /**
+     * Copy a set of assignments into a buffer created by
+     * {@link #createAssignments(int[][])}.
+     *
+     * @param z The assignments
+     * @param buffer The buffer
+     */
+    public static void copyAssignments(int[][] z, int[][] buffer) {
+        for (int dd = 0; dd < z.length; dd++) {
+            System.arraycopy(z[dd], 0, buffer[dd], 0, z[dd].length);
+        }
+    }
+
+    /**
+     * Set the counts of each document-topic model to the topic counts of the
+     * assignments of the document.
+     *
+     * @param docTopics The document-topic models
+     * @param z The assignments
+     */
+    public static void countAssignments(DirMult[] docTopics, int[][] z) {
+        for (int dd = 0; dd < docTopics.length; dd++) {
+            docTopics[dd].clear();
+            for (int nn = 0; nn < z[dd].length; nn++) {
+                docTopics[dd].increment(z[dd][nn]);
+            }
+        }
+    }
+}
@@ -1,43 +1,88 @@
 package sampling.util;
 
 import java.io.Serializable;
+import java.util.AbstractSet;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
+ * Sparse non-negative integer counts indexed by integers. Counts are stored in
+ * a primitive open-addressing hash table (linear probing with backward-shift
+ * deletion, so that lookups never walk over deleted slots) so that
+ * incrementing and decrementing counts does not box integers. A slot is empty
+ * if and only if its count is zero. Once the fraction of non-zero entries
+ * among all indices up to the largest one seen passes
+ * {@link #DENSE_THRESHOLD}, the counts are automatically moved to a dense int
+ * array. They move back to the hash table once the occupancy of the dense
+ * array falls below the much lower {@link #SPARSE_THRESHOLD}, e.g., when the
+ * indices keep growing, as the table indices of a restaurant do, so iterating
+ * stays proportional to the number of non-zero counts.
  *
  * @author vietan
  */
 public class SparseCount implements Cloneable, Serializable {
 
     private static final long serialVersionUID = 1123581321L;
-    private HashMap<Integer, Integer> counts;
+    public static final double DENSE_THRESHOLD = 0.5;
+    public static final double SPARSE_THRESHOLD = 0.125;
+    public static final int MIN_DENSE_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 8;
+    private int[] keys; // null when the dense representation is used
+    private int[] counts; // counts aligned with keys; 0 marks an empty slot
+    private int[] denseCounts; // null when the sparse representation is used
+    private int size; // number of non-zero indices
+    private int maxIndex;
+    private boolean hasNegativeIndex; // negative indices are kept sparse
     private int countSum;
 
     public SparseCount() {
-        this.counts = new HashMap<Integer, Integer>();
+        this.keys = new int[INITIAL_CAPACITY];
+        this.counts = new int[INITIAL_CAPACITY];
         this.countSum = 0;
+        this.size = 0;
+        this.maxIndex = -1;
     }
 
     @Override
     public SparseCount clone() throws CloneNotSupportedException {
         SparseCount sc = (SparseCount) super.clone();
-        sc.counts = (HashMap<Integer, Integer>) this.counts.clone();
+        if (this.keys != null) {
+            sc.keys = this.keys.clone();
+            sc.counts = this.counts.clone();
+        }
+        if (this.denseCounts != null) {
+            sc.denseCounts = this.denseCounts.clone();
+        }
         return sc;
     }
 
+    public boolean isDense() {
+        return this.denseCounts != null;
+    }
+
     public double dotprod(double[] w) {
         double dp = 0.0;
-        for (int idx : this.getIndices()) {
-            dp += this.getCount(idx) * w[idx];
+        if (isDense()) {
+            int len = Math.min(denseCounts.length, w.length);
+            for (int idx = 0; idx < len; idx++) {
+                dp += denseCounts[idx] * w[idx];
+            }
+        } else {
+            for (int ii = 0; ii < keys.length; ii++) {
+                if (counts[ii] > 0) {
+                    dp += counts[ii] * w[keys[ii]];
+                }
+            }
         }
         return dp;
     }
 
     public int size() {
-        return this.counts.size();
+        return this.size;
     }
 
     public void remove(int idx) {
@@ -47,8 +92,25 @@ public class SparseCount implements Cloneable, Serializable {
         this.setCount(idx, 0);
     }
 
+    /**
+     * Return a copy of the non-zero counts as a map.
+     */
     public HashMap<Integer, Integer> getObservations() {
-        return this.counts;
+        HashMap<Integer, Integer> obs = new HashMap<Integer, Integer>();
+        if (isDense()) {
+            for (int idx = 0; idx < denseCounts.length; idx++) {
+                if (denseCounts[idx] > 0) {
+                    obs.put(idx, denseCounts[idx]);
+                }
+            }
+        } else {
+            for (int ii = 0; ii < keys.length; ii++) {
+                if (counts[ii] > 0) {
+                    obs.put(keys[ii], counts[ii]);
+                }
+            }
+        }
+        return obs;
     }
 
     public void setCount(int observation, int count) {
@@ -56,36 +118,73 @@ public class SparseCount implements Cloneable, Serializable {
             throw new RuntimeException("Setting a negative count. " + count);
         }
         int curCount = this.getCount(observation);
-        this.counts.put(observation, count);
+        this.put(observation, curCount, count);
         this.countSum += count - curCount;
-        if (count == 0) {
-            this.counts.remove(observation);
-        }
-
-        if (counts.get(observation) != null && this.counts.get(observation) < 0) {
-            throw new RuntimeException("Negative count for observation " + observation
-                    + ". count = " + this.counts.get(observation));
-        }
         if (countSum < 0) {
             throw new RuntimeException("Negative count sumze " + countSum);
         }
     }
 
     public ArrayList<Integer> getSortedIndices() {
-        ArrayList<Integer> sortedIndices = new ArrayList<Integer>();
-        for (int ii : getIndices()) {
+        int[] indices = getIndexArray();
+        Arrays.sort(indices);
+        ArrayList<Integer> sortedIndices = new ArrayList<Integer>(indices.length);
+        for (int ii : indices) {
             sortedIndices.add(ii);
         }
-        Collections.sort(sortedIndices);
         return sortedIndices;
     }
 
+    /**
+     * Return the indices having non-zero counts as a new array.
+     */
+    public int[] getIndexArray() {
+        int[] indices = new int[size];
+        if (isDense()) {
+            int ii = 0;
+            for (int idx = 0; idx < denseCounts.length; idx++) {
+                if (denseCounts[idx] > 0) {
+                    indices[ii++] = idx;
+                }
+            }
+        } else {
+            int jj = 0;
+            for (int ii = 0; ii < keys.length; ii++) {
+                if (counts[ii] > 0) {
+                    indices[jj++] = keys[ii];
+                }
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Return a view of the indices having non-zero counts.
+     */
     public Set<Integer> getIndices() {
-        return this.counts.keySet();
+        return new AbstractSet<Integer>() {
+            @Override
+            public Iterator<Integer> iterator() {
+                if (isDense()) {
+                    return new IndexIterator(null, denseCounts);
+                }
+                return new IndexIterator(keys, counts);
+            }
+
+            @Override
+            public int size() {
+                return SparseCount.this.size;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Integer && containsIndex((Integer) o);
+            }
+        };
     }
 
     public boolean containsIndex(int idx) {
-        return this.counts.containsKey(idx);
+        return getCount(idx) > 0;
     }
 
     public int getCountSum() {
@@ -93,12 +192,23 @@ public class SparseCount implements Cloneable, Serializable {
     }
 
     public int getCount(int observation) {
-        Integer count = this.counts.get(observation);
-        if (count == null) {
-            return 0;
-        } else {
-            return count;
+        if (isDense()) {
+            if (observation < 0 || observation >= denseCounts.length) {
+                return 0;
+            }
+            return denseCounts[observation];
         }
+        int[] ks = keys;
+        int[] cs = counts;
+        int mask = ks.length - 1;
+        int ii = slot(observation, mask);
+        while (cs[ii] != 0) {
+            if (ks[ii] == observation) {
+                return cs[ii];
+            }
+            ii = (ii + 1) & mask;
+        }
+        return 0;
     }
 
     public void changeCount(int observation, int delta) {
@@ -107,39 +217,198 @@ public class SparseCount implements Cloneable, Serializable {
     }
 
     public void increment(int observation) {
-        Integer count = this.counts.get(observation);
-        if (count == null) {
-            this.counts.put(observation, 1);
+        if (isDense() && observation >= 0 && observation < denseCounts.length) {
+            if (denseCounts[observation]++ == 0) {
+                size++;
+            }
         } else {
-            this.counts.put(observation, count + 1);
+            int count = getCount(observation);
+            this.put(observation, count, count + 1);
         }
         this.countSum++;
     }
 
     public void decrement(int observation) {
-        Integer count = this.counts.get(observation);
-        if (count == null) {
-            for (Integer obs : this.counts.keySet()) {
-                System.out.println(obs + ": " + this.counts.get(obs));
+        int count = getCount(observation);
+        if (count == 0) {
+            for (int obs : this.getIndices()) {
+                System.out.println(obs + ": " + this.getCount(obs));
             }
             throw new RuntimeException("Removing observation that does not exist " + observation);
         }
-        if (count == 1) {
-            this.counts.remove(observation);
+        if (isDense()) {
+            if (--denseCounts[observation] == 0) {
+                size--;
+                checkSparse();
+            }
         } else {
-            this.counts.put(observation, count - 1);
+            this.put(observation, count, count - 1);
         }
         this.countSum--;
 
-        if (counts.get(observation) != null && this.counts.get(observation) < 0) {
-            throw new RuntimeException("Negative count for observation " + observation
-                    + ". count = " + this.counts.get(observation));
-        }
         if (countSum < 0) {
             throw new RuntimeException("Negative count sumze " + countSum);
         }
     }
 
+    /**
+     * Store a new count for an observation whose current count is given.
+     */
+    private void put(int observation, int curCount, int count) {
+        if (observation < 0 && !hasNegativeIndex) {
+            hasNegativeIndex = true;
+            if (isDense()) {
+                toSparse();
+            }
+        }
+        if (curCount == 0 && count > 0) {
+            size++;
+        } else if (curCount > 0 && count == 0) {
+            size--;
+        }
+        if (observation > maxIndex) {
+            maxIndex = observation;
+        }
+
+        if (isDense()) {
+            if (observation >= denseCounts.length) {
+                denseCounts = Arrays.copyOf(denseCounts,
+                        Math.max(observation + 1, 2 * denseCounts.length));
+            }
+            denseCounts[observation] = count;
+            checkSparse();
+            return;
+        }
+
+        if (count == 0) {
+            removeKey(observation);
+        } else {
+            putKey(observation, count);
+            int range = maxIndex + 1;
+            if (!hasNegativeIndex && range >= MIN_DENSE_SIZE
+                    && size > DENSE_THRESHOLD * range) {
+                toDense();
+            }
+        }
+    }
+
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Set the (positive) count of a key in the hash table.
+     */
+    private void putKey(int key, int count) {
+        int mask = keys.length - 1;
+        int ii = slot(key, mask);
+        while (counts[ii] != 0) {
+            if (keys[ii] == key) {
+                counts[ii] = count;
+                return;
+            }
+            ii = (ii + 1) & mask;
+        }
+        keys[ii] = key;
+        counts[ii] = count;
+        if (2 * size > keys.length) { // size already includes the new key
+            rehash(2 * keys.length);
+        }
+    }
+
+    /**
+     * Remove a key from the hash table, shifting back the following entries of
+     * its probe sequence so that no deleted markers are needed.
+     */
+    private void removeKey(int key) {
+        int mask = keys.length - 1;
+        int ii = slot(key, mask);
+        while (counts[ii] != 0) {
+            if (keys[ii] == key) {
+                break;
+            }
+            ii = (ii + 1) & mask;
+        }
+        if (counts[ii] == 0) {
+            return;
+        }
+        int jj = ii;
+        while (true) {
+            jj = (jj + 1) & mask;
+            if (counts[jj] == 0) {
+                break;
+            }
+            int home = slot(keys[jj], mask);
+            // move the entry at jj back to ii unless its home slot lies
+            // cyclically in (ii, jj]
+            boolean inRange = ii <= jj ? (ii < home && home <= jj) : (ii < home || home <= jj);
+            if (!inRange) {
+                keys[ii] = keys[jj];
+                counts[ii] = counts[jj];
+                ii = jj;
+            }
+        }
+        counts[ii] = 0;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldCounts = counts;
+        keys = new int[capacity];
+        counts = new int[capacity];
+        int mask = capacity - 1;
+        for (int ii = 0; ii < oldKeys.length; ii++) {
+            if (oldCounts[ii] > 0) {
+                int jj = slot(oldKeys[ii], mask);
+                while (counts[jj] != 0) {
+                    jj = (jj + 1) & mask;
+                }
+                keys[jj] = oldKeys[ii];
+                counts[jj] = oldCounts[ii];
+            }
+        }
+    }
+
+    private void toDense() {
+        denseCounts = new int[maxIndex + 1];
+        for (int ii = 0; ii < keys.length; ii++) {
+            if (counts[ii] > 0) {
+                denseCounts[keys[ii]] = counts[ii];
+            }
+        }
+        keys = null;
+        counts = null;
+    }
+
+    /**
+     * Move the dense counts back to the hash table if few of them are
+     * non-zero.
+     */
+    private void checkSparse() {
+        if (size < SPARSE_THRESHOLD * denseCounts.length) {
+            toSparse();
+        }
+    }
+
+    private void toSparse() {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < 2 * size) {
+            capacity *= 2;
+        }
+        int[] dense = denseCounts;
+        denseCounts = null;
+        keys = new int[capacity];
+        counts = new int[capacity];
+        maxIndex = -1;
+        for (int idx = 0; idx < dense.length; idx++) {
+            if (dense[idx] > 0) {
+                putKey(idx, dense[idx]);
+                maxIndex = idx;
+            }
+        }
+    }
+
     public boolean isEmpty() {
         return this.countSum == 0;
     }
@@ -159,12 +428,22 @@ public class SparseCount implements Cloneable, Serializable {
         }
 
         int totalCount = 0;
-        for (int obs : this.counts.keySet()) {
-            totalCount += this.counts.get(obs);
+        int numNonZeros = 0;
+        for (int obs : this.getIndices()) {
+            int count = this.getCount(obs);
+            if (count <= 0) {
+                throw new RuntimeException(msg + ". Non-positive count for observation "
+                        + obs + ". count = " + count);
+            }
+            totalCount += count;
+            numNonZeros++;
         }
         if (totalCount != this.countSum) {
             throw new RuntimeException(msg + ". Total counts mismatched. " + totalCount + " vs. " + countSum);
         }
+        if (numNonZeros != this.size) {
+            throw new RuntimeException(msg + ". Sizes mismatched. " + numNonZeros + " vs. " + size);
+        }
     }
 
     public static SparseCount add(SparseCount sc1, SparseCount sc2) {
@@ -183,8 +462,8 @@ public class SparseCount implements Cloneable, Serializable {
 
     public static String output(SparseCount sc) {
         StringBuilder str = new StringBuilder();
-        for (int obs : sc.counts.keySet()) {
-            str.append(obs).append(":").append(sc.counts.get(obs)).append("\t");
+        for (int obs : sc.getIndices()) {
+            str.append(obs).append(":").append(sc.getCount(obs)).append("\t");
         }
         return str.toString();
     }
@@ -202,4 +481,48 @@ public class SparseCount implements Cloneable, Serializable {
         }
         return sp;
     }
+
+    /**
+     * Iterator over the non-zero entries of either representation. For the
+     * dense representation, the index is the position in the count array.
+     */
+    private static class IndexIterator implements Iterator<Integer> {
+
+        private final int[] keys;
+        private final int[] counts;
+        private int next;
+
+        IndexIterator(int[] keys, int[] counts) {
+            this.keys = keys;
+            this.counts = counts;
+            this.next = advance(0);
+        }
+
+        private int advance(int from) {
+            while (from < counts.length && counts[from] == 0) {
+                from++;
+            }
+            return from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < counts.length;
+        }
+
+        @Override
+        public Integer next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int pos = next;
+            next = advance(next + 1);
+            return keys == null ? pos : keys[pos];
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
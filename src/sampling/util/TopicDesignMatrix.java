@@ -0,0 +1,243 @@
+package sampling.util;
+
+/**
+ * Design matrix whose rows are the empirical topic distributions of the
+ * documents, i.e., the number of tokens of each document assigned to each topic
+ * divided by the number of tokens in the document. This is the design matrix of
+ * the response models of sLDA-like samplers.
+ *
+ * The matrix is stored in a compressed sparse row format with primitive arrays
+ * and is updated incrementally as tokens are reassigned, so it does not need to
+ * be rebuilt before each update of the regression parameters. Since a document
+ * with N tokens has at most min(N, K) topics with non-zero counts, each row is
+ * allocated that many slots once. The order of the topics within a row depends
+ * on the order of the updates.
+ *
+ * @author vietan
+ */
+public class TopicDesignMatrix {
+
+    private final int numTopics;
+    private final int[] rowStarts;
+    private final int[] rowSizes;
+    private final int[] topics;
+    private final int[] counts;
+    private final double[] scales;
+
+    /**
+     * @param numTopics Number of topics (columns)
+     * @param docLengths Number of tokens in each document (row)
+     */
+    public TopicDesignMatrix(int numTopics, int[] docLengths) {
+        this.numTopics = numTopics;
+        this.rowStarts = new int[docLengths.length + 1];
+        this.rowSizes = new int[docLengths.length];
+        this.scales = new double[docLengths.length];
+        for (int d = 0; d < docLengths.length; d++) {
+            rowStarts[d + 1] = rowStarts[d] + Math.min(numTopics, docLengths[d]);
+            if (docLengths[d] > 0) {
+                scales[d] = 1.0 / docLengths[d];
+            }
+        }
+        this.topics = new int[rowStarts[docLengths.length]];
+        this.counts = new int[rowStarts[docLengths.length]];
+    }
+
+    public int getNumRows() {
+        return rowSizes.length;
+    }
+
+    public int getNumColumns() {
+        return numTopics;
+    }
+
+    /**
+     * Return the number of non-zero entries in a row.
+     *
+     * @param d Row index
+     */
+    public int getRowSize(int d) {
+        return rowSizes[d];
+    }
+
+    /**
+     * Return the column of the i-th non-zero entry in a row.
+     *
+     * @param d Row index
+     * @param i Position of the entry in the row
+     */
+    public int getColumn(int d, int i) {
+        return topics[rowStarts[d] + i];
+    }
+
+    /**
+     * Return the value of the i-th non-zero entry in a row.
+     *
+     * @param d Row index
+     * @param i Position of the entry in the row
+     */
+    public double getValue(int d, int i) {
+        return counts[rowStarts[d] + i] * scales[d];
+    }
+
+    /**
+     * Return the value at a given row and column.
+     *
+     * @param d Row index
+     * @param k Column index
+     */
+    public double get(int d, int k) {
+        return getCount(d, k) * scales[d];
+    }
+
+    /**
+     * Return the number of tokens in a document assigned to a topic.
+     *
+     * @param d Row index
+     * @param k Column index
+     */
+    public int getCount(int d, int k) {
+        int pos = find(d, k);
+        if (pos < 0) {
+            return 0;
+        }
+        return counts[pos];
+    }
+
+    public void increment(int d, int k) {
+        int pos = find(d, k);
+        if (pos >= 0) {
+            counts[pos]++;
+            return;
+        }
+        int start = rowStarts[d];
+        if (start + rowSizes[d] == rowStarts[d + 1]) {
+            throw new RuntimeException("Row " + d + " is full. Capacity = "
+                    + (rowStarts[d + 1] - start));
+        }
+        topics[start + rowSizes[d]] = k;
+        counts[start + rowSizes[d]] = 1;
+        rowSizes[d]++;
+    }
+
+    public void decrement(int d, int k) {
+        int pos = find(d, k);
+        if (pos < 0) {
+            throw new RuntimeException("Decrementing zero count. Row " + d
+                    + ". Column " + k);
+        }
+        counts[pos]--;
+        if (counts[pos] == 0) {
+            remove(d, pos);
+        }
+    }
+
+    /**
+     * Remove all entries of a row.
+     *
+     * @param d Row index
+     */
+    public void clearRow(int d) {
+        rowSizes[d] = 0;
+    }
+
+    /**
+     * Set the number of tokens in a document assigned to a topic. This is used
+     * to fill a row from existing counts (e.g., when the assignments are
+     * loaded).
+     *
+     * @param d Row index
+     * @param k Column index
+     * @param count The count
+     */
+    public void setCount(int d, int k, int count) {
+        if (count < 0) {
+            throw new RuntimeException("Negative count " + count + ". Row " + d
+                    + ". Column " + k);
+        }
+        int pos = find(d, k);
+        if (pos < 0) {
+            if (count > 0) {
+                increment(d, k);
+                counts[rowStarts[d] + rowSizes[d] - 1] = count;
+            }
+        } else if (count > 0) {
+            counts[pos] = count;
+        } else {
+            remove(d, pos);
+        }
+    }
+
+    /**
+     * Set a row to the given topic counts of a document.
+     *
+     * @param d Row index
+     * @param topicCounts The topic counts
+     */
+    public void setRow(int d, SparseCount topicCounts) {
+        clearRow(d);
+        for (int k : topicCounts.getIndices()) {
+            setCount(d, k, topicCounts.getCount(k));
+        }
+    }
+
+    /**
+     * Compute the dot product between a row and a weight vector.
+     *
+     * @param d Row index
+     * @param w The weight vector
+     */
+    public double dotProduct(int d, double[] w) {
+        double dotprod = 0.0;
+        int end = rowStarts[d] + rowSizes[d];
+        for (int pos = rowStarts[d]; pos < end; pos++) {
+            dotprod += counts[pos] * w[topics[pos]];
+        }
+        return dotprod * scales[d];
+    }
+
+    /**
+     * Check that a row stores the given topic counts.
+     *
+     * @param d Row index
+     * @param topicCounts The count of each topic
+     * @param msg Message
+     */
+    public void validate(int d, int[] topicCounts, String msg) {
+        int numNonZeros = 0;
+        for (int k = 0; k < numTopics; k++) {
+            if (getCount(d, k) != topicCounts[k]) {
+                throw new RuntimeException(msg + ". Row " + d + ". Column " + k
+                        + ". Count = " + getCount(d, k) + " vs. " + topicCounts[k]);
+            }
+            if (topicCounts[k] > 0) {
+                numNonZeros++;
+            }
+        }
+        if (numNonZeros != rowSizes[d]) {
+            throw new RuntimeException(msg + ". Row " + d + ". Size = "
+                    + rowSizes[d] + " vs. " + numNonZeros);
+        }
+    }
+
+    /**
+     * Remove the entry at a given position by moving the last entry of the
+     * row there.
+     */
+    private void remove(int d, int pos) {
+        int last = rowStarts[d] + rowSizes[d] - 1;
+        topics[pos] = topics[last];
+        counts[pos] = counts[last];
+        rowSizes[d]--;
+    }
+
+    private int find(int d, int k) {
+        int end = rowStarts[d] + rowSizes[d];
+        for (int pos = rowStarts[d]; pos < end; pos++) {
+            if (topics[pos] == k) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+}
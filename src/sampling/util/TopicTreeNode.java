@@ -1,8 +1,8 @@
 package sampling.util;
 
-import cc.mallet.types.Dirichlet;
 import java.util.Arrays;
 import sampling.likelihood.DirMult;
+import util.RandomUtils;
 
 /**
  * Implementation of tree node which stores a topic (i.e., a multinomial
@@ -124,8 +124,7 @@ public class TopicTreeNode<N extends TopicTreeNode, C extends DirMult> extends T
         for (int obs : this.pseudoCounts.getIndices()) {
             meanVector[obs] += this.pseudoCounts.getCount(obs);
         }
-        Dirichlet dir = new Dirichlet(meanVector);
-        double[] topic = dir.nextDistribution();
+        double[] topic = RandomUtils.nextDirichlet(RandomUtils.get(), meanVector);
         this.setTopic(topic);
     }
 }
@@ -0,0 +1,96 @@
+package sampling.util;
+
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.map.hash.TIntIntHashMap;
+import sampling.likelihood.DirMult;
+
+/**
+ * Thread-local changes to shared topic-word counts, used in approximate
+ * distributed (AD-LDA) sampling (Newman et al., JMLR 2009). Each worker reads
+ * the shared counts, which are not modified during a sampling phase, plus its
+ * own deltas. Deltas can be negative and are merged into the shared counts at
+ * synchronization points.
+ *
+ * @author vietan
+ */
+public class TopicWordDelta {
+
+    private final DirMult[] topicWords;
+    private final TIntIntHashMap[] deltas;
+    private final int[] deltaSums;
+
+    public TopicWordDelta(DirMult[] topicWords) {
+        this.topicWords = topicWords;
+        this.deltas = new TIntIntHashMap[topicWords.length];
+        for (int kk = 0; kk < topicWords.length; kk++) {
+            this.deltas[kk] = new TIntIntHashMap();
+        }
+        this.deltaSums = new int[topicWords.length];
+    }
+
+    public DirMult[] getTopicWords() {
+        return this.topicWords;
+    }
+
+    /**
+     * Return the count of a word in a topic as seen by this worker.
+     *
+     * @param kk The topic
+     * @param ww The word
+     */
+    public int getCount(int kk, int ww) {
+        return topicWords[kk].getCount(ww) + deltas[kk].get(ww);
+    }
+
+    /**
+     * Return the total count of a topic as seen by this worker.
+     *
+     * @param kk The topic
+     */
+    public int getCountSum(int kk) {
+        return topicWords[kk].getCountSum() + deltaSums[kk];
+    }
+
+    /**
+     * Return the posterior predictive probability of a word in a topic as seen
+     * by this worker. This mirrors {@link DirMult#getProbability(int)}.
+     *
+     * @param kk The topic
+     * @param ww The word
+     */
+    public double getProbability(int kk, int ww) {
+        DirMult topic = topicWords[kk];
+        return (getCount(kk, ww) + topic.getConcentration() * topic.getCenterElement(ww))
+                / (getCountSum(kk) + topic.getConcentration());
+    }
+
+    public void increment(int kk, int ww) {
+        deltas[kk].adjustOrPutValue(ww, 1, 1);
+        deltaSums[kk]++;
+    }
+
+    public void decrement(int kk, int ww) {
+        deltas[kk].adjustOrPutValue(ww, -1, -1);
+        deltaSums[kk]--;
+    }
+
+    /**
+     * Add the deltas of a range of topics to the shared counts and clear them.
+     *
+     * @param start First topic (inclusive)
+     * @param end Last topic (exclusive)
+     */
+    public void merge(int start, int end) {
+        for (int kk = start; kk < end; kk++) {
+            TIntIntIterator it = deltas[kk].iterator();
+            while (it.hasNext()) {
+                it.advance();
+                if (it.value() != 0) {
+                    topicWords[kk].changeCount(it.key(), it.value());
+                }
+            }
+            deltas[kk].clear();
+            deltaSums[kk] = 0;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package sampling.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Score the nodes of a tree in a top-down walk, in which the score of a node
+ * can depend on a value accumulated along the path from the root (e.g., the
+ * log prior or the data log likelihood of the path ending at the node).
+ *
+ * Subtrees are scored in parallel using fork/join when the tree has at least a
+ * threshold number of nodes, and sequentially otherwise. The tree is first
+ * flattened, and each node only writes its own entries of the result arrays,
+ * so the results do not depend on the number of threads. The scores are put
+ * into the output map in post-order (children, in the order returned by
+ * {@link TreeNode#getChildren()}, before their parent), which is the order of
+ * the recursive walks used by the samplers, so the iteration order of the
+ * resulting map is also reproducible.
+ *
+ * The node scorer is called concurrently from multiple threads, so it must not
+ * modify the tree or any other shared state.
+ *
+ * @author vietan
+ * @param <N> Type of the nodes
+ */
+public class TreeScorer<N extends TreeNode<N, ?>> {
+
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 500;
+    public static final int DEFAULT_GRAIN_SIZE = 100;
+    private static ForkJoinPool pool;
+    private final NodeScorer<N> scorer;
+    private int parallelThreshold;
+    private int grainSize;
+
+    public TreeScorer(NodeScorer<N> scorer) {
+        this(scorer, DEFAULT_PARALLEL_THRESHOLD, DEFAULT_GRAIN_SIZE);
+    }
+
+    /**
+     * @param scorer The node scorer
+     * @param parallelThreshold Minimum number of nodes in the tree to score
+     * subtrees in parallel
+     * @param grainSize Maximum number of nodes in a subtree scored sequentially
+     * by a single task
+     */
+    public TreeScorer(NodeScorer<N> scorer, int parallelThreshold, int grainSize) {
+        this.scorer = scorer;
+        this.parallelThreshold = parallelThreshold;
+        this.grainSize = Math.max(1, grainSize);
+    }
+
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public void setGrainSize(int grainSize) {
+        this.grainSize = Math.max(1, grainSize);
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool();
+        }
+        return pool;
+    }
+
+    /**
+     * Score all candidate nodes in the subtree rooted at a given node.
+     *
+     * @param root The root of the subtree
+     * @param rootValue The value passed to the root
+     * @return Map from each candidate node to its score
+     */
+    public HashMap<N, Double> score(N root, double rootValue) {
+        HashMap<N, Double> scores = new HashMap<N, Double>();
+        score(root, rootValue, scores);
+        return scores;
+    }
+
+    /**
+     * Score all candidate nodes in the subtree rooted at a given node.
+     *
+     * @param root The root of the subtree
+     * @param rootValue The value passed to the root
+     * @param scores Map to store the score of each candidate node
+     */
+    public void score(N root, double rootValue, HashMap<N, Double> scores) {
+        Walk walk = walk(root, rootValue);
+        for (int ii = 0; ii < walk.numNodes; ii++) {
+            int idx = walk.postorder[ii];
+            if (walk.candidates[idx]) {
+                scores.put(walk.nodes.get(idx), walk.scores[idx]);
+            }
+        }
+    }
+
+    /**
+     * Sum the scores of all candidate nodes in the subtree rooted at a given
+     * node. The scores are added in post-order.
+     *
+     * @param root The root of the subtree
+     * @param rootValue The value passed to the root
+     */
+    public double sum(N root, double rootValue) {
+        Walk walk = walk(root, rootValue);
+        double sum = 0.0;
+        for (int ii = 0; ii < walk.numNodes; ii++) {
+            int idx = walk.postorder[ii];
+            if (walk.candidates[idx]) {
+                sum += walk.scores[idx];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Score given nodes by walking only the paths from the root to them, so
+     * that the path values of their common ancestors are computed once. This
+     * is meant for a few targets (e.g., the current and the proposed node of a
+     * token) and always runs sequentially; {@link NodeScorer#isCandidate} is
+     * not consulted.
+     *
+     * @param root The root of the subtree containing the targets
+     * @param rootValue The value passed to the root
+     * @param targets The nodes to score
+     * @return The score of each target, in the order of the targets
+     */
+    public double[] scorePaths(N root, double rootValue, List<N> targets) {
+        double[] scores = new double[targets.size()];
+        ArrayList<N> visited = new ArrayList<N>();
+        ArrayList<Double> visitedValues = new ArrayList<Double>();
+        ArrayList<N> path = new ArrayList<N>();
+        for (int ii = 0; ii < targets.size(); ii++) {
+            N target = targets.get(ii);
+            path.clear();
+            N node = target;
+            while (node != root) {
+                if (node == null) {
+                    throw new IllegalArgumentException("Node " + target
+                            + " is not in the subtree of " + root);
+                }
+                path.add(node);
+                node = node.getParent();
+            }
+            path.add(root);
+
+            double value = rootValue;
+            for (int jj = path.size() - 1; jj >= 0; jj--) {
+                node = path.get(jj);
+                int idx = -1;
+                for (int kk = 0; kk < visited.size(); kk++) {
+                    if (visited.get(kk) == node) {
+                        idx = kk;
+                        break;
+                    }
+                }
+                if (idx >= 0) {
+                    value = visitedValues.get(idx);
+                } else {
+                    value = scorer.getPathValue(node, value);
+                    visited.add(node);
+                    visitedValues.add(value);
+                }
+            }
+            scores[ii] = scorer.getScore(target, value);
+        }
+        return scores;
+    }
+
+    private Walk walk(N root, double rootValue) {
+        Walk walk = new Walk();
+        walk.add(root, -1);
+        walk.pathValues = new double[walk.numNodes];
+        walk.scores = new double[walk.numNodes];
+        walk.candidates = new boolean[walk.numNodes];
+
+        if (walk.numNodes < parallelThreshold
+                || Runtime.getRuntime().availableProcessors() < 2) {
+            walk.scoreRange(0, walk.numNodes, rootValue);
+        } else {
+            getPool().invoke(new SubtreeTask(walk, 0, rootValue));
+        }
+        return walk;
+    }
+
+    /**
+     * Compute the score of each node.
+     *
+     * @param <N> Type of the nodes
+     */
+    public interface NodeScorer<N> {
+
+        /**
+         * Compute the value passed from a node to its children.
+         *
+         * @param node The node
+         * @param parentValue The value passed to this node from its parent
+         */
+        public double getPathValue(N node, double parentValue);
+
+        /**
+         * Return whether the score of a node is needed.
+         *
+         * @param node The node
+         */
+        public boolean isCandidate(N node);
+
+        /**
+         * Compute the score of a candidate node.
+         *
+         * @param node The node
+         * @param pathValue The value of this node, as returned by
+         * {@link #getPathValue(java.lang.Object, double)}
+         */
+        public double getScore(N node, double pathValue);
+    }
+
+    /**
+     * Flattened tree with the results of a walk.
+     */
+    private class Walk {
+
+        final ArrayList<N> nodes = new ArrayList<N>(); // pre-order
+        int numNodes;
+        int[] parents = new int[16];
+        int[] ends = new int[16]; // exclusive end of the subtree of each node
+        int[] postorder = new int[16];
+        int numPostorder;
+        double[] pathValues;
+        double[] scores;
+        boolean[] candidates;
+
+        void add(N node, int parent) {
+            int idx = numNodes++;
+            nodes.add(node);
+            if (idx == parents.length) {
+                parents = Arrays.copyOf(parents, 2 * idx);
+                ends = Arrays.copyOf(ends, 2 * idx);
+                postorder = Arrays.copyOf(postorder, 2 * idx);
+            }
+            parents[idx] = parent;
+            for (N child : node.getChildren()) {
+                add(child, idx);
+            }
+            ends[idx] = numNodes;
+            postorder[numPostorder++] = idx;
+        }
+
+        void scoreNode(int idx, double parentValue) {
+            N node = nodes.get(idx);
+            pathValues[idx] = scorer.getPathValue(node, parentValue);
+            if (scorer.isCandidate(node)) {
+                candidates[idx] = true;
+                scores[idx] = scorer.getScore(node, pathValues[idx]);
+            }
+        }
+
+        /**
+         * Score the subtree stored in a given range of the pre-order.
+         */
+        void scoreRange(int start, int end, double startValue) {
+            scoreNode(start, startValue);
+            for (int idx = start + 1; idx < end; idx++) {
+                scoreNode(idx, pathValues[parents[idx]]);
+            }
+        }
+    }
+
+    private class SubtreeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1123581321L;
+        private final Walk walk;
+        private final int index;
+        private final double parentValue;
+
+        SubtreeTask(Walk walk, int index, double parentValue) {
+            this.walk = walk;
+            this.index = index;
+            this.parentValue = parentValue;
+        }
+
+        @Override
+        protected void compute() {
+            int end = walk.ends[index];
+            if (end - index <= grainSize) {
+                walk.scoreRange(index, end, parentValue);
+                return;
+            }
+            walk.scoreNode(index, parentValue);
+            ArrayList<SubtreeTask> tasks = new ArrayList<SubtreeTask>();
+            int child = index + 1;
+            while (child < end) {
+                tasks.add(new SubtreeTask(walk, child, walk.pathValues[index]));
+                child = walk.ends[child];
+            }
+            invokeAll(tasks);
+        }
+    }
+}
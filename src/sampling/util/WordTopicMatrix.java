@@ -0,0 +1,194 @@
+package sampling.util;
+
+import java.util.Arrays;
+import sampling.likelihood.DirMult;
+import sampling.likelihood.TopicWordView;
+
+/**
+ * Topic-word counts shared by all topics and stored word-major, i.e., the
+ * counts of all topics for a word are contiguous in memory. Sampling a token
+ * then reads a single row of K counts and the K topic totals instead of
+ * looking up K separate sparse count tables.
+ *
+ * Each topic is still exposed as a {@link DirMult} view (see
+ * {@link TopicWordView}) so that existing code that reads, writes and outputs
+ * topic-word distributions keeps working unchanged.
+ *
+ * @author vietan
+ */
+public class WordTopicMatrix {
+
+    private final int V;
+    private final int K;
+    private final int[][] counts; // V x K
+    private final int[] topicTotals;
+
+    public WordTopicMatrix(int V, int K) {
+        this.V = V;
+        this.K = K;
+        this.counts = new int[V][K];
+        this.topicTotals = new int[K];
+    }
+
+    public int getNumWords() {
+        return this.V;
+    }
+
+    public int getNumTopics() {
+        return this.K;
+    }
+
+    public int getCount(int kk, int vv) {
+        return counts[vv][kk];
+    }
+
+    public int getCountSum(int kk) {
+        return topicTotals[kk];
+    }
+
+    /**
+     * Return the counts of a word in all topics. The returned array is the
+     * internal storage and must not be modified.
+     *
+     * @param vv The word
+     */
+    public int[] getWordCounts(int vv) {
+        return counts[vv];
+    }
+
+    /**
+     * Return the total counts of all topics. The returned array is the
+     * internal storage and must not be modified.
+     */
+    public int[] getTopicTotals() {
+        return topicTotals;
+    }
+
+    public void increment(int kk, int vv) {
+        counts[vv][kk]++;
+        topicTotals[kk]++;
+    }
+
+    public void decrement(int kk, int vv) {
+        if (counts[vv][kk] == 0) {
+            throw new RuntimeException("Removing observation that does not exist "
+                    + vv + " from topic " + kk);
+        }
+        counts[vv][kk]--;
+        topicTotals[kk]--;
+    }
+
+    public void changeCount(int kk, int vv, int delta) {
+        int count = counts[vv][kk] + delta;
+        if (count < 0) {
+            throw new RuntimeException("Setting a negative count. " + count);
+        }
+        counts[vv][kk] = count;
+        topicTotals[kk] += delta;
+    }
+
+    /**
+     * Remove all counts of a topic.
+     *
+     * @param kk The topic
+     */
+    public void clear(int kk) {
+        for (int vv = 0; vv < V; vv++) {
+            counts[vv][kk] = 0;
+        }
+        topicTotals[kk] = 0;
+    }
+
+    public void clear() {
+        for (int vv = 0; vv < V; vv++) {
+            Arrays.fill(counts[vv], 0);
+        }
+        Arrays.fill(topicTotals, 0);
+    }
+
+    /**
+     * Overwrite all counts with those of another matrix of the same size.
+     *
+     * @param source The matrix to copy
+     */
+    public void copyFrom(WordTopicMatrix source) {
+        if (source.V != V || source.K != K) {
+            throw new RuntimeException("Dimensions mismatched. " + source.V + "x"
+                    + source.K + " vs. " + V + "x" + K);
+        }
+        for (int vv = 0; vv < V; vv++) {
+            System.arraycopy(source.counts[vv], 0, counts[vv], 0, K);
+        }
+        System.arraycopy(source.topicTotals, 0, topicTotals, 0, K);
+    }
+
+    /**
+     * Copy a set of topics into a new word-major matrix and return views of
+     * the copied topics, which keep the priors of the original topics.
+     *
+     * @param topics The topics to copy
+     * @return Views of the copied topics
+     */
+    public static DirMult[] toWordMajor(DirMult[] topics) {
+        int numTopics = topics.length;
+        int vocabSize = numTopics == 0 ? 0 : topics[0].getDimension();
+        WordTopicMatrix matrix = new WordTopicMatrix(vocabSize, numTopics);
+        DirMult[] views = new DirMult[numTopics];
+        for (int kk = 0; kk < numTopics; kk++) {
+            DirMult topic = topics[kk];
+            if (topic.getDimension() != vocabSize) {
+                throw new RuntimeException("Dimensions mismatched. "
+                        + topic.getDimension() + " vs. " + vocabSize);
+            }
+            if (topic.isShortRepresented()) {
+                views[kk] = new TopicWordView(matrix, kk, topic.getConcentration(),
+                        topic.getCenterElement(0));
+            } else {
+                views[kk] = new TopicWordView(matrix, kk, topic.getConcentration(),
+                        topic.getCenterVector().clone());
+            }
+            for (int vv : topic.getSparseCounts().getIndexArray()) {
+                matrix.changeCount(kk, vv, topic.getCount(vv));
+            }
+        }
+        return views;
+    }
+
+    /**
+     * Return the matrix backing a set of topics, or null if the topics are not
+     * word-major views of the same matrix.
+     *
+     * @param topics The topics
+     */
+    public static WordTopicMatrix getMatrix(DirMult[] topics) {
+        if (topics == null || topics.length == 0
+                || !(topics[0] instanceof TopicWordView)) {
+            return null;
+        }
+        WordTopicMatrix matrix = ((TopicWordView) topics[0]).getMatrix();
+        for (DirMult topic : topics) {
+            if (!(topic instanceof TopicWordView)
+                    || ((TopicWordView) topic).getMatrix() != matrix) {
+                return null;
+            }
+        }
+        return matrix;
+    }
+
+    public void validate(String msg) {
+        for (int kk = 0; kk < K; kk++) {
+            int total = 0;
+            for (int vv = 0; vv < V; vv++) {
+                if (counts[vv][kk] < 0) {
+                    throw new RuntimeException(msg + ". Negative count for word "
+                            + vv + " in topic " + kk);
+                }
+                total += counts[vv][kk];
+            }
+            if (total != topicTotals[kk]) {
+                throw new RuntimeException(msg + ". Total counts mismatched in topic "
+                        + kk + ". " + total + " vs. " + topicTotals[kk]);
+            }
+        }
+    }
+}
@@ -0,0 +1,509 @@
+package svm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import util.IOUtils;
+import util.SparseVector;
+
+/**
+ * In-process linear SVM for classification and regression (SVR), trained with
+ * dual coordinate descent and shrinking as in liblinear (Hsieh et al., ICML
+ * 2008; Ho and Lin, JMLR 2012). The data are given as {@link SparseVector}s
+ * and the learned weights are available directly, so no data or model files
+ * have to be written.
+ *
+ * The intercept is learned as the weight of an extra constant feature whose
+ * value is {@link #getBias()}, as in liblinear, and is thus regularized.
+ *
+ * @author vietan
+ */
+public class LinearSVM {
+
+    public static enum Type {
+
+        CLASSIFICATION, REGRESSION
+    }
+
+    public static enum Loss {
+
+        L1, L2
+    }
+    public static final double DEFAULT_C = -1; // use [avg. x*x]^{-1} as SVM Light
+    public static final double DEFAULT_EPSILON = 0.1;
+    public static final double DEFAULT_TOLERANCE = 0.1;
+    public static final int DEFAULT_MAX_ITER = 1000;
+    private final Type type;
+    private final Loss loss;
+    private double c;
+    private double epsilon; // width of the insensitive tube in regression
+    private double tolerance;
+    private int maxIter;
+    private double bias;
+    private long seed;
+    private int numThreads;
+    // learned
+    private double[] weights;
+    private double biasWeight;
+    private int numIterations;
+    private boolean converged;
+    // training data in compressed rows
+    private int[][] indices;
+    private double[][] values;
+
+    public LinearSVM(Type type) {
+        this(type, Loss.L1);
+    }
+
+    public LinearSVM(Type type, Loss loss) {
+        this.type = type;
+        this.loss = loss;
+        this.c = DEFAULT_C;
+        this.epsilon = DEFAULT_EPSILON;
+        this.tolerance = DEFAULT_TOLERANCE;
+        this.maxIter = DEFAULT_MAX_ITER;
+        this.bias = 1.0;
+        this.seed = 1;
+        this.numThreads = 1;
+    }
+
+    public void setC(double c) {
+        this.c = c;
+    }
+
+    public void setEpsilon(double epsilon) {
+        this.epsilon = epsilon;
+    }
+
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public void setMaxIteration(int maxIter) {
+        this.maxIter = maxIter;
+    }
+
+    /**
+     * Set the value of the constant feature used to learn the intercept. A
+     * non-positive value means no intercept.
+     */
+    public void setBias(double bias) {
+        this.bias = bias;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public double getC() {
+        return this.c;
+    }
+
+    public double[] getWeights() {
+        return this.weights;
+    }
+
+    public double getBias() {
+        return this.bias;
+    }
+
+    /**
+     * Return the number of outer iterations of the last training.
+     */
+    public int getNumIterations() {
+        return this.numIterations;
+    }
+
+    /**
+     * Return whether the last training reached the tolerance before the
+     * maximum number of iterations.
+     */
+    public boolean isConverged() {
+        return this.converged;
+    }
+
+    /**
+     * Return the intercept, i.e., the weight of the constant feature times its
+     * value.
+     */
+    public double getIntercept() {
+        return this.bias > 0 ? this.biasWeight * this.bias : 0.0;
+    }
+
+    /**
+     * Train the model.
+     *
+     * @param features Feature vectors
+     * @param targets Responses for regression. For classification, positive
+     * targets are class +1 and the others are class -1.
+     */
+    public void train(SparseVector[] features, double[] targets) {
+        if (features.length != targets.length) {
+            throw new RuntimeException("Number of instances mismatch. "
+                    + features.length + " vs. " + targets.length);
+        }
+        int dim = 0;
+        int N = features.length;
+        this.indices = new int[N][];
+        this.values = new double[N][];
+        for (int ii = 0; ii < N; ii++) {
+            ArrayList<Integer> sortedIndices = features[ii].getSortedIndices();
+            indices[ii] = new int[sortedIndices.size()];
+            values[ii] = new double[sortedIndices.size()];
+            for (int jj = 0; jj < sortedIndices.size(); jj++) {
+                indices[ii][jj] = sortedIndices.get(jj);
+                values[ii][jj] = features[ii].get(indices[ii][jj]);
+            }
+            if (indices[ii].length > 0) {
+                dim = Math.max(dim, indices[ii][indices[ii].length - 1] + 1);
+            }
+            dim = Math.max(dim, features[ii].getDimension());
+        }
+        this.weights = new double[dim];
+        this.biasWeight = 0.0;
+        this.numIterations = 0;
+        this.converged = false;
+
+        double[] sqNorms = new double[N];
+        double sumSqNorm = 0.0;
+        for (int ii = 0; ii < N; ii++) {
+            for (double val : values[ii]) {
+                sqNorms[ii] += val * val;
+            }
+            sumSqNorm += sqNorms[ii];
+            if (bias > 0) {
+                sqNorms[ii] += bias * bias;
+            }
+        }
+        double C = c > 0 ? c : N / sumSqNorm;
+
+        if (type == Type.CLASSIFICATION) {
+            double[] y = new double[N];
+            for (int ii = 0; ii < N; ii++) {
+                y[ii] = targets[ii] > 0 ? 1 : -1;
+            }
+            solveClassification(y, sqNorms, C);
+        } else {
+            solveRegression(targets, sqNorms, C);
+        }
+        this.indices = null;
+        this.values = null;
+    }
+
+    /**
+     * Dual coordinate descent for L1- and L2-loss SVM classification.
+     */
+    private void solveClassification(double[] y, double[] sqNorms, double C) {
+        int N = y.length;
+        double diag = loss == Loss.L2 ? 0.5 / C : 0.0;
+        double upperBound = loss == Loss.L2 ? Double.POSITIVE_INFINITY : C;
+        double[] alpha = new double[N];
+        int[] index = new int[N];
+        for (int ii = 0; ii < N; ii++) {
+            index[ii] = ii;
+        }
+        Random rand = new Random(seed);
+        int activeSize = N;
+        double pgMaxOld = Double.POSITIVE_INFINITY;
+        double pgMinOld = Double.NEGATIVE_INFINITY;
+        int iter = 0;
+        while (iter < maxIter) {
+            double pgMaxNew = Double.NEGATIVE_INFINITY;
+            double pgMinNew = Double.POSITIVE_INFINITY;
+            shuffle(index, activeSize, rand);
+            for (int s = 0; s < activeSize; s++) {
+                int ii = index[s];
+                double G = y[ii] * dotProduct(ii) - 1 + alpha[ii] * diag;
+                double PG = 0.0;
+                if (alpha[ii] == 0) {
+                    if (G > pgMaxOld) {
+                        activeSize--;
+                        swap(index, s, activeSize);
+                        s--;
+                        continue;
+                    } else if (G < 0) {
+                        PG = G;
+                    }
+                } else if (alpha[ii] == upperBound) {
+                    if (G < pgMinOld) {
+                        activeSize--;
+                        swap(index, s, activeSize);
+                        s--;
+                        continue;
+                    } else if (G > 0) {
+                        PG = G;
+                    }
+                } else {
+                    PG = G;
+                }
+                pgMaxNew = Math.max(pgMaxNew, PG);
+                pgMinNew = Math.min(pgMinNew, PG);
+
+                if (Math.abs(PG) > 1.0e-12) {
+                    double alphaOld = alpha[ii];
+                    alpha[ii] = Math.min(Math.max(alpha[ii] - G / (sqNorms[ii] + diag), 0.0),
+                            upperBound);
+                    update(ii, (alpha[ii] - alphaOld) * y[ii]);
+                }
+            }
+            iter++;
+
+            if (pgMaxNew - pgMinNew <= tolerance) {
+                if (activeSize == N) {
+                    converged = true;
+                    break;
+                }
+                activeSize = N;
+                pgMaxOld = Double.POSITIVE_INFINITY;
+                pgMinOld = Double.NEGATIVE_INFINITY;
+                continue;
+            }
+            pgMaxOld = pgMaxNew <= 0 ? Double.POSITIVE_INFINITY : pgMaxNew;
+            pgMinOld = pgMinNew >= 0 ? Double.NEGATIVE_INFINITY : pgMinNew;
+        }
+        numIterations = iter;
+    }
+
+    /**
+     * Dual coordinate descent for L1- and L2-loss support vector regression.
+     */
+    private void solveRegression(double[] y, double[] sqNorms, double C) {
+        int N = y.length;
+        double lambda = loss == Loss.L2 ? 0.5 / C : 0.0;
+        double upperBound = loss == Loss.L2 ? Double.POSITIVE_INFINITY : C;
+        double[] beta = new double[N];
+        int[] index = new int[N];
+        for (int ii = 0; ii < N; ii++) {
+            index[ii] = ii;
+        }
+        Random rand = new Random(seed);
+        int activeSize = N;
+        double gMaxOld = Double.POSITIVE_INFINITY;
+        double gNorm1Init = -1.0;
+        int iter = 0;
+        while (iter < maxIter) {
+            double gMaxNew = 0.0;
+            double gNorm1New = 0.0;
+            shuffle(index, activeSize, rand);
+            for (int s = 0; s < activeSize; s++) {
+                int ii = index[s];
+                double G = -y[ii] + lambda * beta[ii] + dotProduct(ii);
+                double H = sqNorms[ii] + lambda;
+                double Gp = G + epsilon;
+                double Gn = G - epsilon;
+                double violation = 0.0;
+                if (beta[ii] == 0) {
+                    if (Gp < 0) {
+                        violation = -Gp;
+                    } else if (Gn > 0) {
+                        violation = Gn;
+                    } else if (Gp > gMaxOld && Gn < -gMaxOld) {
+                        activeSize--;
+                        swap(index, s, activeSize);
+                        s--;
+                        continue;
+                    }
+                } else if (beta[ii] >= upperBound) {
+                    if (Gp > 0) {
+                        violation = Gp;
+                    } else if (Gp < -gMaxOld) {
+                        activeSize--;
+                        swap(index, s, activeSize);
+                        s--;
+                        continue;
+                    }
+                } else if (beta[ii] <= -upperBound) {
+                    if (Gn < 0) {
+                        violation = -Gn;
+                    } else if (Gn > gMaxOld) {
+                        activeSize--;
+                        swap(index, s, activeSize);
+                        s--;
+                        continue;
+                    }
+                } else if (beta[ii] > 0) {
+                    violation = Math.abs(Gp);
+                } else {
+                    violation = Math.abs(Gn);
+                }
+                gMaxNew = Math.max(gMaxNew, violation);
+                gNorm1New += violation;
+
+                // Newton direction
+                double d;
+                if (Gp < H * beta[ii]) {
+                    d = -Gp / H;
+                } else if (Gn > H * beta[ii]) {
+                    d = -Gn / H;
+                } else {
+                    d = -beta[ii];
+                }
+                if (Math.abs(d) < 1.0e-12) {
+                    continue;
+                }
+                double betaOld = beta[ii];
+                beta[ii] = Math.min(Math.max(beta[ii] + d, -upperBound), upperBound);
+                d = beta[ii] - betaOld;
+                if (d != 0) {
+                    update(ii, d);
+                }
+            }
+            if (iter == 0) {
+                gNorm1Init = gNorm1New;
+            }
+            iter++;
+
+            if (gNorm1New <= tolerance * gNorm1Init) {
+                if (activeSize == N) {
+                    converged = true;
+                    break;
+                }
+                activeSize = N;
+                gMaxOld = Double.POSITIVE_INFINITY;
+                continue;
+            }
+            gMaxOld = gMaxNew;
+        }
+        numIterations = iter;
+    }
+
+    private double dotProduct(int ii) {
+        double val = bias > 0 ? biasWeight * bias : 0.0;
+        for (int jj = 0; jj < indices[ii].length; jj++) {
+            val += weights[indices[ii][jj]] * values[ii][jj];
+        }
+        return val;
+    }
+
+    private void update(int ii, double d) {
+        for (int jj = 0; jj < indices[ii].length; jj++) {
+            weights[indices[ii][jj]] += d * values[ii][jj];
+        }
+        if (bias > 0) {
+            biasWeight += d * bias;
+        }
+    }
+
+    private static void shuffle(int[] index, int size, Random rand) {
+        for (int ii = 0; ii < size; ii++) {
+            swap(index, ii, ii + rand.nextInt(size - ii));
+        }
+    }
+
+    private static void swap(int[] index, int ii, int jj) {
+        int tmp = index[ii];
+        index[ii] = index[jj];
+        index[jj] = tmp;
+    }
+
+    /**
+     * Return the decision value (classification) or the predicted response
+     * (regression) of an instance. Features unseen during training are
+     * ignored.
+     */
+    public double predict(SparseVector feature) {
+        double val = getIntercept();
+        for (int idx : feature.getIndices()) {
+            if (idx < weights.length) {
+                val += weights[idx] * feature.get(idx);
+            }
+        }
+        return val;
+    }
+
+    /**
+     * Return the decision values (classification) or the predicted responses
+     * (regression) of a set of instances, using multiple threads if set.
+     */
+    public double[] predict(final SparseVector[] features) {
+        final double[] predictions = new double[features.length];
+        if (numThreads <= 1 || features.length < 2) {
+            for (int ii = 0; ii < features.length; ii++) {
+                predictions[ii] = predict(features[ii]);
+            }
+            return predictions;
+        }
+        int numShards = Math.min(numThreads, features.length);
+        ExecutorService executor = Executors.newFixedThreadPool(numShards);
+        try {
+            List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+            for (int ss = 0; ss < numShards; ss++) {
+                final int start = (int) ((long) ss * features.length / numShards);
+                final int end = (int) ((long) (ss + 1) * features.length / numShards);
+                tasks.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        for (int ii = start; ii < end; ii++) {
+                            predictions[ii] = predict(features[ii]);
+                        }
+                        return end - start;
+                    }
+                });
+            }
+            for (Future<Integer> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while predicting");
+        } finally {
+            executor.shutdown();
+        }
+        return predictions;
+    }
+
+    /**
+     * Output the learned model. The first line is the number of features,
+     * followed by one weight per line and the intercept on the last line.
+     */
+    public void output(File file) {
+        try {
+            BufferedWriter writer = IOUtils.getBufferedWriter(file);
+            writer.write(weights.length + "\n");
+            for (int ii = 0; ii < weights.length; ii++) {
+                writer.write(weights[ii] + "\n");
+            }
+            writer.write(getIntercept() + "\n");
+            writer.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while outputing to " + file);
+        }
+    }
+
+    public void input(File file) {
+        try {
+            BufferedReader reader = IOUtils.getBufferedReader(file);
+            int dim = Integer.parseInt(reader.readLine());
+            this.weights = new double[dim];
+            for (int ii = 0; ii < dim; ii++) {
+                this.weights[ii] = Double.parseDouble(reader.readLine());
+            }
+            double intercept = Double.parseDouble(reader.readLine());
+            reader.close();
+            if (intercept != 0 && bias <= 0) {
+                this.bias = 1.0;
+            }
+            this.biasWeight = bias > 0 ? intercept / bias : 0.0;
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while loading from " + file);
+        }
+    }
+}
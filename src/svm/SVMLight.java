@@ -11,6 +11,7 @@ import java.util.Set;
 import util.IOUtils;
 import util.RankingItem;
 import util.RankingItemList;
+import util.SparseVector;
 import util.evaluation.RankingPerformance;
 
 public class SVMLight {
@@ -79,6 +80,54 @@ public class SVMLight {
         }
     }
 
+    /**
+     * Train a linear SVM in process on feature vectors, without writing any
+     * file. The supported SVM Light options are -z (c or r), -c and -w.
+     *
+     * @param options SVM Light options
+     * @param features Feature vectors
+     * @param targets Class labels (+1 or -1) or responses
+     * @return The learned model
+     */
+    public LinearSVM learn(
+            String[] options,
+            SparseVector[] features,
+            double[] targets) {
+        LinearSVM.Type type = LinearSVM.Type.CLASSIFICATION;
+        double c = LinearSVM.DEFAULT_C;
+        double epsilon = LinearSVM.DEFAULT_EPSILON;
+        if (options != null) {
+            String opts = "";
+            for (String option : options) {
+                opts += " " + option;
+            }
+            String[] tokens = opts.trim().split("\\s+");
+            for (int ii = 0; ii + 1 < tokens.length; ii += 2) {
+                switch (tokens[ii]) {
+                    case "-z":
+                        if (tokens[ii + 1].equals("r")) {
+                            type = LinearSVM.Type.REGRESSION;
+                        }
+                        break;
+                    case "-c":
+                        c = Double.parseDouble(tokens[ii + 1]);
+                        break;
+                    case "-w":
+                        epsilon = Double.parseDouble(tokens[ii + 1]);
+                        break;
+                    default:
+                        throw new RuntimeException("Option " + tokens[ii]
+                                + " is not supported in process");
+                }
+            }
+        }
+        LinearSVM model = new LinearSVM(type);
+        model.setC(c);
+        model.setEpsilon(epsilon);
+        model.train(features, targets);
+        return model;
+    }
+
     /**
      * Run a learned SVM model on unseen data.
      *
@@ -121,6 +170,19 @@ public class SVMLight {
         }
     }
 
+    /**
+     * Run a linear SVM learned in process on unseen data.
+     *
+     * @param model The learned model
+     * @param features Feature vectors
+     * @param numThreads Number of threads
+     * @return Decision values (classification) or predicted responses
+     */
+    public double[] classify(LinearSVM model, SparseVector[] features, int numThreads) {
+        model.setNumThreads(numThreads);
+        return model.predict(features);
+    }
+
     /**
      * Load the predicted values from a result file.
      *
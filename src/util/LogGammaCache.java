@@ -0,0 +1,171 @@
+package util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memoized log-gamma and digamma of (prior + count) for a real prior value and
+ * a non-negative integer count, which is what Dirichlet-multinomial
+ * likelihoods evaluate over and over again.
+ *
+ * For each prior value a table is filled lazily using the recurrences
+ * logGamma(a + n + 1) = logGamma(a + n) + log(a + n) and digamma(a + n + 1) =
+ * digamma(a + n) + 1 / (a + n), so that most lookups are a single array
+ * access. Counts beyond {@link #MAX_COUNT} fall back to the Stirling
+ * approximation. Each thread keeps its own least-recently-used set of tables,
+ * so no locking is needed.
+ *
+ * Tables only pay off when few distinct prior values are looked up many
+ * times, i.e. for symmetric priors; with a prior per coordinate every lookup
+ * misses, so those likelihoods use the Stirling approximation directly.
+ *
+ * @author vietan
+ */
+public class LogGammaCache {
+
+    public static final int MAX_COUNT = 4096;
+    public static final int MAX_TABLES = 64;
+    private static final ThreadLocal<Cache> caches = new ThreadLocal<Cache>() {
+        @Override
+        protected Cache initialValue() {
+            return new Cache();
+        }
+    };
+
+    private static class Table {
+
+        final double prior;
+        double[] logGammas;
+        int numLogGammas;
+        double[] digammas;
+        int numDigammas;
+
+        Table(double prior) {
+            this.prior = prior;
+        }
+
+        double logGamma(int count) {
+            if (count >= numLogGammas) {
+                if (logGammas == null) {
+                    logGammas = new double[Math.max(16, count + 1)];
+                    logGammas[0] = SamplerUtils.logGammaStirling(prior);
+                    numLogGammas = 1;
+                } else if (count >= logGammas.length) {
+                    double[] newTable = new double[Math.min(MAX_COUNT + 1,
+                            Math.max(count + 1, 2 * logGammas.length))];
+                    System.arraycopy(logGammas, 0, newTable, 0, numLogGammas);
+                    logGammas = newTable;
+                }
+                for (int n = numLogGammas; n <= count; n++) {
+                    logGammas[n] = logGammas[n - 1] + Math.log(prior + n - 1);
+                }
+                numLogGammas = count + 1;
+            }
+            return logGammas[count];
+        }
+
+        double digamma(int count) {
+            if (count >= numDigammas) {
+                if (digammas == null) {
+                    digammas = new double[Math.max(16, count + 1)];
+                    digammas[0] = StatUtils.digamma(prior);
+                    numDigammas = 1;
+                } else if (count >= digammas.length) {
+                    double[] newTable = new double[Math.min(MAX_COUNT + 1,
+                            Math.max(count + 1, 2 * digammas.length))];
+                    System.arraycopy(digammas, 0, newTable, 0, numDigammas);
+                    digammas = newTable;
+                }
+                for (int n = numDigammas; n <= count; n++) {
+                    digammas[n] = digammas[n - 1] + 1.0 / (prior + n - 1);
+                }
+                numDigammas = count + 1;
+            }
+            return digammas[count];
+        }
+    }
+
+    private static class Cache extends LinkedHashMap<Long, Table> {
+
+        private static final long serialVersionUID = 1123581321L;
+        // the most recently used table, checked before the map
+        Table last;
+
+        Cache() {
+            super(16, 0.75f, true);
+        }
+
+        Table getTable(double prior) {
+            if (last != null && last.prior == prior) {
+                return last;
+            }
+            Long key = Double.doubleToLongBits(prior);
+            Table table = get(key);
+            if (table == null) {
+                table = new Table(prior);
+                put(key, table);
+            }
+            last = table;
+            return table;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Table> eldest) {
+            return size() > MAX_TABLES;
+        }
+    }
+
+    /**
+     * Return log Gamma(prior + count).
+     *
+     * @param prior A positive real value
+     * @param count A non-negative integer
+     */
+    public static double logGamma(double prior, int count) {
+        if (count > MAX_COUNT || count < 0) {
+            return SamplerUtils.logGammaStirling(prior + count);
+        }
+        return caches.get().getTable(prior).logGamma(count);
+    }
+
+    /**
+     * Return log Gamma(prior + count) - log Gamma(prior), which is 0 for a zero
+     * count.
+     *
+     * @param prior A positive real value
+     * @param count A non-negative integer
+     */
+    public static double logGammaRatio(double prior, int count) {
+        if (count == 0) {
+            return 0.0;
+        }
+        if (count > MAX_COUNT || count < 0) {
+            return SamplerUtils.logGammaStirling(prior + count)
+                    - SamplerUtils.logGammaStirling(prior);
+        }
+        Table table = caches.get().getTable(prior);
+        return table.logGamma(count) - table.logGamma(0);
+    }
+
+    /**
+     * Return digamma(prior + count).
+     *
+     * @param prior A positive real value
+     * @param count A non-negative integer
+     */
+    public static double digamma(double prior, int count) {
+        if (count > MAX_COUNT || count < 0) {
+            return StatUtils.digamma(prior + count);
+        }
+        return caches.get().getTable(prior).digamma(count);
+    }
+
+    /**
+     * Remove all tables of the calling thread.
+     */
+    public static void clear() {
+        Cache cache = caches.get();
+        cache.clear();
+        cache.last = null;
+    }
+}
@@ -469,6 +469,34 @@ public class PredictionUtils {
         }
     }
 
+    /**
+     * Output the predictions of a single model on test documents, given as the
+     * list of predicted values for each test document.
+     *
+     * @param file The output file
+     * @param predictions D x S 2D array of the predicted values of each
+     * document at each test sample
+     */
+    public static void outputSingleModelRegressions(
+            File file,
+            double[][] predictions) {
+        try {
+            BufferedWriter writer = IOUtils.getBufferedWriter(file);
+            for (int d = 0; d < predictions.length; d++) {
+                writer.write(Integer.toString(d));
+                for (int ii = 0; ii < predictions[d].length; ii++) {
+                    writer.write("\t" + predictions[d][ii]);
+                }
+                writer.write("\n");
+            }
+            writer.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while outputing predictions to "
+                    + file);
+        }
+    }
+
     /**
      * Load the predictions that a model at a single iteration (learned during
      * training) makes on a set of test documents.
@@ -0,0 +1,322 @@
+package util;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Source of random numbers for all samplers. Instead of sharing a single
+ * java.util.Random, which is contended when used by multiple threads, each
+ * thread draws from its own stream. All streams are derived from a run seed,
+ * so that a run is reproducible for a fixed seed and thread count.
+ *
+ * A thread that has not been bound to a stream gets the next implicit stream
+ * when it first asks for random numbers, so the main thread of a run always
+ * gets the first one. Worker threads should instead bind a numbered stream
+ * (see {@link #createStream(long, int)} and {@link #setThreadRandom(Random)})
+ * so that their draws do not depend on thread scheduling. Implicit and
+ * numbered streams never overlap.
+ *
+ * Code that keeps a static Random field can use {@link #getThreadRandom()},
+ * which returns a shared Random whose calls are forwarded to the calling
+ * thread's stream.
+ *
+ * @author vietan
+ */
+public class RandomUtils {
+
+    private static volatile long seed = SamplerUtils.RAND_SEED;
+    private static volatile int generation = 0;
+    private static final AtomicInteger nextStreamIndex = new AtomicInteger(0);
+    private static final ThreadLocal<StreamHolder> streams = new ThreadLocal<StreamHolder>();
+    private static final Random threadRandom = new ThreadRandom();
+
+    private static class StreamHolder {
+
+        int generation;
+        Random random;
+    }
+
+    /**
+     * Set the run seed. All streams are reset and re-derived from the new seed
+     * the next time they are used.
+     *
+     * @param newSeed The run seed
+     */
+    public static synchronized void setSeed(long newSeed) {
+        seed = newSeed;
+        nextStreamIndex.set(0);
+        generation++;
+    }
+
+    public static long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Return the random number generator of the calling thread.
+     */
+    public static Random get() {
+        StreamHolder holder = streams.get();
+        if (holder == null) {
+            holder = new StreamHolder();
+            streams.set(holder);
+        }
+        int curGeneration = generation;
+        if (holder.random == null || holder.generation != curGeneration) {
+            // implicit streams use negative indices
+            holder.random = createStream(seed, -1 - nextStreamIndex.getAndIncrement());
+            holder.generation = curGeneration;
+        }
+        return holder.random;
+    }
+
+    /**
+     * Bind a random number generator to the calling thread.
+     *
+     * @param random The random number generator
+     */
+    public static void setThreadRandom(Random random) {
+        StreamHolder holder = streams.get();
+        if (holder == null) {
+            holder = new StreamHolder();
+            streams.set(holder);
+        }
+        holder.random = random;
+        holder.generation = generation;
+    }
+
+    /**
+     * Return a shared Random that forwards all calls to the calling thread's
+     * stream.
+     */
+    public static Random getThreadRandom() {
+        return threadRandom;
+    }
+
+    /**
+     * Create an independent stream of random numbers.
+     *
+     * @param runSeed The run seed
+     * @param streamIndex Index of the stream, which should be non-negative
+     */
+    public static Random createStream(long runSeed, int streamIndex) {
+        return new StreamRandom(mix(runSeed + 0x9E3779B97F4A7C15L * (streamIndex + 1)));
+    }
+
+    /**
+     * Create an independent stream of random numbers from the current run
+     * seed.
+     *
+     * @param streamIndex Index of the stream
+     */
+    public static Random createStream(int streamIndex) {
+        return createStream(seed, streamIndex);
+    }
+
+    // finalizer of SplitMix64
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Draw from a Gamma distribution (Marsaglia and Tsang, 2000).
+     *
+     * @param random The random number generator
+     * @param shape The shape parameter
+     * @param scale The scale parameter
+     */
+    public static double nextGamma(Random random, double shape, double scale) {
+        if (shape <= 0 || scale <= 0) {
+            throw new RuntimeException("Invalid Gamma parameters. shape = "
+                    + shape + ". scale = " + scale);
+        }
+        if (shape < 1) {
+            double u = random.nextDouble();
+            return nextGamma(random, shape + 1, scale) * Math.pow(u, 1.0 / shape);
+        }
+        double d = shape - 1.0 / 3;
+        double c = 1.0 / Math.sqrt(9 * d);
+        while (true) {
+            double x, v;
+            do {
+                x = random.nextGaussian();
+                v = 1 + c * x;
+            } while (v <= 0);
+            v = v * v * v;
+            double u = random.nextDouble();
+            if (u < 1 - 0.0331 * x * x * x * x
+                    || Math.log(u) < 0.5 * x * x + d * (1 - v + Math.log(v))) {
+                return d * v * scale;
+            }
+        }
+    }
+
+    /**
+     * Draw from a Gamma distribution using the calling thread's stream.
+     *
+     * @param shape The shape parameter
+     * @param scale The scale parameter
+     */
+    public static double nextGamma(double shape, double scale) {
+        return nextGamma(get(), shape, scale);
+    }
+
+    /**
+     * Draw a distribution from a Dirichlet by normalizing independent Gamma
+     * draws.
+     *
+     * @param random The random number generator
+     * @param alphas The Dirichlet parameters
+     */
+    public static double[] nextDirichlet(Random random, double[] alphas) {
+        double[] dist = new double[alphas.length];
+        double sum = 0.0;
+        for (int i = 0; i < alphas.length; i++) {
+            dist[i] = nextGamma(random, alphas[i], 1);
+            sum += dist[i];
+        }
+        for (int i = 0; i < alphas.length; i++) {
+            dist[i] /= sum;
+        }
+        return dist;
+    }
+
+    /**
+     * Draw a distribution from a Dirichlet using the calling thread's stream.
+     *
+     * @param alphas The Dirichlet parameters
+     */
+    public static double[] nextDirichlet(double[] alphas) {
+        return nextDirichlet(get(), alphas);
+    }
+
+    /**
+     * A java.util.Random backed by a SplittableRandom, which is not
+     * synchronized and has better statistical quality.
+     */
+    private static class StreamRandom extends Random {
+
+        private static final long serialVersionUID = 1123581321L;
+        private SplittableRandom random;
+        private double nextNextGaussian;
+        private boolean haveNextNextGaussian = false;
+
+        StreamRandom(long seed) {
+            super(0);
+            this.random = new SplittableRandom(seed);
+        }
+
+        @Override
+        public void setSeed(long seed) {
+            // called by the constructor of Random before random is set
+            if (random != null) {
+                random = new SplittableRandom(seed);
+                haveNextNextGaussian = false;
+            }
+        }
+
+        @Override
+        protected int next(int bits) {
+            return random.nextInt() >>> (32 - bits);
+        }
+
+        @Override
+        public int nextInt() {
+            return random.nextInt();
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return random.nextInt(bound);
+        }
+
+        @Override
+        public long nextLong() {
+            return random.nextLong();
+        }
+
+        @Override
+        public double nextDouble() {
+            return random.nextDouble();
+        }
+
+        @Override
+        public boolean nextBoolean() {
+            return random.nextBoolean();
+        }
+
+        @Override
+        public double nextGaussian() {
+            if (haveNextNextGaussian) {
+                haveNextNextGaussian = false;
+                return nextNextGaussian;
+            }
+            double v1, v2, s;
+            do {
+                v1 = 2 * random.nextDouble() - 1;
+                v2 = 2 * random.nextDouble() - 1;
+                s = v1 * v1 + v2 * v2;
+            } while (s >= 1 || s == 0);
+            double multiplier = Math.sqrt(-2 * Math.log(s) / s);
+            nextNextGaussian = v2 * multiplier;
+            haveNextNextGaussian = true;
+            return v1 * multiplier;
+        }
+    }
+
+    /**
+     * A Random that forwards all calls to the calling thread's stream.
+     */
+    private static class ThreadRandom extends Random {
+
+        private static final long serialVersionUID = 1123581321L;
+
+        @Override
+        public void setSeed(long seed) {
+            // ignored, the streams are seeded by RandomUtils.setSeed
+        }
+
+        @Override
+        protected int next(int bits) {
+            return get().nextInt() >>> (32 - bits);
+        }
+
+        @Override
+        public int nextInt() {
+            return get().nextInt();
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return get().nextInt(bound);
+        }
+
+        @Override
+        public long nextLong() {
+            return get().nextLong();
+        }
+
+        @Override
+        public double nextDouble() {
+            return get().nextDouble();
+        }
+
+        @Override
+        public float nextFloat() {
+            return get().nextFloat();
+        }
+
+        @Override
+        public boolean nextBoolean() {
+            return get().nextBoolean();
+        }
+
+        @Override
+        public double nextGaussian() {
+            return get().nextGaussian();
+        }
+    }
+}
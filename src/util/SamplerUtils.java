@@ -1,6 +1,5 @@
 package util;
 
-import cc.mallet.util.Randoms;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Random;
@@ -16,18 +15,19 @@ public class SamplerUtils {
     public static final double MAX_LOG = Math.log(Double.MAX_VALUE);
     public static final double HALF_LOG_TWO_PI = Math.log(2 * Math.PI) / 2;
     public static final double EULER_MASCHERONI = -0.5772156649015328606065121;
-    public static Random rand = new Random(RAND_SEED);
-    public static Randoms randoms = new Randoms((int)RAND_SEED);
+    // forwards to the calling thread's stream, see RandomUtils
+    public static final Random rand = RandomUtils.getThreadRandom();
 
     public static void resetRand() {
-        rand = new Random(RAND_SEED);
+        RandomUtils.setSeed(RAND_SEED);
     }
     
     public static double[] sampleMultinomial(double[] dirVector) {
+        Random random = RandomUtils.get();
         double[] ts = new double[dirVector.length];
         double sum = 0.0;
         for (int v = 0; v < dirVector.length; v++) {
-            ts[v] = randoms.nextGamma(dirVector[v], 1);
+            ts[v] = RandomUtils.nextGamma(random, dirVector[v], 1);
             sum += ts[v];
         }
 
@@ -57,7 +57,7 @@ public class SamplerUtils {
             int count = 0;
             for (int r = 0; r < n; r++) {
                 double prob = alpha / (alpha + r);
-                if (rand.nextDouble() < prob) {
+                if (RandomUtils.get().nextDouble() < prob) {
                     count++;
                 }
             }
@@ -161,7 +161,7 @@ public class SamplerUtils {
     }
 
     public static double getGaussian(double aMean, double aVariance) {
-        return aMean + rand.nextGaussian() * Math.sqrt(aVariance);
+        return aMean + RandomUtils.get().nextGaussian() * Math.sqrt(aVariance);
     }
 
     public static double logGammaStirling(double x) {
@@ -211,12 +211,11 @@ public class SamplerUtils {
         double prior_sum = size * prior_val;
         double val = 0.0;
 
-        val += SamplerUtils.logGammaStirling(prior_sum);
-        val -= size * SamplerUtils.logGammaStirling(prior_val);
+        val += LogGammaCache.logGamma(prior_sum, 0);
         for (int ii = 0; ii < obs.length; ++ii) {
-            val += SamplerUtils.logGammaStirling(prior_val + (double) obs[ii]);
+            val += LogGammaCache.logGammaRatio(prior_val, obs[ii]);
         }
-        val -= SamplerUtils.logGammaStirling(sum + prior_sum);
+        val -= LogGammaCache.logGamma(prior_sum, sum);
         return val;
     }
 
@@ -392,7 +391,7 @@ public class SamplerUtils {
             cumm_probs[i] += cumm_probs[i - 1];
         }
 
-        double randValue = rand.nextDouble() * cumm_probs[cumm_probs.length - 1];
+        double randValue = RandomUtils.get().nextDouble() * cumm_probs[cumm_probs.length - 1];
 
         int index;
         for (index = 0; index < cumm_probs.length; index++) {
@@ -415,7 +414,7 @@ public class SamplerUtils {
             cumm_probs[i] += cumm_probs[i - 1];
         }
 
-        double randValue = rand.nextDouble() * cumm_probs[cumm_probs.length - 1];
+        double randValue = RandomUtils.get().nextDouble() * cumm_probs[cumm_probs.length - 1];
 
         int index;
         for (index = 0; index < cumm_probs.length; index++) {
@@ -427,7 +426,7 @@ public class SamplerUtils {
     }
 
     public static int scaleSample(double[] weights, double sum) {
-        double b = 0, r = rand.nextDouble() * sum;
+        double b = 0, r = RandomUtils.get().nextDouble() * sum;
         int i;
         for (i = 0; i < weights.length; i++) {
             b += weights[i];
@@ -443,6 +442,209 @@ public class SamplerUtils {
         return i;
     }
 
+    /**
+     * Scale sample from the first elements of an unnormalized pdf using a
+     * given random number generator.
+     *
+     * @param weights Unnormalized pdf
+     * @param size Number of elements to consider
+     * @param random Random number generator
+     */
+    public static int scaleSample(double[] weights, int size, Random random) {
+        double sum = 0.0;
+        for (int i = 0; i < size; i++) {
+            sum += weights[i];
+        }
+        double b = 0, r = random.nextDouble() * sum;
+        int i;
+        for (i = 0; i < size - 1; i++) {
+            b += weights[i];
+            if (b > r) {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Scale sample from the first elements of an unnormalized pdf. This does
+     * not allocate, so the pdf can be a reused buffer.
+     *
+     * @param weights Unnormalized pdf
+     * @param size Number of elements to consider
+     */
+    public static int scaleSample(double[] weights, int size) {
+        return scaleSample(weights, size, RandomUtils.get());
+    }
+
+    /**
+     * Sample from the first elements of an unnormalized pdf in the log space.
+     * The elements are overwritten by the cumulative weights, so that no
+     * temporary array is needed.
+     *
+     * @param logDist Unnormalized log pdf
+     * @param size Number of elements to consider
+     */
+    public static int logMaxRescaleSample(double[] logDist, int size) {
+        return logSample(logDist, size, logDist, false, RandomUtils.get());
+    }
+
+    // ----- sampling kernels -----
+    /**
+     * Above this size, cumulative weights are searched by bisection instead of
+     * a linear scan.
+     */
+    public static final int BINARY_SEARCH_THRESHOLD = 64;
+    private static final double LOG2E = 1.4426950408889634;
+    private static final double LN2 = 0.6931471805599453;
+    private static final double SQRT2 = 1.4142135623730951;
+
+    /**
+     * Sample from the first elements of an unnormalized pdf in the log space.
+     * This makes one pass to find the maximum and a second pass that
+     * exponentiates and accumulates, then searches the cumulative weights.
+     *
+     * @param logDist Unnormalized log pdf
+     * @param size Number of elements to consider
+     * @param cumulative Scratch buffer of at least size elements, which receives
+     * the cumulative weights. This can be logDist itself.
+     * @param approximate Whether to use {@link #fastExp(double)}
+     * @param random Random number generator
+     */
+    public static int logSample(double[] logDist, int size, double[] cumulative,
+            boolean approximate, Random random) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            if (logDist[i] > max) {
+                max = logDist[i];
+            }
+        }
+        double sum = 0.0;
+        if (approximate) {
+            for (int i = 0; i < size; i++) {
+                sum += fastExp(logDist[i] - max);
+                cumulative[i] = sum;
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                sum += Math.exp(logDist[i] - max);
+                cumulative[i] = sum;
+            }
+        }
+        return searchCumulative(cumulative, size, random.nextDouble() * sum);
+    }
+
+    /**
+     * Sample from the first elements of an unnormalized log pdf using the
+     * calling thread's random number generator and exact exponentiation.
+     *
+     * @param logDist Unnormalized log pdf
+     * @param size Number of elements to consider
+     * @param cumulative Scratch buffer of at least size elements
+     */
+    public static int logSample(double[] logDist, int size, double[] cumulative) {
+        return logSample(logDist, size, cumulative, false, RandomUtils.get());
+    }
+
+    /**
+     * Sample from the first elements of an unnormalized pdf by accumulating
+     * into a scratch buffer and searching it.
+     *
+     * @param weights Unnormalized pdf
+     * @param size Number of elements to consider
+     * @param cumulative Scratch buffer of at least size elements, which receives
+     * the cumulative weights. This can be weights itself.
+     * @param random Random number generator
+     */
+    public static int cumulativeSample(double[] weights, int size, double[] cumulative,
+            Random random) {
+        double sum = 0.0;
+        for (int i = 0; i < size; i++) {
+            sum += weights[i];
+            cumulative[i] = sum;
+        }
+        return searchCumulative(cumulative, size, random.nextDouble() * sum);
+    }
+
+    /**
+     * Return the first index whose cumulative weight exceeds a value, using a
+     * linear scan for small sizes and bisection otherwise.
+     *
+     * @param cumulative Non-decreasing cumulative weights
+     * @param size Number of elements to consider
+     * @param u A value in [0, cumulative[size - 1])
+     */
+    public static int searchCumulative(double[] cumulative, int size, double u) {
+        if (size < BINARY_SEARCH_THRESHOLD) {
+            int i;
+            for (i = 0; i < size - 1; i++) {
+                if (u < cumulative[i]) {
+                    break;
+                }
+            }
+            return i;
+        }
+        int lo = 0;
+        int hi = size - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (u < cumulative[mid]) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Approximate exp(x) with a relative error below 1E-8. The argument is
+     * split as x = (n + f) ln2 with |f| <= 1/2, and 2^f is evaluated by a
+     * polynomial. Results below the smallest normal number are flushed to 0.
+     *
+     * @param x The exponent
+     */
+    public static double fastExp(double x) {
+        if (x < -708.0) {
+            return 0.0;
+        }
+        if (x > 709.0) {
+            return x != x ? x : Double.POSITIVE_INFINITY;
+        }
+        double t = x * LOG2E;
+        double n = Math.rint(t);
+        double y = (t - n) * LN2;
+        double p = 1 + y * (1 + y * (1.0 / 2 + y * (1.0 / 6 + y * (1.0 / 24
+                + y * (1.0 / 120 + y * (1.0 / 720 + y * (1.0 / 5040 + y / 40320)))))));
+        return p * Double.longBitsToDouble(((long) n + 1023) << 52);
+    }
+
+    /**
+     * Approximate log(x) with an absolute error below 1E-9. The mantissa m is
+     * reduced to [sqrt(1/2), sqrt(2)) and log(m) = 2 atanh((m - 1) / (m + 1))
+     * is evaluated by a truncated series. Non-positive, infinite, subnormal and
+     * NaN arguments fall back to Math.log.
+     *
+     * @param x The argument
+     */
+    public static double fastLog(double x) {
+        if (!(x >= Double.MIN_NORMAL) || x == Double.POSITIVE_INFINITY) {
+            return Math.log(x);
+        }
+        long bits = Double.doubleToRawLongBits(x);
+        int e = (int) ((bits >>> 52) & 0x7FF) - 1023;
+        double m = Double.longBitsToDouble((bits & 0xFFFFFFFFFFFFFL) | 0x3FF0000000000000L);
+        if (m > SQRT2) {
+            m *= 0.5;
+            e++;
+        }
+        double s = (m - 1) / (m + 1);
+        double s2 = s * s;
+        double r = 2 * s * (1 + s2 * (1.0 / 3 + s2 * (1.0 / 5 + s2 * (1.0 / 7
+                + s2 * (1.0 / 9 + s2 * (1.0 / 11 + s2 / 13))))));
+        return e * LN2 + r;
+    }
+
     public static int logMaxRescaleSample(ArrayList<Double> logDistList) {
         double[] logDist = new double[logDistList.size()];
         for (int i = 0; i < logDist.length; i++) {
@@ -494,7 +696,7 @@ public class SamplerUtils {
         }
 
         double max = Math.exp(logCdf[logCdf.length - 1]);
-        double randVal = rand.nextDouble();
+        double randVal = RandomUtils.get().nextDouble();
         double sampledLogVal = Math.log(randVal * max);
         int index;
         for (index = 0; index < logCdf.length; index++) {
@@ -0,0 +1,137 @@
+package util;
+
+import java.util.Random;
+
+/**
+ * Compares the sampling kernels of {@link SamplerUtils} against the original
+ * sampling methods, in terms of both the accuracy of the sampled
+ * distributions and the time per draw.
+ *
+ * Usage: java util.SamplingBenchmark [numDraws]
+ *
+ * @author vietan
+ */
+public class SamplingBenchmark {
+
+    private static final int[] SIZES = {10, 100, 1000, 10000};
+
+    public static void main(String[] args) {
+        int numDraws = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        checkApproximations();
+        for (int size : SIZES) {
+            benchmark(size, numDraws);
+        }
+    }
+
+    /**
+     * Report the maximum errors of fastExp and fastLog over a grid.
+     */
+    private static void checkApproximations() {
+        double maxExpErr = 0.0;
+        for (double x = -700; x <= 700; x += 0.0137) {
+            double exact = Math.exp(x);
+            maxExpErr = Math.max(maxExpErr,
+                    Math.abs(SamplerUtils.fastExp(x) - exact) / exact);
+        }
+        double maxLogErr = 0.0;
+        for (double x = 1E-300; x < 1E300; x *= 1.0137) {
+            maxLogErr = Math.max(maxLogErr,
+                    Math.abs(SamplerUtils.fastLog(x) - Math.log(x)));
+        }
+        System.out.println("fastExp max relative error: " + maxExpErr);
+        System.out.println("fastLog max absolute error: " + maxLogErr);
+    }
+
+    private static void benchmark(int size, int numDraws) {
+        Random random = new Random(SamplerUtils.RAND_SEED + size);
+        double[] logDist = new double[size];
+        for (int i = 0; i < size; i++) {
+            logDist[i] = -500 + 10 * random.nextGaussian();
+        }
+        double[] trueDist = normalize(logDist);
+        double[] input = new double[size];
+        double[] buffer = new double[size];
+        int draws = Math.max(1000, numDraws / Math.max(1, size / 100));
+
+        System.out.println("\nK = " + size + ". # draws = " + draws);
+        int[] counts = new int[size];
+        long sTime = System.nanoTime();
+        for (int d = 0; d < draws; d++) {
+            counts[SamplerUtils.logMaxRescaleSample(logDist)]++;
+        }
+        report("logMaxRescaleSample", sTime, draws, counts, trueDist);
+
+        counts = new int[size];
+        sTime = System.nanoTime();
+        for (int d = 0; d < draws; d++) {
+            counts[SamplerUtils.logScaleSample(logDist)]++;
+        }
+        report("logScaleSample", sTime, draws, counts, trueDist);
+
+        counts = new int[size];
+        sTime = System.nanoTime();
+        for (int d = 0; d < draws; d++) {
+            System.arraycopy(logDist, 0, input, 0, size);
+            counts[SamplerUtils.logSample(input, size, buffer, false, random)]++;
+        }
+        report("logSample (exact)", sTime, draws, counts, trueDist);
+
+        counts = new int[size];
+        sTime = System.nanoTime();
+        for (int d = 0; d < draws; d++) {
+            System.arraycopy(logDist, 0, input, 0, size);
+            counts[SamplerUtils.logSample(input, size, buffer, true, random)]++;
+        }
+        report("logSample (fastExp)", sTime, draws, counts, trueDist);
+
+        double[] weights = new double[size];
+        for (int i = 0; i < size; i++) {
+            weights[i] = trueDist[i];
+        }
+        counts = new int[size];
+        sTime = System.nanoTime();
+        for (int d = 0; d < draws; d++) {
+            counts[SamplerUtils.scaleSample(weights)]++;
+        }
+        report("scaleSample", sTime, draws, counts, trueDist);
+
+        counts = new int[size];
+        sTime = System.nanoTime();
+        for (int d = 0; d < draws; d++) {
+            counts[SamplerUtils.cumulativeSample(weights, size, buffer, random)]++;
+        }
+        report("cumulativeSample", sTime, draws, counts, trueDist);
+    }
+
+    private static double[] normalize(double[] logDist) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double v : logDist) {
+            max = Math.max(max, v);
+        }
+        double[] dist = new double[logDist.length];
+        double sum = 0.0;
+        for (int i = 0; i < dist.length; i++) {
+            dist[i] = Math.exp(logDist[i] - max);
+            sum += dist[i];
+        }
+        for (int i = 0; i < dist.length; i++) {
+            dist[i] /= sum;
+        }
+        return dist;
+    }
+
+    /**
+     * Print the time per draw and the total variation distance between the
+     * empirical and the true distributions.
+     */
+    private static void report(String method, long sTime, int draws,
+            int[] counts, double[] trueDist) {
+        double nsPerDraw = (double) (System.nanoTime() - sTime) / draws;
+        double tv = 0.0;
+        for (int i = 0; i < counts.length; i++) {
+            tv += Math.abs((double) counts[i] / draws - trueDist[i]);
+        }
+        System.out.println(String.format("%-22s %10.1f ns/draw\tTV = %.4f",
+                method, nsPerDraw, tv / 2));
+    }
+}
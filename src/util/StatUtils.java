@@ -300,7 +300,7 @@ public class StatUtils {
         double sum = 0;
         int dcutoff = 16;
         if (d > dcutoff) {
-            return (digamma(x + d) - digamma(x));
+            return LogGammaCache.digamma(x, d) - LogGammaCache.digamma(x, 0);
         }
         for (int i = 0; i < d; ++i) {
             sum += 1 / (x + i);
@@ -1,12 +1,26 @@
 package util.evaluation;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import util.MiscUtils;
 
 /**
+ * Topic coherence of Mimno et al. (2011), which is computed from the number of
+ * documents in which pairs of top words co-occur.
+ *
+ * Instead of a dense V x V matrix of co-document frequencies, {@link #prepare()}
+ * builds an inverted index storing the sorted list of documents containing
+ * each word type, so memory scales with the size of the corpus. The
+ * co-document frequency of a pair is computed on demand by intersecting the
+ * two lists, and cached since top words are shared across topics and calls.
  *
  * @author vietan
  */
@@ -15,7 +29,9 @@ public class MimnoTopicCoherence {
     private int[][] corpus;
     private int vocabSize;
     private int numTokens;
-    private int[][] coDocFreq;
+    private int numThreads = 1;
+    private int[][] postings; // sorted documents containing each word type
+    private ConcurrentHashMap<Long, Integer> coDocFreqCache;
 
     public MimnoTopicCoherence(int[][] corpus, int vocSize, int numTokens) {
         this.corpus = corpus;
@@ -27,20 +43,104 @@ public class MimnoTopicCoherence {
         return this.numTokens;
     }
 
+    /**
+     * Set the number of threads used to score topics in
+     * {@link #getCoherenceScores(int[][])}.
+     *
+     * @param numThreads Number of threads
+     */
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new RuntimeException("Invalid number of threads " + numThreads);
+        }
+        this.numThreads = numThreads;
+    }
+
     public void prepare() {
-        this.coDocFreq = new int[vocabSize][vocabSize];
+        // document frequencies, counting each word type once per document
+        int[] docFreqs = new int[vocabSize];
+        int[] lastDocs = new int[vocabSize];
+        Arrays.fill(lastDocs, -1);
         for (int d = 0; d < corpus.length; d++) {
-            Set<Integer> uniqueTokens = new HashSet<Integer>();
             for (int n = 0; n < corpus[d].length; n++) {
-                uniqueTokens.add(corpus[d][n]);
+                int token = corpus[d][n];
+                if (lastDocs[token] != d) {
+                    lastDocs[token] = d;
+                    docFreqs[token]++;
+                }
             }
+        }
 
-            for (int token : uniqueTokens) {
-                for (int otherToken : uniqueTokens) {
-                    coDocFreq[token][otherToken]++;
+        // posting lists, sorted since documents are visited in order
+        this.postings = new int[vocabSize][];
+        for (int v = 0; v < vocabSize; v++) {
+            postings[v] = new int[docFreqs[v]];
+        }
+        int[] sizes = new int[vocabSize];
+        Arrays.fill(lastDocs, -1);
+        for (int d = 0; d < corpus.length; d++) {
+            for (int n = 0; n < corpus[d].length; n++) {
+                int token = corpus[d][n];
+                if (lastDocs[token] != d) {
+                    lastDocs[token] = d;
+                    postings[token][sizes[token]++] = d;
                 }
             }
         }
+        this.coDocFreqCache = new ConcurrentHashMap<Long, Integer>();
+    }
+
+    /**
+     * Return the number of documents containing a word type.
+     *
+     * @param token The word type
+     */
+    public int getDocFrequency(int token) {
+        return postings[token].length;
+    }
+
+    /**
+     * Return the number of documents containing both word types.
+     *
+     * @param tokenA A word type
+     * @param tokenB Another word type
+     */
+    public int getCoDocFrequency(int tokenA, int tokenB) {
+        if (tokenA == tokenB) {
+            return postings[tokenA].length;
+        }
+        long key = (long) Math.min(tokenA, tokenB) * vocabSize + Math.max(tokenA, tokenB);
+        Integer count = coDocFreqCache.get(key);
+        if (count == null) {
+            count = intersect(postings[tokenA], postings[tokenB]);
+            coDocFreqCache.put(key, count);
+        }
+        return count;
+    }
+
+    /**
+     * Count the common elements of two sorted lists. The shorter list is
+     * searched in the longer one, which is much faster than a linear merge
+     * when a rare word is paired with a frequent one.
+     */
+    private static int intersect(int[] listA, int[] listB) {
+        int[] shortList = listA.length <= listB.length ? listA : listB;
+        int[] longList = listA.length <= listB.length ? listB : listA;
+        int count = 0;
+        int lo = 0;
+        for (int d : shortList) {
+            int idx = Arrays.binarySearch(longList, lo, longList.length, d);
+            if (idx >= 0) {
+                count++;
+                lo = idx + 1;
+            } else {
+                lo = -idx - 1;
+            }
+            if (lo == longList.length) {
+                break;
+            }
+        }
+        return count;
     }
 
     public double getCoherenceScore(int[] topic) {
@@ -49,26 +149,53 @@ public class MimnoTopicCoherence {
             int tokenM = topic[m];
             for (int l = 0; l < m; l++) {
                 int tokenL = topic[l];
-                score += Math.log(coDocFreq[tokenM][tokenL] + 1) - Math.log(coDocFreq[tokenL][tokenL]);
+                score += Math.log(getCoDocFrequency(tokenM, tokenL) + 1)
+                        - Math.log(getDocFrequency(tokenL));
             }
         }
         return score;
     }
 
-    public double[] getCoherenceScores(int[][] topics) {
-        double[] scores = new double[topics.length];
-        for (int k = 0; k < topics.length; k++) {
-            scores[k] = getCoherenceScore(topics[k]);
+    public double[] getCoherenceScores(final int[][] topics) {
+        final double[] scores = new double[topics.length];
+        if (numThreads == 1 || topics.length < 2) {
+            for (int k = 0; k < topics.length; k++) {
+                scores[k] = getCoherenceScore(topics[k]);
+            }
+            return scores;
+        }
+
+        int numShards = Math.min(numThreads, topics.length);
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int ii = 0; ii < numShards; ii++) {
+            final int start = (int) ((long) ii * topics.length / numShards);
+            final int end = (int) ((long) (ii + 1) * topics.length / numShards);
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    for (int k = start; k < end; k++) {
+                        scores[k] = getCoherenceScore(topics[k]);
+                    }
+                    return end - start;
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(numShards);
+        try {
+            for (Future<Integer> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while computing coherence scores");
+        } finally {
+            executor.shutdown();
         }
         return scores;
     }
 
     public double[] getCoherenceScores(ArrayList<int[]> topics) {
-        double[] scores = new double[topics.size()];
-        for (int k = 0; k < topics.size(); k++) {
-            scores[k] = getCoherenceScore(topics.get(k));
-        }
-        return scores;
+        return getCoherenceScores(topics.toArray(new int[topics.size()][]));
     }
 
     public static void main(String[] args) {
@@ -90,8 +217,12 @@ public class MimnoTopicCoherence {
 
         MimnoTopicCoherence tc = new MimnoTopicCoherence(obs, V, 5);
         tc.prepare();
-        for (int i = 0; i < tc.coDocFreq.length; i++) {
-            System.out.println(MiscUtils.arrayToString(tc.coDocFreq[i]));
+        for (int i = 0; i < V; i++) {
+            int[] coDocFreqs = new int[V];
+            for (int j = 0; j < V; j++) {
+                coDocFreqs[j] = tc.getCoDocFrequency(i, j);
+            }
+            System.out.println(MiscUtils.arrayToString(coDocFreqs));
         }
     }
 }
@@ -1,12 +1,10 @@
 package util.evaluation;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import mulan.classifier.MultiLabelOutput;
 import mulan.evaluation.measure.IsError;
 import mulan.evaluation.measure.MeanAveragePrecision;
 import mulan.evaluation.measure.OneError;
-import util.RankingItem;
 
 /**
  *
@@ -19,6 +17,7 @@ public class MultilabelClassificationEvaluation {
     private ArrayList<Measurement> measurements;
     private int numLabels;
     private int[] docNumTrueLabels;
+    private RankingMetrics[] docRankings;
 
     public MultilabelClassificationEvaluation(int[][] truth, double[][] predicts) {
         this.numLabels = predicts[0].length;
@@ -46,6 +45,22 @@ public class MultilabelClassificationEvaluation {
         return this.measurements;
     }
 
+    /**
+     * Return the ranking of labels of a document, which is computed once and
+     * shared by all document-based metrics.
+     *
+     * @param dd Document index
+     */
+    private RankingMetrics getDocumentRanking(int dd) {
+        if (this.docRankings == null) {
+            this.docRankings = new RankingMetrics[trueLabels.length];
+        }
+        if (this.docRankings[dd] == null) {
+            this.docRankings[dd] = new RankingMetrics(predictedScores[dd], trueLabels[dd]);
+        }
+        return this.docRankings[dd];
+    }
+
     public void computeMeasurements() {
         // document-based metrics
         computeTopKMeasures(1);
@@ -54,6 +69,7 @@ public class MultilabelClassificationEvaluation {
         computeTopKMeasures(10);
         computePRF();
         // label-based metrics
+        computeLabelAUCs();
         computeMeanAveragePrecision();
         computeIsError();
         computeOneError();
@@ -68,22 +84,9 @@ public class MultilabelClassificationEvaluation {
             if (this.docNumTrueLabels[dd] == 0) {
                 continue;
             }
-            ArrayList<RankingItem<Integer>> rankLabels = new ArrayList<RankingItem<Integer>>();
-            for (int ll = 0; ll < predictedScores[dd].length; ll++) {
-                rankLabels.add(new RankingItem<Integer>(ll, predictedScores[dd][ll]));
-            }
-            Collections.sort(rankLabels);
-
-            int numCorrect = 0;
             int k = this.docNumTrueLabels[dd];
-
-            for (int ii = 0; ii < k; ii++) {
-                int predLabel = rankLabels.get(ii).getObject();
-                if (this.trueLabels[dd][predLabel]) {
-                    numCorrect++;
-                    totalCorrect++; // for micro precision/recall
-                }
-            }
+            int numCorrect = getDocumentRanking(dd).getNumPositives(k);
+            totalCorrect += numCorrect; // for micro precision/recall
             totalCount += k;
             numDocs++;
             sumPrec += (double) numCorrect / k;
@@ -105,21 +108,8 @@ public class MultilabelClassificationEvaluation {
             if (this.docNumTrueLabels[dd] == 0) {
                 continue;
             }
-
-            ArrayList<RankingItem<Integer>> rankLabels = new ArrayList<RankingItem<Integer>>();
-            for (int ll = 0; ll < predictedScores[dd].length; ll++) {
-                rankLabels.add(new RankingItem<Integer>(ll, predictedScores[dd][ll]));
-            }
-            Collections.sort(rankLabels);
-
-            int numCorrect = 0;
-            for (int ii = 0; ii < k; ii++) {
-                int predLabel = rankLabels.get(ii).getObject();
-                if (this.trueLabels[dd][predLabel]) {
-                    numCorrect++;
-                    totalCorrect++; // for micro precision/recall
-                }
-            }
+            int numCorrect = getDocumentRanking(dd).getNumPositives(k);
+            totalCorrect += numCorrect; // for micro precision/recall
             numDocs++;
             sumRec += (double) numCorrect / this.docNumTrueLabels[dd];
             sumPrec += (double) numCorrect / k;
@@ -140,6 +130,46 @@ public class MultilabelClassificationEvaluation {
         this.measurements.add(new Measurement("Macro-F1@" + k, macroF1));
     }
 
+    /**
+     * Compute the areas under the ROC and precision-recall curves of ranking
+     * documents for each label, averaged over labels that have both positive
+     * and negative documents (macro), and of ranking all document-label pairs
+     * (micro).
+     */
+    public void computeLabelAUCs() {
+        int D = trueLabels.length;
+        double[] scores = new double[D];
+        boolean[] labels = new boolean[D];
+        int numValidLabels = 0;
+        double sumROC = 0.0;
+        double sumPR = 0.0;
+        for (int ll = 0; ll < numLabels; ll++) {
+            for (int dd = 0; dd < D; dd++) {
+                scores[dd] = predictedScores[dd][ll];
+                labels[dd] = trueLabels[dd][ll];
+            }
+            RankingMetrics metrics = new RankingMetrics(scores, labels);
+            if (Double.isNaN(metrics.getAUCROC())) {
+                continue;
+            }
+            sumROC += metrics.getAUCROC();
+            sumPR += metrics.getAUCPR();
+            numValidLabels++;
+        }
+        this.measurements.add(new Measurement("Macro-AUC-ROC", sumROC / numValidLabels));
+        this.measurements.add(new Measurement("Macro-AUC-PRC", sumPR / numValidLabels));
+
+        double[] allScores = new double[D * numLabels];
+        boolean[] allLabels = new boolean[D * numLabels];
+        for (int dd = 0; dd < D; dd++) {
+            System.arraycopy(predictedScores[dd], 0, allScores, dd * numLabels, numLabels);
+            System.arraycopy(trueLabels[dd], 0, allLabels, dd * numLabels, numLabels);
+        }
+        RankingMetrics metrics = new RankingMetrics(allScores, allLabels);
+        this.measurements.add(new Measurement("Micro-AUC-ROC", metrics.getAUCROC()));
+        this.measurements.add(new Measurement("Micro-AUC-PRC", metrics.getAUCPR()));
+    }
+
     public void computeMeanAveragePrecision() {
         MeanAveragePrecision measure = new MeanAveragePrecision(numLabels);
         for (int dd = 0; dd < trueLabels.length; dd++) {
@@ -7,10 +7,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Set;
 import util.IOUtils;
-import util.RankingItem;
 
 /**
  *
@@ -23,18 +21,18 @@ public class RankingEvaluation {
     private final Set<Integer> relevants;
     // internal
     private final ArrayList<Measurement> measurements;
-    private final ArrayList<RankingItem<Integer>> ranking;
+    private final RankingMetrics metrics;
     private String aucListFile;
 
     public RankingEvaluation(double[] scores, Set<Integer> relevants) {
         this.scores = scores;
         this.relevants = relevants;
         this.measurements = new ArrayList<Measurement>();
-        this.ranking = new ArrayList<RankingItem<Integer>>();
-        for (int ii = 0; ii < this.scores.length; ii++) {
-            this.ranking.add(new RankingItem<Integer>(ii, scores[ii]));
+        boolean[] labels = new boolean[scores.length];
+        for (int ii : relevants) {
+            labels[ii] = true;
         }
-        Collections.sort(this.ranking);
+        this.metrics = new RankingMetrics(scores, labels);
     }
 
     public void setAUCListFile(String auc) {
@@ -46,43 +44,30 @@ public class RankingEvaluation {
     }
 
     public void computePRF() {
-        double[] precisions = new double[scores.length];
-        double[] recalls = new double[scores.length];
-        double[] f1s = new double[scores.length];
-        int correctCount = 0;
-        for (int i = 0; i < this.ranking.size(); i++) {
-            int item = this.ranking.get(i).getObject();
-            if (this.relevants.contains(item)) {
-                correctCount++;
-            }
-
-            precisions[i] = (double) correctCount / (i + 1);
-            recalls[i] = (double) correctCount / this.relevants.size();
-            if (precisions[i] == 0 && recalls[i] == 0) {
-                f1s[i] = 0;
-            } else {
-                f1s[i] = (2 * precisions[i] * recalls[i]) / (precisions[i] + recalls[i]);
-            }
-        }
-
-        this.measurements.add(new Measurement("N", ranking.size()));
+        this.measurements.add(new Measurement("N", scores.length));
         this.measurements.add(new Measurement("#positives", relevants.size()));
 
-        this.measurements.add(new Measurement("PRF1", f1s[this.relevants.size() - 1]));
-        this.measurements.add(new Measurement("P@1", precisions[0]));
-        this.measurements.add(new Measurement("R@1", recalls[0]));
-        this.measurements.add(new Measurement("F1@1", f1s[0]));
-
-        this.measurements.add(new Measurement("P@5", precisions[4]));
-        this.measurements.add(new Measurement("R@5", recalls[4]));
-        this.measurements.add(new Measurement("F1@5", f1s[4]));
-
-        this.measurements.add(new Measurement("P@10", precisions[9]));
-        this.measurements.add(new Measurement("R@10", recalls[9]));
-        this.measurements.add(new Measurement("F1@10", f1s[9]));
+        this.measurements.add(new Measurement("PRF1", metrics.getF1(relevants.size())));
+        for (int k : new int[]{1, 5, 10}) {
+            this.measurements.add(new Measurement("P@" + k, metrics.getPrecision(k)));
+            this.measurements.add(new Measurement("R@" + k, metrics.getRecall(k)));
+            this.measurements.add(new Measurement("F1@" + k, metrics.getF1(k)));
+        }
     }
 
+    /**
+     * Compute the areas under the precision-recall and ROC curves in memory.
+     */
     public void computeAUCs() {
+        this.measurements.add(new Measurement("AUC-PRC", metrics.getAUCPR()));
+        this.measurements.add(new Measurement("AUC-ROC", metrics.getAUCROC()));
+    }
+
+    /**
+     * Compute the areas under the precision-recall and ROC curves by running
+     * the AUCCalculator in lib/auc.jar in a separate process.
+     */
+    public void computeAUCsExternal() {
         try {
             File aucFile = new File(AUCCalculatorPath);
             if (!aucFile.exists()) {
@@ -97,9 +82,8 @@ public class RankingEvaluation {
             }
             // output temporary results
             BufferedWriter writer = IOUtils.getBufferedWriter(aucListFile);
-            for (RankingItem<Integer> rankingItem : this.ranking) {
-                int item = rankingItem.getObject();
-                double value = rankingItem.getPrimaryValue();
+            for (int item : this.metrics.getOrder()) {
+                double value = this.scores[item];
                 int cls;
                 if (this.relevants.contains(item)) {
                     cls = 1;
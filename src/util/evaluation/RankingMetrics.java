@@ -0,0 +1,223 @@
+package util.evaluation;
+
+/**
+ * Ranking metrics of a list of scored items with binary relevance labels,
+ * computed in the JVM on primitive arrays. The items are sorted once by
+ * decreasing score (ties keep their original order, as when sorting
+ * {@link util.RankingItem}s), and the areas under the ROC and the
+ * precision-recall curves are computed in a single pass over the groups of
+ * tied scores.
+ *
+ * The precision-recall curve is interpolated between consecutive points as in
+ * Davis and Goadrich (ICML 2006), and the curve starts at recall 0 with the
+ * precision of its first point, which matches the AUCCalculator in
+ * lib/auc.jar. The area under the ROC curve is the trapezoidal area, i.e., the
+ * Mann-Whitney statistic with ties counted as half. It differs from
+ * AUCCalculator only when negative items are ranked above all positive ones,
+ * since AUCCalculator then joins the origin directly to the first point with
+ * a true positive.
+ *
+ * @author vietan
+ */
+public class RankingMetrics {
+
+    private final double[] scores;
+    private final boolean[] labels;
+    private final int[] order;
+    private final int[] numPositivesAtK;
+    private final int numPositives;
+    private final double aucROC;
+    private final double aucPR;
+
+    public RankingMetrics(double[] scores, boolean[] labels) {
+        if (scores.length != labels.length) {
+            throw new RuntimeException("Lengths mismatched. "
+                    + scores.length + " vs. " + labels.length);
+        }
+        this.scores = scores;
+        this.labels = labels;
+        this.order = sortDescending(scores);
+
+        int N = scores.length;
+        this.numPositivesAtK = new int[N + 1];
+        for (int ii = 0; ii < N; ii++) {
+            numPositivesAtK[ii + 1] = numPositivesAtK[ii] + (labels[order[ii]] ? 1 : 0);
+        }
+        this.numPositives = numPositivesAtK[N];
+
+        int numNegatives = N - numPositives;
+        if (numPositives == 0 || numNegatives == 0) {
+            this.aucROC = Double.NaN;
+            this.aucPR = Double.NaN;
+            return;
+        }
+
+        double rocArea = 0.0; // in units of (#positives x #negatives)
+        double prArea = 0.0;
+        int prevTP = 0;
+        int prevFP = 0;
+        for (int ii = 0; ii < N; ii++) {
+            if (ii + 1 < N && scores[order[ii + 1]] == scores[order[ii]]) {
+                continue; // not the end of a group of tied scores
+            }
+            int tp = numPositivesAtK[ii + 1];
+            int fp = ii + 1 - tp;
+            rocArea += (fp - prevFP) * (tp + prevTP) / 2.0;
+
+            if (prevTP == 0) {
+                if (tp > 0) {
+                    prArea += (double) tp / numPositives * tp / (tp + fp);
+                }
+            } else if (tp > prevTP) {
+                // interpolate one positive at a time between the two points
+                double slope = (double) (fp - prevFP) / (tp - prevTP);
+                double prevRecall = (double) prevTP / numPositives;
+                double prevPrecision = (double) prevTP / (prevTP + prevFP);
+                for (int xx = prevTP + 1; xx <= tp; xx++) {
+                    double x = prevFP + slope * (xx - prevTP);
+                    double recall = (double) xx / numPositives;
+                    double precision = xx / (xx + x);
+                    prArea += (recall - prevRecall) * (precision + prevPrecision) / 2;
+                    prevRecall = recall;
+                    prevPrecision = precision;
+                }
+            }
+            prevTP = tp;
+            prevFP = fp;
+        }
+        this.aucROC = rocArea / ((double) numPositives * numNegatives);
+        this.aucPR = prArea;
+    }
+
+    /**
+     * Return the indices of the items sorted by decreasing score.
+     */
+    public int[] getOrder() {
+        return this.order;
+    }
+
+    public int getNumItems() {
+        return this.scores.length;
+    }
+
+    public int getNumPositives() {
+        return this.numPositives;
+    }
+
+    public boolean isPositive(int item) {
+        return this.labels[item];
+    }
+
+    /**
+     * Return the number of positive items among the top k.
+     */
+    public int getNumPositives(int k) {
+        return this.numPositivesAtK[Math.min(k, order.length)];
+    }
+
+    /**
+     * Area under the ROC curve, or NaN if all items have the same label.
+     */
+    public double getAUCROC() {
+        return this.aucROC;
+    }
+
+    /**
+     * Area under the precision-recall curve, or NaN if all items have the same
+     * label.
+     */
+    public double getAUCPR() {
+        return this.aucPR;
+    }
+
+    public double getPrecision(int k) {
+        return (double) getNumPositives(k) / k;
+    }
+
+    public double getRecall(int k) {
+        return (double) getNumPositives(k) / numPositives;
+    }
+
+    public double getF1(int k) {
+        double precision = getPrecision(k);
+        double recall = getRecall(k);
+        if (precision == 0 && recall == 0) {
+            return 0;
+        }
+        return (2 * precision * recall) / (precision + recall);
+    }
+
+    /**
+     * Normalized discounted cumulative gain of the top k items, using the
+     * binary labels as relevance scores.
+     */
+    public double getNDCG(int k) {
+        k = Math.min(k, order.length);
+        double dcg = 0.0;
+        double idcg = 0.0;
+        for (int ii = 0; ii < k; ii++) {
+            double discount = Math.log(2) / Math.log(ii + 2);
+            if (labels[order[ii]]) {
+                dcg += discount;
+            }
+            if (ii < numPositives) {
+                idcg += discount;
+            }
+        }
+        if (idcg == 0) {
+            return 0;
+        }
+        return dcg / idcg;
+    }
+
+    /**
+     * Sort indices by decreasing values. The sort is stable, so tied values
+     * keep their original order.
+     *
+     * @param values The values
+     */
+    public static int[] sortDescending(double[] values) {
+        int[] indices = new int[values.length];
+        for (int ii = 0; ii < indices.length; ii++) {
+            indices[ii] = ii;
+        }
+        mergeSort(indices, new int[indices.length], 0, indices.length, values);
+        return indices;
+    }
+
+    private static void mergeSort(int[] indices, int[] buffer, int lo, int hi,
+            double[] values) {
+        if (hi - lo < 2) {
+            return;
+        }
+        if (hi - lo <= 16) { // insertion sort for short ranges
+            for (int ii = lo + 1; ii < hi; ii++) {
+                int idx = indices[ii];
+                int jj = ii - 1;
+                while (jj >= lo && Double.compare(values[indices[jj]], values[idx]) < 0) {
+                    indices[jj + 1] = indices[jj];
+                    jj--;
+                }
+                indices[jj + 1] = idx;
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        mergeSort(indices, buffer, lo, mid, values);
+        mergeSort(indices, buffer, mid, hi, values);
+        if (Double.compare(values[indices[mid - 1]], values[indices[mid]]) >= 0) {
+            return; // already in order
+        }
+        System.arraycopy(indices, lo, buffer, lo, hi - lo);
+        int ll = lo;
+        int rr = mid;
+        for (int ii = lo; ii < hi; ii++) {
+            if (rr >= hi || (ll < mid
+                    && Double.compare(values[buffer[ll]], values[buffer[rr]]) >= 0)) {
+                indices[ii] = buffer[ll++];
+            } else {
+                indices[ii] = buffer[rr++];
+            }
+        }
+    }
+}
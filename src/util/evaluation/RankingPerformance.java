@@ -356,7 +356,29 @@ public class RankingPerformance<A> {
         }
     }
 
+    /**
+     * Compute the areas under the ROC and precision-recall curves of the
+     * ranked items in memory.
+     */
     public void computeAUC() {
+        double[] scores = new double[this.rankingItemLists.size()];
+        boolean[] labels = new boolean[this.rankingItemLists.size()];
+        for (int i = 0; i < this.rankingItemLists.size(); i++) {
+            RankingItem<A> rankingItem = this.rankingItemLists.getRankingItem(i);
+            scores[i] = rankingItem.getPrimaryValue();
+            labels[i] = this.groundtruthSet.contains(rankingItem.getObject());
+        }
+        RankingMetrics metrics = new RankingMetrics(scores, labels);
+        this.aucROC = metrics.getAUCROC();
+        this.aucPR = metrics.getAUCPR();
+    }
+
+    /**
+     * Compute the areas under the ROC and precision-recall curves by running
+     * the AUCCalculator in lib/auc.jar on the file written by
+     * {@link #outputAUCListFile()}.
+     */
+    public void computeAUCExternal() {
         try {
             File aucFile = new File(AUCCalculatorPath);
             if (!aucFile.exists()) {